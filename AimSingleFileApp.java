@@ -16,6 +16,37 @@
 //
 // Optional:
 //   & "C:\Program Files\Java\jdk-21.0.10\bin\java.exe" AimSingleFileApp "https://example.com" --profile default
+//   --batch <selectionProfile>   capture every URL profile with pooled, pre-warmed contexts
+//     [--parallel [--max-concurrency 4] [--min-free-mb 1024]]   AIMD-controlled parallel captures (batch_<ts>_concurrency.ndjson)
+//     [--max-browser-rss-mb 3072] [--context-max-jobs 50] [--max-open-pages 20]   recycle contexts/browser
+//                   between jobs (batch, worker, schedule); events in watchdog_events.ndjson, 0 disables a limit
+//   [--max-download-mb 100] [--max-capture-download-mb 1024] [--download-timeout-s 120] [--capture-download-s 600]
+//   [--download-types image/*,video/*,...]   media download limits (HEAD-probed, cut off mid-stream; 0 = unlimited)
+//   [--full-page auto|full|tiled|off] [--full-page-background]   page_full.png or viewport tiles in page_tiles/
+//   [--compress]    gzip manifest.json, dom_snapshot.html, spilled sidecars and list rows (viewer decodes them)
+//   --schedule      run profiles/schedules.json (cron or every + jitterSeconds) on one warm browser;
+//                   lateness/missed-run metrics go to profiles/schedule_metrics.json
+//   --enqueue <selectionProfile> [--queue <dir>]   one job file per URL profile in <dir>/pending (default queue/)
+//     [--seeds <file|->] [--seen-capacity 10000000]   stream URLs from text/NDJSON (gzip ok) instead, skipping
+//                   any already in <dir>/seen.bloom (memory-mapped Bloom filter kept across runs)
+//   --worker [--queue <dir>] [--lease-seconds 120]   claim jobs with leased renames until the shared queue drains
+//   --bundle        write each capture as one append-only capture.aimb file instead of many small files
+//   --serve-bundle <capture.aimb> [--port 8765]   serve a bundle to the viewer over http://127.0.0.1
+//   --serve <captureDir|root> [--port 8765]   serve one capture, or list every aim_capture_* under root; byte
+//                   ranges (video seeking), ETag/Cache-Control, gzip for JSON/HTML; bundles and .gz files too
+//   --index         ingest new aim_capture_* manifests into capture_index/ (memory-mapped segments)
+//   --search "<words> [tag:x kind:x host:x]" [--since 2026-01-01] [--until ...] [--limit 50] [--root <dir>]
+//   --wait-ready [--ready-quiet-ms 500] [--ready-cap-ms 15000]   start extraction once network, DOM, fonts and images settle
+//   [--spill-bytes 16384] [--spill-gzip]   outerHTML/text above the threshold go to html/el_NNN.* sidecars
+//   --no-thumbnails   skip the thumbs/ previews the viewer shows before loading originals
+//   --auto-scroll [--scroll-budget-ms 15000] [--scroll-item <css> --scroll-target N]   load lazy/infinite content before extracting
+//   --reextract <selectionProfile> [--root <dir>] [--since ..] [--until ..] [--threads N] [--out <dir>]
+//                   re-run a profile over stored dom_snapshot.html files with jsoup, no browser
+//   --record-har <dir> | --replay-har <dir>   record one HAR per URL, or re-run captures offline from them
+//   --incremental   reuse screenshots/media of elements unchanged since the last capture (profiles/fingerprints.json)
+//
+// Selection profile list items (one row per match, streamed to lists/list_NNN.csv|ndjson):
+//   {"kind":"list","selector":".card","fields":{"title":"h2","price":".price","link":"a@href"},"format":"csv","screenshot":false,"limit":0}
 //
 // NOTE: Save as AimSingleFileApp.java (do not paste into PowerShell)
 
@@ -33,17 +64,41 @@ public class AimSingleFileApp {
     String url = firstNonFlagArg(args);
     boolean headless = hasFlag(args, "--headless");
     boolean video = hasFlag(args, "--video");
+    boolean incremental = hasFlag(args, "--incremental");
+    boolean bundle = hasFlag(args, "--bundle");
+    boolean index = hasFlag(args, "--index");
+    boolean autoScroll = hasFlag(args, "--auto-scroll");
+    boolean waitReady = hasFlag(args, "--wait-ready");
+    boolean spillGzip = hasFlag(args, "--spill-gzip");
+    boolean noThumbnails = hasFlag(args, "--no-thumbnails");
+    boolean worker = hasFlag(args, "--worker");
+    boolean schedule = hasFlag(args, "--schedule");
+    boolean parallel = hasFlag(args, "--parallel");
+    boolean fullPageBackground = hasFlag(args, "--full-page-background");
+    boolean compress = hasFlag(args, "--compress");
     String profile = argValue(args, "--profile", "");
+    String batch = argValue(args, "--batch", "");
+    String serveBundle = argValue(args, "--serve-bundle", "");
+    String serve = argValue(args, "--serve", "");
+    String port = argValue(args, "--port", "");
+    String[] passValues = { "--search", "--root", "--since", "--until", "--limit", "--scroll-budget-ms", "--scroll-item", "--scroll-target",
+                           "--ready-quiet-ms", "--ready-cap-ms", "--spill-bytes", "--enqueue", "--queue", "--lease-seconds",
+                           "--record-har", "--replay-har", "--reextract", "--threads", "--out",
+                           "--max-concurrency", "--min-free-mb", "--max-browser-rss-mb", "--context-max-jobs", "--max-open-pages",
+                           "--max-download-mb", "--max-capture-download-mb", "--download-timeout-s", "--capture-download-s", "--download-types", "--full-page",
+                           "--seeds", "--seen-capacity" };
 
     Path root = Paths.get("aim_pick_program").toAbsolutePath();
     Path srcJava = root.resolve("src/main/java");
     Path srcRes  = root.resolve("src/main/resources");
+    Path srcTest = root.resolve("src/test/java");
     Path mw      = root.resolve(".mvn/wrapper");
     Path profilesDir = root.resolve("profiles");
     Path selDir = profilesDir.resolve("selection_profiles");
 
     Files.createDirectories(srcJava);
     Files.createDirectories(srcRes);
+    Files.createDirectories(srcTest);
     Files.createDirectories(mw);
     Files.createDirectories(profilesDir);
     Files.createDirectories(selDir);
@@ -54,8 +109,18 @@ public class AimSingleFileApp {
     writeFile(srcJava.resolve("AimPickerProgram.java"), ap);
 
     writeFile(srcRes.resolve("picker.js"), pickerJs());
+    writeFile(srcRes.resolve("scroller.js"), scrollerJs());
     writeFile(srcRes.resolve("viewer_template.html"), viewerTemplateHtml());
 
+    writeFile(srcTest.resolve("BundleTest.java"), bundleTestJava());
+    writeFile(srcTest.resolve("CaptureIndexTest.java"), captureIndexTestJava());
+    writeFile(srcTest.resolve("CaptureServerTest.java"), captureServerTestJava());
+    writeFile(srcTest.resolve("CronExprTest.java"), cronExprTestJava());
+    writeFile(srcTest.resolve("DownloadPolicyTest.java"), downloadPolicyTestJava());
+    writeFile(srcTest.resolve("FingerprintTest.java"), fingerprintTestJava());
+    writeFile(srcTest.resolve("SeenFilterTest.java"), seenFilterTestJava());
+    writeFile(srcTest.resolve("WorkQueueTest.java"), workQueueTestJava());
+
     writeFileIfMissing(profilesDir.resolve("default.properties"), defaultProfileProperties());
     writeFileIfMissing(profilesDir.resolve("stealth.properties"), stealthProfileProperties());
 
@@ -108,6 +173,30 @@ public class AimSingleFileApp {
     if (profile != null && !profile.isBlank()) { cmd.add("--profile"); cmd.add(profile); }
     if (video) cmd.add("--video");
     if (headless) cmd.add("--headless");
+    if (incremental) cmd.add("--incremental");
+    if (batch != null && !batch.isBlank()) { cmd.add("--batch"); cmd.add(batch); }
+    if (bundle) cmd.add("--bundle");
+    if (serveBundle != null && !serveBundle.isBlank()) { cmd.add("--serve-bundle"); cmd.add(Paths.get(serveBundle).toAbsolutePath().toString()); }
+    if (serve != null && !serve.isBlank()) { cmd.add("--serve"); cmd.add(Paths.get(serve).toAbsolutePath().toString()); }
+    if (port != null && !port.isBlank()) { cmd.add("--port"); cmd.add(port); }
+    if (index) cmd.add("--index");
+    if (autoScroll) cmd.add("--auto-scroll");
+    if (waitReady) cmd.add("--wait-ready");
+    if (spillGzip) cmd.add("--spill-gzip");
+    if (noThumbnails) cmd.add("--no-thumbnails");
+    if (worker) cmd.add("--worker");
+    if (schedule) cmd.add("--schedule");
+    if (parallel) cmd.add("--parallel");
+    if (fullPageBackground) cmd.add("--full-page-background");
+    if (compress) cmd.add("--compress");
+    for (String f : passValues) {
+      String v = argValue(args, f, "");
+      if (v.isBlank()) continue;
+      cmd.add(f);
+      boolean isPath = "--root".equals(f) || "--queue".equals(f) || "--record-har".equals(f) || "--replay-har".equals(f) || "--out".equals(f)
+        || ("--seeds".equals(f) && !"-".equals(v));
+      cmd.add(isPath ? Paths.get(v).toAbsolutePath().toString() : v);
+    }
 
     run(root, cmd.toArray(new String[0]));
   }
@@ -131,7 +220,7 @@ public class AimSingleFileApp {
     for (int i = 0; i < args.length; i++) {
       String a = String.valueOf(args[i]);
       if (a.startsWith("--")) {
-        if (("--profile".equalsIgnoreCase(a)) && i + 1 < args.length) i++;
+        if (isValueFlag(a) && i + 1 < args.length) i++;
         continue;
       }
       if (!a.trim().isEmpty()) return a.trim();
@@ -139,6 +228,17 @@ public class AimSingleFileApp {
     return null;
   }
 
+  private static boolean isValueFlag(String a) {
+    for (String f : new String[]{ "--profile", "--batch", "--serve-bundle", "--serve", "--port", "--search", "--root", "--since", "--until", "--limit",
+                                  "--scroll-budget-ms", "--scroll-item", "--scroll-target", "--ready-quiet-ms", "--ready-cap-ms", "--spill-bytes",
+                                  "--enqueue", "--queue", "--lease-seconds", "--record-har", "--replay-har",
+                                  "--reextract", "--threads", "--out", "--max-concurrency", "--min-free-mb",
+                                  "--max-browser-rss-mb", "--context-max-jobs", "--max-open-pages", "--max-download-mb",
+                                  "--max-capture-download-mb", "--download-timeout-s", "--capture-download-s", "--download-types", "--full-page",
+                                  "--seeds", "--seen-capacity" }) if (f.equalsIgnoreCase(a)) return true;
+    return false;
+  }
+
   private static void writeFile(Path p, String s) throws IOException {
     Files.createDirectories(p.getParent());
     Files.writeString(p, s, StandardCharsets.UTF_8);
@@ -171,6 +271,7 @@ public class AimSingleFileApp {
     ProcessBuilder pb = new ProcessBuilder(cmd);
     pb.directory(workdir.toFile());
     pb.redirectErrorStream(true);
+    pb.redirectInput(ProcessBuilder.Redirect.INHERIT); // --seeds - reads the launcher's stdin
     Process p = pb.start();
     try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
       String line;
@@ -216,11 +317,27 @@ public class AimSingleFileApp {
       "      <artifactId>jackson-databind</artifactId>",
       "      <version>2.17.2</version>",
       "    </dependency>",
+      "    <dependency>",
+      "      <groupId>org.jsoup</groupId>",
+      "      <artifactId>jsoup</artifactId>",
+      "      <version>1.18.1</version>",
+      "    </dependency>",
+      "    <dependency>",
+      "      <groupId>org.junit.jupiter</groupId>",
+      "      <artifactId>junit-jupiter</artifactId>",
+      "      <version>5.10.3</version>",
+      "      <scope>test</scope>",
+      "    </dependency>",
       "  </dependencies>",
       "  <build>",
       "    <plugins>",
       "      <plugin>",
       "        <groupId>org.apache.maven.plugins</groupId>",
+      "        <artifactId>maven-surefire-plugin</artifactId>",
+      "        <version>3.3.1</version>",
+      "      </plugin>",
+      "      <plugin>",
+      "        <groupId>org.apache.maven.plugins</groupId>",
       "        <artifactId>maven-shade-plugin</artifactId>",
       "        <version>3.6.0</version>",
       "        <executions>",
@@ -253,6 +370,9 @@ public class AimSingleFileApp {
       "timezoneId=",
       "storageStatePath=",
       "extraChromiumArgs=",
+      "contextPoolSize=2",
+      "warmOrigins=",
+      "storageStateRefreshSeconds=300",
       ""
     );
   }
@@ -275,13 +395,37 @@ public class AimSingleFileApp {
     L.add("import com.fasterxml.jackson.databind.node.*;");
     L.add("");
     L.add("import java.io.*;");
+    L.add("import java.net.InetSocketAddress;");
     L.add("import java.net.URI;");
+    L.add("import java.net.http.HttpClient;");
+    L.add("import java.net.http.HttpRequest;");
+    L.add("import java.net.http.HttpResponse;");
+    L.add("import java.nio.ByteBuffer;");
+    L.add("import java.nio.MappedByteBuffer;");
+    L.add("import java.nio.channels.FileChannel;");
     L.add("import java.nio.charset.StandardCharsets;");
     L.add("import java.nio.file.*;");
+    L.add("import java.security.MessageDigest;");
     L.add("import java.time.OffsetDateTime;");
+    L.add("import java.time.ZonedDateTime;");
+    L.add("import java.time.temporal.ChronoUnit;");
     L.add("import java.time.format.DateTimeFormatter;");
     L.add("import java.util.*;");
     L.add("import java.util.List;");
+    L.add("import java.util.concurrent.*;");
+    L.add("import java.util.function.Consumer;");
+    L.add("import java.util.zip.GZIPInputStream;");
+    L.add("import java.util.zip.GZIPOutputStream;");
+    L.add("import java.awt.Color;");
+    L.add("import java.awt.Graphics2D;");
+    L.add("import java.awt.RenderingHints;");
+    L.add("import java.awt.image.BufferedImage;");
+    L.add("import javax.imageio.ImageIO;");
+    L.add("import com.sun.net.httpserver.HttpServer;");
+    L.add("import org.jsoup.Jsoup;");
+    L.add("import org.jsoup.nodes.Document;");
+    L.add("import org.jsoup.nodes.Element;");
+    L.add("import org.jsoup.select.Elements;");
     L.add("");
     L.add("public class AimPickerProgram {");
     L.add("  private static final ObjectMapper OM = new ObjectMapper();");
@@ -291,6 +435,62 @@ public class AimSingleFileApp {
     L.add("    boolean video = hasFlag(args, \"--video\");");
     L.add("    boolean headless = hasFlag(args, \"--headless\");");
     L.add("    String profileName = argValue(args, \"--profile\", \"default\");");
+    L.add("    CaptureOptions opts = new CaptureOptions(args);");
+    L.add("    String batchProfile = argValue(args, \"--batch\", \"\").trim();");
+    L.add("    String serveBundle = argValue(args, \"--serve-bundle\", \"\").trim();");
+    L.add("    String serve = argValue(args, \"--serve\", \"\").trim();");
+    L.add("");
+    L.add("    String searchQuery = argValue(args, \"--search\", \"\");");
+    L.add("    String enqueueProfile = argValue(args, \"--enqueue\", \"\").trim();");
+    L.add("    String reextractProfile = argValue(args, \"--reextract\", \"\").trim();");
+    L.add("    Path queueDir = Paths.get(argValue(args, \"--queue\", \"queue\").trim()).toAbsolutePath();");
+    L.add("    long leaseMs = Math.max(10, intOr(argValue(args, \"--lease-seconds\", \"120\"), 120)) * 1000L;");
+    L.add("");
+    L.add("    if (hasFlag(args, \"--index\") || !searchQuery.isBlank()) {");
+    L.add("      runIndex(searchQuery, args);");
+    L.add("      return;");
+    L.add("    }");
+    L.add("    if (!reextractProfile.isBlank()) {");
+    L.add("      runReextract(reextractProfile, args);");
+    L.add("      return;");
+    L.add("    }");
+    L.add("    if (!serveBundle.isBlank()) {");
+    L.add("      Path bundle = Paths.get(serveBundle).toAbsolutePath();");
+    L.add("      new CaptureServer(bundle.getParent(), bundle).start(intOr(argValue(args, \"--port\", \"8765\"), 8765));");
+    L.add("      return;");
+    L.add("    }");
+    L.add("    if (!serve.isBlank()) {");
+    L.add("      new CaptureServer(Paths.get(serve), null).start(intOr(argValue(args, \"--port\", \"8765\"), 8765));");
+    L.add("      return;");
+    L.add("    }");
+    L.add("");
+    L.add("    if (!enqueueProfile.isBlank()) {");
+    L.add("      String seeds = argValue(args, \"--seeds\", \"\").trim();");
+    L.add("      if (!seeds.isBlank()) {");
+    L.add("        String cap = argValue(args, \"--seen-capacity\", \"10000000\").trim();");
+    L.add("        long capacity;");
+    L.add("        try { capacity = Long.parseLong(cap.replace(\"_\", \"\")); } catch (NumberFormatException e) { throw new IllegalArgumentException(\"--seen-capacity must be a whole number of URLs: \" + cap); }");
+    L.add("        if (capacity < 1000) throw new IllegalArgumentException(\"--seen-capacity must be at least 1000: \" + cap);");
+    L.add("        new WorkQueue(queueDir, leaseMs).enqueueSeeds(seeds, enqueueProfile, capacity);");
+    L.add("        return;");
+    L.add("      }");
+    L.add("      int n = new WorkQueue(queueDir, leaseMs).enqueue(loadUrlProfiles(), enqueueProfile);");
+    L.add("      System.out.println(\"Enqueued \" + n + \" job(s) in \" + queueDir.resolve(\"pending\"));");
+    L.add("      return;");
+    L.add("    }");
+    L.add("    if (hasFlag(args, \"--schedule\")) {");
+    L.add("      runScheduler(profileName.trim(), headless, opts);");
+    L.add("      return;");
+    L.add("    }");
+    L.add("    if (hasFlag(args, \"--worker\")) {");
+    L.add("      runWorker(new WorkQueue(queueDir, leaseMs), profileName.trim(), headless, opts);");
+    L.add("      return;");
+    L.add("    }");
+    L.add("");
+    L.add("    if (!batchProfile.isBlank()) {");
+    L.add("      runBatch(batchProfile, profileName.trim(), headless, opts);");
+    L.add("      return;");
+    L.add("    }");
     L.add("");
     L.add("    if (startUrl == null || startUrl.isBlank()) {");
     L.add("      ArrayNode ups = loadUrlProfiles();");
@@ -298,10 +498,10 @@ public class AimSingleFileApp {
     L.add("      else startUrl = \"https://example.com\";");
     L.add("    }");
     L.add("");
-    L.add("    runInteractive(startUrl.trim(), profileName.trim(), video, headless);");
+    L.add("    runInteractive(startUrl.trim(), profileName.trim(), video, headless, opts);");
     L.add("  }");
     L.add("");
-    L.add("  private static void runInteractive(String startUrl, String profileName, boolean video, boolean headless) throws Exception {");
+    L.add("  private static void runInteractive(String startUrl, String profileName, boolean video, boolean headless, CaptureOptions opts) throws Exception {");
     L.add("    Profile prof = Profile.load(profileName);");
     L.add("    String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
     L.add("    Path outDir = Paths.get(\"aim_capture_\"+ts).toAbsolutePath();");
@@ -311,171 +511,589 @@ public class AimSingleFileApp {
     L.add("    String viewerTemplate = readResourceText(\"/viewer_template.html\");");
     L.add("");
     L.add("    try (Playwright pw = Playwright.create()) {");
-    L.add("      BrowserType.LaunchOptions launch = new BrowserType.LaunchOptions().setHeadless(headless);");
-    L.add("      java.util.List<String> argsList = new ArrayList<>();");
-    L.add("      if (!prof.extraChromiumArgs.isEmpty()) argsList.addAll(prof.extraChromiumArgs);");
-    L.add("      else argsList.add(\"--disable-blink-features=AutomationControlled\");");
-    L.add("      launch.setArgs(argsList);");
-    L.add("");
-    L.add("      Browser browser = pw.chromium().launch(launch);");
-    L.add("");
-    L.add("      Browser.NewContextOptions ctxOpts = new Browser.NewContextOptions().setViewportSize(prof.viewportW, prof.viewportH);");
-    L.add("      if (!prof.userAgent.isBlank()) ctxOpts.setUserAgent(prof.userAgent);");
-    L.add("      if (!prof.locale.isBlank()) ctxOpts.setLocale(prof.locale);");
-    L.add("      if (!prof.timezoneId.isBlank()) ctxOpts.setTimezoneId(prof.timezoneId);");
-    L.add("      if (!prof.storageStatePath.isBlank()) {");
-    L.add("        Path ss = Paths.get(prof.storageStatePath);");
-    L.add("        if (!ss.isAbsolute()) ss = Paths.get(\"\").toAbsolutePath().resolve(ss).normalize();");
-    L.add("        if (Files.exists(ss)) ctxOpts.setStorageStatePath(ss);");
-    L.add("      }");
+    L.add("      Browser browser = pw.chromium().launch(launchOptions(prof, headless));");
+    L.add("");
+    L.add("      Browser.NewContextOptions ctxOpts = contextOptions(prof);");
     L.add("      if (video) ctxOpts.setRecordVideoDir(outDir.resolve(\"video\")).setRecordVideoSize(prof.viewportW, prof.viewportH);");
     L.add("");
     L.add("      BrowserContext ctx = browser.newContext(ctxOpts);");
     L.add("      ctx.addInitScript(pickerJs);");
+    L.add("      ctx.addInitScript(readResourceText(\"/scroller.js\"));");
+    L.add("      HarSession.attach(ctx, startUrl, opts);");
     L.add("");
     L.add("      Page page = ctx.newPage();");
+    L.add("      if (opts.waitReady) ReadinessDetector.attach(page);");
     L.add("      System.out.println(\"Output:   \" + outDir);");
     L.add("      System.out.println(\"Profile:  \" + profileName);");
     L.add("      System.out.println(\"Navigate: \" + startUrl);");
     L.add("      navigateWithRetry(page, startUrl);");
     L.add("");
-    L.add("      page.exposeFunction(\"aimGetConfig\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          ObjectNode cfg = OM.createObjectNode();");
-    L.add("          ArrayNode bps = cfg.putArray(\"browserProfiles\");");
-    L.add("          for (String bp : listBrowserProfiles()) bps.add(bp);");
-    L.add("          cfg.put(\"currentBrowserProfile\", profileName);");
-    L.add("          cfg.set(\"urlProfiles\", loadUrlProfiles());");
-    L.add("          cfg.put(\"currentUrl\", page.url());");
-    L.add("          ArrayNode sp = cfg.putArray(\"selectionProfiles\");");
-    L.add("          for (String s : listSelectionProfiles()) sp.add(s);");
-    L.add("          return OM.writeValueAsString(cfg);");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"{\\\"error\\\":\\\"\" + escJson(e.toString()) + \"\\\"}\";");
-    L.add("        }");
+    L.add("      PickerRpc rpc = new PickerRpc(page);");
+    L.add("      rpc.onPage(\"getConfig\", (q, progress) -> {");
+    L.add("        ObjectNode cfg = OM.createObjectNode();");
+    L.add("        ArrayNode bps = cfg.putArray(\"browserProfiles\");");
+    L.add("        for (String bp : listBrowserProfiles()) bps.add(bp);");
+    L.add("        cfg.put(\"currentBrowserProfile\", profileName);");
+    L.add("        cfg.set(\"urlProfiles\", loadUrlProfiles());");
+    L.add("        cfg.put(\"currentUrl\", page.url());");
+    L.add("        ArrayNode sp = cfg.putArray(\"selectionProfiles\");");
+    L.add("        for (String s : listSelectionProfiles()) sp.add(s);");
+    L.add("        return cfg;");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimSaveUrlProfiles\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String json = (a != null && a.length > 0) ? String.valueOf(a[0]) : \"\";");
-    L.add("          JsonNode root = OM.readTree(json);");
-    L.add("          JsonNode profiles = root.path(\"profiles\");");
-    L.add("          if (!profiles.isArray()) return \"ERR: profiles must be array\";");
-    L.add("          ObjectNode out = OM.createObjectNode();");
-    L.add("          out.set(\"profiles\", profiles);");
-    L.add("          Path p = Paths.get(\"profiles\",\"url_profiles.json\");");
-    L.add("          Files.createDirectories(p.getParent());");
-    L.add("          OM.writerWithDefaultPrettyPrinter().writeValue(p.toFile(), out);");
-    L.add("          return Files.exists(p) ? \"OK\" : \"ERR: write failed\";");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"ERR: \" + e;");
-    L.add("        }");
+    L.add("      rpc.write(\"saveUrlProfiles\", (q, progress) -> {");
+    L.add("        JsonNode profiles = q.path(\"profiles\");");
+    L.add("        if (!profiles.isArray()) return text(\"ERR: profiles must be array\");");
+    L.add("        ObjectNode out = OM.createObjectNode();");
+    L.add("        out.set(\"profiles\", profiles);");
+    L.add("        Path p = Paths.get(\"profiles\",\"url_profiles.json\");");
+    L.add("        Files.createDirectories(p.getParent());");
+    L.add("        OM.writerWithDefaultPrettyPrinter().writeValue(p.toFile(), out);");
+    L.add("        return text(Files.exists(p) ? \"OK\" : \"ERR: write failed\");");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimSaveBrowserProfile\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String json = (a != null && a.length > 0) ? String.valueOf(a[0]) : \"\";");
-    L.add("          JsonNode root = OM.readTree(json);");
-    L.add("          String name = root.path(\"name\").asText(\"\").trim();");
-    L.add("          String content = root.path(\"content\").asText(\"\");");
-    L.add("          if (name.isBlank()) return \"ERR: missing name\";");
-    L.add("          if (!name.matches(\"[A-Za-z0-9._-]{1,80}\")) return \"ERR: invalid name (use letters/numbers/._-)\";");
-    L.add("          Path p = Paths.get(\"profiles\", name + \".properties\");");
-    L.add("          Files.createDirectories(p.getParent());");
-    L.add("          Files.writeString(p, content.replace(\"\\r\\n\", \"\\n\"), StandardCharsets.UTF_8);");
-    L.add("          if (!Files.exists(p)) return \"ERR: file not created\";");
-    L.add("          java.util.List<String> now = listBrowserProfiles();");
-    L.add("          if (!now.contains(name)) return \"ERR: saved but not visible in list (unexpected)\";");
-    L.add("          long sz = Files.size(p);");
-    L.add("          return \"OK: saved profiles/\" + name + \".properties (\" + sz + \" bytes)\";");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"ERR: \" + e;");
-    L.add("        }");
+    L.add("      rpc.write(\"saveBrowserProfile\", (q, progress) -> {");
+    L.add("        String name = q.path(\"name\").asText(\"\").trim();");
+    L.add("        String content = q.path(\"content\").asText(\"\");");
+    L.add("        if (name.isBlank()) return text(\"ERR: missing name\");");
+    L.add("        if (!name.matches(\"[A-Za-z0-9._-]{1,80}\")) return text(\"ERR: invalid name (use letters/numbers/._-)\");");
+    L.add("        Path p = Paths.get(\"profiles\", name + \".properties\");");
+    L.add("        Files.createDirectories(p.getParent());");
+    L.add("        Files.writeString(p, content.replace(\"\\r\\n\", \"\\n\"), StandardCharsets.UTF_8);");
+    L.add("        if (!Files.exists(p)) return text(\"ERR: file not created\");");
+    L.add("        java.util.List<String> now = listBrowserProfiles();");
+    L.add("        if (!now.contains(name)) return text(\"ERR: saved but not visible in list (unexpected)\");");
+    L.add("        long sz = Files.size(p);");
+    L.add("        return text(\"OK: saved profiles/\" + name + \".properties (\" + sz + \" bytes)\");");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimLoadBrowserProfile\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String name = (a != null && a.length > 0) ? String.valueOf(a[0]).trim() : \"\";");
-    L.add("          if (name.isBlank()) return \"\";");
-    L.add("          Path p = Paths.get(\"profiles\", name + \".properties\");");
-    L.add("          if (!Files.exists(p)) return \"\";");
-    L.add("          return Files.readString(p, StandardCharsets.UTF_8);");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"\";");
-    L.add("        }");
+    L.add("      rpc.read(\"loadBrowserProfile\", (q, progress) -> {");
+    L.add("        String name = q.path(\"name\").asText(\"\").trim();");
+    L.add("        if (name.isBlank()) return text(\"\");");
+    L.add("        Path p = Paths.get(\"profiles\", name + \".properties\");");
+    L.add("        if (!Files.exists(p)) return text(\"\");");
+    L.add("        return text(Files.readString(p, StandardCharsets.UTF_8));");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimLoadSelectionProfile\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String name = (a != null && a.length > 0) ? String.valueOf(a[0]).trim() : \"\";");
-    L.add("          Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
-    L.add("          if (!Files.exists(p)) return \"{}\";");
-    L.add("          return Files.readString(p, StandardCharsets.UTF_8);");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"{}\";");
-    L.add("        }");
+    L.add("      rpc.read(\"loadSelectionProfile\", (q, progress) -> {");
+    L.add("        String name = q.path(\"name\").asText(\"\").trim();");
+    L.add("        Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
+    L.add("        if (!Files.exists(p)) return OM.createObjectNode();");
+    L.add("        return OM.readTree(Files.readString(p, StandardCharsets.UTF_8));");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimSaveSelectionProfile\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String json = (a != null && a.length > 0) ? String.valueOf(a[0]) : \"\";");
-    L.add("          JsonNode root = OM.readTree(json);");
-    L.add("          String name = root.path(\"name\").asText(\"\").trim();");
-    L.add("          if (name.isBlank()) return \"ERR: missing name\";");
-    L.add("          if (!name.matches(\"[A-Za-z0-9._-]{1,80}\")) return \"ERR: invalid name (use letters/numbers/._-)\";");
-    L.add("          JsonNode items = root.path(\"items\");");
-    L.add("          if (!items.isArray()) return \"ERR: items must be array\";");
-    L.add("          Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
-    L.add("          Files.createDirectories(p.getParent());");
-    L.add("          OM.writerWithDefaultPrettyPrinter().writeValue(p.toFile(), root);");
-    L.add("          if (!Files.exists(p)) return \"ERR: file not created\";");
-    L.add("          java.util.List<String> now = listSelectionProfiles();");
-    L.add("          if (!now.contains(name)) return \"ERR: saved but not visible in list (unexpected)\";");
-    L.add("          long sz = Files.size(p);");
-    L.add("          return \"OK: saved profiles/selection_profiles/\" + name + \".json (\" + sz + \" bytes)\";");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"ERR: \" + e;");
-    L.add("        }");
+    L.add("      rpc.write(\"saveSelectionProfile\", (q, progress) -> {");
+    L.add("        String name = q.path(\"name\").asText(\"\").trim();");
+    L.add("        if (name.isBlank()) return text(\"ERR: missing name\");");
+    L.add("        if (!name.matches(\"[A-Za-z0-9._-]{1,80}\")) return text(\"ERR: invalid name (use letters/numbers/._-)\");");
+    L.add("        JsonNode items = q.path(\"items\");");
+    L.add("        if (!items.isArray()) return text(\"ERR: items must be array\");");
+    L.add("        Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
+    L.add("        Files.createDirectories(p.getParent());");
+    L.add("        OM.writerWithDefaultPrettyPrinter().writeValue(p.toFile(), q);");
+    L.add("        if (!Files.exists(p)) return text(\"ERR: file not created\");");
+    L.add("        java.util.List<String> now = listSelectionProfiles();");
+    L.add("        if (!now.contains(name)) return text(\"ERR: saved but not visible in list (unexpected)\");");
+    L.add("        long sz = Files.size(p);");
+    L.add("        return text(\"OK: saved profiles/selection_profiles/\" + name + \".json (\" + sz + \" bytes)\");");
     L.add("      });");
     L.add("");
-    L.add("      page.exposeFunction(\"aimInstallFromProfile\", (Object[] a) -> {");
-    L.add("        try {");
-    L.add("          String json = (a != null && a.length > 0) ? String.valueOf(a[0]) : \"{}\";");
-    L.add("          JsonNode req = OM.readTree(json);");
-    L.add("          String sp = req.path(\"selProfile\").asText(\"\").trim();");
-    L.add("          int selIndex = req.path(\"selIndex\").asInt(0);");
-    L.add("          if (sp.isBlank()) return \"ERR: missing selProfile\";");
-    L.add("          ArrayNode selections = selectionsFromSelectionProfile(sp, selIndex);");
-    L.add("          if (selections.isEmpty()) return \"ERR: no selections\";");
-    L.add("          exportInstall(page, ctx, outDir, viewerTemplate, selections, profileName + \" / \" + sp, video);");
-    L.add("          openFolder(outDir);");
-    L.add("          return \"OK\";");
-    L.add("        } catch (Exception e) {");
-    L.add("          return \"ERR: \" + e;");
-    L.add("        }");
+    L.add("      ExportJobs exports = new ExportJobs(ctx, page, rpc, outDir, viewerTemplate, video, opts);");
+    L.add("");
+    L.add("      // Both only queue a job (page.url() needs the Playwright thread, hence onPage) and answer with its id.");
+    L.add("      rpc.onPage(\"installFromProfile\", (q, progress) -> {");
+    L.add("        String sp = q.path(\"selProfile\").asText(\"\").trim();");
+    L.add("        int selIndex = q.path(\"selIndex\").asInt(0);");
+    L.add("        if (sp.isBlank()) return text(\"ERR: missing selProfile\");");
+    L.add("        ArrayNode selections = selectionsFromSelectionProfile(sp, selIndex);");
+    L.add("        if (selections.isEmpty()) return text(\"ERR: no selections\");");
+    L.add("        return exports.submit(selections, profileName + \" / \" + sp, page.url());");
+    L.add("      });");
+    L.add("");
+    L.add("      rpc.onPage(\"exportPicked\", (q, progress) -> {");
+    L.add("        JsonNode selections = q.path(\"selections\");");
+    L.add("        if (!selections.isArray() || selections.isEmpty()) return text(\"ERR: nothing picked\");");
+    L.add("        return exports.submit((ArrayNode) selections, profileName + \" / picked\", page.url());");
     L.add("      });");
     L.add("");
+    L.add("      rpc.read(\"exportJobs\", (q, progress) -> exports.list());");
+    L.add("      rpc.read(\"cancelExport\", (q, progress) -> text(exports.cancel(q.path(\"id\").asInt()) ? \"OK\" : \"ERR: no such running or queued export\"));");
+    L.add("");
     L.add("      page.evaluate(\"() => window.__aimPickerInstall && window.__aimPickerInstall()\" );");
     L.add("");
     L.add("      try {");
-    L.add("        page.waitForFunction(\"() => window.__aimPickerDone === true || window.__aimPickerCancel === true\", null, new Page.WaitForFunctionOptions().setTimeout(0));");
+    L.add("        rpc.runUntil(\"() => window.__aimPickerDone === true || window.__aimPickerCancel === true\", exports::runPending);");
     L.add("      } catch (PlaywrightException closed) {");
     L.add("        System.out.println(\"Page closed. Exiting.\");");
+    L.add("        rpc.close();");
     L.add("        safeClose(ctx, browser);");
     L.add("        return;");
     L.add("      }");
     L.add("      boolean canceled = Boolean.TRUE.equals(page.evaluate(\"() => window.__aimPickerCancel === true\"));");
-    L.add("      if (canceled) { System.out.println(\"Canceled.\"); safeClose(ctx, browser); return; }");
+    L.add("      if (canceled) {");
+    L.add("        int dropped = exports.cancelQueued();");
+    L.add("        rpc.close();");
+    L.add("        System.out.println(\"Canceled.\" + (dropped > 0 ? \" \" + dropped + \" queued export(s) dropped.\" : \"\"));");
+    L.add("        safeClose(ctx, browser);");
+    L.add("        return;");
+    L.add("      }");
+    L.add("      exports.runPending();");
+    L.add("      rpc.close();");
     L.add("");
     L.add("      String selectionsJson = (String) page.evaluate(\"() => JSON.stringify(window.__aimSelections || [])\");");
     L.add("      ArrayNode selections = (ArrayNode) OM.readTree(selectionsJson);");
     L.add("      if (selections.isEmpty()) { System.out.println(\"No selections.\"); safeClose(ctx, browser); return; }");
-    L.add("      exportInstall(page, ctx, outDir, viewerTemplate, selections, profileName, video);");
+    L.add("      exportInstall(page, ctx, outDir, viewerTemplate, selections, profileName, video, opts);");
     L.add("      openFolder(outDir);");
     L.add("      safeClose(ctx, browser);");
     L.add("    }");
     L.add("  }");
     L.add("");
+    L.add("  // Runs a selection profile against every saved URL profile, one capture dir per URL, reusing pooled contexts.");
+    L.add("  private static void runBatch(String selProfile, String profileName, boolean headless, CaptureOptions opts) throws Exception {");
+    L.add("    Profile prof = Profile.load(profileName);");
+    L.add("    ArrayNode ups = loadUrlProfiles();");
+    L.add("    if (ups.isEmpty()) { System.out.println(\"No URL profiles in profiles/url_profiles.json\"); return; }");
+    L.add("    ArrayNode selections = selectionsFromSelectionProfile(selProfile, 0);");
+    L.add("    if (selections.isEmpty()) { System.out.println(\"No selections in \" + selProfile); return; }");
+    L.add("    String viewerTemplate = readResourceText(\"/viewer_template.html\");");
+    L.add("    String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
+    L.add("    if (opts.parallel) {");
+    L.add("      runBatchParallel(ups, selections, prof, headless, viewerTemplate, ts, profileName + \" / \" + selProfile, opts);");
+    L.add("      return;");
+    L.add("    }");
+    L.add("");
+    L.add("    try (Playwright pw = Playwright.create();");
+    L.add("         BrowserSession session = new BrowserSession(pw, prof, headless, readResourceText(\"/scroller.js\"), opts)) {");
+    L.add("      int n = 0;");
+    L.add("      for (JsonNode up : ups) {");
+    L.add("        n++;");
+    L.add("        String url = up.path(\"url\").asText(\"\").trim();");
+    L.add("        if (url.isBlank()) continue;");
+    L.add("        Path outDir = Paths.get(String.format(\"aim_capture_%s_%03d\", ts, n)).toAbsolutePath();");
+    L.add("        try {");
+    L.add("          session.betweenJobs();");
+    L.add("          runCaptureJob(session.pool(), url, selections, outDir, viewerTemplate, profileName + \" / \" + selProfile, opts);");
+    L.add("        } catch (Exception e) { System.out.println(\"Job failed for \" + url + \": \" + e.getMessage()); }");
+    L.add("      }");
+    L.add("    }");
+    L.add("    System.out.println(\"Watchdog: \" + MemoryWatchdog.summary());");
+    L.add("    System.out.println(\"Hosts:    \" + Resilience.summary());");
+    L.add("  }");
+    L.add("");
+    L.add("  // --parallel: up to --max-concurrency worker threads, each lazily owning its own Playwright, Browser and");
+    L.add("  // ContextPool (the sync API is single-threaded per Playwright instance). How many may capture at once is");
+    L.add("  // decided by the AIMD controller; workers beyond the current limit wait at the gate without a browser.");
+    L.add("  private static void runBatchParallel(ArrayNode ups, ArrayNode selections, Profile prof, boolean headless, String viewerTemplate, String ts, String label, CaptureOptions opts) throws Exception {");
+    L.add("    ConcurrentLinkedQueue<String[]> jobs = new ConcurrentLinkedQueue<>();");
+    L.add("    int n = 0;");
+    L.add("    for (JsonNode up : ups) {");
+    L.add("      n++;");
+    L.add("      String url = up.path(\"url\").asText(\"\").trim();");
+    L.add("      if (!url.isBlank()) jobs.add(new String[]{ url, Paths.get(String.format(\"aim_capture_%s_%03d\", ts, n)).toAbsolutePath().toString() });");
+    L.add("    }");
+    L.add("    String scrollerJs = readResourceText(\"/scroller.js\");");
+    L.add("    AimdController ctl = new AimdController(1, opts.maxConcurrency, opts.minFreeMb, Paths.get(\"batch_\" + ts + \"_concurrency.ndjson\").toAbsolutePath());");
+    L.add("    List<Thread> workers = new ArrayList<>();");
+    L.add("    for (int w = 0; w < Math.min(opts.maxConcurrency, jobs.size()); w++) {");
+    L.add("      Thread t = new Thread(() -> {");
+    L.add("        Playwright pw = null;");
+    L.add("        BrowserSession session = null;");
+    L.add("        try {");
+    L.add("          String[] job;");
+    L.add("          while ((job = jobs.poll()) != null) {");
+    L.add("            ctl.acquire();");
+    L.add("            long t0 = System.nanoTime();");
+    L.add("            ObjectNode timings = null;");
+    L.add("            Throwable error = null;");
+    L.add("            try {");
+    L.add("              if (pw == null) {");
+    L.add("                pw = Playwright.create();");
+    L.add("                session = new BrowserSession(pw, prof, headless, scrollerJs, opts);");
+    L.add("              } else {");
+    L.add("                session.betweenJobs();");
+    L.add("              }");
+    L.add("              timings = runCaptureJob(session.pool(), job[0], selections, Paths.get(job[1]), viewerTemplate, label, opts);");
+    L.add("            } catch (Exception e) {");
+    L.add("              error = e;");
+    L.add("              System.out.println(\"Job failed for \" + job[0] + \": \" + e.getMessage());");
+    L.add("            } finally {");
+    L.add("              ctl.release(timings, (System.nanoTime() - t0) / 1_000_000, error);");
+    L.add("            }");
+    L.add("          }");
+    L.add("        } catch (InterruptedException ignored) {");
+    L.add("        } finally {");
+    L.add("          if (session != null) session.close();");
+    L.add("          if (pw != null) try { pw.close(); } catch (Exception ignored) {}");
+    L.add("        }");
+    L.add("      }, \"aim-capture-\" + w);");
+    L.add("      workers.add(t);");
+    L.add("      t.start();");
+    L.add("    }");
+    L.add("    for (Thread t : workers) t.join();");
+    L.add("    System.out.println(\"Concurrency: \" + ctl.summary() + \" (decisions in \" + ctl.log.getFileName() + \")\");");
+    L.add("    System.out.println(\"Watchdog: \" + MemoryWatchdog.summary());");
+    L.add("    System.out.println(\"Hosts:    \" + Resilience.summary());");
+    L.add("  }");
+    L.add("");
+    L.add("  // Returns phase timings {setupMs, navigateMs, exportMs} for the concurrency controller.");
+    L.add("  private static ObjectNode runCaptureJob(ContextPool pool, String url, ArrayNode selections, Path outDir, String viewerTemplate, String label, CaptureOptions opts) throws Exception {");
+    L.add("    long t0 = System.nanoTime();");
+    L.add("    ObjectNode timings = OM.createObjectNode();");
+    L.add("    // HAR routes are per context and the recording is flushed on close, so HAR jobs get a context of their own.");
+    L.add("    BrowserContext ctx = opts.harDir != null ? pool.fresh() : pool.acquire();");
+    L.add("    long setupMs = (System.nanoTime() - t0) / 1_000_000;");
+    L.add("    try {");
+    L.add("      HarSession.attach(ctx, url, opts);");
+    L.add("      Files.createDirectories(outDir);");
+    L.add("      Page page = ctx.newPage();");
+    L.add("      if (opts.waitReady) ReadinessDetector.attach(page);");
+    L.add("      System.out.println(\"Job:      \" + url + \" -> \" + outDir + \" (context ready in \" + setupMs + \" ms)\");");
+    L.add("      timings.put(\"setupMs\", setupMs);");
+    L.add("      long t1 = System.nanoTime();");
+    L.add("      navigateWithRetry(page, url);");
+    L.add("      long t2 = System.nanoTime();");
+    L.add("      timings.put(\"navigateMs\", (t2 - t1) / 1_000_000);");
+    L.add("      exportInstall(page, ctx, outDir, viewerTemplate, selections.deepCopy(), label, false, opts);");
+    L.add("      timings.put(\"exportMs\", (System.nanoTime() - t2) / 1_000_000);");
+    L.add("      return timings;");
+    L.add("    } finally {");
+    L.add("      if (opts.harDir != null) { try { ctx.close(); } catch (Exception ignored) {} HarSession.finish(ctx); }");
+    L.add("      else pool.release(ctx);");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Claims jobs from the shared queue until it is drained: nothing pending and nothing running anywhere.");
+    L.add("  private static void runWorker(WorkQueue queue, String profileName, boolean headless, CaptureOptions opts) throws Exception {");
+    L.add("    Profile prof = Profile.load(profileName);");
+    L.add("    String viewerTemplate = readResourceText(\"/viewer_template.html\");");
+    L.add("    System.out.println(\"Worker:   \" + queue.workerId + \" on \" + queue.root);");
+    L.add("");
+    L.add("    try (Playwright pw = Playwright.create();");
+    L.add("         BrowserSession session = new BrowserSession(pw, prof, headless, readResourceText(\"/scroller.js\"), opts)) {");
+    L.add("      while (true) {");
+    L.add("        WorkQueue.Lease lease = queue.claim();");
+    L.add("        if (lease == null) {");
+    L.add("          if (queue.drained()) break;");
+    L.add("          Thread.sleep(2000);");
+    L.add("          continue;");
+    L.add("        }");
+    L.add("        try (lease) {");
+    L.add("          JsonNode job = lease.job;");
+    L.add("          String selProfile = job.path(\"selProfile\").asText(\"\");");
+    L.add("          ArrayNode selections = selectionsFromSelectionProfile(selProfile, job.path(\"selIndex\").asInt(0));");
+    L.add("          if (selections.isEmpty()) throw new IOException(\"No selections in \" + selProfile);");
+    L.add("          Path outDir = Paths.get(\"aim_capture_\" + lease.id).toAbsolutePath();");
+    L.add("          session.betweenJobs();");
+    L.add("          runCaptureJob(session.pool(), job.path(\"url\").asText(\"\"), selections, outDir, viewerTemplate, profileName + \" / \" + selProfile, opts);");
+    L.add("          lease.complete(outDir);");
+    L.add("        } catch (Exception e) {");
+    L.add("          System.out.println(\"Job failed \" + lease.id + \": \" + e.getMessage());");
+    L.add("          lease.fail(e);");
+    L.add("        }");
+    L.add("      }");
+    L.add("    }");
+    L.add("    System.out.println(\"Queue drained. Watchdog: \" + MemoryWatchdog.summary());");
+    L.add("    System.out.println(\"Hosts:    \" + Resilience.summary());");
+    L.add("  }");
+    L.add("");
+    L.add("  // Runs profiles/schedules.json in-process against one long-lived Browser. Runs are serial on the Playwright");
+    L.add("  // thread, so a tick that comes due while another run is in progress starts late (counted as lateness) and");
+    L.add("  // any further ticks it overran are skipped (counted as missed). The file is re-read when it changes.");
+    L.add("  private static void runScheduler(String profileName, boolean headless, CaptureOptions opts) throws Exception {");
+    L.add("    Profile prof = Profile.load(profileName);");
+    L.add("    String viewerTemplate = readResourceText(\"/viewer_template.html\");");
+    L.add("    String scrollerJs = readResourceText(\"/scroller.js\");");
+    L.add("    Scheduler sched = new Scheduler(Paths.get(\"profiles\", \"schedules.json\"));");
+    L.add("    sched.reload();");
+    L.add("    System.out.println(\"Scheduler: \" + sched.schedules.size() + \" schedule(s) from \" + sched.file);");
+    L.add("");
+    L.add("    try (Playwright pw = Playwright.create();");
+    L.add("         BrowserSession session = new BrowserSession(pw, prof, headless, scrollerJs, opts)) {");
+    L.add("      while (true) {");
+    L.add("        sched.reload();");
+    L.add("        Schedule due = sched.nextDue();");
+    L.add("        long wait = due == null ? 5000 : due.nextDue - System.currentTimeMillis();");
+    L.add("        if (wait > 0) { Thread.sleep(Math.min(wait, 5000)); continue; }");
+    L.add("");
+    L.add("        long start = System.currentTimeMillis();");
+    L.add("        due.metrics.lateness(start - due.nextDue);");
+    L.add("        String error = null;");
+    L.add("        try {");
+    L.add("          ArrayNode selections = selectionsFromSelectionProfile(due.selProfile, due.selIndex);");
+    L.add("          if (selections.isEmpty()) throw new IOException(\"No selections in \" + due.selProfile);");
+    L.add("          String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
+    L.add("          int n = 0;");
+    L.add("          for (String url : due.targets()) {");
+    L.add("            Path outDir = Paths.get(String.format(\"aim_capture_%s_%s_%03d\", ts, due.name, ++n)).toAbsolutePath();");
+    L.add("            session.betweenJobs();");
+    L.add("            runCaptureJob(session.pool(), url, selections, outDir, viewerTemplate, profileName + \" / \" + due.name, opts);");
+    L.add("          }");
+    L.add("          if (n == 0) throw new IOException(\"No URLs for schedule \" + due.name);");
+    L.add("        } catch (Exception e) {");
+    L.add("          error = String.valueOf(e.getMessage());");
+    L.add("          System.out.println(\"Schedule \" + due.name + \" failed: \" + error);");
+    L.add("        }");
+    L.add("        due.metrics.finished(System.currentTimeMillis() - start, error);");
+    L.add("        due.advance(System.currentTimeMillis());");
+    L.add("        sched.writeMetrics();");
+    L.add("        System.out.println(\"Schedule \" + due.name + \": \" + due.metrics.summary() + \"; next \" + java.time.Instant.ofEpochMilli(due.nextDue));");
+    L.add("        System.out.println(\"Hosts:    \" + Resilience.summary());");
+    L.add("      }");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static BrowserType.LaunchOptions launchOptions(Profile prof, boolean headless) {");
+    L.add("    BrowserType.LaunchOptions launch = new BrowserType.LaunchOptions().setHeadless(headless);");
+    L.add("    java.util.List<String> argsList = new ArrayList<>();");
+    L.add("    if (!prof.extraChromiumArgs.isEmpty()) argsList.addAll(prof.extraChromiumArgs);");
+    L.add("    else argsList.add(\"--disable-blink-features=AutomationControlled\");");
+    L.add("    launch.setArgs(argsList);");
+    L.add("    return launch;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static Browser.NewContextOptions contextOptions(Profile prof) {");
+    L.add("    Browser.NewContextOptions ctxOpts = new Browser.NewContextOptions().setViewportSize(prof.viewportW, prof.viewportH);");
+    L.add("    if (!prof.userAgent.isBlank()) ctxOpts.setUserAgent(prof.userAgent);");
+    L.add("    if (!prof.locale.isBlank()) ctxOpts.setLocale(prof.locale);");
+    L.add("    if (!prof.timezoneId.isBlank()) ctxOpts.setTimezoneId(prof.timezoneId);");
+    L.add("    Path ss = prof.storageStateFile();");
+    L.add("    if (ss != null && Files.exists(ss)) ctxOpts.setStorageStatePath(ss);");
+    L.add("    return ctxOpts;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Keeps N contexts per browser profile with storage state applied and origins pre-warmed.");
+    L.add("  // Contexts are reset between jobs by closing their pages (cookies/localStorage survive),");
+    L.add("  // and refreshed storage state is written back to storageStatePath every storageStateRefreshSeconds.");
+    L.add("  // A context the watchdog considers spent (too many jobs, too many pages left open) is closed instead.");
+    L.add("  static class ContextPool implements AutoCloseable {");
+    L.add("    private final Browser browser;");
+    L.add("    private final Profile prof;");
+    L.add("    private final String initScript;");
+    L.add("    private final MemoryWatchdog watchdog;");
+    L.add("    private final Deque<BrowserContext> idle = new ArrayDeque<>();");
+    L.add("    private final Map<BrowserContext, Integer> jobs = new IdentityHashMap<>();");
+    L.add("    private long lastStateWrite = System.currentTimeMillis();");
+    L.add("");
+    L.add("    ContextPool(Browser browser, Profile prof, String initScript, MemoryWatchdog watchdog) {");
+    L.add("      this.browser = browser;");
+    L.add("      this.prof = prof;");
+    L.add("      this.initScript = initScript;");
+    L.add("      this.watchdog = watchdog;");
+    L.add("      for (int i = 0; i < prof.contextPoolSize; i++) idle.addLast(newReadyContext());");
+    L.add("    }");
+    L.add("");
+    L.add("    // An unpooled context that nothing has navigated yet; the caller closes it.");
+    L.add("    BrowserContext fresh() {");
+    L.add("      BrowserContext ctx = browser.newContext(contextOptions(prof));");
+    L.add("      if (initScript != null) ctx.addInitScript(initScript);");
+    L.add("      return ctx;");
+    L.add("    }");
+    L.add("");
+    L.add("    BrowserContext acquire() {");
+    L.add("      BrowserContext c = idle.pollFirst();");
+    L.add("      return c != null ? c : newReadyContext();");
+    L.add("    }");
+    L.add("");
+    L.add("    void release(BrowserContext ctx) {");
+    L.add("      int used = jobs.merge(ctx, 1, Integer::sum);");
+    L.add("      try {");
+    L.add("        List<Page> pages = new ArrayList<>(ctx.pages());");
+    L.add("        for (Page p : pages) { try { p.close(); } catch (Exception ignored) {} }");
+    L.add("        if (watchdog != null && watchdog.contextSpent(used, pages.size())) {");
+    L.add("          maybeWriteStorageState(ctx, true);");
+    L.add("          retire(ctx);");
+    L.add("          MemoryWatchdog.event(\"recycle-context\", \"after \" + used + \" job(s), \" + pages.size() + \" page(s) open\", -1);");
+    L.add("          return;");
+    L.add("        }");
+    L.add("        maybeWriteStorageState(ctx, false);");
+    L.add("      } catch (Exception e) {");
+    L.add("        retire(ctx);");
+    L.add("        return;");
+    L.add("      }");
+    L.add("      if (idle.size() < prof.contextPoolSize) idle.addLast(ctx);");
+    L.add("      else retire(ctx);");
+    L.add("    }");
+    L.add("");
+    L.add("    private void retire(BrowserContext ctx) {");
+    L.add("      jobs.remove(ctx);");
+    L.add("      try { ctx.close(); } catch (Exception ignored) {}");
+    L.add("    }");
+    L.add("");
+    L.add("    private BrowserContext newReadyContext() {");
+    L.add("      BrowserContext ctx = browser.newContext(contextOptions(prof));");
+    L.add("      if (initScript != null) ctx.addInitScript(initScript);");
+    L.add("      if (!prof.warmOrigins.isEmpty()) {");
+    L.add("        Page p = ctx.newPage();");
+    L.add("        for (String origin : prof.warmOrigins) {");
+    L.add("          try { p.navigate(origin, new Page.NavigateOptions().setWaitUntil(WaitUntilState.COMMIT).setTimeout(15000)); } catch (Exception ignored) {}");
+    L.add("        }");
+    L.add("        try { p.close(); } catch (Exception ignored) {}");
+    L.add("      }");
+    L.add("      return ctx;");
+    L.add("    }");
+    L.add("");
+    L.add("    private void maybeWriteStorageState(BrowserContext ctx, boolean force) {");
+    L.add("      Path ss = prof.storageStateFile();");
+    L.add("      if (ss == null) return;");
+    L.add("      long now = System.currentTimeMillis();");
+    L.add("      if (!force && now - lastStateWrite < prof.storageStateRefreshSeconds * 1000L) return;");
+    L.add("      try {");
+    L.add("        Files.createDirectories(ss.getParent());");
+    L.add("        Path tmp = ss.resolveSibling(ss.getFileName() + \".tmp\");");
+    L.add("        ctx.storageState(new BrowserContext.StorageStateOptions().setPath(tmp));");
+    L.add("        Files.move(tmp, ss, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);");
+    L.add("        lastStateWrite = now;");
+    L.add("      } catch (Exception e) {");
+    L.add("        System.out.println(\"Storage state not refreshed: \" + e.getMessage());");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    @Override public void close() {");
+    L.add("      BrowserContext first = idle.peekFirst();");
+    L.add("      if (first != null) maybeWriteStorageState(first, true);");
+    L.add("      for (BrowserContext c : idle) { try { c.close(); } catch (Exception ignored) {} }");
+    L.add("      idle.clear();");
+    L.add("      jobs.clear();");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // One Browser and its ContextPool for a job loop. betweenJobs() relaunches the browser when it has");
+    L.add("  // disconnected or the watchdog finds Chromium over its memory budget; the old pool writes storage state");
+    L.add("  // as it closes, so the new pool's contexts start with the same cookies and localStorage.");
+    L.add("  static class BrowserSession implements AutoCloseable {");
+    L.add("    private final Playwright pw;");
+    L.add("    private final Profile prof;");
+    L.add("    private final boolean headless;");
+    L.add("    private final String initScript;");
+    L.add("    private final MemoryWatchdog watchdog;");
+    L.add("    private Browser browser;");
+    L.add("    private ContextPool pool;");
+    L.add("");
+    L.add("    BrowserSession(Playwright pw, Profile prof, boolean headless, String initScript, CaptureOptions opts) {");
+    L.add("      this.pw = pw;");
+    L.add("      this.prof = prof;");
+    L.add("      this.headless = headless;");
+    L.add("      this.initScript = initScript;");
+    L.add("      this.watchdog = new MemoryWatchdog(opts);");
+    L.add("      launch();");
+    L.add("    }");
+    L.add("");
+    L.add("    private void launch() {");
+    L.add("      browser = pw.chromium().launch(launchOptions(prof, headless));");
+    L.add("      pool = new ContextPool(browser, prof, initScript, watchdog);");
+    L.add("    }");
+    L.add("");
+    L.add("    ContextPool pool() { return pool; }");
+    L.add("");
+    L.add("    void betweenJobs() {");
+    L.add("      if (!browser.isConnected()) {");
+    L.add("        MemoryWatchdog.event(\"recycle-browser\", \"browser disconnected\", -1);");
+    L.add("      } else {");
+    L.add("        long rss = watchdog.overBudgetMb();");
+    L.add("        if (rss < 0) return;");
+    L.add("        MemoryWatchdog.event(\"recycle-browser\", \"chromium \" + rss + \" MB over \" + watchdog.maxBrowserRssMb + \" MB budget\", rss);");
+    L.add("      }");
+    L.add("      close();");
+    L.add("      launch();");
+    L.add("    }");
+    L.add("");
+    L.add("    @Override public void close() {");
+    L.add("      try { pool.close(); } catch (Exception ignored) {}");
+    L.add("      try { browser.close(); } catch (Exception ignored) {}");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Memory budget for long-running job loops. Chromium's footprint is the summed proportional set size");
+    L.add("  // (VmRSS where smaps_rollup is unavailable) of the chromium/headless_shell processes below this JVM, so");
+    L.add("  // shared pages are not counted once per renderer. Only one session per cooldown gets to relaunch: with");
+    L.add("  // --parallel the budget covers every worker's browser and one relaunch is usually enough to get under it.");
+    L.add("  static class MemoryWatchdog {");
+    L.add("    static final long RECYCLE_COOLDOWN_MS = 30_000;");
+    L.add("    private static final java.util.concurrent.atomic.AtomicLong LAST_BROWSER_RECYCLE = new java.util.concurrent.atomic.AtomicLong();");
+    L.add("    private static final Map<String, java.util.concurrent.atomic.AtomicInteger> COUNTS = new ConcurrentHashMap<>();");
+    L.add("    private static final Path LOG = Paths.get(\"watchdog_events.ndjson\").toAbsolutePath();");
+    L.add("    final long maxBrowserRssMb;");
+    L.add("    final int contextMaxJobs, maxOpenPages;");
+    L.add("");
+    L.add("    MemoryWatchdog(CaptureOptions opts) {");
+    L.add("      this.maxBrowserRssMb = opts.maxBrowserRssMb;");
+    L.add("      this.contextMaxJobs = opts.contextMaxJobs;");
+    L.add("      this.maxOpenPages = opts.maxOpenPages;");
+    L.add("    }");
+    L.add("");
+    L.add("    boolean contextSpent(int jobs, int openPages) {");
+    L.add("      return (contextMaxJobs > 0 && jobs >= contextMaxJobs) || (maxOpenPages > 0 && openPages > maxOpenPages);");
+    L.add("    }");
+    L.add("");
+    L.add("    // Chromium MB when over budget and this caller won the cooldown, otherwise -1.");
+    L.add("    long overBudgetMb() {");
+    L.add("      if (maxBrowserRssMb <= 0) return -1;");
+    L.add("      long rss = chromiumRssMb();");
+    L.add("      if (rss < maxBrowserRssMb) return -1;");
+    L.add("      long now = System.currentTimeMillis(), last = LAST_BROWSER_RECYCLE.get();");
+    L.add("      if (now - last < RECYCLE_COOLDOWN_MS || !LAST_BROWSER_RECYCLE.compareAndSet(last, now)) return -1;");
+    L.add("      return rss;");
+    L.add("    }");
+    L.add("");
+    L.add("    // The interactive session belongs to the user and is never relaunched under them; over budget or over the");
+    L.add("    // page limit it only closes stray pages (popups, target=_blank tabs) and says so.");
+    L.add("    void checkInteractive(BrowserContext ctx, Page keep) {");
+    L.add("      long rss = maxBrowserRssMb > 0 ? chromiumRssMb() : -1;");
+    L.add("      List<Page> stray = new ArrayList<>(ctx.pages());");
+    L.add("      stray.remove(keep);");
+    L.add("      boolean overRss = rss >= maxBrowserRssMb && rss > 0;");
+    L.add("      if (!overRss && (maxOpenPages <= 0 || stray.size() + 1 <= maxOpenPages)) return;");
+    L.add("      for (Page p : stray) { try { p.close(); } catch (Exception ignored) {} }");
+    L.add("      event(\"interactive-prune\", \"closed \" + stray.size() + \" extra page(s)\" + (overRss ? \"; chromium \" + rss + \" MB over \" + maxBrowserRssMb + \" MB budget\" : \"\"), rss);");
+    L.add("    }");
+    L.add("");
+    L.add("    static long chromiumRssMb() {");
+    L.add("      if (!Files.isDirectory(Paths.get(\"/proc/self\"))) return -1;");
+    L.add("      long kb = 0;");
+    L.add("      for (ProcessHandle ph : (Iterable<ProcessHandle>) ProcessHandle.current().descendants()::iterator) {");
+    L.add("        String cmd = ph.info().command().orElse(\"\").toLowerCase(Locale.ROOT);");
+    L.add("        if (!cmd.contains(\"chrom\") && !cmd.contains(\"headless_shell\")) continue;");
+    L.add("        long pss = procKb(ph.pid(), \"smaps_rollup\", \"Pss:\");");
+    L.add("        kb += pss > 0 ? pss : procKb(ph.pid(), \"status\", \"VmRSS:\");");
+    L.add("      }");
+    L.add("      return kb / 1024;");
+    L.add("    }");
+    L.add("");
+    L.add("    private static long procKb(long pid, String file, String key) {");
+    L.add("      try {");
+    L.add("        for (String line : Files.readAllLines(Paths.get(\"/proc\", String.valueOf(pid), file))) {");
+    L.add("          if (line.startsWith(key)) return Long.parseLong(line.replaceAll(\"[^0-9]\", \"\"));");
+    L.add("        }");
+    L.add("      } catch (Exception ignored) {}");
+    L.add("      return 0;");
+    L.add("    }");
+    L.add("");
+    L.add("    static void event(String kind, String detail, long rssMb) {");
+    L.add("      int count = COUNTS.computeIfAbsent(kind, k -> new java.util.concurrent.atomic.AtomicInteger()).incrementAndGet();");
+    L.add("      System.out.println(\"Watchdog: \" + kind + \" #\" + count + \" (\" + detail + \")\");");
+    L.add("      ObjectNode e = OM.createObjectNode();");
+    L.add("      e.put(\"ts\", OffsetDateTime.now().toString());");
+    L.add("      e.put(\"event\", kind);");
+    L.add("      e.put(\"count\", count);");
+    L.add("      e.put(\"detail\", detail);");
+    L.add("      e.put(\"thread\", Thread.currentThread().getName());");
+    L.add("      if (rssMb >= 0) e.put(\"chromiumMb\", rssMb);");
+    L.add("      e.put(\"memAvailableMb\", availableMemoryMb());");
+    L.add("      synchronized (MemoryWatchdog.class) {");
+    L.add("        try { Files.writeString(LOG, OM.writeValueAsString(e) + \"\\n\", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND); }");
+    L.add("        catch (IOException ignored) {}");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    static String summary() {");
+    L.add("      if (COUNTS.isEmpty()) return \"no recycles\";");
+    L.add("      StringBuilder sb = new StringBuilder();");
+    L.add("      new TreeMap<>(COUNTS).forEach((k, v) -> sb.append(sb.length() == 0 ? \"\" : \", \").append(k).append(' ').append(v.get()));");
+    L.add("      return sb + \" (events in \" + LOG.getFileName() + \")\";");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
     L.add("  private static void openFolder(Path dir) {");
     L.add("    try {");
     L.add("      String os = System.getProperty(\"os.name\",\"\").toLowerCase(Locale.ROOT);");
@@ -485,18 +1103,55 @@ public class AimSingleFileApp {
     L.add("    } catch (Exception ignored) {}");
     L.add("  }");
     L.add("");
-    L.add("  private static void exportInstall(Page page, BrowserContext ctx, Path outDir, String viewerTemplate, ArrayNode selections, String label, boolean video) throws Exception {");
-    L.add("    Path shotsDir = outDir.resolve(\"element_screenshots\");");
-    L.add("    Path mediaDir = outDir.resolve(\"media\");");
-    L.add("    Files.createDirectories(shotsDir);");
-    L.add("    Files.createDirectories(mediaDir);");
+    L.add("  // Told how far an export has got: before each selection and once after the last. Throwing (for instance");
+    L.add("  // CancellationException) abandons the export; what was already written stays on disk.");
+    L.add("  interface ExportListener {");
+    L.add("    ExportListener NONE = (done, total, last) -> {};");
+    L.add("    void item(int done, int total, ObjectNode last);");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void exportInstall(Page page, BrowserContext ctx, Path outDir, String viewerTemplate, ArrayNode selections, String label, boolean video, CaptureOptions opts) throws Exception {");
+    L.add("    exportInstall(page, ctx, outDir, viewerTemplate, selections, label, video, opts, ExportListener.NONE);");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void exportInstall(Page page, BrowserContext ctx, Path outDir, String viewerTemplate, ArrayNode selections, String label, boolean video, CaptureOptions opts, ExportListener listener) throws Exception {");
+    L.add("    try (ArtifactSink sink = opts.bundle ? new BundleWriter(outDir.resolve(BUNDLE_FILE)) : new DirSink(outDir)) {");
+    L.add("      exportInstall(page, ctx, outDir, sink, viewerTemplate, selections, label, video, opts, listener);");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void exportInstall(Page page, BrowserContext ctx, Path outDir, ArtifactSink sink, String viewerTemplate, ArrayNode selections, String label, boolean video, CaptureOptions opts, ExportListener listener) throws Exception {");
+    L.add("    ObjectNode ready = opts.waitReady ? ReadinessDetector.attach(page).waitForSettled(opts.readyQuietMs, opts.readyCapMs) : null;");
+    L.add("    ObjectNode scroll = opts.autoScroll ? autoScroll(page, opts, selections) : null;");
+    L.add("    ObjectNode snapshot = null;");
+    L.add("    try {");
+    L.add("      byte[] html = page.content().getBytes(StandardCharsets.UTF_8);");
+    L.add("      snapshot = OM.createObjectNode();");
+    L.add("      snapshot.put(\"path\", opts.compress ? sink.put(DOM_SNAPSHOT + \".gz\", gzip(html)) : sink.put(DOM_SNAPSHOT, html));");
+    L.add("      snapshot.put(\"url\", page.url());");
+    L.add("      snapshot.put(\"length\", html.length);");
+    L.add("      snapshot.put(\"sha256\", sha256Hex(html));");
+    L.add("      if (opts.compress) snapshot.put(\"encoding\", \"gzip\");");
+    L.add("    } catch (Exception e) {");
+    L.add("      System.out.println(\"DOM snapshot failed: \" + e.getMessage());");
+    L.add("    }");
+    L.add("    FullPageStage fullPage = new FullPageStage(page, sink, opts);");
+    L.add("    fullPage.start();");
     L.add("");
-    L.add("    try { page.screenshot(new Page.ScreenshotOptions().setFullPage(true).setPath(outDir.resolve(\"page_full.png\"))); } catch (Exception ignored) {}");
+    L.add("    String pageUrl = page.url();");
+    L.add("    FingerprintStore fps = opts.incremental ? FingerprintStore.load() : null;");
+    L.add("    ThumbnailStage thumbs = new ThumbnailStage(opts.thumbnails);");
+    L.add("    String userAgent = \"\";");
+    L.add("    try { userAgent = String.valueOf(page.evaluate(\"() => navigator.userAgent\")); } catch (Exception ignored) {}");
+    L.add("    DownloadPolicy policy = new DownloadPolicy(opts, pageUrl, userAgent);");
+    L.add("    int unchanged = 0;");
     L.add("");
     L.add("    ArrayNode results = OM.createArrayNode();");
     L.add("    int idx = 0;");
     L.add("    for (JsonNode sel : selections) {");
+    L.add("      listener.item(idx, selections.size(), results.isEmpty() ? null : (ObjectNode) results.get(results.size() - 1));");
     L.add("      idx++;");
+    L.add("      fullPage.step();");
     L.add("      String selector = sel.path(\"selector\").asText(\"\");");
     L.add("      ObjectNode r = OM.createObjectNode();");
     L.add("      r.put(\"index\", idx);");
@@ -507,18 +1162,30 @@ public class AimSingleFileApp {
     L.add("      r.put(\"pickedText\", sel.path(\"text\").asText(\"\"));");
     L.add("      r.put(\"src\", sel.path(\"src\").asText(\"\"));");
     L.add("      r.put(\"href\", sel.path(\"href\").asText(\"\"));");
-    L.add("      r.put(\"outerHtml\", sel.path(\"outerHtml\").asText(\"\"));");
+    L.add("      boolean htmlOmitted = sel.path(\"outerHtmlOmitted\").asBoolean(false);");
+    L.add("      if (htmlOmitted) r.put(\"outerHtml\", \"\");");
+    L.add("      else putOuterHtml(sink, opts, idx, (ObjectNode) sel, r, sel.path(\"outerHtml\").asText(\"\"));");
     L.add("");
     L.add("      if (selector.isBlank()) { r.put(\"error\", \"Missing selector\"); results.add(r); continue; }");
+    L.add("      if (\"list\".equals(sel.path(\"kind\").asText(\"\"))) {");
+    L.add("        try { exportList(page, sel, idx, sink, r, opts.compress); } catch (Exception e) { r.put(\"error\", \"List extraction failed: \" + e.getMessage()); }");
+    L.add("        results.add(r);");
+    L.add("        continue;");
+    L.add("      }");
     L.add("");
     L.add("      Locator loc = page.locator(selector).first();");
     L.add("      try { loc.waitFor(new Locator.WaitForOptions().setTimeout(3500)); } catch (Exception e) { r.put(\"error\", \"Not found: \" + e.getMessage()); results.add(r); continue; }");
+    L.add("      if (htmlOmitted) {");
+    L.add("        try { putOuterHtml(sink, opts, idx, (ObjectNode) sel, r, String.valueOf(loc.evaluate(\"(el) => el.outerHTML || ''\"))); } catch (Exception ignored) {}");
+    L.add("      }");
     L.add("");
     L.add("      try { BoundingBox bb = loc.boundingBox(); if (bb != null) { ObjectNode bbj = r.putObject(\"boundingBox\"); bbj.put(\"x\", bb.x); bbj.put(\"y\", bb.y); bbj.put(\"width\", bb.width); bbj.put(\"height\", bb.height); } } catch (Exception ignored) {}");
-    L.add("      try { String t = loc.innerText(new Locator.InnerTextOptions().setTimeout(2000)); r.put(\"innerText\", trim(t, 4000)); } catch (Exception ignored) {}");
-    L.add("");
-    L.add("      Path shot = shotsDir.resolve(String.format(\"el_%03d.png\", idx));");
-    L.add("      try { loc.screenshot(new Locator.ScreenshotOptions().setPath(shot)); r.put(\"screenshot\", outDir.relativize(shot).toString().replace(\"\\\\\\\\\", \"/\")); } catch (Exception e) { r.put(\"screenshotError\", e.getMessage()); }");
+    L.add("      try {");
+    L.add("        String t = loc.innerText(new Locator.InnerTextOptions().setTimeout(2000));");
+    L.add("        ObjectNode ref = spill(sink, opts, String.format(\"html/el_%03d.txt\", idx), t);");
+    L.add("        r.put(\"innerText\", trim(t, 4000));");
+    L.add("        if (ref != null) r.set(\"innerTextRef\", ref);");
+    L.add("      } catch (Exception ignored) {}");
     L.add("");
     L.add("      List<String> candidates = new ArrayList<>();");
     L.add("      String src = sel.path(\"src\").asText(\"\");");
@@ -539,260 +1206,3528 @@ public class AimSingleFileApp {
     L.add("      } catch (Exception ignored) {}");
     L.add("");
     L.add("      candidates = normalizeDedup(page.url(), candidates);");
+    L.add("");
+    L.add("      ObjectNode fp = null;");
+    L.add("      if (fps != null) {");
+    L.add("        String liveHtml = \"\";");
+    L.add("        try { liveHtml = String.valueOf(loc.evaluate(\"(el) => el.outerHTML || ''\")); } catch (Exception ignored) {}");
+    L.add("        fp = fingerprint(r.path(\"innerText\").asText(\"\"), liveHtml, r.path(\"boundingBox\"), candidates);");
+    L.add("        JsonNode prev = fps.get(pageUrl, selector);");
+    L.add("        if (reusePrevious(prev, fp, sink, outDir, idx, r)) { thumbs.offerReused(prev, r); unchanged++; results.add(r); continue; }");
+    L.add("        r.put(\"changed\", true);");
+    L.add("      }");
+    L.add("");
+    L.add("      try {");
+    L.add("        byte[] shot = loc.screenshot(new Locator.ScreenshotOptions());");
+    L.add("        String saved = sink.put(String.format(\"element_screenshots/el_%03d.png\", idx), shot);");
+    L.add("        r.put(\"screenshot\", saved);");
+    L.add("        thumbs.offer(saved, () -> shot);");
+    L.add("      } catch (Exception e) { r.put(\"screenshotError\", e.getMessage()); }");
+    L.add("");
     L.add("      ArrayNode downloads = r.putArray(\"downloads\");");
     L.add("      for (String u : candidates) {");
     L.add("        ObjectNode d = OM.createObjectNode(); d.put(\"url\", u);");
-    L.add("        try { Path saved = download(ctx.request(), u, mediaDir, idx); if (saved != null) d.put(\"savedAs\", outDir.relativize(saved).toString().replace(\"\\\\\\\\\", \"/\")); else { d.put(\"savedAs\", \"\"); d.put(\"note\", \"Empty body/unsupported\"); } }");
+    L.add("        try { download(ctx, u, sink, idx, thumbs, policy, d); }");
+    L.add("        catch (DownloadPolicy.Refused ex) { policy.record(d, ex); }");
     L.add("        catch (Exception ex) { d.put(\"error\", ex.getMessage()); }");
     L.add("        downloads.add(d);");
     L.add("      }");
     L.add("");
+    L.add("      if (fps != null) fps.put(pageUrl, selector, fingerprintEntry(fp, sink, outDir, r));");
     L.add("      results.add(r);");
     L.add("    }");
+    L.add("    listener.item(idx, selections.size(), results.isEmpty() ? null : (ObjectNode) results.get(results.size() - 1));");
+    L.add("    ObjectNode fullPageInfo = fullPage.finish();");
+    L.add("    int thumbCount = thumbs.finish(sink, results);");
+    L.add("    if (fps != null) {");
+    L.add("      try { fps.save(); } catch (Exception e) { System.out.println(\"Fingerprint store not saved: \" + e.getMessage()); }");
+    L.add("    }");
     L.add("");
     L.add("    ObjectNode manifest = OM.createObjectNode();");
     L.add("    manifest.put(\"capturedAt\", OffsetDateTime.now().toString());");
     L.add("    manifest.put(\"pageUrl\", page.url());");
     L.add("    manifest.put(\"label\", label);");
     L.add("    manifest.put(\"videoEnabled\", video);");
+    L.add("    if (ready != null) manifest.set(\"readiness\", ready);");
+    L.add("    if (scroll != null) manifest.set(\"autoScroll\", scroll);");
+    L.add("    if (opts.thumbnails) manifest.put(\"thumbnails\", thumbCount);");
+    L.add("    manifest.set(\"downloadPolicy\", policy.summary());");
+    L.add("    if (snapshot != null) manifest.set(\"domSnapshot\", snapshot);");
+    L.add("    if (fullPageInfo != null) manifest.set(\"fullPage\", fullPageInfo);");
+    L.add("    if (fps != null) {");
+    L.add("      ObjectNode inc = manifest.putObject(\"incremental\");");
+    L.add("      inc.put(\"unchanged\", unchanged);");
+    L.add("      inc.put(\"changed\", results.size() - unchanged);");
+    L.add("    }");
     L.add("    manifest.set(\"selections\", selections);");
     L.add("    manifest.set(\"results\", results);");
     L.add("");
-    L.add("    Path manifestPath = outDir.resolve(\"manifest.json\");");
-    L.add("    OM.writerWithDefaultPrettyPrinter().writeValue(manifestPath.toFile(), manifest);");
-    L.add("");
-    L.add("    Path viewer = outDir.resolve(\"capture_viewer.html\");");
-    L.add("    Files.writeString(viewer, viewerTemplate, StandardCharsets.UTF_8);");
+    L.add("    // Compressed manifests are written compact; indentation only helps a human reading the plain file.");
+    L.add("    String manifestName = opts.compress ? \"manifest.json.gz\" : \"manifest.json\";");
+    L.add("    sink.put(manifestName, opts.compress ? gzip(OM.writeValueAsBytes(manifest)) : OM.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest));");
+    L.add("    sink.put(\"capture_viewer.html\", viewerTemplate.getBytes(StandardCharsets.UTF_8));");
     L.add("");
-    L.add("    System.out.println(\"Saved:  \" + manifestPath);");
-    L.add("    System.out.println(\"Viewer: \" + viewer);");
+    L.add("    if (sink instanceof BundleWriter) {");
+    L.add("      System.out.println(\"Saved:  \" + outDir.resolve(BUNDLE_FILE));");
+    L.add("      System.out.println(\"Viewer: --serve \" + outDir);");
+    L.add("    } else {");
+    L.add("      System.out.println(\"Saved:  \" + outDir.resolve(manifestName));");
+    L.add("      System.out.println(\"Viewer: --serve \" + outDir + \"  (file://\" + outDir.resolve(\"capture_viewer.html\") + \" cannot fetch the manifest in Chromium)\");");
+    L.add("    }");
     L.add("  }");
     L.add("");
-    L.add("  static class Profile {");
-    L.add("    final String name,userAgent,locale,timezoneId,storageStatePath;");
-    L.add("    final int viewportW, viewportH;");
-    L.add("    final java.util.List<String> extraChromiumArgs;");
-    L.add("    Profile(String name, Properties p){");
-    L.add("      this.name=name;");
-    L.add("      this.userAgent=p.getProperty(\"userAgent\", \"\").trim();");
-    L.add("      this.locale=p.getProperty(\"locale\", \"\").trim();");
-    L.add("      this.timezoneId=p.getProperty(\"timezoneId\", \"\").trim();");
-    L.add("      this.storageStatePath=p.getProperty(\"storageStatePath\", \"\").trim();");
-    L.add("      this.viewportW=intOr(p.getProperty(\"viewportWidth\",\"1400\"),1400);");
-    L.add("      this.viewportH=intOr(p.getProperty(\"viewportHeight\",\"900\"),900);");
-    L.add("      String args=p.getProperty(\"extraChromiumArgs\", \"\").trim();");
-    L.add("      if(args.isBlank()) this.extraChromiumArgs=new ArrayList<>();");
-    L.add("      else {");
-    L.add("        java.util.List<String> list=new ArrayList<>();");
-    L.add("        for(String part: args.split(\",\")){ String a=part.trim(); if(!a.isBlank()) list.add(a); }");
-    L.add("        this.extraChromiumArgs=list;");
-    L.add("      }");
+    L.add("  // The full-page screenshot: page_full.png in one shot, or (--full-page tiled, or auto on pages taller than");
+    L.add("  // TILE_THRESHOLD_PX) viewport-height clips written to page_tiles/ as each one arrives, with");
+    L.add("  // page_tiles/index.json telling the viewer how to stack them. Each clip is its own bitmap, so Chromium never");
+    L.add("  // has to allocate the whole page. The Page is single-threaded, so --full-page-background interleaves the");
+    L.add("  // stage with extraction instead: one tile per selection, the rest (or the single shot) after the last one.");
+    L.add("  static class FullPageStage {");
+    L.add("    static final int TILE_THRESHOLD_PX = 16384, MAX_TILES = 500;");
+    L.add("    private final Page page;");
+    L.add("    private final ArtifactSink sink;");
+    L.add("    private final String mode;");
+    L.add("    private final boolean background;");
+    L.add("    private final ArrayNode tiles = OM.createArrayNode();");
+    L.add("    private boolean tiled, done;");
+    L.add("    private int width, height, tileHeight, count, next;");
+    L.add("    private String error;");
+    L.add("");
+    L.add("    FullPageStage(Page page, ArtifactSink sink, CaptureOptions opts) {");
+    L.add("      this.page = page;");
+    L.add("      this.sink = sink;");
+    L.add("      this.mode = opts.fullPageMode;");
+    L.add("      this.background = opts.fullPageBackground;");
     L.add("    }");
-    L.add("    static Profile load(String profileName){");
-    L.add("      try{");
-    L.add("        String n=(profileName==null||profileName.isBlank())?\"default\":profileName.trim();");
-    L.add("        Path p=Paths.get(\"profiles\", n+\".properties\");");
-    L.add("        Properties props=new Properties();");
-    L.add("        if(Files.exists(p)) try(InputStream is=Files.newInputStream(p)){ props.load(is);} ");
-    L.add("        if(!props.containsKey(\"viewportWidth\")) props.setProperty(\"viewportWidth\",\"1400\");");
-    L.add("        if(!props.containsKey(\"viewportHeight\")) props.setProperty(\"viewportHeight\",\"900\");");
-    L.add("        return new Profile(n, props);");
-    L.add("      }catch(Exception e){");
-    L.add("        Properties props=new Properties(); props.setProperty(\"viewportWidth\",\"1400\"); props.setProperty(\"viewportHeight\",\"900\");");
-    L.add("        return new Profile(\"default\", props);");
+    L.add("");
+    L.add("    void start() {");
+    L.add("      if (\"off\".equals(mode)) { done = true; return; }");
+    L.add("      try {");
+    L.add("        JsonNode m = OM.valueToTree(page.evaluate(\"() => { const d = document.documentElement, b = document.body || d;\"");
+    L.add("          + \" return { w: Math.max(d.scrollWidth, b.scrollWidth, innerWidth), h: Math.max(d.scrollHeight, b.scrollHeight, innerHeight), vh: innerHeight }; }\"));");
+    L.add("        width = m.path(\"w\").asInt(0);");
+    L.add("        height = m.path(\"h\").asInt(0);");
+    L.add("        tileHeight = Math.max(256, m.path(\"vh\").asInt(1024));");
+    L.add("      } catch (Exception e) {");
+    L.add("        error = \"measure failed: \" + e.getMessage();");
     L.add("      }");
+    L.add("      tiled = width > 0 && height > 0 && (\"tiled\".equals(mode) || (\"auto\".equals(mode) && height > TILE_THRESHOLD_PX));");
+    L.add("      count = tiled ? Math.min(MAX_TILES, (height + tileHeight - 1) / tileHeight) : 0;");
+    L.add("      if (!background) finish();");
     L.add("    }");
-    L.add("  }");
     L.add("");
-    L.add("  private static java.util.List<String> listBrowserProfiles(){");
-    L.add("    try{ Path dir=Paths.get(\"profiles\"); if(!Files.exists(dir)) return java.util.List.of(\"default\");");
-    L.add("      java.util.List<String> out=new ArrayList<>();");
-    L.add("      try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir, \"*.properties\")){");
-    L.add("        for(Path p: ds){ String fn=p.getFileName().toString(); if(fn.toLowerCase(Locale.ROOT).endsWith(\".properties\")) out.add(fn.substring(0, fn.length()-\".properties\".length())); }");
+    L.add("    void step() { if (!done && tiled && next < count) tile(); }");
+    L.add("");
+    L.add("    // Takes whatever is still outstanding; returns the manifest entry, or null with --full-page off.");
+    L.add("    ObjectNode finish() {");
+    L.add("      if (\"off\".equals(mode)) return null;");
+    L.add("      ObjectNode out = OM.createObjectNode();");
+    L.add("      out.put(\"mode\", tiled ? \"tiled\" : \"full\");");
+    L.add("      if (!tiled) {");
+    L.add("        if (!done) {");
+    L.add("          error = null;");
+    L.add("          try { sink.put(\"page_full.png\", page.screenshot(new Page.ScreenshotOptions().setFullPage(true))); }");
+    L.add("          catch (Exception e) { error = e.getMessage(); }");
+    L.add("        }");
+    L.add("        done = true;");
+    L.add("        if (error == null) out.put(\"path\", \"page_full.png\");");
+    L.add("        else out.put(\"error\", error);");
+    L.add("        return out;");
     L.add("      }");
-    L.add("      if(out.isEmpty()) out.add(\"default\"); out.sort(String.CASE_INSENSITIVE_ORDER); return out;");
-    L.add("    }catch(Exception e){ return java.util.List.of(\"default\"); }");
-    L.add("  }");
+    L.add("      while (next < count) tile();");
+    L.add("      ObjectNode index = OM.createObjectNode();");
+    L.add("      index.put(\"width\", width);");
+    L.add("      index.put(\"height\", height);");
+    L.add("      index.put(\"tileHeight\", tileHeight);");
+    L.add("      if (count * tileHeight < height) index.put(\"truncatedAt\", count * tileHeight);");
+    L.add("      index.set(\"tiles\", tiles);");
+    L.add("      if (!done) {");
+    L.add("        try { sink.put(\"page_tiles/index.json\", OM.writerWithDefaultPrettyPrinter().writeValueAsBytes(index)); }");
+    L.add("        catch (IOException e) { error = e.getMessage(); }");
+    L.add("      }");
+    L.add("      done = true;");
+    L.add("      out.put(\"index\", \"page_tiles/index.json\");");
+    L.add("      out.put(\"tiles\", tiles.size());");
+    L.add("      out.put(\"width\", width);");
+    L.add("      out.put(\"height\", height);");
+    L.add("      if (error != null) out.put(\"error\", error);");
+    L.add("      return out;");
+    L.add("    }");
     L.add("");
-    L.add("  private static java.util.List<String> listSelectionProfiles(){");
-    L.add("    try{ Path dir=Paths.get(\"profiles\",\"selection_profiles\"); if(!Files.exists(dir)) Files.createDirectories(dir);");
-    L.add("      java.util.List<String> out=new ArrayList<>();");
-    L.add("      try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir, \"*.json\")){");
-    L.add("        for(Path p: ds){ String fn=p.getFileName().toString(); if(fn.toLowerCase(Locale.ROOT).endsWith(\".json\")) out.add(fn.substring(0, fn.length()-\".json\".length())); }");
+    L.add("    private void tile() {");
+    L.add("      int y = next * tileHeight, h = Math.min(tileHeight, height - y);");
+    L.add("      String name = String.format(\"page_tiles/tile_%04d.png\", next++);");
+    L.add("      ObjectNode t = tiles.addObject();");
+    L.add("      t.put(\"y\", y);");
+    L.add("      t.put(\"height\", h);");
+    L.add("      try {");
+    L.add("        byte[] png = page.screenshot(new Page.ScreenshotOptions().setFullPage(true).setClip(0, y, width, h));");
+    L.add("        t.put(\"path\", sink.put(name, png));");
+    L.add("      } catch (Exception e) {");
+    L.add("        t.put(\"error\", e.getMessage());");
     L.add("      }");
-    L.add("      if(out.isEmpty()) out.add(\"sample\"); out.sort(String.CASE_INSENSITIVE_ORDER); return out;");
-    L.add("    }catch(Exception e){ return java.util.List.of(\"sample\"); }");
+    L.add("    }");
     L.add("  }");
     L.add("");
-    L.add("  private static ArrayNode loadUrlProfiles(){");
-    L.add("    try{");
-    L.add("      Path p = Paths.get(\"profiles\",\"url_profiles.json\");");
-    L.add("      if(!Files.exists(p)) return OM.createArrayNode();");
-    L.add("      JsonNode root = OM.readTree(Files.readString(p, StandardCharsets.UTF_8));");
-    L.add("      JsonNode profiles = root.path(\"profiles\");");
-    L.add("      if(!profiles.isArray()) return OM.createArrayNode();");
-    L.add("      return (ArrayNode) profiles;");
-    L.add("    }catch(Exception e){");
-    L.add("      return OM.createArrayNode();");
+    L.add("  // Viewer previews: screenshots and raster media are downscaled to JPEGs on the common fork-join pool");
+    L.add("  // while the capture goes on; finish() writes them under thumbs/ and links them from the results.");
+    L.add("  // Downloaded video gets its element screenshot as poster frame, since there is no pure-Java decoder.");
+    L.add("  static class ThumbnailStage {");
+    L.add("    static final int MAX_EDGE = 360;");
+    L.add("    private final boolean enabled;");
+    L.add("    private final Map<String, ForkJoinTask<byte[]>> pending = new LinkedHashMap<>();");
+    L.add("");
+    L.add("    ThumbnailStage(boolean enabled) { this.enabled = enabled; }");
+    L.add("");
+    L.add("    void offer(String artifact, Callable<byte[]> source) {");
+    L.add("      if (!enabled || artifact == null || artifact.isBlank() || pending.containsKey(artifact) || !isRaster(artifact)) return;");
+    L.add("      pending.put(artifact, ForkJoinPool.commonPool().submit(() -> scale(source.call())));");
     L.add("    }");
-    L.add("  }");
     L.add("");
-    L.add("  private static ArrayNode loadSelectionProfileItems(String name) throws IOException {");
-    L.add("    Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
-    L.add("    if (!Files.exists(p)) throw new FileNotFoundException(\"Selection profile not found: \" + p);");
-    L.add("    JsonNode root = OM.readTree(Files.readString(p, StandardCharsets.UTF_8));");
-    L.add("    JsonNode items = root.path(\"items\");");
-    L.add("    if (!items.isArray()) throw new IOException(\"Invalid selection profile JSON: missing items[]\");");
-    L.add("    return (ArrayNode) items;");
+    L.add("    // Unchanged items point at a previous capture; read those originals back through their durable refs.");
+    L.add("    void offerReused(JsonNode prev, ObjectNode r) {");
+    L.add("      String shot = prev.path(\"screenshot\").asText(\"\");");
+    L.add("      if (!shot.isBlank()) offer(r.path(\"screenshot\").asText(\"\"), () -> readRef(shot));");
+    L.add("      JsonNode was = prev.path(\"downloads\");");
+    L.add("      JsonNode now = r.path(\"downloads\");");
+    L.add("      for (int i = 0; i < Math.min(was.size(), now.size()); i++) {");
+    L.add("        String ref = was.get(i).path(\"savedAs\").asText(\"\");");
+    L.add("        if (!ref.isBlank()) offer(now.get(i).path(\"savedAs\").asText(\"\"), () -> readRef(ref));");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    int finish(ArtifactSink sink, ArrayNode results) {");
+    L.add("      Map<String, String> written = new HashMap<>();");
+    L.add("      Set<String> names = new HashSet<>();");
+    L.add("      for (Map.Entry<String, ForkJoinTask<byte[]>> e : pending.entrySet()) {");
+    L.add("        try {");
+    L.add("          byte[] jpg = e.getValue().get();");
+    L.add("          if (jpg == null) continue;");
+    L.add("          String stem = e.getKey().substring(e.getKey().lastIndexOf('/') + 1).replaceFirst(\"\\\\.[^.]*$\", \"\");");
+    L.add("          String name = \"thumbs/\" + stem + \".jpg\";");
+    L.add("          for (int n = 2; !names.add(name); n++) name = \"thumbs/\" + stem + \"_\" + n + \".jpg\";");
+    L.add("          written.put(e.getKey(), sink.put(name, jpg));");
+    L.add("        } catch (Exception ex) {");
+    L.add("          System.out.println(\"Thumbnail skipped for \" + e.getKey() + \": \" + ex.getMessage());");
+    L.add("        }");
+    L.add("      }");
+    L.add("      for (JsonNode r : results) {");
+    L.add("        String shot = r.path(\"screenshot\").asText(\"\");");
+    L.add("        if (written.containsKey(shot)) ((ObjectNode) r).put(\"thumbnail\", written.get(shot));");
+    L.add("        String poster = r.path(\"thumbnail\").asText(shot);");
+    L.add("        for (JsonNode d : r.path(\"downloads\")) {");
+    L.add("          String saved = d.path(\"savedAs\").asText(\"\");");
+    L.add("          if (written.containsKey(saved)) ((ObjectNode) d).put(\"thumbnail\", written.get(saved));");
+    L.add("          else if (isVideo(saved) && !poster.isBlank()) ((ObjectNode) d).put(\"poster\", poster);");
+    L.add("        }");
+    L.add("      }");
+    L.add("      return written.size();");
+    L.add("    }");
+    L.add("");
+    L.add("    static boolean isRaster(String name) {");
+    L.add("      String n = name.toLowerCase(Locale.ROOT);");
+    L.add("      return n.endsWith(\".png\") || n.endsWith(\".jpg\") || n.endsWith(\".jpeg\") || n.endsWith(\".gif\") || n.endsWith(\".bmp\");");
+    L.add("    }");
+    L.add("");
+    L.add("    static boolean isVideo(String name) {");
+    L.add("      String n = name.toLowerCase(Locale.ROOT);");
+    L.add("      return n.endsWith(\".mp4\") || n.endsWith(\".webm\");");
+    L.add("    }");
+    L.add("");
+    L.add("    // Halves the image until it is within 2x of the target, then does one bilinear step (cheap and alias-free).");
+    L.add("    // Returns null when the original is already small enough to serve as its own preview.");
+    L.add("    static byte[] scale(byte[] data) throws IOException {");
+    L.add("      BufferedImage src = ImageIO.read(new ByteArrayInputStream(data));");
+    L.add("      if (src == null || Math.max(src.getWidth(), src.getHeight()) <= MAX_EDGE) return null;");
+    L.add("      double f = (double) MAX_EDGE / Math.max(src.getWidth(), src.getHeight());");
+    L.add("      int tw = Math.max(1, (int) Math.round(src.getWidth() * f));");
+    L.add("      int th = Math.max(1, (int) Math.round(src.getHeight() * f));");
+    L.add("      BufferedImage cur = src;");
+    L.add("      int w = src.getWidth(), h = src.getHeight();");
+    L.add("      do {");
+    L.add("        w = Math.max(tw, w / 2 >= tw ? w / 2 : tw);");
+    L.add("        h = Math.max(th, h / 2 >= th ? h / 2 : th);");
+    L.add("        BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);");
+    L.add("        Graphics2D g = next.createGraphics();");
+    L.add("        try {");
+    L.add("          g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);");
+    L.add("          g.setColor(Color.WHITE);");
+    L.add("          g.fillRect(0, 0, w, h);");
+    L.add("          g.drawImage(cur, 0, 0, w, h, null);");
+    L.add("        } finally {");
+    L.add("          g.dispose();");
+    L.add("        }");
+    L.add("        cur = next;");
+    L.add("      } while (w != tw || h != th);");
+    L.add("      ByteArrayOutputStream out = new ByteArrayOutputStream();");
+    L.add("      if (!ImageIO.write(cur, \"jpg\", out)) return null;");
+    L.add("      return out.toByteArray();");
+    L.add("    }");
     L.add("  }");
     L.add("");
-    L.add("  private static ArrayNode selectionsFromSelectionProfile(String name, int selIndex) throws Exception {");
-    L.add("    ArrayNode items = loadSelectionProfileItems(name);");
-    L.add("    ArrayNode out = OM.createArrayNode();");
-    L.add("    int i = 0;");
-    L.add("    for (JsonNode it : items) {");
-    L.add("      i++;");
-    L.add("      if (selIndex > 0 && i != selIndex) continue;");
-    L.add("      String sel = it.path(\"selector\").asText(\"\");");
-    L.add("      if (sel.isBlank()) continue;");
-    L.add("      ObjectNode s = OM.createObjectNode();");
-    L.add("      s.put(\"selector\", sel);");
-    L.add("      s.put(\"tag\", it.path(\"tag\").asText(\"\"));");
-    L.add("      s.put(\"kind\", it.path(\"kind\").asText(\"\"));");
-    L.add("      s.put(\"text\", it.path(\"text\").asText(\"\"));");
-    L.add("      s.put(\"src\", \"\");");
-    L.add("      s.put(\"href\", \"\");");
-    L.add("      s.put(\"outerHtml\", \"\");");
-    L.add("      out.add(s);");
+    L.add("  // profiles/schedules.json:");
+    L.add("  //   {\"schedules\":[{\"name\":\"news\",\"urlProfiles\":[\"news\"],\"selectionProfile\":\"headlines\",\"cron\":\"*/30 * * * *\",\"jitterSeconds\":90},");
+    L.add("  //                 {\"name\":\"prices\",\"url\":\"https://shop.example/p/1\",\"selectionProfile\":\"price\",\"every\":\"15m\"}]}");
+    L.add("  // urlProfiles holds names from url_profiles.json (\"*\" = all of them); every accepts 90s / 15m / 2h / 1d.");
+    L.add("  static class Scheduler {");
+    L.add("    final Path file;");
+    L.add("    final Map<String, Schedule> schedules = new LinkedHashMap<>();");
+    L.add("    private long loadedMtime = -1;");
+    L.add("");
+    L.add("    Scheduler(Path file) { this.file = file; }");
+    L.add("");
+    L.add("    void reload() {");
+    L.add("      try {");
+    L.add("        long mtime = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;");
+    L.add("        if (mtime == loadedMtime) return;");
+    L.add("        loadedMtime = mtime;");
+    L.add("        Map<String, Schedule> next = new LinkedHashMap<>();");
+    L.add("        JsonNode root = mtime == 0 ? OM.createObjectNode() : OM.readTree(file.toFile());");
+    L.add("        for (JsonNode n : root.path(\"schedules\")) {");
+    L.add("          try {");
+    L.add("            Schedule fresh = new Schedule(n);");
+    L.add("            Schedule old = schedules.get(fresh.name);");
+    L.add("            next.put(fresh.name, old != null && old.spec.equals(fresh.spec) ? old : fresh);");
+    L.add("          } catch (Exception e) {");
+    L.add("            System.out.println(\"Schedule skipped (\" + n.path(\"name\").asText(\"?\") + \"): \" + e.getMessage());");
+    L.add("          }");
+    L.add("        }");
+    L.add("        schedules.clear();");
+    L.add("        schedules.putAll(next);");
+    L.add("        if (mtime != 0) System.out.println(\"Scheduler: loaded \" + schedules.size() + \" schedule(s)\");");
+    L.add("      } catch (Exception e) {");
+    L.add("        System.out.println(\"Could not read \" + file + \": \" + e.getMessage());");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    Schedule nextDue() {");
+    L.add("      Schedule best = null;");
+    L.add("      for (Schedule s : schedules.values()) if (best == null || s.nextDue < best.nextDue) best = s;");
+    L.add("      return best;");
+    L.add("    }");
+    L.add("");
+    L.add("    void writeMetrics() {");
+    L.add("      ObjectNode root = OM.createObjectNode();");
+    L.add("      root.put(\"updatedAt\", OffsetDateTime.now().toString());");
+    L.add("      ObjectNode per = root.putObject(\"schedules\");");
+    L.add("      for (Schedule s : schedules.values()) {");
+    L.add("        ObjectNode m = s.metrics.toJson();");
+    L.add("        m.put(\"nextDue\", java.time.Instant.ofEpochMilli(s.nextDue).toString());");
+    L.add("        per.set(s.name, m);");
+    L.add("      }");
+    L.add("      Path out = file.resolveSibling(\"schedule_metrics.json\");");
+    L.add("      Path tmp = out.resolveSibling(out.getFileName() + \".tmp\");");
+    L.add("      try {");
+    L.add("        OM.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), root);");
+    L.add("        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);");
+    L.add("      } catch (IOException e) {");
+    L.add("        System.out.println(\"Schedule metrics not written: \" + e.getMessage());");
+    L.add("      }");
     L.add("    }");
-    L.add("    return out;");
     L.add("  }");
     L.add("");
-    L.add("  private static boolean isRetryableNavError(Throwable ex) {");
-    L.add("    String m = String.valueOf(ex.getMessage()).toLowerCase(Locale.ROOT);");
-    L.add("    return m.contains(\"err_network_changed\")");
-    L.add("      || m.contains(\"err_internet_disconnected\")");
-    L.add("      || m.contains(\"err_address_unreachable\")");
-    L.add("      || m.contains(\"err_name_not_resolved\")");
-    L.add("      || m.contains(\"err_network_access_denied\")");
-    L.add("      || m.contains(\"err_connection_closed\")");
-    L.add("      || m.contains(\"err_connection_reset\")");
-    L.add("      || m.contains(\"err_connection_refused\")");
-    L.add("      || m.contains(\"err_timed_out\")");
-    L.add("      || m.contains(\"navigation interrupted\");");
+    L.add("  static class Schedule {");
+    L.add("    final String name, selProfile, spec;");
+    L.add("    final int selIndex;");
+    L.add("    final JsonNode urlProfiles;");
+    L.add("    final String url;");
+    L.add("    final long everyMs, jitterMs;");
+    L.add("    final CronExpr cron;");
+    L.add("    final ScheduleMetrics metrics = new ScheduleMetrics();");
+    L.add("    long nominal, nextDue;");
+    L.add("");
+    L.add("    Schedule(JsonNode n) {");
+    L.add("      this.name = n.path(\"name\").asText(\"\").trim();");
+    L.add("      if (!name.matches(\"[A-Za-z0-9._-]{1,80}\")) throw new IllegalArgumentException(\"invalid name\");");
+    L.add("      this.selProfile = n.path(\"selectionProfile\").asText(\"\").trim();");
+    L.add("      if (selProfile.isBlank()) throw new IllegalArgumentException(\"missing selectionProfile\");");
+    L.add("      this.selIndex = n.path(\"selIndex\").asInt(0);");
+    L.add("      this.urlProfiles = n.path(\"urlProfiles\");");
+    L.add("      this.url = n.path(\"url\").asText(\"\").trim();");
+    L.add("      String cronText = n.path(\"cron\").asText(\"\").trim();");
+    L.add("      this.cron = cronText.isBlank() ? null : new CronExpr(cronText);");
+    L.add("      this.everyMs = cron != null ? 0 : parseInterval(n.path(\"every\").asText(\"\"));");
+    L.add("      if (cron == null && everyMs <= 0) throw new IllegalArgumentException(\"needs cron or every\");");
+    L.add("      this.jitterMs = Math.max(0, n.path(\"jitterSeconds\").asLong(0)) * 1000L;");
+    L.add("      this.spec = n.toString();");
+    L.add("      long now = System.currentTimeMillis();");
+    L.add("      this.nominal = cron != null ? following(now) : now;");
+    L.add("      this.nextDue = nominal + jitter();");
+    L.add("    }");
+    L.add("");
+    L.add("    // Moves past every nominal tick that is already over; each one beyond the tick just run was missed.");
+    L.add("    void advance(long now) {");
+    L.add("      long t = following(nominal);");
+    L.add("      int missed = 0;");
+    L.add("      while (t <= now) { missed++; t = following(t); }");
+    L.add("      metrics.missed(missed);");
+    L.add("      nominal = t;");
+    L.add("      nextDue = t + jitter();");
+    L.add("    }");
+    L.add("");
+    L.add("    private long following(long t) {");
+    L.add("      if (cron == null) return t + everyMs;");
+    L.add("      ZonedDateTime z = java.time.Instant.ofEpochMilli(t).atZone(java.time.ZoneId.systemDefault());");
+    L.add("      return cron.next(z).toInstant().toEpochMilli();");
+    L.add("    }");
+    L.add("");
+    L.add("    private long jitter() { return jitterMs <= 0 ? 0 : java.util.concurrent.ThreadLocalRandom.current().nextLong(jitterMs + 1); }");
+    L.add("");
+    L.add("    List<String> targets() {");
+    L.add("      List<String> out = new ArrayList<>();");
+    L.add("      if (!url.isBlank()) out.add(url);");
+    L.add("      Set<String> wanted = new HashSet<>();");
+    L.add("      for (JsonNode u : urlProfiles) wanted.add(u.asText(\"\"));");
+    L.add("      if (wanted.isEmpty()) return out;");
+    L.add("      for (JsonNode up : loadUrlProfiles()) {");
+    L.add("        String u = up.path(\"url\").asText(\"\").trim();");
+    L.add("        if (!u.isBlank() && (wanted.contains(\"*\") || wanted.contains(up.path(\"name\").asText(\"\")))) out.add(u);");
+    L.add("      }");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("");
+    L.add("    static long parseInterval(String s) {");
+    L.add("      String t = String.valueOf(s).trim().toLowerCase(Locale.ROOT);");
+    L.add("      if (t.isEmpty()) return 0;");
+    L.add("      long unit = 1000;");
+    L.add("      char last = t.charAt(t.length() - 1);");
+    L.add("      if (Character.isLetter(last)) {");
+    L.add("        unit = switch (last) { case 's' -> 1000L; case 'm' -> 60_000L; case 'h' -> 3_600_000L; case 'd' -> 86_400_000L; default -> throw new IllegalArgumentException(\"bad interval: \" + s); };");
+    L.add("        t = t.substring(0, t.length() - 1);");
+    L.add("      }");
+    L.add("      return Long.parseLong(t.trim()) * unit;");
+    L.add("    }");
     L.add("  }");
     L.add("");
-    L.add("  private static void navigateWithRetry(Page page, String url) {");
-    L.add("    int maxAttempts = 6;");
-    L.add("    long[] delaysMs = new long[]{ 250, 600, 1200, 2000, 3000, 4500 };");
-    L.add("    RuntimeException last = null;");
-    L.add("    for (int attempt = 1; attempt <= maxAttempts; attempt++) {");
+    L.add("  // Keeping-up signals per schedule: how late runs start, how many ticks were skipped, how long runs take.");
+    L.add("  static class ScheduleMetrics {");
+    L.add("    long runs, failures, missed, lateTotalMs, lateMaxMs, lastDurationMs;");
+    L.add("    String lastError = \"\";");
+    L.add("    String lastRunAt = \"\";");
+    L.add("");
+    L.add("    void lateness(long ms) {");
+    L.add("      ms = Math.max(0, ms);");
+    L.add("      lateTotalMs += ms;");
+    L.add("      lateMaxMs = Math.max(lateMaxMs, ms);");
+    L.add("      lastRunAt = OffsetDateTime.now().toString();");
+    L.add("    }");
+    L.add("");
+    L.add("    void finished(long durationMs, String error) {");
+    L.add("      runs++;");
+    L.add("      lastDurationMs = durationMs;");
+    L.add("      if (error != null) failures++;");
+    L.add("      lastError = error == null ? \"\" : error;");
+    L.add("    }");
+    L.add("");
+    L.add("    void missed(int n) { missed += n; }");
+    L.add("");
+    L.add("    String summary() {");
+    L.add("      return String.format(\"runs=%d failures=%d missed=%d lateAvg=%dms lateMax=%dms took=%dms\",");
+    L.add("        runs, failures, missed, runs == 0 ? 0 : lateTotalMs / runs, lateMaxMs, lastDurationMs);");
+    L.add("    }");
+    L.add("");
+    L.add("    ObjectNode toJson() {");
+    L.add("      ObjectNode m = OM.createObjectNode();");
+    L.add("      m.put(\"runs\", runs);");
+    L.add("      m.put(\"failures\", failures);");
+    L.add("      m.put(\"missed\", missed);");
+    L.add("      m.put(\"latenessAvgMs\", runs == 0 ? 0 : lateTotalMs / runs);");
+    L.add("      m.put(\"latenessMaxMs\", lateMaxMs);");
+    L.add("      m.put(\"lastDurationMs\", lastDurationMs);");
+    L.add("      m.put(\"lastRunAt\", lastRunAt);");
+    L.add("      m.put(\"lastError\", lastError);");
+    L.add("      return m;");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Standard five-field cron (minute hour day-of-month month day-of-week) with *, lists, ranges and steps.");
+    L.add("  // As in cron, when both day fields are restricted a day matching either one fires; a field starting with *");
+    L.add("  // (even */2) counts as unrestricted, so both must match.");
+    L.add("  static class CronExpr {");
+    L.add("    private final BitSet minutes, hours, doms, months, dows;");
+    L.add("    private final boolean domAny, dowAny;");
+    L.add("");
+    L.add("    CronExpr(String expr) {");
+    L.add("      String[] f = expr.trim().split(\"\\\\s+\");");
+    L.add("      if (f.length != 5) throw new IllegalArgumentException(\"cron needs 5 fields: \" + expr);");
+    L.add("      minutes = field(f[0], 0, 59);");
+    L.add("      hours = field(f[1], 0, 23);");
+    L.add("      doms = field(f[2], 1, 31);");
+    L.add("      months = field(f[3], 1, 12);");
+    L.add("      dows = field(f[4], 0, 7);");
+    L.add("      if (dows.get(7)) dows.set(0);");
+    L.add("      domAny = f[2].startsWith(\"*\");");
+    L.add("      dowAny = f[4].startsWith(\"*\");");
+    L.add("    }");
+    L.add("");
+    L.add("    private static BitSet field(String spec, int lo, int hi) {");
+    L.add("      BitSet b = new BitSet();");
+    L.add("      for (String part : spec.split(\",\")) {");
+    L.add("        int step = 1;");
+    L.add("        String range = part;");
+    L.add("        int slash = part.indexOf('/');");
+    L.add("        if (slash >= 0) { step = Integer.parseInt(part.substring(slash + 1)); range = part.substring(0, slash); }");
+    L.add("        int a, z;");
+    L.add("        if (range.equals(\"*\")) { a = lo; z = hi; }");
+    L.add("        else if (range.contains(\"-\")) { String[] r = range.split(\"-\", 2); a = Integer.parseInt(r[0]); z = Integer.parseInt(r[1]); }");
+    L.add("        else { a = Integer.parseInt(range); z = slash >= 0 ? hi : a; }");
+    L.add("        if (a < lo || z > hi || a > z || step < 1) throw new IllegalArgumentException(\"bad cron field: \" + spec);");
+    L.add("        for (int i = a; i <= z; i += step) b.set(i);");
+    L.add("      }");
+    L.add("      return b;");
+    L.add("    }");
+    L.add("");
+    L.add("    private boolean dayMatches(ZonedDateTime t) {");
+    L.add("      boolean dom = doms.get(t.getDayOfMonth());");
+    L.add("      boolean dow = dows.get(t.getDayOfWeek().getValue() % 7);");
+    L.add("      if (domAny || dowAny) return dom && dow;");
+    L.add("      return dom || dow;");
+    L.add("    }");
+    L.add("");
+    L.add("    ZonedDateTime next(ZonedDateTime after) {");
+    L.add("      ZonedDateTime t = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);");
+    L.add("      ZonedDateTime limit = t.plusYears(5);");
+    L.add("      while (t.isBefore(limit)) {");
+    L.add("        if (!months.get(t.getMonthValue())) { t = t.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1); continue; }");
+    L.add("        if (!dayMatches(t)) { t = t.truncatedTo(ChronoUnit.DAYS).plusDays(1); continue; }");
+    L.add("        if (!hours.get(t.getHour())) { t = t.truncatedTo(ChronoUnit.HOURS).plusHours(1); continue; }");
+    L.add("        if (!minutes.get(t.getMinute())) { t = t.plusMinutes(1); continue; }");
+    L.add("        return t;");
+    L.add("      }");
+    L.add("      throw new IllegalArgumentException(\"cron expression never fires\");");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // A Bloom filter kept in a memory-mapped file (a 64-byte header, then the bit array in 1 GiB mappings), so");
+    L.add("  // it persists across runs and costs the same memory whether it has seen a thousand URLs or a billion.");
+    L.add("  // Sized on creation for capacity URLs at the requested false-positive rate (about 1.2 bytes per URL at 1%);");
+    L.add("  // an existing file keeps its own size. False positives skip an unseen URL; a seen URL is never let through.");
+    L.add("  // One writer at a time: the file is locked while open.");
+    L.add("  static class SeenFilter implements AutoCloseable {");
+    L.add("    private static final long MAGIC = 0x41494d5345454e31L; // \"AIMSEEN1\"");
+    L.add("    private static final int HEADER = 64, SEGMENT = 1 << 30;");
+    L.add("    final Path file;");
+    L.add("    final long bits, capacity;");
+    L.add("    final int k;");
+    L.add("    private final FileChannel ch;");
+    L.add("    private final java.nio.channels.FileLock lock;");
+    L.add("    private final MappedByteBuffer header;");
+    L.add("    private final MappedByteBuffer[] segments;");
+    L.add("    private long count;");
+    L.add("");
+    L.add("    private SeenFilter(Path file, FileChannel ch, java.nio.channels.FileLock lock, long bits, int k, long capacity, long count) throws IOException {");
+    L.add("      this.file = file;");
+    L.add("      this.ch = ch;");
+    L.add("      this.lock = lock;");
+    L.add("      this.bits = bits;");
+    L.add("      this.k = k;");
+    L.add("      this.capacity = capacity;");
+    L.add("      this.count = count;");
+    L.add("      this.header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);");
+    L.add("      long bytes = bits / 8;");
+    L.add("      this.segments = new MappedByteBuffer[(int) ((bytes + SEGMENT - 1) / SEGMENT)];");
+    L.add("      for (int i = 0; i < segments.length; i++) {");
+    L.add("        long off = (long) i * SEGMENT;");
+    L.add("        segments[i] = ch.map(FileChannel.MapMode.READ_WRITE, HEADER + off, Math.min(SEGMENT, bytes - off));");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    static SeenFilter open(Path file, long capacity, double fpp) throws IOException {");
+    L.add("      Files.createDirectories(file.toAbsolutePath().getParent());");
+    L.add("      FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);");
     L.add("      try {");
-    L.add("        page.navigate(url, new Page.NavigateOptions().setWaitUntil(WaitUntilState.DOMCONTENTLOADED).setTimeout(60000));");
-    L.add("        return;");
-    L.add("      } catch (RuntimeException ex) {");
-    L.add("        last = ex;");
-    L.add("        if (!isRetryableNavError(ex) || attempt == maxAttempts) throw ex;");
-    L.add("        System.out.println(\"Navigation failed (attempt \" + attempt + \"/\" + maxAttempts + \"): \" + ex.getMessage());");
-    L.add("        try { Thread.sleep(delaysMs[Math.min(attempt - 1, delaysMs.length - 1)]); } catch (InterruptedException ignored) {}");
-    L.add("        try { page.waitForTimeout(150); } catch (Exception ignored) {}");
+    L.add("        // tryLock returns null when another process holds the file and throws when this one already does.");
+    L.add("        java.nio.channels.FileLock lock;");
+    L.add("        try { lock = ch.tryLock(); } catch (java.nio.channels.OverlappingFileLockException held) { lock = null; }");
+    L.add("        if (lock == null) throw new IOException(\"Seen filter is in use by another process: \" + file);");
+    L.add("        if (ch.size() >= HEADER) {");
+    L.add("          ByteBuffer h = ByteBuffer.allocate(HEADER);");
+    L.add("          ch.read(h, 0);");
+    L.add("          h.flip();");
+    L.add("          if (h.getLong() != MAGIC) throw new IOException(\"Not a seen filter: \" + file);");
+    L.add("          long bits = h.getLong(), cap = h.getLong(), count = h.getLong();");
+    L.add("          int k = h.getInt();");
+    L.add("          if (ch.size() < HEADER + bits / 8) throw new IOException(\"Truncated seen filter: \" + file);");
+    L.add("          if (cap != capacity) System.out.println(\"Seen filter \" + file.getFileName() + \" keeps its original capacity of \" + cap + \" URL(s).\");");
+    L.add("          return new SeenFilter(file, ch, lock, bits, k, cap, count);");
+    L.add("        }");
+    L.add("        long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));");
+    L.add("        bits = Math.max(64, (bits + 63) / 64 * 64);");
+    L.add("        int k = (int) Math.max(1, Math.min(16, Math.round((double) bits / capacity * Math.log(2))));");
+    L.add("        SeenFilter f = new SeenFilter(file, ch, lock, bits, k, capacity, 0);");
+    L.add("        f.header.putLong(0, MAGIC).putLong(8, bits).putLong(16, capacity).putLong(24, 0).putInt(32, k);");
+    L.add("        return f;");
+    L.add("      } catch (IOException | RuntimeException e) {");
+    L.add("        ch.close();");
+    L.add("        throw e;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    boolean mightContain(String url) {");
+    L.add("      long[] h = hash(url);");
+    L.add("      for (int i = 0; i < k; i++) if (!get(Math.floorMod(h[0] + i * h[1], bits))) return false;");
+    L.add("      return true;");
+    L.add("    }");
+    L.add("");
+    L.add("    void put(String url) {");
+    L.add("      long[] h = hash(url);");
+    L.add("      boolean added = false;");
+    L.add("      for (int i = 0; i < k; i++) added |= set(Math.floorMod(h[0] + i * h[1], bits));");
+    L.add("      if (added) count++;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Expected false-positive rate at the current fill.");
+    L.add("    double fpp() { return Math.pow(1 - Math.exp(-(double) k * count / bits), k); }");
+    L.add("");
+    L.add("    ObjectNode describe() {");
+    L.add("      ObjectNode o = OM.createObjectNode();");
+    L.add("      o.put(\"file\", file.toString());");
+    L.add("      o.put(\"bytes\", HEADER + bits / 8);");
+    L.add("      o.put(\"k\", k);");
+    L.add("      o.put(\"capacity\", capacity);");
+    L.add("      o.put(\"count\", count);");
+    L.add("      o.put(\"fpp\", Math.round(fpp() * 1e6) / 1e6);");
+    L.add("      if (count > capacity) o.put(\"note\", \"over capacity; start a new filter (delete it) to keep false positives down\");");
+    L.add("      return o;");
+    L.add("    }");
+    L.add("");
+    L.add("    private boolean get(long bit) {");
+    L.add("      long b = bit >>> 3;");
+    L.add("      return (segments[(int) (b / SEGMENT)].get((int) (b % SEGMENT)) & (1 << (bit & 7))) != 0;");
+    L.add("    }");
+    L.add("");
+    L.add("    private boolean set(long bit) {");
+    L.add("      long b = bit >>> 3;");
+    L.add("      MappedByteBuffer seg = segments[(int) (b / SEGMENT)];");
+    L.add("      int pos = (int) (b % SEGMENT);");
+    L.add("      byte v = seg.get(pos);");
+    L.add("      byte nv = (byte) (v | (1 << (bit & 7)));");
+    L.add("      if (v == nv) return false;");
+    L.add("      seg.put(pos, nv);");
+    L.add("      return true;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Two independent 64-bit hashes of the UTF-8 bytes (FNV-1a with different seeds, then a splitmix");
+    L.add("    // finalizer); probe i is h1 + i*h2 (Kirsch-Mitzenmacher double hashing).");
+    L.add("    private static long[] hash(String url) {");
+    L.add("      long a = 0xcbf29ce484222325L, b = 0x6a09e667f3bcc909L;");
+    L.add("      for (byte x : url.getBytes(StandardCharsets.UTF_8)) {");
+    L.add("        a = (a ^ (x & 0xff)) * 0x100000001b3L;");
+    L.add("        b = (b ^ (x & 0xff)) * 0x100000001b3L;");
+    L.add("      }");
+    L.add("      return new long[]{ mix(a), mix(b ^ 0x9e3779b97f4a7c15L) | 1 };");
+    L.add("    }");
+    L.add("");
+    L.add("    private static long mix(long z) {");
+    L.add("      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;");
+    L.add("      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;");
+    L.add("      return z ^ (z >>> 31);");
+    L.add("    }");
+    L.add("");
+    L.add("    @Override public void close() throws IOException {");
+    L.add("      try {");
+    L.add("        header.putLong(24, count);");
+    L.add("        header.force();");
+    L.add("        for (MappedByteBuffer seg : segments) seg.force();");
+    L.add("      } finally {");
+    L.add("        try { lock.release(); } catch (IOException ignored) {}");
+    L.add("        ch.close();");
     L.add("      }");
     L.add("    }");
-    L.add("    if (last != null) throw last;");
     L.add("  }");
     L.add("");
-    L.add("  private static void safeClose(BrowserContext ctx, Browser browser) { try { ctx.close(); } catch (Exception ignored) {} try { browser.close(); } catch (Exception ignored) {} }");
-    L.add("  private static boolean hasFlag(String[] args, String flag) { for (String a : args) if (flag.equalsIgnoreCase(a)) return true; return false; }");
-    L.add("  private static String argValue(String[] args, String key, String def) { for (int i=0;i<args.length;i++) if (key.equalsIgnoreCase(args[i]) && i+1<args.length) return args[i+1]; return def; }");
-    L.add("  private static String firstNonFlagArg(String[] args) { if (args==null) return null; for (int i=0;i<args.length;i++){ String a=String.valueOf(args[i]); if (a.startsWith(\"--\")) { if ((\"--profile\".equalsIgnoreCase(a)) && i+1<args.length) i++; continue; } if(!a.trim().isEmpty()) return a.trim(); } return null; }");
-    L.add("  private static int intOr(String s, int def){ try{ return Integer.parseInt(String.valueOf(s).trim()); }catch(Exception e){ return def; } }");
-    L.add("  private static String trim(String s, int max) { if (s == null) return \"\"; s = s.replace(\"\\r\", \"\").trim(); return s.length() <= max ? s : s.substring(0, max) + \"...\"; }");
-    L.add("  private static String escJson(String s){ return String.valueOf(s).replace(\"\\\\\", \"\\\\\\\\\").replace(\"\\\"\", \"\\\\\\\"\").replace(\"\\n\",\" \").replace(\"\\r\",\" \"); }");
+    L.add("  // Broker-less work sharing over a shared directory (e.g. an NFS mount):");
+    L.add("  //   pending/<id>.json --rename--> running/<id>.json + running/<id>.lease --> done/ or failed/ (or back to pending/)");
+    L.add("  // A claim is one atomic rename, so exactly one worker wins each job. The owner rewrites the lease every");
+    L.add("  // leaseMs/3; a lease past its expiry (or a running job with no lease for a whole lease period) is");
+    L.add("  // reclaimed by whichever worker notices first, again through a rename, and the job goes back to pending/.");
+    L.add("  static class WorkQueue {");
+    L.add("    static final int MAX_ATTEMPTS = 3;");
+    L.add("    final Path root, pending, running, done, failed;");
+    L.add("    final String workerId;");
+    L.add("    final long leaseMs;");
+    L.add("    private final Map<String, Long> orphanSince = new HashMap<>();");
+    L.add("    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {");
+    L.add("      Thread t = new Thread(r, \"aim-lease-heartbeat\"); t.setDaemon(true); return t;");
+    L.add("    });");
     L.add("");
-    L.add("  private static List<String> normalizeDedup(String baseUrl, List<String> urls) {");
-    L.add("    LinkedHashSet<String> out = new LinkedHashSet<>();");
-    L.add("    for (String u : urls) {");
-    L.add("      if (u == null) continue;");
-    L.add("      u = u.trim();");
-    L.add("      if (u.isEmpty()) continue;");
-    L.add("      try { u = URI.create(baseUrl).resolve(u).toString(); } catch (Exception ignored) {}");
-    L.add("      out.add(u);");
+    L.add("    WorkQueue(Path root, long leaseMs) throws IOException {");
+    L.add("      this.root = root;");
+    L.add("      this.pending = Files.createDirectories(root.resolve(\"pending\"));");
+    L.add("      this.running = Files.createDirectories(root.resolve(\"running\"));");
+    L.add("      this.done = Files.createDirectories(root.resolve(\"done\"));");
+    L.add("      this.failed = Files.createDirectories(root.resolve(\"failed\"));");
+    L.add("      this.leaseMs = leaseMs;");
+    L.add("      String host = \"host\";");
+    L.add("      try { host = java.net.InetAddress.getLocalHost().getHostName(); } catch (Exception ignored) {}");
+    L.add("      this.workerId = host + \":\" + ProcessHandle.current().pid();");
+    L.add("    }");
+    L.add("");
+    L.add("    int enqueue(ArrayNode urlProfiles, String selProfile) throws IOException {");
+    L.add("      String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
+    L.add("      int n = 0;");
+    L.add("      for (JsonNode up : urlProfiles) {");
+    L.add("        String url = up.path(\"url\").asText(\"\").trim();");
+    L.add("        if (url.isBlank()) continue;");
+    L.add("        n++;");
+    L.add("        writeJob(String.format(\"%s_%03d_%s\", ts, n, sha256Hex(url).substring(0, 8)), url, selProfile);");
+    L.add("      }");
+    L.add("      return n;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Streams a seed list (plain text or NDJSON with a \"url\" field, gzipped or not, \"-\" for stdin) into");
+    L.add("    // pending/ one line at a time. URLs are canonicalized like normalizeDedup and checked against the");
+    L.add("    // queue's persistent seen.bloom, so repeats inside the file and from earlier runs are skipped while");
+    L.add("    // memory stays at the filter's fixed size. The filter is written only after the job file, so a crash");
+    L.add("    // cannot mark a URL seen that was never queued.");
+    L.add("    void enqueueSeeds(String seeds, String selProfile, long capacity) throws IOException {");
+    L.add("      String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
+    L.add("      long lines = 0, invalid = 0, duplicates = 0, queued = 0;");
+    L.add("      try (SeenFilter seen = SeenFilter.open(root.resolve(\"seen.bloom\"), capacity, 0.01);");
+    L.add("           BufferedReader in = openSeeds(seeds)) {");
+    L.add("        String line;");
+    L.add("        while ((line = in.readLine()) != null) {");
+    L.add("          lines++;");
+    L.add("          String url = seedUrl(line);");
+    L.add("          if (url == null) { if (!line.isBlank() && !line.trim().startsWith(\"#\")) invalid++; continue; }");
+    L.add("          if (seen.mightContain(url)) { duplicates++; continue; }");
+    L.add("          writeJob(String.format(\"%s_%09d_%s\", ts, ++queued, sha256Hex(url).substring(0, 8)), url, selProfile);");
+    L.add("          seen.put(url);");
+    L.add("          if (lines % 100_000 == 0) System.out.println(\"  \" + lines + \" line(s), \" + queued + \" queued, \" + duplicates + \" already seen\");");
+    L.add("        }");
+    L.add("        System.out.println(\"Seeds: \" + lines + \" line(s), \" + queued + \" queued, \" + duplicates + \" already seen, \" + invalid + \" invalid\");");
+    L.add("        System.out.println(\"Seen filter: \" + seen.describe());");
+    L.add("      }");
+    L.add("      System.out.println(\"Enqueued \" + queued + \" job(s) in \" + pending);");
+    L.add("    }");
+    L.add("");
+    L.add("    private static BufferedReader openSeeds(String seeds) throws IOException {");
+    L.add("      InputStream raw = new BufferedInputStream(\"-\".equals(seeds) ? System.in : Files.newInputStream(Paths.get(seeds)), 1 << 16);");
+    L.add("      raw.mark(2);");
+    L.add("      boolean gz = raw.read() == 0x1f && raw.read() == 0x8b;");
+    L.add("      raw.reset();");
+    L.add("      if (gz) raw = new GZIPInputStream(raw, 1 << 16);");
+    L.add("      return new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8), 1 << 16);");
+    L.add("    }");
+    L.add("");
+    L.add("    // The first field of a text line (\"url<TAB>anything\" is fine) or the \"url\" of an NDJSON object;");
+    L.add("    // null for blanks, comments and anything that is not an absolute http(s) URL.");
+    L.add("    private static String seedUrl(String line) {");
+    L.add("      String t = line.trim();");
+    L.add("      if (t.isEmpty() || t.startsWith(\"#\")) return null;");
+    L.add("      if (t.startsWith(\"{\")) {");
+    L.add("        try { t = OM.readTree(t).path(\"url\").asText(\"\"); } catch (IOException e) { return null; }");
+    L.add("      } else {");
+    L.add("        t = t.split(\"\\\\s\", 2)[0];");
+    L.add("      }");
+    L.add("      String u = canonicalUrl(null, t);");
+    L.add("      if (u == null) return null;");
+    L.add("      try {");
+    L.add("        URI uri = URI.create(u);");
+    L.add("        String scheme = String.valueOf(uri.getScheme()).toLowerCase(Locale.ROOT);");
+    L.add("        return (\"http\".equals(scheme) || \"https\".equals(scheme)) && uri.getHost() != null ? u : null;");
+    L.add("      } catch (IllegalArgumentException e) {");
+    L.add("        return null;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private void writeJob(String id, String url, String selProfile) throws IOException {");
+    L.add("      ObjectNode job = OM.createObjectNode();");
+    L.add("      job.put(\"id\", id);");
+    L.add("      job.put(\"url\", url);");
+    L.add("      job.put(\"selProfile\", selProfile);");
+    L.add("      job.put(\"attempts\", 0);");
+    L.add("      job.put(\"enqueuedAt\", OffsetDateTime.now().toString());");
+    L.add("      writeAtomically(pending.resolve(id + \".json\"), job);");
+    L.add("    }");
+    L.add("");
+    L.add("    Lease claim() throws IOException {");
+    L.add("      reclaimExpired();");
+    L.add("      for (Path p : jobFiles(pending)) {");
+    L.add("        Path target = running.resolve(p.getFileName());");
+    L.add("        try { Files.move(p, target, StandardCopyOption.ATOMIC_MOVE); } catch (NoSuchFileException lost) { continue; }");
+    L.add("        ObjectNode job = readJob(target, stem(target));");
+    L.add("        if (job == null) continue;");
+    L.add("        Lease lease = new Lease(target, job);");
+    L.add("        lease.write();");
+    L.add("        lease.heartbeat = heartbeats.scheduleAtFixedRate(lease::renewQuietly, leaseMs / 3, leaseMs / 3, TimeUnit.MILLISECONDS);");
+    L.add("        return lease;");
+    L.add("      }");
+    L.add("      return null;");
+    L.add("    }");
+    L.add("");
+    L.add("    boolean drained() throws IOException { return jobFiles(pending).isEmpty() && jobFiles(running).isEmpty(); }");
+    L.add("");
+    L.add("    private void reclaimExpired() throws IOException {");
+    L.add("      long now = System.currentTimeMillis();");
+    L.add("      Set<String> seen = new HashSet<>();");
+    L.add("      for (Path job : jobFiles(running)) {");
+    L.add("        String id = stem(job);");
+    L.add("        seen.add(id);");
+    L.add("        Path leaseFile = running.resolve(id + \".lease\");");
+    L.add("        boolean expired;");
+    L.add("        if (Files.exists(leaseFile)) {");
+    L.add("          orphanSince.remove(id);");
+    L.add("          long expiresAt;");
+    L.add("          try { expiresAt = OM.readTree(leaseFile.toFile()).path(\"expiresAt\").asLong(Long.MAX_VALUE); } catch (IOException torn) { continue; }");
+    L.add("          expired = expiresAt < now;");
+    L.add("        } else {");
+    L.add("          // Between a claim's rename and its first lease write the job briefly has no lease.");
+    L.add("          expired = now - orphanSince.computeIfAbsent(id, k -> now) > leaseMs;");
+    L.add("        }");
+    L.add("        if (!expired) continue;");
+    L.add("        Path mine = running.resolve(id + \".reclaim.\" + ProcessHandle.current().pid());");
+    L.add("        try { Files.move(job, mine, StandardCopyOption.ATOMIC_MOVE); } catch (NoSuchFileException lost) { continue; }");
+    L.add("        Files.deleteIfExists(leaseFile);");
+    L.add("        ObjectNode j = readJob(mine, id);");
+    L.add("        orphanSince.remove(id);");
+    L.add("        if (j == null) continue;");
+    L.add("        j.put(\"lastError\", \"lease expired\");");
+    L.add("        requeue(j);");
+    L.add("        Files.deleteIfExists(mine);");
+    L.add("        System.out.println(\"Reclaimed expired lease: \" + id);");
+    L.add("      }");
+    L.add("      orphanSince.keySet().retainAll(seen);");
+    L.add("    }");
+    L.add("");
+    L.add("    // A job file that is not a JSON object would kill every worker that claims it, so it goes straight to");
+    L.add("    // failed/ (its raw text kept next to the error) and the caller moves on. Returns null in that case.");
+    L.add("    private ObjectNode readJob(Path file, String id) throws IOException {");
+    L.add("      byte[] raw = Files.readAllBytes(file);");
+    L.add("      String error;");
+    L.add("      try {");
+    L.add("        JsonNode n = OM.readTree(raw);");
+    L.add("        if (n instanceof ObjectNode) return (ObjectNode) n;");
+    L.add("        error = \"job file is not a JSON object\";");
+    L.add("      } catch (IOException e) {");
+    L.add("        error = \"unreadable job file: \" + trim(String.valueOf(e.getMessage()), 300);");
+    L.add("      }");
+    L.add("      ObjectNode j = OM.createObjectNode();");
+    L.add("      j.put(\"id\", id);");
+    L.add("      j.put(\"lastError\", error);");
+    L.add("      j.put(\"raw\", new String(raw, StandardCharsets.UTF_8));");
+    L.add("      writeAtomically(failed.resolve(id + \".json\"), j);");
+    L.add("      Files.deleteIfExists(file);");
+    L.add("      System.out.println(\"Moved malformed job \" + id + \" to failed/: \" + error);");
+    L.add("      return null;");
+    L.add("    }");
+    L.add("");
+    L.add("    private void requeue(ObjectNode job) throws IOException {");
+    L.add("      int attempts = job.path(\"attempts\").asInt(0) + 1;");
+    L.add("      job.put(\"attempts\", attempts);");
+    L.add("      Path dir = attempts >= MAX_ATTEMPTS ? failed : pending;");
+    L.add("      writeAtomically(dir.resolve(job.path(\"id\").asText() + \".json\"), job);");
+    L.add("    }");
+    L.add("");
+    L.add("    private static List<Path> jobFiles(Path dir) throws IOException {");
+    L.add("      try (var s = Files.list(dir)) {");
+    L.add("        return s.filter(p -> p.getFileName().toString().endsWith(\".json\")).sorted().collect(java.util.stream.Collectors.toList());");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static String stem(Path p) { String n = p.getFileName().toString(); return n.substring(0, n.length() - \".json\".length()); }");
+    L.add("");
+    L.add("    private static void writeAtomically(Path target, JsonNode body) throws IOException {");
+    L.add("      Path tmp = target.resolveSibling(target.getFileName() + \".\" + ProcessHandle.current().pid() + \".tmp\");");
+    L.add("      OM.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), body);");
+    L.add("      Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);");
+    L.add("    }");
+    L.add("");
+    L.add("    final class Lease implements AutoCloseable {");
+    L.add("      final String id;");
+    L.add("      final ObjectNode job;");
+    L.add("      private final Path jobFile, leaseFile;");
+    L.add("      private final String token = UUID.randomUUID().toString();");
+    L.add("      private ScheduledFuture<?> heartbeat;");
+    L.add("      private volatile boolean lost;");
+    L.add("");
+    L.add("      Lease(Path jobFile, ObjectNode job) {");
+    L.add("        this.jobFile = jobFile;");
+    L.add("        this.job = job;");
+    L.add("        this.id = stem(jobFile);");
+    L.add("        this.leaseFile = running.resolve(id + \".lease\");");
+    L.add("      }");
+    L.add("");
+    L.add("      // Checking the token and then writing would let a heartbeat that loses a race with a reclaim overwrite");
+    L.add("      // the next owner's lease. Instead the lease is first taken aside with an atomic rename, which fails if a");
+    L.add("      // reclaim already deleted it, and only a lease that still carries our token (for a job file still in");
+    L.add("      // running/) is replaced. While it is aside no reclaim can start, since a running job without a lease is");
+    L.add("      // only reclaimed after a whole lease period. Returns the aside file, or null once the job is lost.");
+    L.add("      private Path takeAside() throws IOException {");
+    L.add("        if (lost) return null;");
+    L.add("        Path aside = running.resolve(id + \".lease.\" + token);");
+    L.add("        try { Files.move(leaseFile, aside, StandardCopyOption.ATOMIC_MOVE); }");
+    L.add("        catch (NoSuchFileException gone) { return lose(\"its lease was deleted by a reclaim\"); }");
+    L.add("        String owner = \"\";");
+    L.add("        try { owner = OM.readTree(aside.toFile()).path(\"token\").asText(); } catch (IOException ignored) {}");
+    L.add("        if (!token.equals(owner)) {");
+    L.add("          try { Files.move(aside, leaseFile, StandardCopyOption.ATOMIC_MOVE); } catch (IOException ignored) {}");
+    L.add("          return lose(\"another worker holds it now\");");
+    L.add("        }");
+    L.add("        if (!Files.exists(jobFile)) { Files.deleteIfExists(aside); return lose(\"its job file was reclaimed\"); }");
+    L.add("        return aside;");
+    L.add("      }");
+    L.add("");
+    L.add("      private Path lose(String why) {");
+    L.add("        lost = true;");
+    L.add("        if (heartbeat != null && !heartbeat.isCancelled()) System.out.println(\"Lease for \" + id + \" was reclaimed while its heartbeat was live: \" + why);");
+    L.add("        if (heartbeat != null) heartbeat.cancel(false);");
+    L.add("        return null;");
+    L.add("      }");
+    L.add("");
+    L.add("      synchronized void renew() throws IOException {");
+    L.add("        Path aside = takeAside();");
+    L.add("        if (aside == null) return;");
+    L.add("        write();");
+    L.add("        Files.deleteIfExists(aside);");
+    L.add("      }");
+    L.add("");
+    L.add("      private void write() throws IOException {");
+    L.add("        ObjectNode l = OM.createObjectNode();");
+    L.add("        l.put(\"worker\", workerId);");
+    L.add("        l.put(\"token\", token);");
+    L.add("        l.put(\"heartbeatAt\", System.currentTimeMillis());");
+    L.add("        l.put(\"expiresAt\", System.currentTimeMillis() + leaseMs);");
+    L.add("        writeAtomically(leaseFile, l);");
+    L.add("      }");
+    L.add("");
+    L.add("      private void renewQuietly() {");
+    L.add("        try { renew(); } catch (Exception e) { System.out.println(\"Lease heartbeat failed for \" + id + \": \" + e.getMessage()); }");
+    L.add("      }");
+    L.add("");
+    L.add("      synchronized void complete(Path outDir) throws IOException {");
+    L.add("        Path aside = finish();");
+    L.add("        if (aside == null) return;");
+    L.add("        job.put(\"worker\", workerId);");
+    L.add("        job.put(\"outDir\", outDir.toString());");
+    L.add("        job.put(\"completedAt\", OffsetDateTime.now().toString());");
+    L.add("        writeAtomically(done.resolve(id + \".json\"), job);");
+    L.add("        Files.deleteIfExists(jobFile);");
+    L.add("        Files.deleteIfExists(aside);");
+    L.add("      }");
+    L.add("");
+    L.add("      synchronized void fail(Exception e) {");
+    L.add("        try {");
+    L.add("          Path aside = finish();");
+    L.add("          if (aside == null) return;");
+    L.add("          job.put(\"lastError\", String.valueOf(e.getMessage()));");
+    L.add("          requeue(job);");
+    L.add("          Files.deleteIfExists(jobFile);");
+    L.add("          Files.deleteIfExists(aside);");
+    L.add("        } catch (IOException io) {");
+    L.add("          System.out.println(\"Could not requeue \" + id + \": \" + io.getMessage());");
+    L.add("        }");
+    L.add("      }");
+    L.add("");
+    L.add("      // Stops the heartbeat and takes the lease aside for good; null when another worker reclaimed the job.");
+    L.add("      private Path finish() {");
+    L.add("        if (heartbeat != null) heartbeat.cancel(false);");
+    L.add("        Path aside;");
+    L.add("        try { aside = takeAside(); } catch (IOException e) { aside = null; lost = true; }");
+    L.add("        if (aside == null) System.out.println(\"Lease lost for \" + id + \"; result dropped.\");");
+    L.add("        return aside;");
+    L.add("      }");
+    L.add("");
+    L.add("      @Override public void close() { if (heartbeat != null) heartbeat.cancel(false); }");
     L.add("    }");
-    L.add("    return new ArrayList<>(out);");
     L.add("  }");
     L.add("");
-    L.add("  private static Path download(APIRequestContext req, String url, Path mediaDir, int idx) throws IOException {");
-    L.add("    APIResponse resp = req.get(url, RequestOptions.create().setMaxRedirects(5));");
-    L.add("    if (resp == null) return null;");
-    L.add("    int st = resp.status();");
-    L.add("    if (st < 200 || st >= 300) throw new IOException(\"HTTP \" + st);");
-    L.add("    byte[] body = resp.body();");
-    L.add("    if (body == null || body.length == 0) return null;");
-    L.add("    String ct = \"\";");
-    L.add("    try { ct = resp.headers().getOrDefault(\"content-type\", \"\"); } catch (Exception ignored) {}");
-    L.add("    String ext = ext(ct, url);");
-    L.add("    Path out = mediaDir.resolve(String.format(\"media_%03d%s\", idx, ext));");
-    L.add("    Files.write(out, body);");
-    L.add("    return out;");
+    L.add("  // Large outerHTML stays out of the manifest: both the selection and the result point at one sidecar.");
+    L.add("  private static void putOuterHtml(ArtifactSink sink, CaptureOptions opts, int idx, ObjectNode sel, ObjectNode r, String html) throws IOException {");
+    L.add("    ObjectNode ref = spill(sink, opts, String.format(\"html/el_%03d.html\", idx), html);");
+    L.add("    if (ref == null) { r.put(\"outerHtml\", html); return; }");
+    L.add("    r.put(\"outerHtml\", \"\");");
+    L.add("    r.set(\"outerHtmlRef\", ref);");
+    L.add("    sel.put(\"outerHtml\", \"\");");
+    L.add("    sel.remove(\"outerHtmlOmitted\");");
+    L.add("    sel.set(\"outerHtmlRef\", ref.deepCopy());");
     L.add("  }");
     L.add("");
-    L.add("  private static String ext(String ct, String url) {");
-    L.add("    String t = (ct == null ? \"\" : ct.toLowerCase(Locale.ROOT));");
-    L.add("    if (t.contains(\"image/png\")) return \".png\";");
-    L.add("    if (t.contains(\"image/jpeg\") || t.contains(\"image/jpg\")) return \".jpg\";");
-    L.add("    if (t.contains(\"image/webp\")) return \".webp\";");
-    L.add("    if (t.contains(\"image/gif\")) return \".gif\";");
-    L.add("    if (t.contains(\"video/mp4\")) return \".mp4\";");
-    L.add("    if (t.contains(\"video/webm\")) return \".webm\";");
-    L.add("    if (t.contains(\"application/pdf\")) return \".pdf\";");
-    L.add("    try {");
-    L.add("      String p = URI.create(url).getPath();");
-    L.add("      int dot = p.lastIndexOf('.');");
-    L.add("      if (dot >= 0 && dot > p.lastIndexOf('/')) {");
-    L.add("        String e = p.substring(dot);");
-    L.add("        if (e.length() <= 6) return e;");
-    L.add("      }");
-    L.add("    } catch (Exception ignored) {}");
-    L.add("    return \".bin\";");
+    L.add("  // Writes content to a sidecar when it exceeds --spill-bytes; returns {path, length, sha256[, encoding]} or null.");
+    L.add("  private static ObjectNode spill(ArtifactSink sink, CaptureOptions opts, String name, String content) throws IOException {");
+    L.add("    byte[] raw = String.valueOf(content).getBytes(StandardCharsets.UTF_8);");
+    L.add("    if (raw.length <= opts.spillBytes) return null;");
+    L.add("    ObjectNode ref = OM.createObjectNode();");
+    L.add("    boolean gz = opts.spillGzip || opts.compress;");
+    L.add("    ref.put(\"path\", gz ? sink.put(name + \".gz\", gzip(raw)) : sink.put(name, raw));");
+    L.add("    ref.put(\"length\", raw.length);");
+    L.add("    ref.put(\"sha256\", sha256Hex(raw));");
+    L.add("    if (gz) ref.put(\"encoding\", \"gzip\");");
+    L.add("    return ref;");
     L.add("  }");
     L.add("");
-    L.add("  private static String readResourceText(String path) throws IOException {");
-    L.add("    try (InputStream is = AimPickerProgram.class.getResourceAsStream(path)) {");
-    L.add("      if (is == null) throw new FileNotFoundException(\"Missing resource: \" + path);");
-    L.add("      return new String(is.readAllBytes(), StandardCharsets.UTF_8);");
+    L.add("  static byte[] gzip(byte[] raw) throws IOException {");
+    L.add("    ByteArrayOutputStream bo = new ByteArrayOutputStream(raw.length / 4 + 64);");
+    L.add("    try (GZIPOutputStream gz = new GZIPOutputStream(bo)) { gz.write(raw); }");
+    L.add("    return bo.toByteArray();");
+    L.add("  }");
+    L.add("");
+    L.add("  static byte[] gunzip(byte[] gz) throws IOException {");
+    L.add("    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gz), 64 * 1024)) { return in.readAllBytes(); }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Reads an artifact of a capture (loose or bundled) whether it was stored plain or, with --compress, as");
+    L.add("  // <name>.gz. Returns the decoded bytes, or null when the capture has neither.");
+    L.add("  static byte[] readArtifact(Path captureDir, String name) throws IOException {");
+    L.add("    Path bundle = captureDir.resolve(BUNDLE_FILE);");
+    L.add("    if (Files.exists(bundle)) {");
+    L.add("      try (BundleReader b = new BundleReader(bundle)) {");
+    L.add("        byte[] plain = b.bytes(name);");
+    L.add("        if (plain != null) return plain;");
+    L.add("        byte[] gz = b.bytes(name + \".gz\");");
+    L.add("        return gz == null ? null : gunzip(gz);");
+    L.add("      }");
     L.add("    }");
+    L.add("    Path plain = captureDir.resolve(name), gz = captureDir.resolve(name + \".gz\");");
+    L.add("    if (Files.exists(plain)) return Files.readAllBytes(plain);");
+    L.add("    return Files.exists(gz) ? gunzip(Files.readAllBytes(gz)) : null;");
     L.add("  }");
     L.add("");
-    L.add("}");
-
-    return String.join("\n", L);
-  }
-
-  private static String viewerTemplateHtml() {
-    return String.join("\n",
-      "<!doctype html>",
-      "<html>",
-      "<head>",
-      "  <meta charset=\"utf-8\">",
-      "  <title>Aim Capture Viewer</title>",
-      "  <meta name=\"viewport\" content=\"width=device-width,initial-scale=1\">",
-      "  <style>",
-      "    body{font-family:system-ui,Segoe UI,Roboto,Arial;margin:0;background:#0b0c10;color:#e8e8ea}",
-      "    header{padding:14px 16px;border-bottom:1px solid rgba(255,255,255,.08);position:sticky;top:0;background:#0b0c10}",
-      "    .row{display:flex;gap:12px;align-items:center;flex-wrap:wrap}",
-      "    input{padding:8px 10px;border-radius:10px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff;min-width:280px}",
-      "    a{color:#7dd3fc}",
-      "    main{padding:16px;display:grid;grid-template-columns:repeat(auto-fit,minmax(320px,1fr));gap:12px}",
-      "    .card{border:1px solid rgba(255,255,255,.12);border-radius:14px;background:rgba(255,255,255,.04);padding:12px}",
-      "    .k{opacity:.7;font-size:12px}",
-      "    .v{word-break:break-word}",
-      "    img{max-width:100%;border-radius:12px;border:1px solid rgba(255,255,255,.12)}",
-      "    video{width:100%;border-radius:12px;border:1px solid rgba(255,255,255,.12)}",
-      "    pre{white-space:pre-wrap;word-break:break-word;background:rgba(0,0,0,.35);padding:10px;border-radius:12px;border:1px solid rgba(255,255,255,.12);max-height:240px;overflow:auto}",
-      "    .badge{display:inline-block;padding:2px 8px;border-radius:999px;border:1px solid rgba(255,255,255,.16);background:rgba(255,255,255,.08);font-size:12px}",
-      "  </style>",
-      "</head>",
-      "<body>",
+    L.add("  private static JsonNode text(String s) { return TextNode.valueOf(s); }");
+    L.add("");
+    L.add("  // The picker's single channel to Java. window.aimRpc(batch) only enqueues id-tagged requests and returns;");
+    L.add("  // reads run on a small pool, writes on one serial thread, and handlers that touch the page run on the");
+    L.add("  // thread that owns Playwright inside runUntil(). Results, progress and pushed events (\"profilesChanged\"");
+    L.add("  // when anything under profiles/ changes) go back in batches through window.__aimRpcDeliver.");
+    L.add("  static class PickerRpc implements AutoCloseable {");
+    L.add("    interface Handler { JsonNode handle(JsonNode params, Consumer<String> progress) throws Exception; }");
+    L.add("    private enum Lane { READ, WRITE, PAGE }");
+    L.add("    private static final String DELIVER_JS = \"m => window.__aimRpcDeliver && window.__aimRpcDeliver(JSON.parse(m))\";");
+    L.add("");
+    L.add("    private final Page page;");
+    L.add("    private final Map<String, Handler> handlers = new HashMap<>();");
+    L.add("    private final Map<String, Lane> lanes = new HashMap<>();");
+    L.add("    private final ExecutorService readers = Executors.newFixedThreadPool(2, daemonThreads(\"aim-rpc-read\"));");
+    L.add("    private final ExecutorService writer = Executors.newSingleThreadExecutor(daemonThreads(\"aim-rpc-write\"));");
+    L.add("    private final ConcurrentLinkedQueue<ObjectNode> outbox = new ConcurrentLinkedQueue<>();");
+    L.add("    private final ConcurrentLinkedQueue<ObjectNode> pageCalls = new ConcurrentLinkedQueue<>();");
+    L.add("    private final java.util.concurrent.atomic.AtomicReference<String> profilesChanged = new java.util.concurrent.atomic.AtomicReference<>();");
+    L.add("    private WatchService watcher;");
+    L.add("    private boolean pumping;");
+    L.add("");
+    L.add("    PickerRpc(Page page) {");
+    L.add("      this.page = page;");
+    L.add("      page.exposeFunction(\"aimRpc\", (Object[] a) -> {");
+    L.add("        try {");
+    L.add("          JsonNode batch = OM.readTree((a != null && a.length > 0) ? String.valueOf(a[0]) : \"[]\");");
+    L.add("          if (!batch.isArray()) batch = OM.createArrayNode().add(batch);");
+    L.add("          for (JsonNode call : batch) dispatch((ObjectNode) call);");
+    L.add("          return \"queued:\" + batch.size();");
+    L.add("        } catch (Exception e) {");
+    L.add("          return \"ERR: \" + e;");
+    L.add("        }");
+    L.add("      });");
+    L.add("      watchProfiles();");
+    L.add("    }");
+    L.add("");
+    L.add("    void read(String method, Handler h) { register(method, Lane.READ, h); }");
+    L.add("    void write(String method, Handler h) { register(method, Lane.WRITE, h); }");
+    L.add("    void onPage(String method, Handler h) { register(method, Lane.PAGE, h); }");
+    L.add("    private void register(String method, Lane lane, Handler h) { handlers.put(method, h); lanes.put(method, lane); }");
+    L.add("");
+    L.add("    private void dispatch(ObjectNode call) {");
+    L.add("      Lane lane = lanes.get(call.path(\"method\").asText(\"\"));");
+    L.add("      if (lane == null) { outbox.add(reply(call, null, \"unknown method: \" + call.path(\"method\").asText(\"\"))); return; }");
+    L.add("      if (lane == Lane.PAGE) { pageCalls.add(call); return; }");
+    L.add("      (lane == Lane.WRITE ? writer : readers).execute(() -> run(call, s -> outbox.add(progress(call, s))));");
+    L.add("    }");
+    L.add("");
+    L.add("    private void run(ObjectNode call, Consumer<String> progress) {");
+    L.add("      try {");
+    L.add("        JsonNode params = call.path(\"params\");");
+    L.add("        outbox.add(reply(call, handlers.get(call.path(\"method\").asText()).handle(params.isObject() ? params : OM.createObjectNode(), progress), null));");
+    L.add("      } catch (Exception e) {");
+    L.add("        outbox.add(reply(call, null, String.valueOf(e)));");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static ObjectNode reply(JsonNode call, JsonNode result, String error) {");
+    L.add("      ObjectNode r = OM.createObjectNode();");
+    L.add("      r.set(\"id\", call.path(\"id\"));");
+    L.add("      if (error != null) r.put(\"error\", error); else r.set(\"result\", result == null ? NullNode.getInstance() : result);");
+    L.add("      return r;");
+    L.add("    }");
+    L.add("");
+    L.add("    private static ObjectNode progress(JsonNode call, String message) {");
+    L.add("      ObjectNode r = OM.createObjectNode();");
+    L.add("      r.set(\"id\", call.path(\"id\"));");
+    L.add("      r.put(\"progress\", message);");
+    L.add("      return r;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Pumps the channel on the Playwright thread until the page-side condition holds, running idle (queued");
+    L.add("    // export jobs) between polls. Navigations only interrupt a poll; a closed page ends the loop with the");
+    L.add("    // PlaywrightException.");
+    L.add("    void runUntil(String doneExpression, Runnable idle) {");
+    L.add("      while (!Boolean.TRUE.equals(evaluateAcrossNavigation(doneExpression))) {");
+    L.add("        pump();");
+    L.add("        idle.run();");
+    L.add("        page.waitForTimeout(40);");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    // One pass over queued page calls, pushed events and the outbox. Long work on the Playwright thread");
+    L.add("    // calls this between steps; a page call that is itself pumping is not re-entered.");
+    L.add("    void pump() {");
+    L.add("      if (pumping) return;");
+    L.add("      pumping = true;");
+    L.add("      try {");
+    L.add("        ObjectNode call;");
+    L.add("        while ((call = pageCalls.poll()) != null) {");
+    L.add("          ObjectNode c = call;");
+    L.add("          run(c, s -> { outbox.add(progress(c, s)); flush(); });");
+    L.add("        }");
+    L.add("        String changed = profilesChanged.getAndSet(null);");
+    L.add("        if (changed != null) emit(\"profilesChanged\", OM.createObjectNode().put(\"path\", changed));");
+    L.add("        flush();");
+    L.add("      } finally {");
+    L.add("        pumping = false;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    void emit(String event, JsonNode data) {");
+    L.add("      ObjectNode ev = OM.createObjectNode();");
+    L.add("      ev.put(\"event\", event);");
+    L.add("      ev.set(\"data\", data);");
+    L.add("      outbox.add(ev);");
+    L.add("    }");
+    L.add("");
+    L.add("    private void flush() {");
+    L.add("      if (outbox.isEmpty()) return;");
+    L.add("      ArrayNode batch = OM.createArrayNode();");
+    L.add("      ObjectNode m;");
+    L.add("      while ((m = outbox.poll()) != null) batch.add(m);");
+    L.add("      try { page.evaluate(DELIVER_JS, OM.writeValueAsString(batch)); }");
+    L.add("      catch (IOException e) { throw new UncheckedIOException(e); }");
+    L.add("      catch (PlaywrightException e) { if (page.isClosed()) throw e; }");
+    L.add("    }");
+    L.add("");
+    L.add("    private Object evaluateAcrossNavigation(String expression) {");
+    L.add("      try { return page.evaluate(expression); }");
+    L.add("      catch (PlaywrightException e) { if (page.isClosed()) throw e; return null; }");
+    L.add("    }");
+    L.add("");
+    L.add("    private void watchProfiles() {");
+    L.add("      try {");
+    L.add("        Path root = Paths.get(\"profiles\");");
+    L.add("        Files.createDirectories(root.resolve(\"selection_profiles\"));");
+    L.add("        watcher = FileSystems.getDefault().newWatchService();");
+    L.add("        WatchEvent.Kind<?>[] kinds = { StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE };");
+    L.add("        root.register(watcher, kinds);");
+    L.add("        root.resolve(\"selection_profiles\").register(watcher, kinds);");
+    L.add("        Thread t = new Thread(() -> {");
+    L.add("          try {");
+    L.add("            while (true) {");
+    L.add("              WatchKey key = watcher.take();");
+    L.add("              for (WatchEvent<?> ev : key.pollEvents()) {");
+    L.add("                String name = String.valueOf(ev.context());");
+    L.add("                Path dir = (Path) key.watchable();");
+    L.add("                boolean selection = dir.endsWith(\"selection_profiles\") && name.endsWith(\".json\");");
+    L.add("                if (!selection && !name.endsWith(\".properties\") && !name.equals(\"url_profiles.json\")) continue;");
+    L.add("                profilesChanged.set(dir.resolve(name).toString().replace('\\\\', '/'));");
+    L.add("              }");
+    L.add("              if (!key.reset()) break;");
+    L.add("            }");
+    L.add("          } catch (InterruptedException | ClosedWatchServiceException ignored) {}");
+    L.add("        }, \"aim-profiles-watch\");");
+    L.add("        t.setDaemon(true);");
+    L.add("        t.start();");
+    L.add("      } catch (IOException e) {");
+    L.add("        System.out.println(\"Profile watch unavailable: \" + e.getMessage());");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static ThreadFactory daemonThreads(String name) {");
+    L.add("      return r -> { Thread t = new Thread(r, name); t.setDaemon(true); return t; };");
+    L.add("    }");
+    L.add("");
+    L.add("    @Override public void close() {");
+    L.add("      readers.shutdownNow();");
+    L.add("      writer.shutdown();");
+    L.add("      try { writer.awaitTermination(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}");
+    L.add("      try { if (watcher != null) watcher.close(); } catch (IOException ignored) {}");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Exports started from the picker panel. They queue here and run one at a time on the Playwright thread");
+    L.add("  // whenever runUntil() is idle, each on a page of its own opened at the picked page's URL in the same");
+    L.add("  // context, so the picker page is never scrolled or screenshotted under the user. Between items a job pumps");
+    L.add("  // the RPC channel: the panel stays responsive and can queue or cancel further exports while one runs.");
+    L.add("  // State, done/total, ETA and errors are pushed as \"exportProgress\" events. Job n writes to <outDir>_job<n>.");
+    L.add("  static class ExportJobs {");
+    L.add("    static final class Job {");
+    L.add("      final int id;");
+    L.add("      final ArrayNode selections;");
+    L.add("      final String label, url;");
+    L.add("      final Path outDir;");
+    L.add("      volatile String state = \"queued\", message = \"\";");
+    L.add("      volatile boolean cancel;");
+    L.add("      volatile int done, total, errors;");
+    L.add("      volatile long startedAt, finishedAt;");
+    L.add("      Job(int id, ArrayNode selections, String label, String url, Path outDir) { this.id = id; this.selections = selections; this.label = label; this.url = url; this.outDir = outDir; this.total = selections.size(); }");
+    L.add("      boolean live() { return \"queued\".equals(state) || \"running\".equals(state); }");
+    L.add("    }");
+    L.add("");
+    L.add("    private final BrowserContext ctx;");
+    L.add("    private final Page picker;");
+    L.add("    private final PickerRpc rpc;");
+    L.add("    private final Path baseDir;");
+    L.add("    private final String viewerTemplate;");
+    L.add("    private final boolean video;");
+    L.add("    private final CaptureOptions opts;");
+    L.add("    private final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<>();");
+    L.add("    private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();");
+    L.add("    private final java.util.concurrent.atomic.AtomicInteger ids = new java.util.concurrent.atomic.AtomicInteger();");
+    L.add("");
+    L.add("    ExportJobs(BrowserContext ctx, Page picker, PickerRpc rpc, Path baseDir, String viewerTemplate, boolean video, CaptureOptions opts) {");
+    L.add("      this.ctx = ctx;");
+    L.add("      this.picker = picker;");
+    L.add("      this.rpc = rpc;");
+    L.add("      this.baseDir = baseDir;");
+    L.add("      this.viewerTemplate = viewerTemplate;");
+    L.add("      this.video = video;");
+    L.add("      this.opts = opts;");
+    L.add("    }");
+    L.add("");
+    L.add("    ObjectNode submit(ArrayNode selections, String label, String url) {");
+    L.add("      int id = ids.incrementAndGet();");
+    L.add("      Job job = new Job(id, selections.deepCopy(), label, url, baseDir.resolveSibling(baseDir.getFileName() + \"_job\" + id));");
+    L.add("      jobs.put(id, job);");
+    L.add("      queue.add(job);");
+    L.add("      publish(job);");
+    L.add("      return status(job);");
+    L.add("    }");
+    L.add("");
+    L.add("    boolean cancel(int id) {");
+    L.add("      Job job = jobs.get(id);");
+    L.add("      if (job == null || !job.live()) return false;");
+    L.add("      job.cancel = true;");
+    L.add("      if (queue.remove(job)) finish(job, \"canceled\", \"\");");
+    L.add("      return true;");
+    L.add("    }");
+    L.add("");
+    L.add("    int cancelQueued() {");
+    L.add("      int n = 0;");
+    L.add("      Job job;");
+    L.add("      while ((job = queue.poll()) != null) { finish(job, \"canceled\", \"\"); n++; }");
+    L.add("      return n;");
+    L.add("    }");
+    L.add("");
+    L.add("    ArrayNode list() {");
+    L.add("      ArrayNode out = OM.createArrayNode();");
+    L.add("      for (Job job : jobs.values()) out.add(status(job));");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("");
+    L.add("    void runPending() {");
+    L.add("      Job job;");
+    L.add("      while ((job = queue.poll()) != null) run(job);");
+    L.add("    }");
+    L.add("");
+    L.add("    private void run(Job job) {");
+    L.add("      job.state = \"running\";");
+    L.add("      job.startedAt = System.currentTimeMillis();");
+    L.add("      publish(job);");
+    L.add("      System.out.println(\"Export #\" + job.id + \": \" + job.total + \" item(s) from \" + job.url + \" -> \" + job.outDir);");
+    L.add("      Page page = null;");
+    L.add("      try {");
+    L.add("        Files.createDirectories(job.outDir);");
+    L.add("        page = ctx.newPage();");
+    L.add("        if (opts.waitReady) ReadinessDetector.attach(page);");
+    L.add("        navigateWithRetry(page, job.url);");
+    L.add("        exportInstall(page, ctx, job.outDir, viewerTemplate, job.selections, job.label, video, opts, (done, total, last) -> {");
+    L.add("          job.done = done;");
+    L.add("          if (last != null && last.has(\"error\")) { job.errors++; job.message = trim(last.path(\"error\").asText(\"\"), 200); }");
+    L.add("          publish(job);");
+    L.add("          rpc.pump();");
+    L.add("          if (job.cancel) throw new CancellationException();");
+    L.add("        });");
+    L.add("        finish(job, \"done\", job.errors > 0 ? job.errors + \" item(s) failed\" : \"\");");
+    L.add("        openFolder(job.outDir);");
+    L.add("      } catch (CancellationException e) {");
+    L.add("        finish(job, \"canceled\", \"after \" + job.done + \" of \" + job.total);");
+    L.add("      } catch (Exception e) {");
+    L.add("        finish(job, \"failed\", String.valueOf(e.getMessage()));");
+    L.add("      } finally {");
+    L.add("        if (page != null) try { page.close(); } catch (Exception ignored) {}");
+    L.add("      }");
+    L.add("      new MemoryWatchdog(opts).checkInteractive(ctx, picker);");
+    L.add("      rpc.pump();");
+    L.add("    }");
+    L.add("");
+    L.add("    private void finish(Job job, String state, String message) {");
+    L.add("      job.state = state;");
+    L.add("      job.message = message;");
+    L.add("      job.finishedAt = System.currentTimeMillis();");
+    L.add("      publish(job);");
+    L.add("      System.out.println(\"Export #\" + job.id + \": \" + state + (message.isEmpty() ? \"\" : \" (\" + message + \")\"));");
+    L.add("    }");
+    L.add("");
+    L.add("    private void publish(Job job) { rpc.emit(\"exportProgress\", status(job)); }");
+    L.add("");
+    L.add("    private ObjectNode status(Job job) {");
+    L.add("      ObjectNode o = OM.createObjectNode();");
+    L.add("      o.put(\"id\", job.id);");
+    L.add("      o.put(\"jobId\", job.id);");
+    L.add("      o.put(\"state\", job.state);");
+    L.add("      o.put(\"label\", job.label);");
+    L.add("      o.put(\"done\", job.done);");
+    L.add("      o.put(\"total\", job.total);");
+    L.add("      o.put(\"errors\", job.errors);");
+    L.add("      o.put(\"message\", job.message);");
+    L.add("      o.put(\"outDir\", job.outDir.toString());");
+    L.add("      if (job.startedAt > 0) {");
+    L.add("        long elapsed = (job.finishedAt > 0 ? job.finishedAt : System.currentTimeMillis()) - job.startedAt;");
+    L.add("        o.put(\"elapsedMs\", elapsed);");
+    L.add("        o.put(\"etaMs\", \"running\".equals(job.state) && job.done > 0 ? elapsed * (job.total - job.done) / job.done : -1);");
+    L.add("      }");
+    L.add("      return o;");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // --record-har <dir> / --replay-har <dir>: one HAR per start URL (<dir>/<host>_<hash>.har, bodies embedded).");
+    L.add("  // Page traffic goes through BrowserContext.routeFromHAR: update mode while recording, abort-on-miss while");
+    L.add("  // replaying so a replay never touches the network. download() fetches outside the browser, which bypasses");
+    L.add("  // routing, so media is served from the same HAR on replay and appended to it once the context has closed");
+    L.add("  // (and Playwright has written the file) on record.");
+    L.add("  static class HarSession {");
+    L.add("    private static final Map<BrowserContext, HarSession> BY_CONTEXT = Collections.synchronizedMap(new IdentityHashMap<>());");
+    L.add("    final Path har;");
+    L.add("    final boolean replay;");
+    L.add("    private final Map<String, ObjectNode> recorded = new LinkedHashMap<>();");
+    L.add("    private Map<String, JsonNode> entries;");
+    L.add("");
+    L.add("    private HarSession(Path har, boolean replay) { this.har = har; this.replay = replay; }");
+    L.add("");
+    L.add("    static HarSession attach(BrowserContext ctx, String url, CaptureOptions opts) throws IOException {");
+    L.add("      if (opts.harDir == null) return null;");
+    L.add("      Path har = opts.harDir.resolve(harName(url));");
+    L.add("      if (opts.harReplay && !Files.exists(har)) throw new FileNotFoundException(\"No recorded HAR for \" + url + \": \" + har);");
+    L.add("      Files.createDirectories(opts.harDir);");
+    L.add("      BrowserContext.RouteFromHAROptions o = new BrowserContext.RouteFromHAROptions();");
+    L.add("      if (opts.harReplay) o.setNotFound(HarNotFound.ABORT);");
+    L.add("      else o.setUpdate(true).setUpdateContent(RouteFromHarUpdateContentPolicy.EMBED).setUpdateMode(HarMode.FULL);");
+    L.add("      ctx.routeFromHAR(har, o);");
+    L.add("      HarSession s = new HarSession(har, opts.harReplay);");
+    L.add("      BY_CONTEXT.put(ctx, s);");
+    L.add("      System.out.println((opts.harReplay ? \"Replay:   \" : \"Record:   \") + har);");
+    L.add("      return s;");
+    L.add("    }");
+    L.add("");
+    L.add("    static HarSession of(BrowserContext ctx) { return BY_CONTEXT.get(ctx); }");
+    L.add("");
+    L.add("    static String harName(String url) {");
+    L.add("      String host = \"page\";");
+    L.add("      try { host = String.valueOf(URI.create(url).getHost()).replaceAll(\"[^A-Za-z0-9.-]\", \"_\"); } catch (Exception ignored) {}");
+    L.add("      return host + \"_\" + sha256Hex(url).substring(0, 12) + \".har\";");
+    L.add("    }");
+    L.add("");
+    L.add("    synchronized JsonNode entry(String url) throws IOException {");
+    L.add("      if (entries == null) {");
+    L.add("        entries = new HashMap<>();");
+    L.add("        for (JsonNode e : OM.readTree(har.toFile()).path(\"log\").path(\"entries\")) {");
+    L.add("          int st = e.path(\"response\").path(\"status\").asInt();");
+    L.add("          if (\"GET\".equalsIgnoreCase(e.path(\"request\").path(\"method\").asText()) && st >= 200 && st < 300) entries.put(e.path(\"request\").path(\"url\").asText(), e);");
+    L.add("        }");
+    L.add("      }");
+    L.add("      return entries.get(url);");
+    L.add("    }");
+    L.add("");
+    L.add("    byte[] body(JsonNode e) throws IOException {");
+    L.add("      JsonNode c = e.path(\"response\").path(\"content\");");
+    L.add("      if (c.has(\"_file\")) return Files.readAllBytes(har.resolveSibling(c.path(\"_file\").asText()));");
+    L.add("      String text = c.path(\"text\").asText(\"\");");
+    L.add("      return \"base64\".equals(c.path(\"encoding\").asText(\"\")) ? Base64.getDecoder().decode(text) : text.getBytes(StandardCharsets.UTF_8);");
+    L.add("    }");
+    L.add("");
+    L.add("    synchronized void remember(String url, int status, String contentType, byte[] body) {");
+    L.add("      ObjectNode e = OM.createObjectNode();");
+    L.add("      e.put(\"startedDateTime\", OffsetDateTime.now().toString());");
+    L.add("      e.put(\"time\", 0);");
+    L.add("      ObjectNode req = e.putObject(\"request\");");
+    L.add("      req.put(\"method\", \"GET\").put(\"url\", url).put(\"httpVersion\", \"HTTP/1.1\").put(\"headersSize\", -1).put(\"bodySize\", 0);");
+    L.add("      req.putArray(\"cookies\"); req.putArray(\"headers\"); req.putArray(\"queryString\");");
+    L.add("      ObjectNode resp = e.putObject(\"response\");");
+    L.add("      resp.put(\"status\", status).put(\"statusText\", \"\").put(\"httpVersion\", \"HTTP/1.1\").put(\"redirectURL\", \"\").put(\"headersSize\", -1).put(\"bodySize\", body.length);");
+    L.add("      resp.putArray(\"cookies\");");
+    L.add("      resp.putArray(\"headers\").addObject().put(\"name\", \"content-type\").put(\"value\", contentType);");
+    L.add("      resp.putObject(\"content\").put(\"size\", body.length).put(\"mimeType\", contentType).put(\"text\", Base64.getEncoder().encodeToString(body)).put(\"encoding\", \"base64\");");
+    L.add("      e.putObject(\"cache\");");
+    L.add("      e.putObject(\"timings\").put(\"send\", 0).put(\"wait\", 0).put(\"receive\", 0);");
+    L.add("      recorded.put(url, e);");
+    L.add("    }");
+    L.add("");
+    L.add("    // Call after the context is closed: appends downloads the page itself never requested.");
+    L.add("    static void finish(BrowserContext ctx) {");
+    L.add("      HarSession s = BY_CONTEXT.remove(ctx);");
+    L.add("      if (s == null || s.replay || s.recorded.isEmpty() || !Files.exists(s.har)) return;");
+    L.add("      try {");
+    L.add("        ObjectNode root = (ObjectNode) OM.readTree(s.har.toFile());");
+    L.add("        ArrayNode list = (ArrayNode) root.path(\"log\").path(\"entries\");");
+    L.add("        Set<String> have = new HashSet<>();");
+    L.add("        for (JsonNode e : list) have.add(e.path(\"request\").path(\"url\").asText());");
+    L.add("        int added = 0;");
+    L.add("        for (Map.Entry<String, ObjectNode> e : s.recorded.entrySet()) if (!have.contains(e.getKey())) { list.add(e.getValue()); added++; }");
+    L.add("        if (added == 0) return;");
+    L.add("        Path tmp = s.har.resolveSibling(s.har.getFileName() + \".tmp\");");
+    L.add("        OM.writeValue(tmp.toFile(), root);");
+    L.add("        Files.move(tmp, s.har, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);");
+    L.add("      } catch (Exception e) {");
+    L.add("        System.out.println(\"Could not add downloads to \" + s.har + \": \" + e.getMessage());");
+    L.add("      }");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Additive-increase / multiplicative-decrease limit on in-flight captures. After each window of completions");
+    L.add("  // (at least max(3, limit) or 15 s) it halves the limit when the error/timeout rate, the p95 navigate or");
+    L.add("  // export latency against its running baseline, or MemAvailable says the host or site is struggling, and");
+    L.add("  // adds one when the window actually used the whole limit and everything looked healthy. Every decision is");
+    L.add("  // appended to an NDJSON log.");
+    L.add("  static class AimdController {");
+    L.add("    static final double ERROR_RATE_MAX = 0.10, TIMEOUT_RATE_MAX = 0.05, LATENCY_FACTOR = 2.0, DECREASE = 0.5;");
+    L.add("    final Path log;");
+    L.add("    private final int min, max;");
+    L.add("    private final long minFreeMb;");
+    L.add("    private double limit;");
+    L.add("    private int inFlight, peak, samples, errors, timeouts, increases, decreases;");
+    L.add("    private final List<Long> navMs = new ArrayList<>(), exportMs = new ArrayList<>();");
+    L.add("    private double navBaseline, exportBaseline;");
+    L.add("    private long windowStart = System.currentTimeMillis();");
+    L.add("");
+    L.add("    AimdController(int min, int max, long minFreeMb, Path log) {");
+    L.add("      this.min = Math.max(1, min);");
+    L.add("      this.max = Math.max(this.min, max);");
+    L.add("      this.minFreeMb = minFreeMb;");
+    L.add("      this.limit = this.min;");
+    L.add("      this.log = log;");
+    L.add("    }");
+    L.add("");
+    L.add("    synchronized void acquire() throws InterruptedException {");
+    L.add("      while (inFlight >= (int) Math.floor(limit)) wait();");
+    L.add("      inFlight++;");
+    L.add("      peak = Math.max(peak, inFlight);");
+    L.add("    }");
+    L.add("");
+    L.add("    synchronized void release(JsonNode timings, long totalMs, Throwable error) {");
+    L.add("      inFlight--;");
+    L.add("      samples++;");
+    L.add("      if (error != null) {");
+    L.add("        if (isTimeout(error)) timeouts++; else errors++;");
+    L.add("      }");
+    L.add("      if (timings != null) {");
+    L.add("        navMs.add(timings.path(\"navigateMs\").asLong(totalMs));");
+    L.add("        exportMs.add(timings.path(\"exportMs\").asLong(0));");
+    L.add("      }");
+    L.add("      if (samples >= Math.max(3, (int) Math.floor(limit)) || System.currentTimeMillis() - windowStart > 15000) decide();");
+    L.add("      notifyAll();");
+    L.add("    }");
+    L.add("");
+    L.add("    private void decide() {");
+    L.add("      double errorRate = (double) errors / samples, timeoutRate = (double) timeouts / samples;");
+    L.add("      long navP95 = p95(navMs), exportP95 = p95(exportMs);");
+    L.add("      long freeMb = availableMemoryMb();");
+    L.add("      double prev = limit;");
+    L.add("      String decision, reason;");
+    L.add("      if (timeoutRate > TIMEOUT_RATE_MAX) { decision = \"decrease\"; reason = \"timeouts\"; }");
+    L.add("      else if (errorRate > ERROR_RATE_MAX) { decision = \"decrease\"; reason = \"errors\"; }");
+    L.add("      else if (freeMb >= 0 && freeMb < minFreeMb) { decision = \"decrease\"; reason = \"memory\"; }");
+    L.add("      else if (navBaseline > 0 && navP95 > LATENCY_FACTOR * navBaseline) { decision = \"decrease\"; reason = \"navigate p95\"; }");
+    L.add("      else if (exportBaseline > 0 && exportP95 > LATENCY_FACTOR * exportBaseline) { decision = \"decrease\"; reason = \"export p95\"; }");
+    L.add("      else if (peak >= (int) Math.floor(limit) && limit < max) { decision = \"increase\"; reason = \"healthy and saturated\"; }");
+    L.add("      else { decision = \"hold\"; reason = peak < (int) Math.floor(limit) ? \"limit not reached\" : \"at max\"; }");
+    L.add("");
+    L.add("      // Already at the floor there is nothing to shed; let the baselines learn the site's new normal instead.");
+    L.add("      if (decision.equals(\"decrease\") && limit <= min) { decision = \"hold\"; reason = \"at min (\" + reason + \")\"; }");
+    L.add("      if (decision.equals(\"decrease\")) { limit = Math.max(min, Math.floor(limit * DECREASE)); decreases++; }");
+    L.add("      else {");
+    L.add("        if (decision.equals(\"increase\")) { limit = Math.min(max, limit + 1); increases++; }");
+    L.add("        // Baselines only learn from healthy windows, slowly, so a degrading site cannot drag them up.");
+    L.add("        if (navP95 > 0) navBaseline = navBaseline == 0 ? navP95 : 0.8 * navBaseline + 0.2 * navP95;");
+    L.add("        if (exportP95 > 0) exportBaseline = exportBaseline == 0 ? exportP95 : 0.8 * exportBaseline + 0.2 * exportP95;");
+    L.add("      }");
+    L.add("");
+    L.add("      ObjectNode d = OM.createObjectNode();");
+    L.add("      d.put(\"at\", OffsetDateTime.now().toString());");
+    L.add("      d.put(\"decision\", decision);");
+    L.add("      d.put(\"reason\", reason);");
+    L.add("      d.put(\"from\", (int) prev);");
+    L.add("      d.put(\"to\", (int) limit);");
+    L.add("      d.put(\"samples\", samples);");
+    L.add("      d.put(\"peakInFlight\", peak);");
+    L.add("      d.put(\"errorRate\", Math.round(errorRate * 1000) / 1000.0);");
+    L.add("      d.put(\"timeoutRate\", Math.round(timeoutRate * 1000) / 1000.0);");
+    L.add("      d.put(\"navigateP95Ms\", navP95);");
+    L.add("      d.put(\"navigateBaselineMs\", Math.round(navBaseline));");
+    L.add("      d.put(\"exportP95Ms\", exportP95);");
+    L.add("      d.put(\"exportBaselineMs\", Math.round(exportBaseline));");
+    L.add("      d.put(\"availableMb\", freeMb);");
+    L.add("      try { Files.writeString(log, OM.writeValueAsString(d) + \"\\n\", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND); }");
+    L.add("      catch (IOException e) { System.out.println(\"Concurrency log not written: \" + e.getMessage()); }");
+    L.add("      if (!decision.equals(\"hold\")) System.out.println(\"Concurrency: \" + decision + \" \" + (int) prev + \" -> \" + (int) limit + \" (\" + reason + \")\");");
+    L.add("");
+    L.add("      samples = errors = timeouts = 0;");
+    L.add("      peak = inFlight;");
+    L.add("      navMs.clear();");
+    L.add("      exportMs.clear();");
+    L.add("      windowStart = System.currentTimeMillis();");
+    L.add("    }");
+    L.add("");
+    L.add("    synchronized String summary() {");
+    L.add("      return \"limit=\" + (int) limit + \" increases=\" + increases + \" decreases=\" + decreases;");
+    L.add("    }");
+    L.add("");
+    L.add("    private static boolean isTimeout(Throwable t) {");
+    L.add("      for (Throwable c = t; c != null; c = c.getCause()) {");
+    L.add("        if (c instanceof TimeoutError || String.valueOf(c.getMessage()).toLowerCase(Locale.ROOT).contains(\"timeout\")) return true;");
+    L.add("      }");
+    L.add("      return false;");
+    L.add("    }");
+    L.add("");
+    L.add("    private static long p95(List<Long> xs) {");
+    L.add("      if (xs.isEmpty()) return 0;");
+    L.add("      List<Long> s = new ArrayList<>(xs);");
+    L.add("      Collections.sort(s);");
+    L.add("      return s.get(Math.min(s.size() - 1, (int) Math.ceil(0.95 * s.size()) - 1));");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // MemAvailable from /proc/meminfo (page cache counts as available), else the JVM's view of free physical memory; -1 if unknown.");
+    L.add("  static long availableMemoryMb() {");
+    L.add("    try {");
+    L.add("      for (String line : Files.readAllLines(Paths.get(\"/proc/meminfo\"))) {");
+    L.add("        if (line.startsWith(\"MemAvailable:\")) return Long.parseLong(line.replaceAll(\"[^0-9]\", \"\")) / 1024;");
+    L.add("      }");
+    L.add("    } catch (Exception ignored) {}");
+    L.add("    try {");
+    L.add("      java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();");
+    L.add("      if (os instanceof com.sun.management.OperatingSystemMXBean) return ((com.sun.management.OperatingSystemMXBean) os).getFreeMemorySize() / (1024 * 1024);");
+    L.add("    } catch (Throwable ignored) {}");
+    L.add("    return -1;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Shared by navigation and media downloads. Each host has a circuit breaker: FAILURES_TO_OPEN consecutive");
+    L.add("  // failures (or a Retry-After) open it and calls for that host fail fast until the cool-down ends; then a");
+    L.add("  // single probe is let through (half-open), which closes the breaker or reopens it with twice the cool-down.");
+    L.add("  // Retries use full-jitter exponential backoff, wait at least as long as Retry-After asks, and draw on one");
+    L.add("  // process-wide budget that every first attempt tops up by RETRY_RATIO, so a dead host cannot turn each of");
+    L.add("  // its URLs into a full retry schedule. Breaker states are written to host_breakers.json on every change.");
+    L.add("  static class Resilience {");
+    L.add("    static final int FAILURES_TO_OPEN = 5, MAX_ATTEMPTS = 4;");
+    L.add("    static final long BASE_BACKOFF_MS = 250, MAX_BACKOFF_MS = 8000, OPEN_MS = 30_000, MAX_OPEN_MS = 300_000, MAX_RETRY_AFTER_MS = 120_000;");
+    L.add("    static final double RETRY_RATIO = 0.2, BUDGET_MIN = 10, BUDGET_MAX = 100;");
+    L.add("    private static final Map<String, Breaker> HOSTS = new ConcurrentHashMap<>();");
+    L.add("    private static final Path METRICS = Paths.get(\"host_breakers.json\").toAbsolutePath();");
+    L.add("    private static double budget = BUDGET_MIN;");
+    L.add("    private static long budgetDenied;");
+    L.add("");
+    L.add("    enum State { CLOSED, OPEN, HALF_OPEN }");
+    L.add("");
+    L.add("    interface Attempt<T> { T run() throws Exception; }");
+    L.add("");
+    L.add("    // Thrown by an attempt when the host misbehaved. fallback (if any) is returned once retries run out.");
+    L.add("    static class Failure extends Exception {");
+    L.add("      private static final long serialVersionUID = 1L;");
+    L.add("      final long retryAfterMs;");
+    L.add("      final transient Object fallback;");
+    L.add("      final boolean retry;");
+    L.add("      Failure(String message, Throwable cause, long retryAfterMs, Object fallback, boolean retry) {");
+    L.add("        super(message, cause);");
+    L.add("        this.retryAfterMs = retryAfterMs;");
+    L.add("        this.fallback = fallback;");
+    L.add("        this.retry = retry;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    static class CircuitOpenException extends PlaywrightException {");
+    L.add("      private static final long serialVersionUID = 1L;");
+    L.add("      CircuitOpenException(String host, long waitMs) { super(\"Circuit open for \" + host + \" (retry in \" + Math.max(1, waitMs / 1000) + \" s)\"); }");
+    L.add("    }");
+    L.add("");
+    L.add("    static class Breaker {");
+    L.add("      final String host;");
+    L.add("      State state = State.CLOSED;");
+    L.add("      boolean probing;");
+    L.add("      int consecutive;");
+    L.add("      long openUntil, openMs = OPEN_MS, successes, failures, retries, rejected, opened;");
+    L.add("      String lastError = \"\";");
+    L.add("      Breaker(String host) { this.host = host; }");
+    L.add("");
+    L.add("      synchronized void admit() {");
+    L.add("        long now = System.currentTimeMillis();");
+    L.add("        if (state == State.OPEN) {");
+    L.add("          if (now < openUntil) { rejected++; throw new CircuitOpenException(host, openUntil - now); }");
+    L.add("          moveTo(State.HALF_OPEN);");
+    L.add("        }");
+    L.add("        if (state == State.HALF_OPEN) {");
+    L.add("          if (probing) { rejected++; throw new CircuitOpenException(host, 0); }");
+    L.add("          probing = true;");
+    L.add("        }");
+    L.add("      }");
+    L.add("");
+    L.add("      // The attempt ended in something that says nothing about the host (a policy refusal, an HTTP 404):");
+    L.add("      // neither a success nor a failure, but a half-open probe is over.");
+    L.add("      synchronized void release() { probing = false; }");
+    L.add("");
+    L.add("      synchronized void success() {");
+    L.add("        successes++;");
+    L.add("        consecutive = 0;");
+    L.add("        probing = false;");
+    L.add("        if (state != State.CLOSED) { openMs = OPEN_MS; moveTo(State.CLOSED); }");
+    L.add("      }");
+    L.add("");
+    L.add("      synchronized void failure(String error, long retryAfterMs) {");
+    L.add("        failures++;");
+    L.add("        consecutive++;");
+    L.add("        lastError = String.valueOf(error);");
+    L.add("        long now = System.currentTimeMillis();");
+    L.add("        if (probing) { probing = false; openMs = Math.min(MAX_OPEN_MS, openMs * 2); open(now + openMs); }");
+    L.add("        else if (consecutive >= FAILURES_TO_OPEN) open(now + openMs);");
+    L.add("        if (retryAfterMs > 0) open(now + retryAfterMs);");
+    L.add("      }");
+    L.add("");
+    L.add("      // A retry after waitMs is only worth it if the breaker will let it through by then.");
+    L.add("      synchronized boolean admitsAfter(long waitMs) {");
+    L.add("        return state == State.CLOSED || (state == State.OPEN && openUntil <= System.currentTimeMillis() + waitMs);");
+    L.add("      }");
+    L.add("");
+    L.add("      private void open(long until) {");
+    L.add("        openUntil = Math.max(openUntil, until);");
+    L.add("        if (state != State.OPEN) { opened++; moveTo(State.OPEN); }");
+    L.add("      }");
+    L.add("");
+    L.add("      private void moveTo(State next) {");
+    L.add("        System.out.println(\"Host \" + host + \": \" + state + \" -> \" + next + (next == State.OPEN ? \" until \" + java.time.Instant.ofEpochMilli(openUntil) + \" (\" + lastError + \")\" : \"\"));");
+    L.add("        state = next;");
+    L.add("        dirty = true;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static volatile boolean dirty;");
+    L.add("");
+    L.add("    @SuppressWarnings(\"unchecked\")");
+    L.add("    static <T> T call(String url, String what, Attempt<T> attempt) throws Exception {");
+    L.add("      Breaker b = HOSTS.computeIfAbsent(hostOf(url), Breaker::new);");
+    L.add("      try {");
+    L.add("        for (int n = 1; ; n++) {");
+    L.add("          b.admit();");
+    L.add("          if (n == 1) deposit();");
+    L.add("          Failure f;");
+    L.add("          try {");
+    L.add("            T value = attempt.run();");
+    L.add("            b.success();");
+    L.add("            return value;");
+    L.add("          } catch (Failure x) {");
+    L.add("            f = x;");
+    L.add("          } catch (Exception e) {");
+    L.add("            f = networkFailure(e);");
+    L.add("            if (f == null) { b.release(); throw e; }");
+    L.add("          }");
+    L.add("          b.failure(f.getMessage(), f.retryAfterMs);");
+    L.add("          long wait = Math.max(backoffMs(n), f.retryAfterMs);");
+    L.add("          if (!f.retry || n >= MAX_ATTEMPTS || wait > MAX_RETRY_AFTER_MS || !b.admitsAfter(wait) || !withdraw()) {");
+    L.add("            if (f.fallback != null) return (T) f.fallback;");
+    L.add("            if (f.getCause() instanceof Exception) throw (Exception) f.getCause();");
+    L.add("            throw new IOException(f.getMessage());");
+    L.add("          }");
+    L.add("          synchronized (b) { b.retries++; }");
+    L.add("          System.out.println(what + \" failed (attempt \" + n + \"/\" + MAX_ATTEMPTS + \"), retrying in \" + wait + \" ms: \" + f.getMessage());");
+    L.add("          Thread.sleep(wait);");
+    L.add("        }");
+    L.add("      } finally {");
+    L.add("        if (dirty) writeMetrics();");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    // Playwright timeouts and network-level errors that escaped the attempt count against the host and are");
+    L.add("    // retried; anything else is left to the caller.");
+    L.add("    static Failure networkFailure(Exception e) {");
+    L.add("      if (e instanceof CircuitOpenException || !(e instanceof PlaywrightException)) return null;");
+    L.add("      if (e instanceof TimeoutError || isRetryableNavError(e)) return new Failure(String.valueOf(e.getMessage()), e, -1, null, true);");
+    L.add("      return null;");
+    L.add("    }");
+    L.add("");
+    L.add("    static boolean retryableStatus(int status) { return status == 408 || status == 429 || status == 502 || status == 503 || status == 504; }");
+    L.add("");
+    L.add("    // Retry-After as delta-seconds or an HTTP date; -1 when absent or unparseable.");
+    L.add("    static long retryAfterMs(String value) {");
+    L.add("      if (value == null || value.isBlank()) return -1;");
+    L.add("      String v = value.trim();");
+    L.add("      try {");
+    L.add("        if (v.chars().allMatch(Character::isDigit)) return Long.parseLong(v) * 1000;");
+    L.add("        return Math.max(0, ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());");
+    L.add("      } catch (Exception e) {");
+    L.add("        return -1;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    static long backoffMs(int attempt) {");
+    L.add("      long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt - 1, 16));");
+    L.add("      return BASE_BACKOFF_MS / 2 + ThreadLocalRandom.current().nextLong(cap + 1);");
+    L.add("    }");
+    L.add("");
+    L.add("    private static synchronized void deposit() { budget = Math.min(BUDGET_MAX, budget + RETRY_RATIO); }");
+    L.add("");
+    L.add("    private static synchronized boolean withdraw() {");
+    L.add("      if (budget < 1) { budgetDenied++; return false; }");
+    L.add("      budget -= 1;");
+    L.add("      return true;");
+    L.add("    }");
+    L.add("");
+    L.add("    static String hostOf(String url) {");
+    L.add("      try { String h = URI.create(url).getHost(); if (h != null) return h.toLowerCase(Locale.ROOT); } catch (Exception ignored) {}");
+    L.add("      return String.valueOf(url);");
+    L.add("    }");
+    L.add("");
+    L.add("    static synchronized void writeMetrics() {");
+    L.add("      dirty = false;");
+    L.add("      ObjectNode root = OM.createObjectNode();");
+    L.add("      root.put(\"updated\", OffsetDateTime.now().toString());");
+    L.add("      root.put(\"retryBudget\", Math.round(budget * 10) / 10.0);");
+    L.add("      root.put(\"retriesDeniedByBudget\", budgetDenied);");
+    L.add("      ObjectNode hosts = root.putObject(\"hosts\");");
+    L.add("      for (Breaker b : new TreeMap<>(HOSTS).values()) {");
+    L.add("        synchronized (b) {");
+    L.add("          ObjectNode h = hosts.putObject(b.host);");
+    L.add("          h.put(\"state\", b.state.name());");
+    L.add("          h.put(\"consecutiveFailures\", b.consecutive);");
+    L.add("          h.put(\"successes\", b.successes);");
+    L.add("          h.put(\"failures\", b.failures);");
+    L.add("          h.put(\"retries\", b.retries);");
+    L.add("          h.put(\"rejected\", b.rejected);");
+    L.add("          h.put(\"timesOpened\", b.opened);");
+    L.add("          if (b.state == State.OPEN) h.put(\"openUntil\", java.time.Instant.ofEpochMilli(b.openUntil).toString());");
+    L.add("          if (!b.lastError.isEmpty()) h.put(\"lastError\", trim(b.lastError, 300));");
+    L.add("        }");
+    L.add("      }");
+    L.add("      try {");
+    L.add("        Path tmp = METRICS.resolveSibling(METRICS.getFileName() + \".tmp\");");
+    L.add("        OM.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), root);");
+    L.add("        Files.move(tmp, METRICS, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);");
+    L.add("      } catch (IOException ignored) {}");
+    L.add("    }");
+    L.add("");
+    L.add("    static String summary() {");
+    L.add("      if (HOSTS.isEmpty()) return \"no hosts contacted\";");
+    L.add("      writeMetrics();");
+    L.add("      Map<State, Integer> counts = new EnumMap<>(State.class);");
+    L.add("      long retries = 0, rejected = 0;");
+    L.add("      for (Breaker b : HOSTS.values()) synchronized (b) { counts.merge(b.state, 1, Integer::sum); retries += b.retries; rejected += b.rejected; }");
+    L.add("      return HOSTS.size() + \" host(s) \" + counts + \", \" + retries + \" retries, \" + rejected + \" rejected by open circuits (\" + METRICS.getFileName() + \")\";");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // One \"page settled\" signal: no requests in flight and none started or finished for the quiet window,");
+    L.add("  // no DOM mutations for the quiet window, fonts loaded and near-viewport images fetched and decoded.");
+    L.add("  // Long-lived streams (websocket/eventsource) and requests older than LONG_POLL_MS are not waited on.");
+    L.add("  // Only with --wait-ready: pages are attached right after newPage(), and the mutation observer goes in with attach()");
+    L.add("  // (as an init script and into the current document), so DOM quiet time counts from navigation rather than from");
+    L.add("  // the first probe. Without the flag no page gets listeners or the observer. Detectors drop out when their page closes.");
+    L.add("  static class ReadinessDetector {");
+    L.add("    static final long LONG_POLL_MS = 8000;");
+    L.add("    private static final Map<Page, ReadinessDetector> BY_PAGE = Collections.synchronizedMap(new WeakHashMap<>());");
+    L.add("    private final Map<Request, Long> inFlight = Collections.synchronizedMap(new IdentityHashMap<>());");
+    L.add("    private volatile long lastNetworkEvent = System.currentTimeMillis();");
+    L.add("    private final Page page;");
+    L.add("");
+    L.add("    static final String OBSERVER_JS = String.join(\"\\n\",");
+    L.add("      \"(() => {\",");
+    L.add("      \"  const w = window;\",");
+    L.add("      \"  if (w.__aimReady) return;\",");
+    L.add("      \"  w.__aimReady = { lastMutation: performance.now() };\",");
+    L.add("      \"  try { new MutationObserver(() => { w.__aimReady.lastMutation = performance.now(); }).observe(document, { childList: true, subtree: true, attributes: true, characterData: true }); } catch (e) {}\",");
+    L.add("      \"})()\");");
+    L.add("");
+    L.add("    static final String PROBE_JS = String.join(\"\\n\",");
+    L.add("      \"() => {\",");
+    L.add("      \"  const w = window;\",");
+    L.add("      \"  if (!w.__aimReady) \" + OBSERVER_JS + \";\",");
+    L.add("      \"  let pending = 0;\",");
+    L.add("      \"  const near = innerHeight * 2;\",");
+    L.add("      \"  for (const img of Array.from(document.images)) {\",");
+    L.add("      \"    if (img.loading === 'lazy' && img.getBoundingClientRect().top > near) continue;\",");
+    L.add("      \"    if (!img.complete) { pending++; continue; }\",");
+    L.add("      \"    if (img.__aimDecoded) continue;\",");
+    L.add("      \"    if (!img.decode) { img.__aimDecoded = true; continue; }\",");
+    L.add("      \"    if (!img.__aimDecoding) { img.__aimDecoding = true; img.decode().catch(() => {}).finally(() => { img.__aimDecoded = true; }); }\",");
+    L.add("      \"    pending++;\",");
+    L.add("      \"  }\",");
+    L.add("      \"  return JSON.stringify({\",");
+    L.add("      \"    sinceMutationMs: Math.round(performance.now() - w.__aimReady.lastMutation),\",");
+    L.add("      \"    fontsReady: !document.fonts || document.fonts.status === 'loaded',\",");
+    L.add("      \"    pendingImages: pending\",");
+    L.add("      \"  });\",");
+    L.add("      \"}\");");
+    L.add("");
+    L.add("    private ReadinessDetector(Page page) {");
+    L.add("      this.page = page;");
+    L.add("      page.onRequest(r -> {");
+    L.add("        String type = r.resourceType();");
+    L.add("        if (\"websocket\".equals(type) || \"eventsource\".equals(type)) return;");
+    L.add("        inFlight.put(r, System.currentTimeMillis());");
+    L.add("        lastNetworkEvent = System.currentTimeMillis();");
+    L.add("      });");
+    L.add("      page.onRequestFinished(r -> { inFlight.remove(r); lastNetworkEvent = System.currentTimeMillis(); });");
+    L.add("      page.onRequestFailed(r -> { inFlight.remove(r); lastNetworkEvent = System.currentTimeMillis(); });");
+    L.add("      page.onClose(p -> { BY_PAGE.remove(p); inFlight.clear(); });");
+    L.add("      page.addInitScript(OBSERVER_JS);");
+    L.add("      try { page.evaluate(OBSERVER_JS); } catch (PlaywrightException ignored) {}");
+    L.add("    }");
+    L.add("");
+    L.add("    static ReadinessDetector attach(Page page) {");
+    L.add("      synchronized (BY_PAGE) { return BY_PAGE.computeIfAbsent(page, ReadinessDetector::new); }");
+    L.add("    }");
+    L.add("");
+    L.add("    int activeRequests() {");
+    L.add("      long cutoff = System.currentTimeMillis() - LONG_POLL_MS;");
+    L.add("      int n = 0;");
+    L.add("      synchronized (inFlight) { for (long started : inFlight.values()) if (started >= cutoff) n++; }");
+    L.add("      return n;");
+    L.add("    }");
+    L.add("");
+    L.add("    ObjectNode waitForSettled(long quietMs, long capMs) {");
+    L.add("      long t0 = System.currentTimeMillis();");
+    L.add("      ObjectNode out = OM.createObjectNode();");
+    L.add("      JsonNode last = OM.createObjectNode();");
+    L.add("      int polls = 0;");
+    L.add("      while (true) {");
+    L.add("        long now = System.currentTimeMillis();");
+    L.add("        try { last = OM.readTree(String.valueOf(page.evaluate(PROBE_JS))); } catch (Exception e) { out.put(\"error\", String.valueOf(e.getMessage())); break; }");
+    L.add("        polls++;");
+    L.add("        now = System.currentTimeMillis();");
+    L.add("        boolean net = activeRequests() == 0 && now - lastNetworkEvent >= quietMs;");
+    L.add("        boolean dom = last.path(\"sinceMutationMs\").asLong() >= quietMs;");
+    L.add("        boolean assets = last.path(\"fontsReady\").asBoolean(true) && last.path(\"pendingImages\").asInt() == 0;");
+    L.add("        if (net && dom && assets) { out.put(\"settled\", true); break; }");
+    L.add("        if (now - t0 >= capMs) {");
+    L.add("          out.put(\"settled\", false);");
+    L.add("          out.put(\"waitingOn\", (net ? \"\" : \"network \") + (dom ? \"\" : \"dom \") + (assets ? \"\" : \"assets\"));");
+    L.add("          break;");
+    L.add("        }");
+    L.add("        try { page.waitForTimeout(50); } catch (Exception e) { break; }");
+    L.add("      }");
+    L.add("      out.put(\"waitedMs\", System.currentTimeMillis() - t0);");
+    L.add("      out.put(\"quietMs\", quietMs);");
+    L.add("      out.put(\"polls\", polls);");
+    L.add("      out.put(\"inFlight\", activeRequests());");
+    L.add("      out.put(\"pendingImages\", last.path(\"pendingImages\").asInt());");
+    L.add("      System.out.println(\"Ready:    \" + (out.path(\"settled\").asBoolean() ? \"settled\" : \"cap reached (\" + out.path(\"waitingOn\").asText(\"\").trim() + \")\") + \" after \" + out.path(\"waitedMs\").asLong() + \" ms\");");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Drives scroller.js until lazy content settles. The item target comes from --scroll-item/--scroll-target,");
+    L.add("  // or else from the first list item that has a limit.");
+    L.add("  private static ObjectNode autoScroll(Page page, CaptureOptions opts, ArrayNode selections) {");
+    L.add("    Map<String, Object> args = new LinkedHashMap<>();");
+    L.add("    args.put(\"budgetMs\", opts.scrollBudgetMs);");
+    L.add("    String item = opts.scrollItem;");
+    L.add("    int target = opts.scrollTarget;");
+    L.add("    if (item.isBlank()) {");
+    L.add("      for (JsonNode sel : selections) {");
+    L.add("        if (\"list\".equals(sel.path(\"kind\").asText(\"\")) && sel.path(\"limit\").asInt(0) > 0) { item = sel.path(\"selector\").asText(\"\"); target = sel.path(\"limit\").asInt(); break; }");
+    L.add("      }");
+    L.add("    }");
+    L.add("    args.put(\"itemSelector\", item);");
+    L.add("    args.put(\"targetCount\", target);");
+    L.add("    try {");
+    L.add("      if (!Boolean.TRUE.equals(page.evaluate(\"() => typeof window.__aimAutoScroll === 'function'\"))) page.evaluate(readResourceText(\"/scroller.js\"));");
+    L.add("      ObjectNode stats = (ObjectNode) OM.readTree(String.valueOf(page.evaluate(\"(o) => window.__aimAutoScroll(o)\", args)));");
+    L.add("      System.out.println(\"Scroll:   \" + stats.path(\"steps\").asInt() + \" steps, waited \" + stats.path(\"waitedMs\").asLong() + \" ms (\" + stats.path(\"reason\").asText() + \")\");");
+    L.add("      return stats;");
+    L.add("    } catch (Exception e) {");
+    L.add("      ObjectNode err = OM.createObjectNode();");
+    L.add("      err.put(\"error\", String.valueOf(e.getMessage()));");
+    L.add("      return err;");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  static final int LIST_CHUNK = 500;");
+    L.add("");
+    L.add("  // One evaluate per chunk of matches: every field of every row is read in-page, nothing per element from Java.");
+    L.add("  // Field spec: \"css\" -> text, \"css@attr\" -> attribute (\"@href\"/\"@src\" absolute, \"@html\" outerHTML), \"\" or \".\" -> the match itself.");
+    L.add("  static final String LIST_JS = String.join(\"\\n\",");
+    L.add("    \"([sel, fields, start, n]) => {\",");
+    L.add("    \"  const all = document.querySelectorAll(sel);\",");
+    L.add("    \"  const val = (root, spec) => {\",");
+    L.add("    \"    spec = String(spec || '').trim();\",");
+    L.add("    \"    let css = spec, attr = '';\",");
+    L.add("    \"    const at = spec.lastIndexOf('@');\",");
+    L.add("    \"    if (at >= 0) { css = spec.slice(0, at).trim(); attr = spec.slice(at + 1).trim(); }\",");
+    L.add("    \"    const el = (css === '' || css === '.') ? root : root.querySelector(css);\",");
+    L.add("    \"    if (!el) return '';\",");
+    L.add("    \"    if (!attr) return (el.innerText || el.textContent || '').trim().replace(/\\\\s+/g, ' ');\",");
+    L.add("    \"    if (attr === 'html') return el.outerHTML || '';\",");
+    L.add("    \"    if ((attr === 'href' || attr === 'src') && el[attr]) return String(el[attr]);\",");
+    L.add("    \"    return el.getAttribute(attr) || '';\",");
+    L.add("    \"  };\",");
+    L.add("    \"  const rows = [];\",");
+    L.add("    \"  const end = Math.min(all.length, start + n);\",");
+    L.add("    \"  for (let i = start; i < end; i++) {\",");
+    L.add("    \"    const row = {};\",");
+    L.add("    \"    for (const [name, spec] of Object.entries(fields)) row[name] = val(all[i], spec);\",");
+    L.add("    \"    rows.push(row);\",");
+    L.add("    \"  }\",");
+    L.add("    \"  return JSON.stringify({ total: all.length, rows });\",");
+    L.add("    \"}\");");
+    L.add("");
+    L.add("  // kind:\"list\" item: every match of the selector becomes a row streamed to lists/list_NNN.csv|ndjson.");
+    L.add("  private static void exportList(Page page, JsonNode sel, int idx, ArtifactSink sink, ObjectNode r, boolean gzip) throws IOException {");
+    L.add("    String selector = sel.path(\"selector\").asText(\"\");");
+    L.add("    LinkedHashMap<String, String> fields = new LinkedHashMap<>();");
+    L.add("    sel.path(\"fields\").fields().forEachRemaining(e -> fields.put(e.getKey(), e.getValue().asText(\"\")));");
+    L.add("    if (fields.isEmpty()) fields.put(\"text\", \".\");");
+    L.add("    boolean csv = !\"ndjson\".equalsIgnoreCase(sel.path(\"format\").asText(\"csv\"));");
+    L.add("    boolean shots = sel.path(\"screenshot\").asBoolean(false);");
+    L.add("    int limit = sel.path(\"limit\").asInt(0);");
+    L.add("    List<String> cols = new ArrayList<>(fields.keySet());");
+    L.add("    if (shots) cols.add(\"_screenshot\");");
+    L.add("");
+    L.add("    String name = String.format(\"lists/list_%03d.%s\", idx, csv ? \"csv\" : \"ndjson\") + (gzip ? \".gz\" : \"\");");
+    L.add("    int total = 0, written = 0;");
+    L.add("    OutputStream raw = gzip ? new GZIPOutputStream(sink.open(name), 64 * 1024) : sink.open(name);");
+    L.add("    try (Writer w = new BufferedWriter(new OutputStreamWriter(raw, StandardCharsets.UTF_8))) {");
+    L.add("      if (csv) writeCsvRow(w, cols);");
+    L.add("      for (int start = 0; ; start += LIST_CHUNK) {");
+    L.add("        int n = limit > 0 ? Math.min(LIST_CHUNK, limit - written) : LIST_CHUNK;");
+    L.add("        if (n <= 0) break;");
+    L.add("        JsonNode chunk = OM.readTree(String.valueOf(page.evaluate(LIST_JS, Arrays.asList(selector, fields, start, n))));");
+    L.add("        total = chunk.path(\"total\").asInt();");
+    L.add("        JsonNode rows = chunk.path(\"rows\");");
+    L.add("        for (JsonNode row : rows) {");
+    L.add("          ObjectNode o = (ObjectNode) row;");
+    L.add("          if (shots) {");
+    L.add("            String shot = String.format(\"lists/list_%03d/row_%05d.png\", idx, written + 1);");
+    L.add("            try { o.put(\"_screenshot\", sink.put(shot, page.locator(selector).nth(written).screenshot(new Locator.ScreenshotOptions().setTimeout(5000)))); } catch (Exception e) { o.put(\"_screenshot\", \"\"); }");
+    L.add("          }");
+    L.add("          if (csv) {");
+    L.add("            List<String> vals = new ArrayList<>(cols.size());");
+    L.add("            for (String c : cols) vals.add(o.path(c).asText(\"\"));");
+    L.add("            writeCsvRow(w, vals);");
+    L.add("          } else {");
+    L.add("            w.write(OM.writeValueAsString(o));");
+    L.add("            w.write(\"\\n\");");
+    L.add("          }");
+    L.add("          written++;");
+    L.add("        }");
+    L.add("        if (rows.size() < n || start + n >= total) break;");
+    L.add("      }");
+    L.add("    }");
+    L.add("    ArrayNode fieldNames = r.putArray(\"fields\");");
+    L.add("    for (String c : cols) fieldNames.add(c);");
+    L.add("    r.put(\"rowsFile\", name);");
+    L.add("    r.put(\"format\", csv ? \"csv\" : \"ndjson\");");
+    L.add("    if (gzip) r.put(\"encoding\", \"gzip\");");
+    L.add("    r.put(\"matches\", total);");
+    L.add("    r.put(\"rows\", written);");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void writeCsvRow(Writer w, List<String> vals) throws IOException {");
+    L.add("    for (int i = 0; i < vals.size(); i++) {");
+    L.add("      if (i > 0) w.write(',');");
+    L.add("      String v = vals.get(i);");
+    L.add("      if (v.indexOf(',') >= 0 || v.indexOf('\"') >= 0 || v.indexOf('\\n') >= 0 || v.indexOf('\\r') >= 0) w.write('\"' + v.replace(\"\\\"\", \"\\\"\\\"\") + '\"');");
+    L.add("      else w.write(v);");
+    L.add("    }");
+    L.add("    w.write(\"\\r\\n\");");
+    L.add("  }");
+    L.add("");
+    L.add("  static final String BUNDLE_FILE = \"capture.aimb\";");
+    L.add("");
+    L.add("  // Where capture artifacts go: loose files under the capture dir, or one packed bundle file.");
+    L.add("  interface ArtifactSink extends Closeable {");
+    L.add("    // Stores data under a capture-relative name and returns the path the manifest should use.");
+    L.add("    String put(String name, byte[] data) throws IOException;");
+    L.add("    // Streaming variant for large generated files; buffered into put() unless the sink can write directly.");
+    L.add("    default OutputStream open(String name) throws IOException {");
+    L.add("      return new ByteArrayOutputStream() {");
+    L.add("        @Override public void close() throws IOException { ArtifactSink.this.put(name, toByteArray()); }");
+    L.add("      };");
+    L.add("    }");
+    L.add("    // Durable reference to a stored artifact that later captures can resolve with readRef().");
+    L.add("    String ref(String name);");
+    L.add("  }");
+    L.add("");
+    L.add("  static class DirSink implements ArtifactSink {");
+    L.add("    private final Path dir;");
+    L.add("    DirSink(Path dir){ this.dir=dir; }");
+    L.add("    public String put(String name, byte[] data) throws IOException {");
+    L.add("      Path p=dir.resolve(name);");
+    L.add("      Files.createDirectories(p.getParent());");
+    L.add("      Files.write(p, data);");
+    L.add("      return name;");
+    L.add("    }");
+    L.add("    @Override public OutputStream open(String name) throws IOException {");
+    L.add("      Path p=dir.resolve(name);");
+    L.add("      Files.createDirectories(p.getParent());");
+    L.add("      return Files.newOutputStream(p);");
+    L.add("    }");
+    L.add("    public String ref(String name){ return dir.resolve(name).normalize().toString(); }");
+    L.add("    public void close(){}");
+    L.add("  }");
+    L.add("");
+    L.add("  // Append-only bundle: MAGIC, entry bytes back to back, JSON index [{name,offset,length,sha256}],");
+    L.add("  // then the index offset (8 bytes, big-endian) and TRAILER. A later entry with the same name wins.");
+    L.add("  static class BundleWriter implements ArtifactSink {");
+    L.add("    static final byte[] MAGIC = \"AIMBNDL1\".getBytes(StandardCharsets.US_ASCII);");
+    L.add("    static final byte[] TRAILER = \"AIMBIDX1\".getBytes(StandardCharsets.US_ASCII);");
+    L.add("    private final Path file;");
+    L.add("    private final FileChannel ch;");
+    L.add("    private final ArrayNode index = OM.createArrayNode();");
+    L.add("");
+    L.add("    BundleWriter(Path file) throws IOException {");
+    L.add("      this.file=file;");
+    L.add("      Files.createDirectories(file.getParent());");
+    L.add("      this.ch=FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);");
+    L.add("      writeFully(ByteBuffer.wrap(MAGIC));");
+    L.add("    }");
+    L.add("    public synchronized String put(String name, byte[] data) throws IOException {");
+    L.add("      long off=ch.position();");
+    L.add("      writeFully(ByteBuffer.wrap(data));");
+    L.add("      ObjectNode e=index.addObject();");
+    L.add("      e.put(\"name\", name);");
+    L.add("      e.put(\"offset\", off);");
+    L.add("      e.put(\"length\", data.length);");
+    L.add("      e.put(\"sha256\", sha256Hex(data));");
+    L.add("      return name;");
+    L.add("    }");
+    L.add("    public String ref(String name){ return file.toString() + \"!/\" + name; }");
+    L.add("    private void writeFully(ByteBuffer b) throws IOException { while (b.hasRemaining()) ch.write(b); }");
+    L.add("    public synchronized void close() throws IOException {");
+    L.add("      long idxOff=ch.position();");
+    L.add("      writeFully(ByteBuffer.wrap(OM.writeValueAsBytes(index)));");
+    L.add("      writeFully(ByteBuffer.allocate(8).putLong(0, idxOff));");
+    L.add("      writeFully(ByteBuffer.wrap(TRAILER));");
+    L.add("      ch.force(true);");
+    L.add("      ch.close();");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Serves bundle entries straight from memory-mapped regions of the file.");
+    L.add("  static class BundleReader implements Closeable {");
+    L.add("    private final FileChannel ch;");
+    L.add("    private final Map<String, JsonNode> entries = new LinkedHashMap<>();");
+    L.add("    // Hex size and mtime of the file as opened: the cache's staleness check and the server's ETag base.");
+    L.add("    final String version;");
+    L.add("");
+    L.add("    BundleReader(Path file) throws IOException {");
+    L.add("      this.ch=FileChannel.open(file, StandardOpenOption.READ);");
+    L.add("      try {");
+    L.add("        long size=ch.size();");
+    L.add("        version=Long.toHexString(size) + \"-\" + Long.toHexString(Files.getLastModifiedTime(file).toMillis());");
+    L.add("        if (size < BundleWriter.MAGIC.length + 16) throw new IOException(\"Not a capture bundle: \" + file);");
+    L.add("        MappedByteBuffer tail=ch.map(FileChannel.MapMode.READ_ONLY, size - 16, 16);");
+    L.add("        long idxOff=tail.getLong();");
+    L.add("        byte[] trailer=new byte[8];");
+    L.add("        tail.get(trailer);");
+    L.add("        if (!Arrays.equals(trailer, BundleWriter.TRAILER) || idxOff < BundleWriter.MAGIC.length || idxOff > size - 16) throw new IOException(\"Bundle index missing (incomplete write?): \" + file);");
+    L.add("        MappedByteBuffer idx=ch.map(FileChannel.MapMode.READ_ONLY, idxOff, size - 16 - idxOff);");
+    L.add("        byte[] json=new byte[idx.remaining()];");
+    L.add("        idx.get(json);");
+    L.add("        for (JsonNode e : OM.readTree(json)) entries.put(e.path(\"name\").asText(\"\"), e);");
+    L.add("      } catch (IOException | RuntimeException e) { ch.close(); throw e; }");
+    L.add("    }");
+    L.add("    Set<String> names(){ return entries.keySet(); }");
+    L.add("    boolean has(String name){ return entries.containsKey(name); }");
+    L.add("    ByteBuffer get(String name) throws IOException {");
+    L.add("      JsonNode e=entries.get(name);");
+    L.add("      if (e == null) return null;");
+    L.add("      return ch.map(FileChannel.MapMode.READ_ONLY, e.path(\"offset\").asLong(), e.path(\"length\").asLong());");
+    L.add("    }");
+    L.add("    byte[] bytes(String name) throws IOException {");
+    L.add("      ByteBuffer b=get(name);");
+    L.add("      if (b == null) return null;");
+    L.add("      byte[] out=new byte[b.remaining()];");
+    L.add("      b.get(out);");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("    public void close() throws IOException { ch.close(); }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Readers for bundles that refs point into or that --serve hands out, reopened when the file's size or mtime");
+    L.add("  // changes (a re-exported capture) and closed least-recently-used first past OPEN_BUNDLE_LIMIT. Buffers already");
+    L.add("  // mapped from a closed reader stay valid.");
+    L.add("  private static final int OPEN_BUNDLE_LIMIT = 64;");
+    L.add("  private static final Map<Path, BundleReader> OPEN_BUNDLES = new LinkedHashMap<>(16, 0.75f, true) {");
+    L.add("    @Override protected boolean removeEldestEntry(Map.Entry<Path, BundleReader> eldest) {");
+    L.add("      if (size() <= OPEN_BUNDLE_LIMIT) return false;");
+    L.add("      try { eldest.getValue().close(); } catch (IOException ignored) {}");
+    L.add("      return true;");
+    L.add("    }");
+    L.add("  };");
+    L.add("");
+    L.add("  private static synchronized BundleReader openBundle(Path file) throws IOException {");
+    L.add("    Path key = file.toAbsolutePath().normalize();");
+    L.add("    String version = Long.toHexString(Files.size(key)) + \"-\" + Long.toHexString(Files.getLastModifiedTime(key).toMillis());");
+    L.add("    BundleReader r = OPEN_BUNDLES.get(key);");
+    L.add("    if (r != null && !r.version.equals(version)) { OPEN_BUNDLES.remove(key); r.close(); r = null; }");
+    L.add("    if (r == null) { r = new BundleReader(key); OPEN_BUNDLES.put(key, r); }");
+    L.add("    return r;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static boolean refExists(String ref) {");
+    L.add("    int bang = ref.indexOf(\"!/\");");
+    L.add("    if (bang < 0) return Files.exists(Paths.get(ref));");
+    L.add("    try { return openBundle(Paths.get(ref.substring(0, bang))).has(ref.substring(bang + 2)); } catch (Exception e) { return false; }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static byte[] readRef(String ref) throws IOException {");
+    L.add("    int bang = ref.indexOf(\"!/\");");
+    L.add("    if (bang < 0) return Files.readAllBytes(Paths.get(ref));");
+    L.add("    byte[] b = openBundle(Paths.get(ref.substring(0, bang))).bytes(ref.substring(bang + 2));");
+    L.add("    if (b == null) throw new FileNotFoundException(ref);");
+    L.add("    return b;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Inverted index over all aim_capture_* manifests (loose or bundled). Each ingest run appends one");
+    L.add("  // immutable, memory-mapped segment: sorted term dictionary -> varint-delta postings -> compact doc records.");
+    L.add("  // Docs from a manifest that was rewritten later are hidden at query time via ingested.tsv.");
+    L.add("  static class CaptureIndex {");
+    L.add("    static final byte[] SEG_MAGIC = \"AIMIDX01\".getBytes(StandardCharsets.US_ASCII);");
+    L.add("    static final int MAX_DOCS_PER_SEGMENT = 200_000;");
+    L.add("    private final Path root;");
+    L.add("    private final Path dir;");
+    L.add("    private final Map<String, String> ingested = new LinkedHashMap<>();");
+    L.add("");
+    L.add("    CaptureIndex(Path root) throws IOException {");
+    L.add("      this.root = root;");
+    L.add("      this.dir = root.resolve(\"capture_index\");");
+    L.add("      Files.createDirectories(dir);");
+    L.add("      Path log = dir.resolve(\"ingested.tsv\");");
+    L.add("      if (Files.exists(log)) {");
+    L.add("        for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {");
+    L.add("          int tab = line.indexOf('\\t');");
+    L.add("          if (tab > 0) ingested.put(line.substring(0, tab), line.substring(tab + 1));");
+    L.add("        }");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    // Adds docs for every manifest that is new or changed since the last ingest. Returns the number of docs added.");
+    L.add("    int ingest() throws IOException {");
+    L.add("      List<Path> sources = new ArrayList<>();");
+    L.add("      try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, \"aim_capture_*\")) {");
+    L.add("        for (Path d : ds) {");
+    L.add("          if (Files.exists(d.resolve(\"manifest.json\"))) sources.add(d.resolve(\"manifest.json\"));");
+    L.add("          else if (Files.exists(d.resolve(\"manifest.json.gz\"))) sources.add(d.resolve(\"manifest.json.gz\"));");
+    L.add("          if (Files.exists(d.resolve(BUNDLE_FILE))) sources.add(d.resolve(BUNDLE_FILE));");
+    L.add("        }");
+    L.add("      }");
+    L.add("      sources.sort(Comparator.naturalOrder());");
+    L.add("      List<ObjectNode> docs = new ArrayList<>();");
+    L.add("      List<String> logLines = new ArrayList<>();");
+    L.add("      int added = 0;");
+    L.add("      for (Path src : sources) {");
+    L.add("        String key = src.toAbsolutePath().normalize().toString();");
+    L.add("        String version = Files.size(src) + \":\" + Files.getLastModifiedTime(src).toMillis();");
+    L.add("        if (version.equals(ingested.get(key))) continue;");
+    L.add("        JsonNode m;");
+    L.add("        try {");
+    L.add("          String fn = src.getFileName().toString();");
+    L.add("          m = fn.equals(BUNDLE_FILE)");
+    L.add("            ? OM.readTree(readArtifact(src.getParent(), \"manifest.json\"))");
+    L.add("            : OM.readTree(fn.endsWith(\".gz\") ? gunzip(Files.readAllBytes(src)) : Files.readAllBytes(src));");
+    L.add("        } catch (Exception e) {");
+    L.add("          System.out.println(\"Index: skipping \" + src + \" (\" + e.getMessage() + \")\");");
+    L.add("          continue;");
+    L.add("        }");
+    L.add("        if (m == null) continue;");
+    L.add("        for (JsonNode r : m.path(\"results\")) {");
+    L.add("          ObjectNode d = OM.createObjectNode();");
+    L.add("          d.put(\"source\", key);");
+    L.add("          d.put(\"version\", version);");
+    L.add("          d.put(\"captureDir\", src.getParent().getFileName().toString());");
+    L.add("          d.put(\"capturedAt\", m.path(\"capturedAt\").asText(\"\"));");
+    L.add("          d.put(\"pageUrl\", m.path(\"pageUrl\").asText(\"\"));");
+    L.add("          d.put(\"url\", r.path(\"url\").asText(\"\"));");
+    L.add("          d.put(\"index\", r.path(\"index\").asInt());");
+    L.add("          d.put(\"selector\", r.path(\"selector\").asText(\"\"));");
+    L.add("          d.put(\"tag\", r.path(\"tag\").asText(\"\"));");
+    L.add("          d.put(\"kind\", r.path(\"kind\").asText(\"\"));");
+    L.add("          d.put(\"pickedText\", r.path(\"pickedText\").asText(\"\"));");
+    L.add("          d.put(\"innerText\", r.path(\"innerText\").asText(\"\"));");
+    L.add("          docs.add(d);");
+    L.add("          if (docs.size() >= MAX_DOCS_PER_SEGMENT) { writeSegment(docs); added += docs.size(); docs.clear(); }");
+    L.add("        }");
+    L.add("        ingested.put(key, version);");
+    L.add("        logLines.add(key + \"\\t\" + version);");
+    L.add("      }");
+    L.add("      if (!docs.isEmpty()) { writeSegment(docs); added += docs.size(); }");
+    L.add("      if (!logLines.isEmpty()) {");
+    L.add("        Files.write(dir.resolve(\"ingested.tsv\"), logLines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);");
+    L.add("      }");
+    L.add("      return added;");
+    L.add("    }");
+    L.add("");
+    L.add("    static Set<String> terms(JsonNode d) {");
+    L.add("      Set<String> out = new HashSet<>();");
+    L.add("      for (String f : new String[]{ \"innerText\", \"pickedText\", \"selector\", \"tag\", \"url\" }) tokenize(d.path(f).asText(\"\"), out);");
+    L.add("      if (!d.path(\"tag\").asText(\"\").isBlank()) out.add(\"tag:\" + d.path(\"tag\").asText(\"\").toLowerCase(Locale.ROOT));");
+    L.add("      if (!d.path(\"kind\").asText(\"\").isBlank()) out.add(\"kind:\" + d.path(\"kind\").asText(\"\").toLowerCase(Locale.ROOT));");
+    L.add("      try { String host = URI.create(d.path(\"url\").asText(\"\")).getHost(); if (host != null) out.add(\"host:\" + host.toLowerCase(Locale.ROOT)); } catch (Exception ignored) {}");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("");
+    L.add("    static void tokenize(String s, Collection<String> out) {");
+    L.add("      StringBuilder cur = new StringBuilder();");
+    L.add("      String t = s.toLowerCase(Locale.ROOT);");
+    L.add("      for (int i = 0; i < t.length(); ) {");
+    L.add("        int cp = t.codePointAt(i);");
+    L.add("        i += Character.charCount(cp);");
+    L.add("        if (Character.isLetterOrDigit(cp)) { cur.appendCodePoint(cp); continue; }");
+    L.add("        if (cur.length() > 0 && cur.length() <= 64) out.add(cur.toString());");
+    L.add("        cur.setLength(0);");
+    L.add("      }");
+    L.add("      if (cur.length() > 0 && cur.length() <= 64) out.add(cur.toString());");
+    L.add("    }");
+    L.add("");
+    L.add("    // Layout: magic | docCount, termCount | section offsets | termOffsets[] | terms | postings | docOffsets[] | docs");
+    L.add("    private void writeSegment(List<ObjectNode> docs) throws IOException {");
+    L.add("      TreeMap<String, List<Integer>> postings = new TreeMap<>();");
+    L.add("      ByteArrayOutputStream docData = new ByteArrayOutputStream();");
+    L.add("      ByteArrayOutputStream docOffsetsBytes = new ByteArrayOutputStream();");
+    L.add("      DataOutputStream docOffsets = new DataOutputStream(docOffsetsBytes);");
+    L.add("      for (int id = 0; id < docs.size(); id++) {");
+    L.add("        ObjectNode d = docs.get(id);");
+    L.add("        for (String term : terms(d)) postings.computeIfAbsent(term, k -> new ArrayList<>()).add(id);");
+    L.add("        ObjectNode stored = d.deepCopy();");
+    L.add("        stored.put(\"innerText\", trim(d.path(\"innerText\").asText(\"\"), 400));");
+    L.add("        docOffsets.writeLong(docData.size());");
+    L.add("        docData.write(OM.writeValueAsBytes(stored));");
+    L.add("      }");
+    L.add("      docOffsets.writeLong(docData.size());");
+    L.add("");
+    L.add("      ByteArrayOutputStream termOffsetsBytes = new ByteArrayOutputStream();");
+    L.add("      DataOutputStream termOffsets = new DataOutputStream(termOffsetsBytes);");
+    L.add("      ByteArrayOutputStream termBytes = new ByteArrayOutputStream();");
+    L.add("      DataOutputStream termData = new DataOutputStream(termBytes);");
+    L.add("      ByteArrayOutputStream postData = new ByteArrayOutputStream();");
+    L.add("      for (Map.Entry<String, List<Integer>> e : postings.entrySet()) {");
+    L.add("        termOffsets.writeLong(termBytes.size());");
+    L.add("        byte[] tb = e.getKey().getBytes(StandardCharsets.UTF_8);");
+    L.add("        termData.writeShort(tb.length);");
+    L.add("        termData.write(tb);");
+    L.add("        termData.writeInt(e.getValue().size());");
+    L.add("        termData.writeLong(postData.size());");
+    L.add("        int prev = 0;");
+    L.add("        for (int id : e.getValue()) { writeVarint(postData, id - prev); prev = id; }");
+    L.add("      }");
+    L.add("");
+    L.add("      long headerLen = SEG_MAGIC.length + 8 + 5 * 8;");
+    L.add("      long termOffAt = headerLen;");
+    L.add("      long termDataAt = termOffAt + termOffsetsBytes.size();");
+    L.add("      long postAt = termDataAt + termBytes.size();");
+    L.add("      long docOffAt = postAt + postData.size();");
+    L.add("      long docDataAt = docOffAt + docOffsetsBytes.size();");
+    L.add("");
+    L.add("      Path tmp = dir.resolve(\"segment.tmp\");");
+    L.add("      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {");
+    L.add("        out.write(SEG_MAGIC);");
+    L.add("        out.writeInt(docs.size());");
+    L.add("        out.writeInt(postings.size());");
+    L.add("        out.writeLong(termOffAt);");
+    L.add("        out.writeLong(termDataAt);");
+    L.add("        out.writeLong(postAt);");
+    L.add("        out.writeLong(docOffAt);");
+    L.add("        out.writeLong(docDataAt);");
+    L.add("        termOffsetsBytes.writeTo(out);");
+    L.add("        termBytes.writeTo(out);");
+    L.add("        postData.writeTo(out);");
+    L.add("        docOffsetsBytes.writeTo(out);");
+    L.add("        docData.writeTo(out);");
+    L.add("      }");
+    L.add("      Files.move(tmp, dir.resolve(String.format(\"seg_%06d.idx\", segmentFiles().size() + 1)), StandardCopyOption.ATOMIC_MOVE);");
+    L.add("    }");
+    L.add("");
+    L.add("    private List<Path> segmentFiles() throws IOException {");
+    L.add("      List<Path> segs = new ArrayList<>();");
+    L.add("      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, \"seg_*.idx\")) { for (Path p : ds) segs.add(p); }");
+    L.add("      segs.sort(Comparator.naturalOrder());");
+    L.add("      return segs;");
+    L.add("    }");
+    L.add("");
+    L.add("    // All query terms must match (AND). Terms may be plain words or tag:/kind:/host: filters.");
+    L.add("    List<JsonNode> search(String query, java.time.Instant since, java.time.Instant until, int limit) throws IOException {");
+    L.add("      List<String> qterms = new ArrayList<>();");
+    L.add("      for (String raw : query.trim().split(\"\\\\s+\")) {");
+    L.add("        if (raw.isBlank()) continue;");
+    L.add("        int colon = raw.indexOf(':');");
+    L.add("        if (colon > 0 && raw.substring(0, colon).matches(\"(?i)tag|kind|host\")) qterms.add(raw.toLowerCase(Locale.ROOT));");
+    L.add("        else tokenize(raw, qterms);");
+    L.add("      }");
+    L.add("      List<JsonNode> hits = new ArrayList<>();");
+    L.add("      if (qterms.isEmpty()) return hits;");
+    L.add("      List<Path> segs = segmentFiles();");
+    L.add("      for (int s = segs.size() - 1; s >= 0 && hits.size() < limit; s--) {");
+    L.add("        try (FileChannel ch = FileChannel.open(segs.get(s), StandardOpenOption.READ)) {");
+    L.add("          Segment seg = new Segment(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));");
+    L.add("          int[] ids = null;");
+    L.add("          for (String t : qterms) {");
+    L.add("            int[] p = seg.postings(t);");
+    L.add("            ids = ids == null ? p : intersect(ids, p);");
+    L.add("            if (ids.length == 0) break;");
+    L.add("          }");
+    L.add("          for (int i = ids.length - 1; i >= 0 && hits.size() < limit; i--) {");
+    L.add("            JsonNode d = seg.doc(ids[i]);");
+    L.add("            if (!d.path(\"version\").asText(\"\").equals(ingested.get(d.path(\"source\").asText(\"\")))) continue;");
+    L.add("            java.time.Instant at = parseInstant(d.path(\"capturedAt\").asText(\"\"));");
+    L.add("            if (since != null && (at == null || at.isBefore(since))) continue;");
+    L.add("            if (until != null && (at == null || at.isAfter(until))) continue;");
+    L.add("            hits.add(d);");
+    L.add("          }");
+    L.add("        }");
+    L.add("      }");
+    L.add("      return hits;");
+    L.add("    }");
+    L.add("");
+    L.add("    static class Segment {");
+    L.add("      private final MappedByteBuffer b;");
+    L.add("      private final int docCount, termCount;");
+    L.add("      private final long termOffAt, termDataAt, postAt, docOffAt, docDataAt;");
+    L.add("      Segment(MappedByteBuffer b) throws IOException {");
+    L.add("        this.b = b;");
+    L.add("        byte[] magic = new byte[SEG_MAGIC.length];");
+    L.add("        b.get(0, magic);");
+    L.add("        if (!Arrays.equals(magic, SEG_MAGIC)) throw new IOException(\"Not an index segment\");");
+    L.add("        int p = SEG_MAGIC.length;");
+    L.add("        docCount = b.getInt(p); termCount = b.getInt(p + 4);");
+    L.add("        termOffAt = b.getLong(p + 8); termDataAt = b.getLong(p + 16); postAt = b.getLong(p + 24);");
+    L.add("        docOffAt = b.getLong(p + 32); docDataAt = b.getLong(p + 40);");
+    L.add("      }");
+    L.add("      private String termAt(int i) {");
+    L.add("        int at = (int) (termDataAt + b.getLong((int) (termOffAt + 8L * i)));");
+    L.add("        byte[] tb = new byte[b.getShort(at)];");
+    L.add("        b.get(at + 2, tb);");
+    L.add("        return new String(tb, StandardCharsets.UTF_8);");
+    L.add("      }");
+    L.add("      int[] postings(String term) {");
+    L.add("        int lo = 0, hi = termCount - 1;");
+    L.add("        while (lo <= hi) {");
+    L.add("          int mid = (lo + hi) >>> 1;");
+    L.add("          int c = termAt(mid).compareTo(term);");
+    L.add("          if (c < 0) lo = mid + 1;");
+    L.add("          else if (c > 0) hi = mid - 1;");
+    L.add("          else {");
+    L.add("            int at = (int) (termDataAt + b.getLong((int) (termOffAt + 8L * mid)));");
+    L.add("            at += 2 + b.getShort(at);");
+    L.add("            int df = b.getInt(at);");
+    L.add("            int pos = (int) (postAt + b.getLong(at + 4));");
+    L.add("            int[] ids = new int[df];");
+    L.add("            int prev = 0;");
+    L.add("            for (int k = 0; k < df; k++) {");
+    L.add("              int v = 0, shift = 0, x;");
+    L.add("              do { x = b.get(pos++) & 0xff; v |= (x & 0x7f) << shift; shift += 7; } while ((x & 0x80) != 0);");
+    L.add("              prev += v;");
+    L.add("              ids[k] = prev;");
+    L.add("            }");
+    L.add("            return ids;");
+    L.add("          }");
+    L.add("        }");
+    L.add("        return new int[0];");
+    L.add("      }");
+    L.add("      JsonNode doc(int id) throws IOException {");
+    L.add("        long start = b.getLong((int) (docOffAt + 8L * id));");
+    L.add("        long end = b.getLong((int) (docOffAt + 8L * (id + 1)));");
+    L.add("        byte[] json = new byte[(int) (end - start)];");
+    L.add("        b.get((int) (docDataAt + start), json);");
+    L.add("        return OM.readTree(json);");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static int[] intersect(int[] a, int[] b) {");
+    L.add("      int[] out = new int[Math.min(a.length, b.length)];");
+    L.add("      int i = 0, j = 0, n = 0;");
+    L.add("      while (i < a.length && j < b.length) {");
+    L.add("        if (a[i] < b[j]) i++;");
+    L.add("        else if (a[i] > b[j]) j++;");
+    L.add("        else { out[n++] = a[i]; i++; j++; }");
+    L.add("      }");
+    L.add("      return Arrays.copyOf(out, n);");
+    L.add("    }");
+    L.add("");
+    L.add("    private static void writeVarint(ByteArrayOutputStream out, int v) {");
+    L.add("      while ((v & ~0x7f) != 0) { out.write((v & 0x7f) | 0x80); v >>>= 7; }");
+    L.add("      out.write(v);");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static java.time.Instant parseInstant(String s) {");
+    L.add("    if (s == null || s.isBlank()) return null;");
+    L.add("    try { return OffsetDateTime.parse(s).toInstant(); } catch (Exception ignored) {}");
+    L.add("    try { return java.time.LocalDate.parse(s).atStartOfDay(java.time.ZoneId.systemDefault()).toInstant(); } catch (Exception ignored) {}");
+    L.add("    return null;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void runIndex(String query, String[] args) throws Exception {");
+    L.add("    CaptureIndex index = new CaptureIndex(Paths.get(argValue(args, \"--root\", \".\")).toAbsolutePath().normalize());");
+    L.add("    long t0 = System.nanoTime();");
+    L.add("    int added = index.ingest();");
+    L.add("    System.out.println(\"Index: \" + added + \" new results ingested in \" + (System.nanoTime() - t0) / 1_000_000 + \" ms\");");
+    L.add("    if (query.isBlank()) return;");
+    L.add("    t0 = System.nanoTime();");
+    L.add("    List<JsonNode> hits = index.search(query, parseInstant(argValue(args, \"--since\", \"\")), parseInstant(argValue(args, \"--until\", \"\")), intOr(argValue(args, \"--limit\", \"50\"), 50));");
+    L.add("    for (JsonNode h : hits) {");
+    L.add("      System.out.println(h.path(\"capturedAt\").asText(\"\") + \"  \" + h.path(\"captureDir\").asText(\"\") + \"  #\" + h.path(\"index\").asInt() + \"  \" + h.path(\"selector\").asText(\"\"));");
+    L.add("      String text = h.path(\"innerText\").asText(\"\").isBlank() ? h.path(\"pickedText\").asText(\"\") : h.path(\"innerText\").asText(\"\");");
+    L.add("      System.out.println(\"    \" + h.path(\"url\").asText(\"\") + \"  \" + trim(text.replaceAll(\"\\\\s+\", \" \"), 160));");
+    L.add("    }");
+    L.add("    System.out.println(hits.size() + \" hit(s) in \" + (System.nanoTime() - t0) / 1_000_000 + \" ms\");");
+    L.add("  }");
+    L.add("");
+    L.add("  static final String DOM_SNAPSHOT = \"dom_snapshot.html\";");
+    L.add("");
+    L.add("  // Browserless re-extraction: runs a selection profile over the stored dom_snapshot.html of every capture");
+    L.add("  // under --root with jsoup, --threads snapshots at a time. No screenshots or media. Writes one");
+    L.add("  // <captureDir>.json per capture plus summary.ndjson into --out. Text comes from jsoup's text(), which");
+    L.add("  // follows textContent, so it can differ slightly from innerText on the live page.");
+    L.add("  private static void runReextract(String selProfile, String[] args) throws Exception {");
+    L.add("    ArrayNode selections = selectionsFromSelectionProfile(selProfile, 0);");
+    L.add("    if (selections.isEmpty()) { System.out.println(\"No selections in \" + selProfile); return; }");
+    L.add("    Path root = Paths.get(argValue(args, \"--root\", \".\")).toAbsolutePath().normalize();");
+    L.add("    java.time.Instant since = parseInstant(argValue(args, \"--since\", \"\"));");
+    L.add("    java.time.Instant until = parseInstant(argValue(args, \"--until\", \"\"));");
+    L.add("    int threads = Math.max(1, intOr(argValue(args, \"--threads\", \"\"), Runtime.getRuntime().availableProcessors()));");
+    L.add("    String ts = OffsetDateTime.now().format(DateTimeFormatter.ofPattern(\"yyyyMMdd_HHmmss\"));");
+    L.add("    Path out = Paths.get(argValue(args, \"--out\", \"reextract_\" + selProfile + \"_\" + ts)).toAbsolutePath();");
+    L.add("    Files.createDirectories(out);");
+    L.add("");
+    L.add("    List<Path> captures = new ArrayList<>();");
+    L.add("    try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, \"aim_capture_*\")) {");
+    L.add("      for (Path d : ds) if (Files.isDirectory(d)) captures.add(d);");
+    L.add("    }");
+    L.add("    captures.sort(Comparator.naturalOrder());");
+    L.add("");
+    L.add("    long t0 = System.nanoTime();");
+    L.add("    ExecutorService pool = Executors.newFixedThreadPool(threads);");
+    L.add("    int done = 0, skipped = 0, failed = 0;");
+    L.add("    try (Writer summary = Files.newBufferedWriter(out.resolve(\"summary.ndjson\"), StandardCharsets.UTF_8)) {");
+    L.add("      List<Future<ObjectNode>> futures = new ArrayList<>();");
+    L.add("      for (Path d : captures) futures.add(pool.submit(() -> reextractOne(d, selections, since, until, out)));");
+    L.add("      for (int i = 0; i < futures.size(); i++) {");
+    L.add("        ObjectNode line;");
+    L.add("        try { line = futures.get(i).get(); }");
+    L.add("        catch (ExecutionException e) {");
+    L.add("          line = OM.createObjectNode();");
+    L.add("          line.put(\"capture\", captures.get(i).getFileName().toString());");
+    L.add("          line.put(\"error\", String.valueOf(e.getCause()));");
+    L.add("        }");
+    L.add("        if (line == null) { skipped++; continue; }");
+    L.add("        if (line.has(\"error\")) failed++; else done++;");
+    L.add("        summary.write(OM.writeValueAsString(line));");
+    L.add("        summary.write(\"\\n\");");
+    L.add("      }");
+    L.add("    } finally {");
+    L.add("      pool.shutdown();");
+    L.add("    }");
+    L.add("    System.out.println(\"Re-extracted \" + done + \" capture(s), \" + skipped + \" skipped, \" + failed + \" failed in \"");
+    L.add("      + (System.nanoTime() - t0) / 1_000_000 + \" ms -> \" + out);");
+    L.add("  }");
+    L.add("");
+    L.add("  // Returns the summary line for one capture, or null when it has no snapshot or is outside --since/--until.");
+    L.add("  private static ObjectNode reextractOne(Path dir, ArrayNode selections, java.time.Instant since, java.time.Instant until, Path out) throws IOException {");
+    L.add("    byte[] manifest = readArtifact(dir, \"manifest.json\");");
+    L.add("    byte[] html = manifest == null ? null : readArtifact(dir, DOM_SNAPSHOT);");
+    L.add("    if (html == null) return null;");
+    L.add("    JsonNode m = OM.readTree(manifest);");
+    L.add("    java.time.Instant at = parseInstant(m.path(\"capturedAt\").asText(\"\"));");
+    L.add("    if (at != null && ((since != null && at.isBefore(since)) || (until != null && at.isAfter(until)))) return null;");
+    L.add("");
+    L.add("    String pageUrl = m.path(\"domSnapshot\").path(\"url\").asText(m.path(\"pageUrl\").asText(\"\"));");
+    L.add("    Document doc = Jsoup.parse(new String(html, StandardCharsets.UTF_8), pageUrl);");
+    L.add("    doc.outputSettings().prettyPrint(false);");
+    L.add("    doc.select(\"[id^=__aim_]\").remove();");
+    L.add("    doc.select(\".__aim_selected_outline, .__aim_profile_outline\").removeClass(\"__aim_selected_outline\").removeClass(\"__aim_profile_outline\");");
+    L.add("");
+    L.add("    ObjectNode result = OM.createObjectNode();");
+    L.add("    result.put(\"capture\", dir.getFileName().toString());");
+    L.add("    result.put(\"pageUrl\", pageUrl);");
+    L.add("    result.put(\"capturedAt\", m.path(\"capturedAt\").asText(\"\"));");
+    L.add("    ArrayNode items = result.putArray(\"results\");");
+    L.add("    int found = 0, idx = 0;");
+    L.add("    for (JsonNode sel : selections) {");
+    L.add("      idx++;");
+    L.add("      String selector = sel.path(\"selector\").asText(\"\");");
+    L.add("      ObjectNode r = items.addObject();");
+    L.add("      r.put(\"index\", idx);");
+    L.add("      r.put(\"selector\", selector);");
+    L.add("      r.put(\"kind\", sel.path(\"kind\").asText(\"\"));");
+    L.add("      try {");
+    L.add("        if (\"list\".equals(sel.path(\"kind\").asText(\"\"))) {");
+    L.add("          LinkedHashMap<String, String> fields = new LinkedHashMap<>();");
+    L.add("          sel.path(\"fields\").fields().forEachRemaining(e -> fields.put(e.getKey(), e.getValue().asText(\"\")));");
+    L.add("          if (fields.isEmpty()) fields.put(\"text\", \".\");");
+    L.add("          int limit = sel.path(\"limit\").asInt(0);");
+    L.add("          Elements all = doc.select(selector);");
+    L.add("          r.put(\"matches\", all.size());");
+    L.add("          ArrayNode rows = r.putArray(\"rows\");");
+    L.add("          for (Element el : all) {");
+    L.add("            if (limit > 0 && rows.size() >= limit) break;");
+    L.add("            ObjectNode row = rows.addObject();");
+    L.add("            for (Map.Entry<String, String> f : fields.entrySet()) row.put(f.getKey(), jsoupValue(el, f.getValue()));");
+    L.add("          }");
+    L.add("          if (!all.isEmpty()) found++;");
+    L.add("          continue;");
+    L.add("        }");
+    L.add("        Element el = doc.selectFirst(selector);");
+    L.add("        r.put(\"found\", el != null);");
+    L.add("        if (el == null) continue;");
+    L.add("        found++;");
+    L.add("        r.put(\"tag\", el.tagName());");
+    L.add("        r.put(\"text\", el.text());");
+    L.add("        Element media = el.is(\"img, video, source\") ? el : el.selectFirst(\"img, video, source\");");
+    L.add("        if (media != null) r.put(\"src\", jsoupValue(media, \".@src\"));");
+    L.add("        if (el.is(\"a\")) r.put(\"href\", jsoupValue(el, \".@href\"));");
+    L.add("        r.put(\"outerHtml\", el.outerHtml());");
+    L.add("      } catch (Exception e) {");
+    L.add("        r.put(\"error\", String.valueOf(e.getMessage()));");
+    L.add("      }");
+    L.add("    }");
+    L.add("    Path file = out.resolve(dir.getFileName() + \".json\");");
+    L.add("    OM.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), result);");
+    L.add("");
+    L.add("    ObjectNode line = OM.createObjectNode();");
+    L.add("    line.put(\"capture\", dir.getFileName().toString());");
+    L.add("    line.put(\"capturedAt\", result.path(\"capturedAt\").asText(\"\"));");
+    L.add("    line.put(\"pageUrl\", pageUrl);");
+    L.add("    line.put(\"found\", found);");
+    L.add("    line.put(\"items\", idx);");
+    L.add("    line.put(\"file\", file.getFileName().toString());");
+    L.add("    return line;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Same field spec as LIST_JS: \"css@attr\", \".\" for the row itself, \"@html\" for outerHTML, text by default.");
+    L.add("  private static String jsoupValue(Element root, String spec) {");
+    L.add("    spec = String.valueOf(spec).trim();");
+    L.add("    String css = spec, attr = \"\";");
+    L.add("    int at = spec.lastIndexOf('@');");
+    L.add("    if (at >= 0) { css = spec.substring(0, at).trim(); attr = spec.substring(at + 1).trim(); }");
+    L.add("    Element el = css.isEmpty() || \".\".equals(css) ? root : root.selectFirst(css);");
+    L.add("    if (el == null) return \"\";");
+    L.add("    if (attr.isEmpty()) return el.text();");
+    L.add("    if (\"html\".equals(attr)) return el.outerHtml();");
+    L.add("    if (\"href\".equals(attr) || \"src\".equals(attr)) { String abs = el.absUrl(attr); return abs.isEmpty() ? el.attr(attr) : abs; }");
+    L.add("    return el.attr(attr);");
+    L.add("  }");
+    L.add("");
+    L.add("  // --serve <captureDir|root> (and --serve-bundle): a local HTTP server for capture_viewer.html, which cannot");
+    L.add("  // fetch ./manifest.json over file://. A root holding aim_capture_* directories lists them at / (and as");
+    L.add("  // /captures.json, both paged); a single capture, loose or bundled, is served at /. Bodies stream straight");
+    L.add("  // from the file or the bundle mapping, never read whole: single byte ranges for video seeking, ETags for");
+    L.add("  // revalidation, a year of immutable caching for media, thumbs, tiles and sidecars, and gzip on the fly for");
+    L.add("  // JSON/HTML/text when the client accepts it. A stored name.gz answers for name with Content-Encoding: gzip;");
+    L.add("  // asked for by its own name it goes out as application/gzip, which is what the viewer decodes itself.");
+    L.add("  static class CaptureServer {");
+    L.add("    private static final long GZIP_MIN_BYTES = 1024;");
+    L.add("    private static final int PAGE = 200;");
+    L.add("    private static final String IMMUTABLE = \"public, max-age=31536000, immutable\";");
+    L.add("    private final Path root, bundleFile;");
+    L.add("    private final boolean single;");
+    L.add("    private final Map<Path, ObjectNode> summaries = new ConcurrentHashMap<>();");
+    L.add("");
+    L.add("    // bundleFile overrides <root>/capture.aimb (--serve-bundle accepts any file name).");
+    L.add("    CaptureServer(Path root, Path bundleFile) {");
+    L.add("      this.root = root.toAbsolutePath().normalize();");
+    L.add("      this.bundleFile = bundleFile;");
+    L.add("      this.single = bundleFile != null || isCapture(this.root);");
+    L.add("    }");
+    L.add("");
+    L.add("    static boolean isCapture(Path dir) {");
+    L.add("      return Files.exists(dir.resolve(\"manifest.json\")) || Files.exists(dir.resolve(\"manifest.json.gz\")) || Files.exists(dir.resolve(BUNDLE_FILE));");
+    L.add("    }");
+    L.add("");
+    L.add("    // A servable artifact: a loose file (sent with FileChannel.transferTo) or a slice of a bundle mapping.");
+    L.add("    static final class Blob {");
+    L.add("      final String name, etag;");
+    L.add("      final long length;");
+    L.add("      final Path file;");
+    L.add("      final ByteBuffer mapped;");
+    L.add("      final boolean gzipped;");
+    L.add("      Blob(String name, String etag, long length, Path file, ByteBuffer mapped, boolean gzipped) {");
+    L.add("        this.name = name; this.etag = etag; this.length = length; this.file = file; this.mapped = mapped; this.gzipped = gzipped;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    void start(int port) throws Exception {");
+    L.add("      HttpServer server = listen(port);");
+    L.add("      System.out.println(\"Serving \" + (bundleFile != null ? bundleFile : root) + (single ? \"\" : \" (\" + captures().size() + \" capture(s))\"));");
+    L.add("      System.out.println(\"Viewer: http://127.0.0.1:\" + server.getAddress().getPort() + \"/\");");
+    L.add("      Thread.currentThread().join();");
+    L.add("    }");
+    L.add("");
+    L.add("    // Binds 127.0.0.1:port (0 picks a free port) and serves from a background pool until stopped.");
+    L.add("    HttpServer listen(int port) throws IOException {");
+    L.add("      if (!Files.isDirectory(root)) throw new FileNotFoundException(\"Not a directory: \" + root);");
+    L.add("      HttpServer server = HttpServer.create(new InetSocketAddress(\"127.0.0.1\", port), 0);");
+    L.add("      server.setExecutor(Executors.newFixedThreadPool(16, r -> { Thread t = new Thread(r, \"aim-serve\"); t.setDaemon(true); return t; }));");
+    L.add("      server.createContext(\"/\", ex -> {");
+    L.add("        try {");
+    L.add("          handle(ex);");
+    L.add("        } catch (Exception e) {");
+    L.add("          try { ex.sendResponseHeaders(500, -1); } catch (Exception ignored) {}");
+    L.add("        } finally {");
+    L.add("          ex.close();");
+    L.add("        }");
+    L.add("      });");
+    L.add("      server.start();");
+    L.add("      return server;");
+    L.add("    }");
+    L.add("");
+    L.add("    private void handle(com.sun.net.httpserver.HttpExchange ex) throws IOException {");
+    L.add("      String method = ex.getRequestMethod();");
+    L.add("      boolean head = \"HEAD\".equalsIgnoreCase(method);");
+    L.add("      if (!head && !\"GET\".equalsIgnoreCase(method)) { ex.getResponseHeaders().set(\"Allow\", \"GET, HEAD\"); ex.sendResponseHeaders(405, -1); return; }");
+    L.add("      String path = ex.getRequestURI().getPath();");
+    L.add("      if (path == null || path.contains(\"\\\\\") || Arrays.asList(path.split(\"/\")).contains(\"..\")) { ex.sendResponseHeaders(400, -1); return; }");
+    L.add("      String rel = path.replaceFirst(\"^/+\", \"\");");
+    L.add("      Path dir = root;");
+    L.add("      if (!single) {");
+    L.add("        if (rel.isEmpty() || rel.equals(\"captures.json\")) { listing(ex, rel.isEmpty(), head); return; }");
+    L.add("        int slash = rel.indexOf('/');");
+    L.add("        String cap = slash < 0 ? rel : rel.substring(0, slash);");
+    L.add("        dir = root.resolve(cap).normalize();");
+    L.add("        if (!dir.getParent().equals(root) || !Files.isDirectory(dir) || !isCapture(dir)) { ex.sendResponseHeaders(404, -1); return; }");
+    L.add("        if (slash < 0) { ex.getResponseHeaders().set(\"Location\", \"/\" + cap + \"/\"); ex.sendResponseHeaders(301, -1); return; }");
+    L.add("        rel = rel.substring(slash + 1);");
+    L.add("      }");
+    L.add("      if (rel.isEmpty()) rel = \"capture_viewer.html\";");
+    L.add("      Blob b = find(dir, rel);");
+    L.add("      if (b == null) { ex.sendResponseHeaders(404, -1); return; }");
+    L.add("      send(ex, b, head);");
+    L.add("    }");
+    L.add("");
+    L.add("    // Bundle entry first, then the loose file, then either one stored as name.gz.");
+    L.add("    private Blob find(Path dir, String name) throws IOException {");
+    L.add("      Path bundle = bundleFile != null && dir.equals(root) ? bundleFile : dir.resolve(BUNDLE_FILE);");
+    L.add("      if (Files.exists(bundle)) {");
+    L.add("        BundleReader reader = openBundle(bundle);");
+    L.add("        for (String n : new String[]{ name, name + \".gz\" }) {");
+    L.add("          ByteBuffer body;");
+    L.add("          // The reader can be closed by a cache eviction between openBundle() and here; take a fresh one.");
+    L.add("          try { body = reader.get(n); } catch (java.nio.channels.ClosedChannelException evicted) { reader = openBundle(bundle); body = reader.get(n); }");
+    L.add("          if (body != null) return new Blob(name, \"\\\"\" + reader.version + \"-\" + Integer.toHexString(n.hashCode()) + \"\\\"\", body.remaining(), null, body, !n.equals(name));");
+    L.add("        }");
+    L.add("      }");
+    L.add("      for (String n : new String[]{ name, name + \".gz\" }) {");
+    L.add("        Path f = dir.resolve(n).normalize();");
+    L.add("        if (!f.startsWith(dir) || !Files.isRegularFile(f)) continue;");
+    L.add("        long size = Files.size(f);");
+    L.add("        String etag = \"\\\"\" + Long.toHexString(size) + \"-\" + Long.toHexString(Files.getLastModifiedTime(f).toMillis()) + \"\\\"\";");
+    L.add("        return new Blob(name, etag, size, f, null, !n.equals(name));");
+    L.add("      }");
+    L.add("      return null;");
+    L.add("    }");
+    L.add("");
+    L.add("    private void send(com.sun.net.httpserver.HttpExchange ex, Blob b, boolean head) throws IOException {");
+    L.add("      com.sun.net.httpserver.Headers req = ex.getRequestHeaders(), h = ex.getResponseHeaders();");
+    L.add("      String type = contentTypeFor(b.name);");
+    L.add("      boolean compressible = type.startsWith(\"text/\") || type.startsWith(\"application/json\") || type.startsWith(\"application/javascript\");");
+    L.add("      boolean acceptsGzip = String.valueOf(req.getFirst(\"Accept-Encoding\")).toLowerCase(Locale.ROOT).contains(\"gzip\");");
+    L.add("      String range = req.getFirst(\"Range\");");
+    L.add("      String ifRange = req.getFirst(\"If-Range\");");
+    L.add("      if (ifRange != null && !ifRange.equals(b.etag)) range = null;");
+    L.add("      boolean gzipNow = !b.gzipped && compressible && acceptsGzip && range == null && b.length >= GZIP_MIN_BYTES;");
+    L.add("      String etag = gzipNow || b.gzipped ? b.etag.substring(0, b.etag.length() - 1) + \"-gz\\\"\" : b.etag;");
+    L.add("");
+    L.add("      h.set(\"Content-Type\", type);");
+    L.add("      h.set(\"ETag\", etag);");
+    L.add("      h.set(\"Cache-Control\", immutable(b.name) ? IMMUTABLE : \"no-cache\");");
+    L.add("      if (compressible || b.gzipped) h.set(\"Vary\", \"Accept-Encoding\");");
+    L.add("      String inm = req.getFirst(\"If-None-Match\");");
+    L.add("      if (inm != null && (inm.trim().equals(\"*\") || Arrays.stream(inm.split(\",\")).map(String::trim).map(t -> t.replaceFirst(\"^W/\", \"\")).anyMatch(etag::equals))) {");
+    L.add("        ex.sendResponseHeaders(304, -1);");
+    L.add("        return;");
+    L.add("      }");
+    L.add("");
+    L.add("      if (b.gzipped) {");
+    L.add("        // Stored compressed: pass through to clients that take gzip, inflate for the rest.");
+    L.add("        if (acceptsGzip) {");
+    L.add("          h.set(\"Content-Encoding\", \"gzip\");");
+    L.add("          h.set(\"Content-Length\", String.valueOf(b.length));");
+    L.add("          ex.sendResponseHeaders(200, head ? -1 : b.length);");
+    L.add("          if (!head) try (OutputStream os = ex.getResponseBody()) { copy(b, os, 0, b.length); }");
+    L.add("        } else {");
+    L.add("          ex.sendResponseHeaders(200, head ? -1 : 0);");
+    L.add("          if (!head) try (InputStream in = new GZIPInputStream(open(b)); OutputStream os = ex.getResponseBody()) { in.transferTo(os); }");
+    L.add("        }");
+    L.add("        return;");
+    L.add("      }");
+    L.add("");
+    L.add("      h.set(\"Accept-Ranges\", \"bytes\");");
+    L.add("      if (range != null) {");
+    L.add("        long[] r = parseRange(range, b.length);");
+    L.add("        if (r == null) {");
+    L.add("          h.set(\"Content-Range\", \"bytes */\" + b.length);");
+    L.add("          ex.sendResponseHeaders(416, -1);");
+    L.add("          return;");
+    L.add("        }");
+    L.add("        if (r.length == 2) {");
+    L.add("          long len = r[1] - r[0] + 1;");
+    L.add("          h.set(\"Content-Range\", \"bytes \" + r[0] + \"-\" + r[1] + \"/\" + b.length);");
+    L.add("          h.set(\"Content-Length\", String.valueOf(len));");
+    L.add("          ex.sendResponseHeaders(206, head ? -1 : len);");
+    L.add("          if (!head) try (OutputStream os = ex.getResponseBody()) { copy(b, os, r[0], len); }");
+    L.add("          return;");
+    L.add("        }");
+    L.add("      }");
+    L.add("      if (gzipNow) {");
+    L.add("        h.set(\"Content-Encoding\", \"gzip\");");
+    L.add("        ex.sendResponseHeaders(200, head ? -1 : 0);");
+    L.add("        if (!head) try (OutputStream os = new GZIPOutputStream(ex.getResponseBody(), 1 << 16)) { copy(b, os, 0, b.length); }");
+    L.add("        return;");
+    L.add("      }");
+    L.add("      h.set(\"Content-Length\", String.valueOf(b.length));");
+    L.add("      ex.sendResponseHeaders(200, head ? -1 : (b.length == 0 ? -1 : b.length));");
+    L.add("      if (!head && b.length > 0) try (OutputStream os = ex.getResponseBody()) { copy(b, os, 0, b.length); }");
+    L.add("    }");
+    L.add("");
+    L.add("    // \"bytes=a-b\", \"bytes=a-\" or \"bytes=-n\": {start, end}; {} for a multi-range header (answered with the");
+    L.add("    // whole body); null when unsatisfiable.");
+    L.add("    static long[] parseRange(String header, long length) {");
+    L.add("      String v = header.trim();");
+    L.add("      if (!v.startsWith(\"bytes=\")) return new long[0];");
+    L.add("      v = v.substring(6).trim();");
+    L.add("      if (v.contains(\",\")) return new long[0];");
+    L.add("      int dash = v.indexOf('-');");
+    L.add("      if (dash < 0) return null;");
+    L.add("      try {");
+    L.add("        String a = v.substring(0, dash).trim(), z = v.substring(dash + 1).trim();");
+    L.add("        long start, end;");
+    L.add("        if (a.isEmpty()) {");
+    L.add("          long n = Long.parseLong(z);");
+    L.add("          if (n <= 0) return null;");
+    L.add("          start = Math.max(0, length - n);");
+    L.add("          end = length - 1;");
+    L.add("        } else {");
+    L.add("          start = Long.parseLong(a);");
+    L.add("          end = z.isEmpty() ? length - 1 : Math.min(Long.parseLong(z), length - 1);");
+    L.add("        }");
+    L.add("        return start < 0 || start >= length || end < start ? null : new long[]{ start, end };");
+    L.add("      } catch (NumberFormatException e) {");
+    L.add("        return null;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    // Artifacts under these folders (and binary media anywhere) never change once a capture is written.");
+    L.add("    private static boolean immutable(String name) {");
+    L.add("      String n = name.toLowerCase(Locale.ROOT);");
+    L.add("      if (n.startsWith(\"media/\") || n.startsWith(\"thumbs/\") || n.startsWith(\"html/\") || n.startsWith(\"page_tiles/\") || n.startsWith(\"lists/\")) return true;");
+    L.add("      return n.endsWith(\".png\") || n.endsWith(\".jpg\") || n.endsWith(\".jpeg\") || n.endsWith(\".webp\") || n.endsWith(\".gif\")");
+    L.add("        || n.endsWith(\".mp4\") || n.endsWith(\".webm\") || n.endsWith(\".gz\");");
+    L.add("    }");
+    L.add("");
+    L.add("    private static void copy(Blob b, OutputStream os, long off, long len) throws IOException {");
+    L.add("      java.nio.channels.WritableByteChannel out = java.nio.channels.Channels.newChannel(os);");
+    L.add("      if (b.file != null) {");
+    L.add("        try (FileChannel ch = FileChannel.open(b.file, StandardOpenOption.READ)) {");
+    L.add("          while (len > 0) {");
+    L.add("            long n = ch.transferTo(off, len, out);");
+    L.add("            if (n <= 0) break;");
+    L.add("            off += n;");
+    L.add("            len -= n;");
+    L.add("          }");
+    L.add("        }");
+    L.add("      } else {");
+    L.add("        ByteBuffer body = b.mapped.duplicate();");
+    L.add("        body.position((int) off).limit((int) (off + len));");
+    L.add("        while (body.hasRemaining()) out.write(body);");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static InputStream open(Blob b) throws IOException {");
+    L.add("      if (b.file != null) return new BufferedInputStream(Files.newInputStream(b.file), 1 << 16);");
+    L.add("      ByteBuffer body = b.mapped.duplicate();");
+    L.add("      return new InputStream() {");
+    L.add("        @Override public int read() { return body.hasRemaining() ? body.get() & 0xff : -1; }");
+    L.add("        @Override public int read(byte[] a, int off, int len) {");
+    L.add("          if (!body.hasRemaining()) return -1;");
+    L.add("          int n = Math.min(len, body.remaining());");
+    L.add("          body.get(a, off, n);");
+    L.add("          return n;");
+    L.add("        }");
+    L.add("      };");
+    L.add("    }");
+    L.add("");
+    L.add("    private List<Path> captures() throws IOException {");
+    L.add("      List<Path> out = new ArrayList<>();");
+    L.add("      try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, \"aim_capture_*\")) {");
+    L.add("        for (Path d : ds) if (Files.isDirectory(d) && isCapture(d)) out.add(d);");
+    L.add("      }");
+    L.add("      out.sort(Comparator.reverseOrder());");
+    L.add("      return out;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Newest first, PAGE at a time (?offset=N). Only the page being shown has its manifest read, and each");
+    L.add("    // summary is cached until its manifest or bundle changes, so a large archive lists quickly.");
+    L.add("    private void listing(com.sun.net.httpserver.HttpExchange ex, boolean html, boolean head) throws IOException {");
+    L.add("      List<Path> all = captures();");
+    L.add("      String query = String.valueOf(ex.getRequestURI().getQuery());");
+    L.add("      int offset = 0;");
+    L.add("      for (String kv : query.split(\"&\")) if (kv.startsWith(\"offset=\")) offset = Math.max(0, intOr(kv.substring(7), 0));");
+    L.add("      ArrayNode items = OM.createArrayNode();");
+    L.add("      for (Path d : all.subList(Math.min(offset, all.size()), Math.min(offset + PAGE, all.size()))) items.add(summary(d));");
+    L.add("      byte[] body;");
+    L.add("      if (html) {");
+    L.add("        StringBuilder sb = new StringBuilder(\"<!doctype html><meta charset=\\\"utf-8\\\"><title>Captures</title>\"");
+    L.add("          + \"<style>body{font:13px system-ui,sans-serif;margin:20px;background:#0b1020;color:#e5e7eb}a{color:#22d3ee}\"");
+    L.add("          + \"td{padding:4px 10px;border-bottom:1px solid #1f2937;vertical-align:top}</style>\");");
+    L.add("        sb.append(\"<h3>\").append(all.size()).append(\" capture(s) in \").append(escHtml(root.toString())).append(\"</h3><table>\");");
+    L.add("        for (JsonNode c : items) {");
+    L.add("          sb.append(\"<tr><td><a href=\\\"/\").append(escHtml(c.path(\"name\").asText())).append(\"/\\\">\").append(escHtml(c.path(\"name\").asText())).append(\"</a></td>\")");
+    L.add("            .append(\"<td>\").append(escHtml(c.path(\"capturedAt\").asText(\"\"))).append(\"</td>\")");
+    L.add("            .append(\"<td>\").append(escHtml(c.path(\"label\").asText(\"\"))).append(\"</td>\")");
+    L.add("            .append(\"<td>\").append(escHtml(c.path(\"pageUrl\").asText(\"\"))).append(\"</td>\")");
+    L.add("            .append(\"<td>\").append(c.path(\"results\").asInt()).append(\" item(s), \").append(escHtml(c.path(\"storage\").asText(\"\"))).append(\"</td></tr>\");");
+    L.add("        }");
+    L.add("        sb.append(\"</table>\");");
+    L.add("        if (offset > 0) sb.append(\"<a href=\\\"/?offset=\").append(Math.max(0, offset - PAGE)).append(\"\\\">newer</a> \");");
+    L.add("        if (offset + PAGE < all.size()) sb.append(\"<a href=\\\"/?offset=\").append(offset + PAGE).append(\"\\\">older</a>\");");
+    L.add("        body = sb.toString().getBytes(StandardCharsets.UTF_8);");
+    L.add("      } else {");
+    L.add("        ObjectNode o = OM.createObjectNode();");
+    L.add("        o.put(\"total\", all.size());");
+    L.add("        o.put(\"offset\", offset);");
+    L.add("        o.set(\"captures\", items);");
+    L.add("        body = OM.writeValueAsBytes(o);");
+    L.add("      }");
+    L.add("      ex.getResponseHeaders().set(\"Content-Type\", html ? \"text/html; charset=utf-8\" : \"application/json; charset=utf-8\");");
+    L.add("      ex.getResponseHeaders().set(\"Cache-Control\", \"no-store\");");
+    L.add("      ex.sendResponseHeaders(200, head ? -1 : body.length);");
+    L.add("      if (!head) try (OutputStream os = ex.getResponseBody()) { os.write(body); }");
+    L.add("    }");
+    L.add("");
+    L.add("    private ObjectNode summary(Path dir) {");
+    L.add("      Path src = Files.exists(dir.resolve(BUNDLE_FILE)) ? dir.resolve(BUNDLE_FILE)");
+    L.add("        : Files.exists(dir.resolve(\"manifest.json\")) ? dir.resolve(\"manifest.json\") : dir.resolve(\"manifest.json.gz\");");
+    L.add("      long version;");
+    L.add("      try { version = Files.getLastModifiedTime(src).toMillis() ^ Files.size(src); } catch (IOException e) { version = 0; }");
+    L.add("      ObjectNode cached = summaries.get(dir);");
+    L.add("      if (cached != null && cached.path(\"version\").asLong() == version) return cached;");
+    L.add("      ObjectNode o = OM.createObjectNode();");
+    L.add("      o.put(\"name\", dir.getFileName().toString());");
+    L.add("      o.put(\"version\", version);");
+    L.add("      o.put(\"storage\", src.getFileName().toString().equals(BUNDLE_FILE) ? \"bundle\" : src.getFileName().toString().endsWith(\".gz\") ? \"gzip\" : \"loose\");");
+    L.add("      try {");
+    L.add("        JsonNode m = OM.readTree(readArtifact(dir, \"manifest.json\"));");
+    L.add("        o.put(\"capturedAt\", m.path(\"capturedAt\").asText(\"\"));");
+    L.add("        o.put(\"pageUrl\", m.path(\"pageUrl\").asText(\"\"));");
+    L.add("        o.put(\"label\", m.path(\"label\").asText(\"\"));");
+    L.add("        o.put(\"results\", m.path(\"results\").size());");
+    L.add("      } catch (Exception e) {");
+    L.add("        o.put(\"error\", String.valueOf(e.getMessage()));");
+    L.add("      }");
+    L.add("      summaries.put(dir, o);");
+    L.add("      return o;");
+    L.add("    }");
+    L.add("");
+    L.add("    private static String escHtml(String s) {");
+    L.add("      return String.valueOf(s).replace(\"&\", \"&amp;\").replace(\"<\", \"&lt;\").replace(\">\", \"&gt;\").replace(\"\\\"\", \"&quot;\");");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static String contentTypeFor(String name) {");
+    L.add("    String n = name.toLowerCase(Locale.ROOT);");
+    L.add("    if (n.endsWith(\".html\")) return \"text/html; charset=utf-8\";");
+    L.add("    if (n.endsWith(\".json\")) return \"application/json; charset=utf-8\";");
+    L.add("    if (n.endsWith(\".txt\") || n.endsWith(\".csv\") || n.endsWith(\".ndjson\")) return \"text/plain; charset=utf-8\";");
+    L.add("    if (n.endsWith(\".js\")) return \"application/javascript; charset=utf-8\";");
+    L.add("    if (n.endsWith(\".css\")) return \"text/css; charset=utf-8\";");
+    L.add("    if (n.endsWith(\".svg\")) return \"image/svg+xml\";");
+    L.add("    if (n.endsWith(\".gz\")) return \"application/gzip\";");
+    L.add("    if (n.endsWith(\".png\")) return \"image/png\";");
+    L.add("    if (n.endsWith(\".jpg\") || n.endsWith(\".jpeg\")) return \"image/jpeg\";");
+    L.add("    if (n.endsWith(\".webp\")) return \"image/webp\";");
+    L.add("    if (n.endsWith(\".gif\")) return \"image/gif\";");
+    L.add("    if (n.endsWith(\".mp4\")) return \"video/mp4\";");
+    L.add("    if (n.endsWith(\".webm\")) return \"video/webm\";");
+    L.add("    if (n.endsWith(\".pdf\")) return \"application/pdf\";");
+    L.add("    return \"application/octet-stream\";");
+    L.add("  }");
+    L.add("");
+    L.add("  static class Profile {");
+    L.add("    final String name,userAgent,locale,timezoneId,storageStatePath;");
+    L.add("    final int viewportW, viewportH;");
+    L.add("    final int contextPoolSize, storageStateRefreshSeconds;");
+    L.add("    final java.util.List<String> extraChromiumArgs, warmOrigins;");
+    L.add("    Profile(String name, Properties p){");
+    L.add("      this.name=name;");
+    L.add("      this.userAgent=p.getProperty(\"userAgent\", \"\").trim();");
+    L.add("      this.locale=p.getProperty(\"locale\", \"\").trim();");
+    L.add("      this.timezoneId=p.getProperty(\"timezoneId\", \"\").trim();");
+    L.add("      this.storageStatePath=p.getProperty(\"storageStatePath\", \"\").trim();");
+    L.add("      this.viewportW=intOr(p.getProperty(\"viewportWidth\",\"1400\"),1400);");
+    L.add("      this.viewportH=intOr(p.getProperty(\"viewportHeight\",\"900\"),900);");
+    L.add("      this.contextPoolSize=Math.max(1, intOr(p.getProperty(\"contextPoolSize\",\"2\"),2));");
+    L.add("      this.storageStateRefreshSeconds=Math.max(0, intOr(p.getProperty(\"storageStateRefreshSeconds\",\"300\"),300));");
+    L.add("      this.extraChromiumArgs=csv(p.getProperty(\"extraChromiumArgs\", \"\"));");
+    L.add("      this.warmOrigins=csv(p.getProperty(\"warmOrigins\", \"\"));");
+    L.add("    }");
+    L.add("    private static java.util.List<String> csv(String s){");
+    L.add("      java.util.List<String> list=new ArrayList<>();");
+    L.add("      for(String part: String.valueOf(s).split(\",\")){ String a=part.trim(); if(!a.isBlank()) list.add(a); }");
+    L.add("      return list;");
+    L.add("    }");
+    L.add("    Path storageStateFile(){");
+    L.add("      if(storageStatePath.isBlank()) return null;");
+    L.add("      Path ss=Paths.get(storageStatePath);");
+    L.add("      if(!ss.isAbsolute()) ss=Paths.get(\"\").toAbsolutePath().resolve(ss).normalize();");
+    L.add("      return ss;");
+    L.add("    }");
+    L.add("    static Profile load(String profileName){");
+    L.add("      try{");
+    L.add("        String n=(profileName==null||profileName.isBlank())?\"default\":profileName.trim();");
+    L.add("        Path p=Paths.get(\"profiles\", n+\".properties\");");
+    L.add("        Properties props=new Properties();");
+    L.add("        if(Files.exists(p)) try(InputStream is=Files.newInputStream(p)){ props.load(is);} ");
+    L.add("        if(!props.containsKey(\"viewportWidth\")) props.setProperty(\"viewportWidth\",\"1400\");");
+    L.add("        if(!props.containsKey(\"viewportHeight\")) props.setProperty(\"viewportHeight\",\"900\");");
+    L.add("        return new Profile(n, props);");
+    L.add("      }catch(Exception e){");
+    L.add("        Properties props=new Properties(); props.setProperty(\"viewportWidth\",\"1400\"); props.setProperty(\"viewportHeight\",\"900\");");
+    L.add("        return new Profile(\"default\", props);");
+    L.add("      }");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  static class CaptureOptions {");
+    L.add("    final boolean incremental, bundle, autoScroll, waitReady, spillGzip, thumbnails, harReplay, parallel, compress;");
+    L.add("    final int maxConcurrency, contextMaxJobs, maxOpenPages, downloadTimeoutSeconds, captureDownloadSeconds;");
+    L.add("    final long minFreeMb, maxBrowserRssMb, maxDownloadMb, maxCaptureDownloadMb;");
+    L.add("    final List<String> downloadTypes;");
+    L.add("    final String fullPageMode;");
+    L.add("    final boolean fullPageBackground;");
+    L.add("    final Path harDir;");
+    L.add("    final int scrollBudgetMs, scrollTarget, readyQuietMs, readyCapMs, spillBytes;");
+    L.add("    final String scrollItem;");
+    L.add("    CaptureOptions(String[] args){");
+    L.add("      this.incremental=hasFlag(args, \"--incremental\");");
+    L.add("      this.bundle=hasFlag(args, \"--bundle\");");
+    L.add("      this.autoScroll=hasFlag(args, \"--auto-scroll\");");
+    L.add("      this.scrollBudgetMs=Math.max(500, intOr(argValue(args, \"--scroll-budget-ms\", \"15000\"), 15000));");
+    L.add("      this.scrollItem=argValue(args, \"--scroll-item\", \"\").trim();");
+    L.add("      this.scrollTarget=Math.max(0, intOr(argValue(args, \"--scroll-target\", \"0\"), 0));");
+    L.add("      this.waitReady=hasFlag(args, \"--wait-ready\");");
+    L.add("      this.readyQuietMs=Math.max(50, intOr(argValue(args, \"--ready-quiet-ms\", \"500\"), 500));");
+    L.add("      this.readyCapMs=Math.max(this.readyQuietMs, intOr(argValue(args, \"--ready-cap-ms\", \"15000\"), 15000));");
+    L.add("      this.spillBytes=Math.max(256, intOr(argValue(args, \"--spill-bytes\", \"16384\"), 16384));");
+    L.add("      this.spillGzip=hasFlag(args, \"--spill-gzip\");");
+    L.add("      this.compress=hasFlag(args, \"--compress\");");
+    L.add("      this.thumbnails=!hasFlag(args, \"--no-thumbnails\");");
+    L.add("      this.parallel=hasFlag(args, \"--parallel\");");
+    L.add("      this.maxConcurrency=Math.max(1, intOr(argValue(args, \"--max-concurrency\", \"4\"), 4));");
+    L.add("      this.minFreeMb=Math.max(0, intOr(argValue(args, \"--min-free-mb\", \"1024\"), 1024));");
+    L.add("      this.maxBrowserRssMb=Math.max(0, intOr(argValue(args, \"--max-browser-rss-mb\", \"3072\"), 3072));");
+    L.add("      this.contextMaxJobs=Math.max(0, intOr(argValue(args, \"--context-max-jobs\", \"50\"), 50));");
+    L.add("      this.maxOpenPages=Math.max(0, intOr(argValue(args, \"--max-open-pages\", \"20\"), 20));");
+    L.add("      this.maxDownloadMb=Math.max(0, intOr(argValue(args, \"--max-download-mb\", \"100\"), 100));");
+    L.add("      this.maxCaptureDownloadMb=Math.max(0, intOr(argValue(args, \"--max-capture-download-mb\", \"1024\"), 1024));");
+    L.add("      this.downloadTimeoutSeconds=Math.max(0, intOr(argValue(args, \"--download-timeout-s\", \"120\"), 120));");
+    L.add("      this.captureDownloadSeconds=Math.max(0, intOr(argValue(args, \"--capture-download-s\", \"600\"), 600));");
+    L.add("      List<String> types=new ArrayList<>();");
+    L.add("      for (String t : argValue(args, \"--download-types\", \"*/*\").split(\",\")) if (!t.isBlank()) types.add(t.trim().toLowerCase(Locale.ROOT));");
+    L.add("      this.downloadTypes=types.isEmpty() ? List.of(\"*/*\") : types;");
+    L.add("      String fp=argValue(args, \"--full-page\", \"auto\").trim().toLowerCase(Locale.ROOT);");
+    L.add("      this.fullPageMode=List.of(\"auto\", \"full\", \"tiled\", \"off\").contains(fp) ? fp : \"auto\";");
+    L.add("      this.fullPageBackground=hasFlag(args, \"--full-page-background\");");
+    L.add("      String replay=argValue(args, \"--replay-har\", \"\").trim(), record=argValue(args, \"--record-har\", \"\").trim();");
+    L.add("      this.harReplay=!replay.isBlank();");
+    L.add("      this.harDir=harReplay ? Paths.get(replay).toAbsolutePath() : record.isBlank() ? null : Paths.get(record).toAbsolutePath();");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  // Per (url, selector) fingerprints of the last capture, so unchanged elements can point at earlier artifacts.");
+    L.add("  static class FingerprintStore {");
+    L.add("    private static final Path FILE = Paths.get(\"profiles\",\"fingerprints.json\");");
+    L.add("    private final ObjectNode root;");
+    L.add("    private final Set<String> touched=new HashSet<>();");
+    L.add("    private FingerprintStore(ObjectNode root){ this.root=root; }");
+    L.add("    static FingerprintStore load(){");
+    L.add("      try{");
+    L.add("        if(Files.exists(FILE)){ JsonNode n=OM.readTree(Files.readString(FILE, StandardCharsets.UTF_8)); if(n.isObject()) return new FingerprintStore((ObjectNode) n); }");
+    L.add("      }catch(Exception ignored){}");
+    L.add("      return new FingerprintStore(OM.createObjectNode());");
+    L.add("    }");
+    L.add("    JsonNode get(String url, String selector){ return root.path(url).path(selector); }");
+    L.add("    void put(String url, String selector, ObjectNode entry){");
+    L.add("      JsonNode byUrl=root.get(url);");
+    L.add("      ObjectNode o=(byUrl instanceof ObjectNode) ? (ObjectNode) byUrl : root.putObject(url);");
+    L.add("      o.set(selector, entry);");
+    L.add("      touched.add(url);");
+    L.add("    }");
+    L.add("    // Parallel captures each hold their own copy: merge this one's URLs into the current file, then swap it in.");
+    L.add("    void save() throws IOException {");
+    L.add("      synchronized (FingerprintStore.class) {");
+    L.add("        Files.createDirectories(FILE.getParent());");
+    L.add("        ObjectNode merged=load().root;");
+    L.add("        for(String url: touched) merged.set(url, root.get(url));");
+    L.add("        Path tmp=FILE.resolveSibling(FILE.getFileName()+\".tmp\");");
+    L.add("        OM.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), merged);");
+    L.add("        Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);");
+    L.add("      }");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  static ObjectNode fingerprint(String text, String outerHtml, JsonNode bbox, List<String> mediaUrls) {");
+    L.add("    ObjectNode fp = OM.createObjectNode();");
+    L.add("    fp.put(\"textHash\", sha256Hex(text));");
+    L.add("    fp.put(\"outerHtmlHash\", sha256Hex(outerHtml));");
+    L.add("    // Whole pixels only: sub-pixel layout jitter should not count as a change.");
+    L.add("    String box = bbox.isObject()");
+    L.add("      ? Math.round(bbox.path(\"x\").asDouble()) + \",\" + Math.round(bbox.path(\"y\").asDouble()) + \",\" + Math.round(bbox.path(\"width\").asDouble()) + \",\" + Math.round(bbox.path(\"height\").asDouble())");
+    L.add("      : \"\";");
+    L.add("    fp.put(\"boundingBox\", box);");
+    L.add("    ArrayNode media = fp.putArray(\"mediaUrls\");");
+    L.add("    for (String u : mediaUrls) media.add(u);");
+    L.add("    fp.put(\"fingerprint\", sha256Hex(fp.get(\"textHash\").asText() + \"|\" + fp.get(\"outerHtmlHash\").asText() + \"|\" + box + \"|\" + String.join(\"\\n\", mediaUrls)));");
+    L.add("    return fp;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static ObjectNode fingerprintEntry(ObjectNode fp, ArtifactSink sink, Path outDir, ObjectNode r) {");
+    L.add("    ObjectNode e = fp.deepCopy();");
+    L.add("    e.put(\"capturedAt\", OffsetDateTime.now().toString());");
+    L.add("    e.put(\"captureDir\", outDir.toString());");
+    L.add("    String shot = r.path(\"screenshot\").asText(\"\");");
+    L.add("    if (!shot.isBlank()) e.put(\"screenshot\", sink.ref(shot));");
+    L.add("    ArrayNode dl = e.putArray(\"downloads\");");
+    L.add("    for (JsonNode d : r.path(\"downloads\")) {");
+    L.add("      ObjectNode c = ((ObjectNode) d).deepCopy();");
+    L.add("      String saved = d.path(\"savedAs\").asText(\"\");");
+    L.add("      if (!saved.isBlank()) c.put(\"savedAs\", sink.ref(saved));");
+    L.add("      dl.add(c);");
+    L.add("    }");
+    L.add("    return e;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Fills r from the previous capture when the fingerprint matches and its artifacts still exist.");
+    L.add("  private static boolean reusePrevious(JsonNode prev, ObjectNode fp, ArtifactSink sink, Path outDir, int idx, ObjectNode r) throws IOException {");
+    L.add("    if (!prev.isObject() || !prev.path(\"fingerprint\").asText(\"\").equals(fp.path(\"fingerprint\").asText())) return false;");
+    L.add("    String shot = prev.path(\"screenshot\").asText(\"\");");
+    L.add("    if (!shot.isBlank() && !refExists(shot)) return false;");
+    L.add("    for (JsonNode d : prev.path(\"downloads\")) {");
+    L.add("      String saved = d.path(\"savedAs\").asText(\"\");");
+    L.add("      if (!saved.isBlank() && !refExists(saved)) return false;");
+    L.add("    }");
+    L.add("    r.put(\"changed\", false);");
+    L.add("    r.put(\"reusedFrom\", prev.path(\"captureDir\").asText(\"\"));");
+    L.add("    if (!shot.isBlank()) r.put(\"screenshot\", reuseArtifact(shot, sink, outDir, String.format(\"element_screenshots/el_%03d.png\", idx)));");
+    L.add("    ArrayNode downloads = r.putArray(\"downloads\");");
+    L.add("    for (JsonNode d : prev.path(\"downloads\")) {");
+    L.add("      ObjectNode c = ((ObjectNode) d).deepCopy();");
+    L.add("      String saved = d.path(\"savedAs\").asText(\"\");");
+    L.add("      if (!saved.isBlank()) c.put(\"savedAs\", reuseArtifact(saved, sink, outDir, String.format(\"media/media_%03d%s\", idx, ext(\"\", saved.substring(Math.max(saved.lastIndexOf('/'), saved.lastIndexOf('\\\\')) + 1)))));");
+    L.add("      downloads.add(c);");
+    L.add("    }");
+    L.add("    return true;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Loose files are linked by relative path; anything else (bundles) gets its bytes copied into the sink.");
+    L.add("  private static String reuseArtifact(String ref, ArtifactSink sink, Path outDir, String name) throws IOException {");
+    L.add("    if (sink instanceof DirSink && !ref.contains(\"!/\")) return relPath(outDir, Paths.get(ref));");
+    L.add("    return sink.put(name, readRef(ref));");
+    L.add("  }");
+    L.add("");
+    L.add("  private static java.util.List<String> listBrowserProfiles(){");
+    L.add("    try{ Path dir=Paths.get(\"profiles\"); if(!Files.exists(dir)) return java.util.List.of(\"default\");");
+    L.add("      java.util.List<String> out=new ArrayList<>();");
+    L.add("      try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir, \"*.properties\")){");
+    L.add("        for(Path p: ds){ String fn=p.getFileName().toString(); if(fn.toLowerCase(Locale.ROOT).endsWith(\".properties\")) out.add(fn.substring(0, fn.length()-\".properties\".length())); }");
+    L.add("      }");
+    L.add("      if(out.isEmpty()) out.add(\"default\"); out.sort(String.CASE_INSENSITIVE_ORDER); return out;");
+    L.add("    }catch(Exception e){ return java.util.List.of(\"default\"); }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static java.util.List<String> listSelectionProfiles(){");
+    L.add("    try{ Path dir=Paths.get(\"profiles\",\"selection_profiles\"); if(!Files.exists(dir)) Files.createDirectories(dir);");
+    L.add("      java.util.List<String> out=new ArrayList<>();");
+    L.add("      try(DirectoryStream<Path> ds=Files.newDirectoryStream(dir, \"*.json\")){");
+    L.add("        for(Path p: ds){ String fn=p.getFileName().toString(); if(fn.toLowerCase(Locale.ROOT).endsWith(\".json\")) out.add(fn.substring(0, fn.length()-\".json\".length())); }");
+    L.add("      }");
+    L.add("      if(out.isEmpty()) out.add(\"sample\"); out.sort(String.CASE_INSENSITIVE_ORDER); return out;");
+    L.add("    }catch(Exception e){ return java.util.List.of(\"sample\"); }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static ArrayNode loadUrlProfiles(){");
+    L.add("    try{");
+    L.add("      Path p = Paths.get(\"profiles\",\"url_profiles.json\");");
+    L.add("      if(!Files.exists(p)) return OM.createArrayNode();");
+    L.add("      JsonNode root = OM.readTree(Files.readString(p, StandardCharsets.UTF_8));");
+    L.add("      JsonNode profiles = root.path(\"profiles\");");
+    L.add("      if(!profiles.isArray()) return OM.createArrayNode();");
+    L.add("      return (ArrayNode) profiles;");
+    L.add("    }catch(Exception e){");
+    L.add("      return OM.createArrayNode();");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static ArrayNode loadSelectionProfileItems(String name) throws IOException {");
+    L.add("    Path p = Paths.get(\"profiles\",\"selection_profiles\", name + \".json\");");
+    L.add("    if (!Files.exists(p)) throw new FileNotFoundException(\"Selection profile not found: \" + p);");
+    L.add("    JsonNode root = OM.readTree(Files.readString(p, StandardCharsets.UTF_8));");
+    L.add("    JsonNode items = root.path(\"items\");");
+    L.add("    if (!items.isArray()) throw new IOException(\"Invalid selection profile JSON: missing items[]\");");
+    L.add("    return (ArrayNode) items;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static ArrayNode selectionsFromSelectionProfile(String name, int selIndex) throws Exception {");
+    L.add("    ArrayNode items = loadSelectionProfileItems(name);");
+    L.add("    ArrayNode out = OM.createArrayNode();");
+    L.add("    int i = 0;");
+    L.add("    for (JsonNode it : items) {");
+    L.add("      i++;");
+    L.add("      if (selIndex > 0 && i != selIndex) continue;");
+    L.add("      String sel = it.path(\"selector\").asText(\"\");");
+    L.add("      if (sel.isBlank()) continue;");
+    L.add("      ObjectNode s = OM.createObjectNode();");
+    L.add("      s.put(\"selector\", sel);");
+    L.add("      s.put(\"tag\", it.path(\"tag\").asText(\"\"));");
+    L.add("      s.put(\"kind\", it.path(\"kind\").asText(\"\"));");
+    L.add("      s.put(\"text\", it.path(\"text\").asText(\"\"));");
+    L.add("      s.put(\"src\", \"\");");
+    L.add("      s.put(\"href\", \"\");");
+    L.add("      s.put(\"outerHtml\", \"\");");
+    L.add("      for (String f : new String[]{ \"fields\", \"format\", \"screenshot\", \"limit\" }) if (it.has(f)) s.set(f, it.get(f));");
+    L.add("      out.add(s);");
+    L.add("    }");
+    L.add("    return out;");
+    L.add("  }");
+    L.add("");
+    L.add("  private static boolean isRetryableNavError(Throwable ex) {");
+    L.add("    String m = String.valueOf(ex.getMessage()).toLowerCase(Locale.ROOT);");
+    L.add("    return m.contains(\"err_network_changed\")");
+    L.add("      || m.contains(\"err_internet_disconnected\")");
+    L.add("      || m.contains(\"err_address_unreachable\")");
+    L.add("      || m.contains(\"err_name_not_resolved\")");
+    L.add("      || m.contains(\"err_network_access_denied\")");
+    L.add("      || m.contains(\"err_connection_closed\")");
+    L.add("      || m.contains(\"err_connection_reset\")");
+    L.add("      || m.contains(\"err_connection_refused\")");
+    L.add("      || m.contains(\"err_timed_out\")");
+    L.add("      || m.contains(\"navigation interrupted\");");
+    L.add("  }");
+    L.add("");
+    L.add("  // Network errors and 429/5xx are retried through Resilience. When retries run out on an HTTP status the");
+    L.add("  // page is left on that response (it is what the site served); network errors and open circuits throw.");
+    L.add("  private static void navigateWithRetry(Page page, String url) {");
+    L.add("    try {");
+    L.add("      Resilience.call(url, \"Navigation\", () -> {");
+    L.add("        Response resp = page.navigate(url, new Page.NavigateOptions().setWaitUntil(WaitUntilState.DOMCONTENTLOADED).setTimeout(60000));");
+    L.add("        int st = resp == null ? 0 : resp.status();");
+    L.add("        if (Resilience.retryableStatus(st)) throw new Resilience.Failure(\"HTTP \" + st, null, Resilience.retryAfterMs(resp.headers().get(\"retry-after\")), resp, true);");
+    L.add("        return resp;");
+    L.add("      });");
+    L.add("    } catch (RuntimeException e) {");
+    L.add("      throw e;");
+    L.add("    } catch (Exception e) {");
+    L.add("      throw new PlaywrightException(e.getMessage(), e);");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static void safeClose(BrowserContext ctx, Browser browser) { try { ctx.close(); } catch (Exception ignored) {} HarSession.finish(ctx); try { browser.close(); } catch (Exception ignored) {} }");
+    L.add("  private static boolean hasFlag(String[] args, String flag) { for (String a : args) if (flag.equalsIgnoreCase(a)) return true; return false; }");
+    L.add("  private static String argValue(String[] args, String key, String def) { for (int i=0;i<args.length;i++) if (key.equalsIgnoreCase(args[i]) && i+1<args.length) return args[i+1]; return def; }");
+    L.add("  private static String firstNonFlagArg(String[] args) { if (args==null) return null; for (int i=0;i<args.length;i++){ String a=String.valueOf(args[i]); if (a.startsWith(\"--\")) { if (isValueFlag(a) && i+1<args.length) i++; continue; } if(!a.trim().isEmpty()) return a.trim(); } return null; }");
+    L.add("  private static boolean isValueFlag(String a) { return \"--profile\".equalsIgnoreCase(a) || \"--batch\".equalsIgnoreCase(a) || \"--serve-bundle\".equalsIgnoreCase(a) || \"--port\".equalsIgnoreCase(a)");
+    L.add("    || \"--search\".equalsIgnoreCase(a) || \"--root\".equalsIgnoreCase(a) || \"--since\".equalsIgnoreCase(a) || \"--until\".equalsIgnoreCase(a) || \"--limit\".equalsIgnoreCase(a)");
+    L.add("    || \"--scroll-budget-ms\".equalsIgnoreCase(a) || \"--scroll-item\".equalsIgnoreCase(a) || \"--scroll-target\".equalsIgnoreCase(a)");
+    L.add("    || \"--ready-quiet-ms\".equalsIgnoreCase(a) || \"--ready-cap-ms\".equalsIgnoreCase(a)");
+    L.add("    || \"--spill-bytes\".equalsIgnoreCase(a) || \"--enqueue\".equalsIgnoreCase(a) || \"--queue\".equalsIgnoreCase(a)");
+    L.add("    || \"--lease-seconds\".equalsIgnoreCase(a) || \"--record-har\".equalsIgnoreCase(a) || \"--replay-har\".equalsIgnoreCase(a)");
+    L.add("    || \"--reextract\".equalsIgnoreCase(a) || \"--threads\".equalsIgnoreCase(a) || \"--out\".equalsIgnoreCase(a)");
+    L.add("    || \"--max-concurrency\".equalsIgnoreCase(a) || \"--min-free-mb\".equalsIgnoreCase(a) || \"--max-browser-rss-mb\".equalsIgnoreCase(a) || \"--context-max-jobs\".equalsIgnoreCase(a) || \"--max-open-pages\".equalsIgnoreCase(a)");
+    L.add("    || \"--max-download-mb\".equalsIgnoreCase(a) || \"--max-capture-download-mb\".equalsIgnoreCase(a) || \"--download-timeout-s\".equalsIgnoreCase(a)");
+    L.add("    || \"--capture-download-s\".equalsIgnoreCase(a) || \"--download-types\".equalsIgnoreCase(a) || \"--full-page\".equalsIgnoreCase(a)");
+    L.add("    || \"--seeds\".equalsIgnoreCase(a) || \"--seen-capacity\".equalsIgnoreCase(a) || \"--serve\".equalsIgnoreCase(a); }");
+    L.add("  private static int intOr(String s, int def){ try{ return Integer.parseInt(String.valueOf(s).trim()); }catch(Exception e){ return def; } }");
+    L.add("  private static String trim(String s, int max) { if (s == null) return \"\"; s = s.replace(\"\\r\", \"\").trim(); return s.length() <= max ? s : s.substring(0, max) + \"...\"; }");
+    L.add("  private static String relPath(Path base, Path p){ return base.relativize(p).toString().replace('\\\\', '/'); }");
+    L.add("  private static String sha256Hex(String s){ return sha256Hex(String.valueOf(s).getBytes(StandardCharsets.UTF_8)); }");
+    L.add("  private static String sha256Hex(byte[] b){ try { return HexFormat.of().formatHex(MessageDigest.getInstance(\"SHA-256\").digest(b)); } catch (Exception e) { return Integer.toHexString(Arrays.hashCode(b)); } }");
+    L.add("  private static String escJson(String s){ return String.valueOf(s).replace(\"\\\\\", \"\\\\\\\\\").replace(\"\\\"\", \"\\\\\\\"\").replace(\"\\n\",\" \").replace(\"\\r\",\" \"); }");
+    L.add("");
+    L.add("  private static List<String> normalizeDedup(String baseUrl, List<String> urls) {");
+    L.add("    LinkedHashSet<String> out = new LinkedHashSet<>();");
+    L.add("    for (String u : urls) {");
+    L.add("      u = canonicalUrl(baseUrl, u);");
+    L.add("      if (u != null) out.add(u);");
+    L.add("    }");
+    L.add("    return new ArrayList<>(out);");
+    L.add("  }");
+    L.add("");
+    L.add("  // Trimmed and resolved against baseUrl (when there is one); null for blanks. Shared by normalizeDedup and");
+    L.add("  // seed ingestion so both dedupe on the same form.");
+    L.add("  private static String canonicalUrl(String baseUrl, String u) {");
+    L.add("    if (u == null) return null;");
+    L.add("    u = u.trim();");
+    L.add("    if (u.isEmpty()) return null;");
+    L.add("    if (baseUrl != null) try { u = URI.create(baseUrl).resolve(u).toString(); } catch (Exception ignored) {}");
+    L.add("    return u;");
+    L.add("  }");
+    L.add("");
+    L.add("  // Fills d with savedAs (or a note), contentType and bytes; policy refusals are thrown as DownloadPolicy.Refused.");
+    L.add("  private static void download(BrowserContext ctx, String url, ArtifactSink sink, int idx, ThumbnailStage thumbs, DownloadPolicy policy, ObjectNode d) throws Exception {");
+    L.add("    HarSession har = HarSession.of(ctx);");
+    L.add("    byte[] body;");
+    L.add("    String ct;");
+    L.add("    if (har != null && har.replay) {");
+    L.add("      JsonNode e = har.entry(url);");
+    L.add("      if (e == null) throw new IOException(\"Not in \" + har.har.getFileName() + \" (replay is offline)\");");
+    L.add("      body = har.body(e);");
+    L.add("      ct = e.path(\"response\").path(\"content\").path(\"mimeType\").asText(\"\");");
+    L.add("      policy.admitBuffered(ct, body == null ? 0 : body.length);");
+    L.add("    } else {");
+    L.add("      DownloadPolicy.Body got = policy.fetch(ctx, url);");
+    L.add("      body = got.bytes;");
+    L.add("      ct = got.contentType;");
+    L.add("      if (got.declared >= 0) d.put(\"declaredBytes\", got.declared);");
+    L.add("      if (har != null && body != null) har.remember(url, got.status, ct, body);");
+    L.add("    }");
+    L.add("    if (!ct.isBlank()) d.put(\"contentType\", ct);");
+    L.add("    if (body == null || body.length == 0) { d.put(\"savedAs\", \"\"); d.put(\"note\", \"Empty body/unsupported\"); return; }");
+    L.add("    String ext = ext(ct, url);");
+    L.add("    String saved = sink.put(String.format(\"media/media_%03d%s\", idx, ext), body);");
+    L.add("    thumbs.offer(saved, () -> body);");
+    L.add("    d.put(\"savedAs\", saved);");
+    L.add("    d.put(\"bytes\", body.length);");
+    L.add("  }");
+    L.add("");
+    L.add("  // Per-capture download limits. Each file gets one deadline (the per-file timeout or what is left of the capture's,");
+    L.add("  // whichever is sooner), shared by its probe, its GET and every retry. A HEAD through the context's");
+    L.add("  // APIRequestContext (its cookies and user agent) checks the declared type and Content-Length first, so a refused");
+    L.add("  // file costs one header exchange; a server that rejects HEAD gets a \"Range: bytes=0-0\" GET whose body is never");
+    L.add("  // read. The body itself streams over java.net.http with the context's cookies, the page's user agent and the");
+    L.add("  // page as Referer. The GET's own headers are checked again, and the stream is cancelled as soon as it crosses");
+    L.add("  // the per-file limit or what is left of the capture quota, or the deadline passes. The byte and time budgets");
+    L.add("  // are shared by every download of one capture.");
+    L.add("  static class DownloadPolicy {");
+    L.add("    private static final HttpClient HTTP = HttpClient.newBuilder()");
+    L.add("      .followRedirects(HttpClient.Redirect.NORMAL).connectTimeout(java.time.Duration.ofSeconds(15)).build();");
+    L.add("    final long maxFileBytes, maxCaptureBytes, fileTimeoutMs, captureTimeoutMs;");
+    L.add("    final List<String> types;");
+    L.add("    private final String referer, userAgent;");
+    L.add("    private long usedBytes, usedMs;");
+    L.add("    private int fetched, skipped, cancelled;");
+    L.add("");
+    L.add("    DownloadPolicy(CaptureOptions opts, String referer, String userAgent) {");
+    L.add("      this.maxFileBytes = opts.maxDownloadMb * 1024 * 1024;");
+    L.add("      this.maxCaptureBytes = opts.maxCaptureDownloadMb * 1024 * 1024;");
+    L.add("      this.fileTimeoutMs = opts.downloadTimeoutSeconds * 1000L;");
+    L.add("      this.captureTimeoutMs = opts.captureDownloadSeconds * 1000L;");
+    L.add("      this.types = opts.downloadTypes;");
+    L.add("      this.referer = referer;");
+    L.add("      this.userAgent = userAgent;");
+    L.add("    }");
+    L.add("");
+    L.add("    // A download the policy would not (or no longer) allow. bytesRead > 0 means it was cut off mid-stream.");
+    L.add("    static class Refused extends IOException {");
+    L.add("      private static final long serialVersionUID = 1L;");
+    L.add("      final String reason;");
+    L.add("      final long limit;");
+    L.add("      long bytesRead, declared = -1;");
+    L.add("      Refused(String reason, long limit, String message) { super(message); this.reason = reason; this.limit = limit; }");
+    L.add("    }");
+    L.add("");
+    L.add("    static final class Body {");
+    L.add("      final int status;");
+    L.add("      final String contentType;");
+    L.add("      final byte[] bytes;");
+    L.add("      final long declared;");
+    L.add("      Body(int status, String contentType, byte[] bytes, long declared) { this.status = status; this.contentType = contentType; this.bytes = bytes; this.declared = declared; }");
+    L.add("    }");
+    L.add("");
+    L.add("    // One file's deadline; captureBound labels a cut as capture-time rather than file-time.");
+    L.add("    static final class Deadline {");
+    L.add("      final long at, budget;");
+    L.add("      final boolean captureBound;");
+    L.add("      Deadline(long at, long budget, boolean captureBound) { this.at = at; this.budget = budget; this.captureBound = captureBound; }");
+    L.add("      long left() throws Refused {");
+    L.add("        if (at == Long.MAX_VALUE) return Long.MAX_VALUE;");
+    L.add("        long left = at - System.currentTimeMillis();");
+    L.add("        if (left <= 0) throw timedOut();");
+    L.add("        return left;");
+    L.add("      }");
+    L.add("      Refused timedOut() { return new Refused(captureBound ? \"capture-time\" : \"file-time\", budget, \"Cut off after \" + budget + \" ms\"); }");
+    L.add("    }");
+    L.add("");
+    L.add("    Body fetch(BrowserContext ctx, String url) throws Exception {");
+    L.add("      long captureLeft = captureTimeoutMs > 0 ? captureTimeoutMs - usedMs : Long.MAX_VALUE;");
+    L.add("      if (captureLeft <= 0) throw new Refused(\"capture-time\", captureTimeoutMs, \"Download time budget for this capture is used up\");");
+    L.add("      if (remainingBytes() <= 0) throw new Refused(\"capture-bytes\", maxCaptureBytes, \"Download quota for this capture is used up\");");
+    L.add("      long t0 = System.currentTimeMillis();");
+    L.add("      boolean captureBound = captureTimeoutMs > 0 && (fileTimeoutMs == 0 || captureLeft < fileTimeoutMs);");
+    L.add("      long budget = captureBound ? captureLeft : fileTimeoutMs > 0 ? fileTimeoutMs : Long.MAX_VALUE;");
+    L.add("      Deadline deadline = new Deadline(budget == Long.MAX_VALUE ? Long.MAX_VALUE : t0 + budget, budget, captureBound);");
+    L.add("      try {");
+    L.add("        Body b = Resilience.call(url, \"Download\", () -> fetchOnce(ctx, url, deadline));");
+    L.add("        usedBytes += b.bytes.length;");
+    L.add("        fetched++;");
+    L.add("        return b;");
+    L.add("      } finally {");
+    L.add("        usedMs += System.currentTimeMillis() - t0;");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    // Bodies that are already in memory (HAR replay) are held to the same type and byte limits.");
+    L.add("    void admitBuffered(String contentType, long length) throws Refused {");
+    L.add("      check(contentType, length);");
+    L.add("      usedBytes += length;");
+    L.add("      fetched++;");
+    L.add("    }");
+    L.add("");
+    L.add("    void record(ObjectNode d, Refused ex) {");
+    L.add("      boolean cut = ex.bytesRead > 0;");
+    L.add("      if (cut) cancelled++; else skipped++;");
+    L.add("      ObjectNode p = d.putObject(\"policy\");");
+    L.add("      p.put(\"action\", cut ? \"cancelled\" : \"skipped\");");
+    L.add("      p.put(\"reason\", ex.reason);");
+    L.add("      if (ex.limit > 0) p.put(\"limit\", ex.limit);");
+    L.add("      if (ex.declared >= 0) p.put(\"declaredBytes\", ex.declared);");
+    L.add("      if (cut) p.put(\"bytesRead\", ex.bytesRead);");
+    L.add("      d.put(\"savedAs\", \"\");");
+    L.add("      d.put(\"error\", ex.getMessage());");
+    L.add("    }");
+    L.add("");
+    L.add("    ObjectNode summary() {");
+    L.add("      ObjectNode o = OM.createObjectNode();");
+    L.add("      o.put(\"maxFileBytes\", maxFileBytes);");
+    L.add("      o.put(\"maxCaptureBytes\", maxCaptureBytes);");
+    L.add("      o.put(\"fileTimeoutMs\", fileTimeoutMs);");
+    L.add("      o.put(\"captureTimeoutMs\", captureTimeoutMs);");
+    L.add("      o.put(\"types\", String.join(\",\", types));");
+    L.add("      o.put(\"fetched\", fetched);");
+    L.add("      o.put(\"bytes\", usedBytes);");
+    L.add("      o.put(\"ms\", usedMs);");
+    L.add("      o.put(\"skipped\", skipped);");
+    L.add("      o.put(\"cancelled\", cancelled);");
+    L.add("      return o;");
+    L.add("    }");
+    L.add("");
+    L.add("    Body fetchOnce(BrowserContext ctx, String url, Deadline deadline) throws Exception {");
+    L.add("      long declared = probe(ctx, url, deadline);");
+    L.add("      long left = remainingBytes();");
+    L.add("      boolean fileBound = maxFileBytes > 0 && maxFileBytes <= left;");
+    L.add("      HttpResponse<byte[]> resp = exchange(request(ctx, url).GET(), fileBound ? maxFileBytes : left, fileBound, deadline);");
+    L.add("      int st = resp.statusCode();");
+    L.add("      if (Resilience.retryableStatus(st)) throw unavailable(st, resp.headers().firstValue(\"retry-after\").orElse(null));");
+    L.add("      if (st < 200 || st >= 300) throw new IOException(\"HTTP \" + st);");
+    L.add("      long len = resp.headers().firstValueAsLong(\"content-length\").orElse(-1);");
+    L.add("      return new Body(st, resp.headers().firstValue(\"content-type\").orElse(\"\"), resp.body(), len >= 0 ? len : declared);");
+    L.add("    }");
+    L.add("");
+    L.add("    // Refuses on the declared type and size before any body is requested; returns the declared size or -1.");
+    L.add("    // A probe that fails with a client error says nothing about the GET, which then decides on its own.");
+    L.add("    private long probe(BrowserContext ctx, String url, Deadline deadline) throws Exception {");
+    L.add("      RequestOptions o = RequestOptions.create().setMaxRedirects(5);");
+    L.add("      if (!referer.isBlank() && referer.startsWith(\"http\")) o.setHeader(\"Referer\", referer);");
+    L.add("      long left = deadline.left();");
+    L.add("      o.setTimeout(left == Long.MAX_VALUE ? 0 : left);");
+    L.add("      int st;");
+    L.add("      Map<String, String> h;");
+    L.add("      APIResponse head;");
+    L.add("      try {");
+    L.add("        head = ctx.request().head(url, o);");
+    L.add("      } catch (TimeoutError e) {");
+    L.add("        throw deadline.timedOut();");
+    L.add("      } catch (PlaywrightException e) {");
+    L.add("        throw new Resilience.Failure(String.valueOf(e.getMessage()), e, -1, null, true);");
+    L.add("      }");
+    L.add("      try { st = head.status(); h = head.headers(); } finally { head.dispose(); }");
+    L.add("      if (st == 405 || st == 501) {");
+    L.add("        HttpResponse<byte[]> r = exchange(request(ctx, url).GET().header(\"Range\", \"bytes=0-0\"), 0, true, deadline);");
+    L.add("        st = r.statusCode();");
+    L.add("        h = new HashMap<>();");
+    L.add("        for (Map.Entry<String, List<String>> e : r.headers().map().entrySet()) {");
+    L.add("          if (!e.getValue().isEmpty()) h.put(e.getKey().toLowerCase(Locale.ROOT), e.getValue().get(0));");
+    L.add("        }");
+    L.add("      }");
+    L.add("      if (Resilience.retryableStatus(st)) throw unavailable(st, h.get(\"retry-after\"));");
+    L.add("      if (st < 200 || st >= 300) return -1;");
+    L.add("      long declared = -1;");
+    L.add("      String size = h.getOrDefault(\"content-length\", \"\");");
+    L.add("      if (st == 206) {");
+    L.add("        String range = h.getOrDefault(\"content-range\", \"\");");
+    L.add("        size = range.substring(range.lastIndexOf('/') + 1);");
+    L.add("      }");
+    L.add("      try { declared = Long.parseLong(size.trim()); } catch (NumberFormatException ignored) {}");
+    L.add("      check(h.getOrDefault(\"content-type\", \"\"), declared);");
+    L.add("      return declared;");
+    L.add("    }");
+    L.add("");
+    L.add("    private void check(String contentType, long declared) throws Refused {");
+    L.add("      if (!allowed(contentType)) throw new Refused(\"content-type\", 0, \"Content type \" + contentType + \" is not in --download-types\");");
+    L.add("      if (declared < 0) return;");
+    L.add("      Refused r = null;");
+    L.add("      if (maxFileBytes > 0 && declared > maxFileBytes) r = new Refused(\"file-bytes\", maxFileBytes, \"Declared size \" + declared + \" bytes is over the per-file limit\");");
+    L.add("      else if (declared > remainingBytes()) r = new Refused(\"capture-bytes\", maxCaptureBytes, \"Declared size \" + declared + \" bytes is over what is left of the capture quota\");");
+    L.add("      if (r != null) { r.declared = declared; throw r; }");
+    L.add("    }");
+    L.add("");
+    L.add("    boolean allowed(String contentType) {");
+    L.add("      String t = String.valueOf(contentType).split(\";\", 2)[0].trim().toLowerCase(Locale.ROOT);");
+    L.add("      if (t.isEmpty()) return true;");
+    L.add("      for (String p : types) {");
+    L.add("        if (p.equals(\"*/*\") || p.equals(t) || (p.endsWith(\"/*\") && t.startsWith(p.substring(0, p.length() - 1)))) return true;");
+    L.add("      }");
+    L.add("      return false;");
+    L.add("    }");
+    L.add("");
+    L.add("    private long remainingBytes() { return maxCaptureBytes <= 0 ? Long.MAX_VALUE : Math.max(0, maxCaptureBytes - usedBytes); }");
+    L.add("");
+    L.add("    private HttpRequest.Builder request(BrowserContext ctx, String url) {");
+    L.add("      HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url)).timeout(java.time.Duration.ofSeconds(30)).header(\"Accept\", \"*/*\");");
+    L.add("      if (!userAgent.isBlank()) b.header(\"User-Agent\", userAgent);");
+    L.add("      if (!referer.isBlank() && referer.startsWith(\"http\")) b.header(\"Referer\", referer);");
+    L.add("      StringBuilder cookie = new StringBuilder();");
+    L.add("      try {");
+    L.add("        for (com.microsoft.playwright.options.Cookie c : ctx.cookies(url)) cookie.append(cookie.length() == 0 ? \"\" : \"; \").append(c.name).append('=').append(c.value);");
+    L.add("      } catch (PlaywrightException ignored) {}");
+    L.add("      if (cookie.length() > 0) b.header(\"Cookie\", cookie.toString());");
+    L.add("      return b;");
+    L.add("    }");
+    L.add("");
+    L.add("    // Runs one exchange with the body limited to cap bytes (0 = headers only) and the whole exchange to the");
+    L.add("    // file's deadline. Error statuses keep at most 64 KiB of body.");
+    L.add("    private HttpResponse<byte[]> exchange(HttpRequest.Builder req, long cap, boolean fileBound, Deadline deadline) throws Exception {");
+    L.add("      long left = deadline.left();");
+    L.add("      java.util.concurrent.atomic.AtomicReference<CappedBody> body = new java.util.concurrent.atomic.AtomicReference<>();");
+    L.add("      CompletableFuture<HttpResponse<byte[]>> f = HTTP.sendAsync(req.build(), info -> {");
+    L.add("        boolean ok = info.statusCode() >= 200 && info.statusCode() < 300;");
+    L.add("        CappedBody b = new CappedBody(ok ? cap : Math.min(cap, 64 * 1024), ok, fileBound ? \"file-bytes\" : \"capture-bytes\", fileBound ? maxFileBytes : maxCaptureBytes);");
+    L.add("        // The GET's own headers are checked too: the probe may have said nothing, or something else.");
+    L.add("        if (ok && cap > 0) {");
+    L.add("          try { check(info.headers().firstValue(\"content-type\").orElse(\"\"), info.headers().firstValueAsLong(\"content-length\").orElse(-1)); }");
+    L.add("          catch (Refused r) { b.refused = r; }");
+    L.add("        }");
+    L.add("        body.set(b);");
+    L.add("        return b;");
+    L.add("      });");
+    L.add("      try {");
+    L.add("        return left == Long.MAX_VALUE ? f.get() : f.get(left, TimeUnit.MILLISECONDS);");
+    L.add("      } catch (TimeoutException e) {");
+    L.add("        f.cancel(true);");
+    L.add("        CappedBody b = body.get();");
+    L.add("        if (b != null) b.cancel();");
+    L.add("        Refused r = deadline.timedOut();");
+    L.add("        r.bytesRead = b == null ? 0 : b.received;");
+    L.add("        throw r;");
+    L.add("      } catch (ExecutionException e) {");
+    L.add("        for (Throwable c = e.getCause(); c != null; c = c.getCause()) if (c instanceof Refused) throw (Refused) c;");
+    L.add("        Throwable c = e.getCause() == null ? e : e.getCause();");
+    L.add("        throw new Resilience.Failure(String.valueOf(c.getMessage()), c instanceof Exception ? (Exception) c : e, -1, null, true);");
+    L.add("      }");
+    L.add("    }");
+    L.add("");
+    L.add("    private static Resilience.Failure unavailable(int status, String retryAfter) {");
+    L.add("      return new Resilience.Failure(\"HTTP \" + status, null, Resilience.retryAfterMs(retryAfter), null, true);");
+    L.add("    }");
+    L.add("");
+    L.add("    // Collects a body up to cap bytes and cancels the subscription (aborting the exchange) the moment it would");
+    L.add("    // go over. With cap 0 the body is not read at all. Error bodies are truncated rather than refused.");
+    L.add("    static final class CappedBody implements HttpResponse.BodySubscriber<byte[]> {");
+    L.add("      private final long cap, limit;");
+    L.add("      private final boolean refuse;");
+    L.add("      private final String reason;");
+    L.add("      private final ByteArrayOutputStream out = new ByteArrayOutputStream();");
+    L.add("      private final CompletableFuture<byte[]> result = new CompletableFuture<>();");
+    L.add("      private volatile Flow.Subscription sub;");
+    L.add("      volatile long received;");
+    L.add("      volatile Refused refused;");
+    L.add("");
+    L.add("      CappedBody(long cap, boolean refuse, String reason, long limit) { this.cap = cap; this.refuse = refuse; this.reason = reason; this.limit = limit; }");
+    L.add("");
+    L.add("      @Override public CompletionStage<byte[]> getBody() { return result; }");
+    L.add("");
+    L.add("      @Override public void onSubscribe(Flow.Subscription s) {");
+    L.add("        sub = s;");
+    L.add("        if (refused != null) { s.cancel(); result.completeExceptionally(refused); return; }");
+    L.add("        if (cap <= 0) { s.cancel(); result.complete(new byte[0]); return; }");
+    L.add("        s.request(Long.MAX_VALUE);");
+    L.add("      }");
+    L.add("");
+    L.add("      @Override public void onNext(List<ByteBuffer> items) {");
+    L.add("        if (result.isDone()) return;");
+    L.add("        for (ByteBuffer b : items) {");
+    L.add("          int n = b.remaining();");
+    L.add("          if (received + n > cap) {");
+    L.add("            sub.cancel();");
+    L.add("            if (!refuse) {");
+    L.add("              byte[] a = new byte[(int) (cap - received)];");
+    L.add("              b.get(a);");
+    L.add("              out.write(a, 0, a.length);");
+    L.add("              received = cap;");
+    L.add("              result.complete(out.toByteArray());");
+    L.add("              return;");
+    L.add("            }");
+    L.add("            Refused r = new Refused(reason, limit, \"Cut off at \" + (received + n) + \" bytes (limit \" + cap + \")\");");
+    L.add("            r.bytesRead = received + n;");
+    L.add("            result.completeExceptionally(r);");
+    L.add("            return;");
+    L.add("          }");
+    L.add("          received += n;");
+    L.add("          byte[] a = new byte[n];");
+    L.add("          b.get(a);");
+    L.add("          out.write(a, 0, n);");
+    L.add("        }");
+    L.add("      }");
+    L.add("");
+    L.add("      @Override public void onError(Throwable t) { result.completeExceptionally(t); }");
+    L.add("      @Override public void onComplete() { result.complete(out.toByteArray()); }");
+    L.add("      void cancel() { Flow.Subscription s = sub; if (s != null) s.cancel(); }");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("  private static String ext(String ct, String url) {");
+    L.add("    String t = (ct == null ? \"\" : ct.toLowerCase(Locale.ROOT));");
+    L.add("    if (t.contains(\"image/png\")) return \".png\";");
+    L.add("    if (t.contains(\"image/jpeg\") || t.contains(\"image/jpg\")) return \".jpg\";");
+    L.add("    if (t.contains(\"image/webp\")) return \".webp\";");
+    L.add("    if (t.contains(\"image/gif\")) return \".gif\";");
+    L.add("    if (t.contains(\"video/mp4\")) return \".mp4\";");
+    L.add("    if (t.contains(\"video/webm\")) return \".webm\";");
+    L.add("    if (t.contains(\"application/pdf\")) return \".pdf\";");
+    L.add("    try {");
+    L.add("      String p = URI.create(url).getPath();");
+    L.add("      int dot = p.lastIndexOf('.');");
+    L.add("      if (dot >= 0 && dot > p.lastIndexOf('/')) {");
+    L.add("        String e = p.substring(dot);");
+    L.add("        if (e.length() <= 6) return e;");
+    L.add("      }");
+    L.add("    } catch (Exception ignored) {}");
+    L.add("    return \".bin\";");
+    L.add("  }");
+    L.add("");
+    L.add("  private static String readResourceText(String path) throws IOException {");
+    L.add("    try (InputStream is = AimPickerProgram.class.getResourceAsStream(path)) {");
+    L.add("      if (is == null) throw new FileNotFoundException(\"Missing resource: \" + path);");
+    L.add("      return new String(is.readAllBytes(), StandardCharsets.UTF_8);");
+    L.add("    }");
+    L.add("  }");
+    L.add("");
+    L.add("}");
+
+    return String.join("\n", L);
+  }
+
+  private static String viewerTemplateHtml() {
+    return String.join("\n",
+      "<!doctype html>",
+      "<html>",
+      "<head>",
+      "  <meta charset=\"utf-8\">",
+      "  <title>Aim Capture Viewer</title>",
+      "  <meta name=\"viewport\" content=\"width=device-width,initial-scale=1\">",
+      "  <style>",
+      "    body{font-family:system-ui,Segoe UI,Roboto,Arial;margin:0;background:#0b0c10;color:#e8e8ea}",
+      "    header{padding:14px 16px;border-bottom:1px solid rgba(255,255,255,.08);position:sticky;top:0;background:#0b0c10}",
+      "    .row{display:flex;gap:12px;align-items:center;flex-wrap:wrap}",
+      "    input{padding:8px 10px;border-radius:10px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff;min-width:280px}",
+      "    a{color:#7dd3fc}",
+      "    main{padding:16px;display:grid;grid-template-columns:repeat(auto-fit,minmax(320px,1fr));gap:12px}",
+      "    .card{border:1px solid rgba(255,255,255,.12);border-radius:14px;background:rgba(255,255,255,.04);padding:12px}",
+      "    .k{opacity:.7;font-size:12px}",
+      "    .v{word-break:break-word}",
+      "    img{max-width:100%;border-radius:12px;border:1px solid rgba(255,255,255,.12)}",
+      "    video{width:100%;border-radius:12px;border:1px solid rgba(255,255,255,.12)}",
+      "    pre{white-space:pre-wrap;word-break:break-word;background:rgba(0,0,0,.35);padding:10px;border-radius:12px;border:1px solid rgba(255,255,255,.12);max-height:240px;overflow:auto}",
+      "    .badge{display:inline-block;padding:2px 8px;border-radius:999px;border:1px solid rgba(255,255,255,.16);background:rgba(255,255,255,.08);font-size:12px}",
+      "  </style>",
+      "</head>",
+      "<body>",
       "<header>",
       "  <div class=\"row\">",
       "    <div class=\"badge\">Aim Capture Viewer</div>",
@@ -801,22 +4736,89 @@ public class AimSingleFileApp {
       "  <div class=\"row\" style=\"margin-top:10px\">",
       "    <input id=\"q\" placeholder=\"filter by selector/text/tag/kind...\">",
       "    <a id=\"openPage\" href=\"#\" target=\"_blank\" rel=\"noopener\">open captured page</a>",
+      "    <a id=\"fullPage\" href=\"#\" target=\"_blank\" rel=\"noopener\" hidden>full-page screenshot</a>",
       "  </div>",
       "</header>",
+      "<div id=\"stitched\" style=\"padding:16px 16px 0\" hidden></div>",
       "<main id=\"grid\"></main>",
       "<script>",
       "(async () => {",
-      "  const res = await fetch('./manifest.json', {cache:'no-store'});",
-      "  const m = await res.json();",
+      "  // Captures written with --compress carry manifest.json.gz (and .gz sidecars) instead of the plain files.",
+      "  async function fetchMaybeGzip(path){",
+      "    const res = await fetch('./' + path, {cache:'no-store'});",
+      "    if (res.ok) return res;",
+      "    const gz = await fetch('./' + path + '.gz', {cache:'no-store'});",
+      "    if (!gz.ok) throw new Error(res.status + ' ' + path);",
+      "    return new Response(gz.body.pipeThrough(new DecompressionStream('gzip')));",
+      "  }",
+      "  const m = await (await fetchMaybeGzip('manifest.json')).json();",
       "  document.getElementById('openPage').href = m.pageUrl || '#';",
+      "  // Tiled full-page shots are stacked top to bottom in page order; tiles load as they scroll into view.",
+      "  const fp = m.fullPage || null, fpLink = document.getElementById('fullPage'), stitched = document.getElementById('stitched');",
+      "  if (fp && fp.path) { fpLink.href = './' + fp.path; fpLink.hidden = false; }",
+      "  else if (fp && fp.index) {",
+      "    fpLink.hidden = false;",
+      "    fpLink.textContent = `full-page screenshot (${fp.tiles} tiles)`;",
+      "    fpLink.addEventListener('click', async e => {",
+      "      e.preventDefault();",
+      "      if (!stitched.hidden) { stitched.hidden = true; return; }",
+      "      if (!stitched.childElementCount) {",
+      "        const idx = await (await fetch('./' + fp.index, {cache:'no-store'})).json();",
+      "        stitched.innerHTML = `<div style=\"max-width:${idx.width}px\">` + (idx.tiles || []).map(t => t.path",
+      "          ? `<img loading=\"lazy\" src=\"./${t.path}\" style=\"display:block;width:100%;border:0;border-radius:0\">`",
+      "          : `<div class=\"k\" style=\"height:${t.height}px\">tile at y=${t.y} failed</div>`).join('') + '</div>';",
+      "      }",
+      "      stitched.hidden = false;",
+      "    });",
+      "  }",
       "  const items = (m.results || []).map(r => ({",
       "    index: r.index, selector: r.selector || '', tag: r.tag || '', kind: r.kind || '',",
       "    pickedText: r.pickedText || '', innerText: r.innerText || '', outerHtml: r.outerHtml || '',",
-      "    screenshot: r.screenshot || '', downloads: (r.downloads || []).map(d => d.savedAs).filter(Boolean)",
+      "    outerHtmlRef: r.outerHtmlRef || null, innerTextRef: r.innerTextRef || null,",
+      "    screenshot: r.screenshot || '', thumbnail: r.thumbnail || '',",
+      "    downloads: (r.downloads || []).map(d => d.savedAs).filter(Boolean),",
+      "    media: (r.downloads || []).filter(d => d.savedAs).map(d => ({ path: d.savedAs, thumbnail: d.thumbnail || '', poster: d.poster || '' })),",
+      "    refused: (r.downloads || []).filter(d => d.policy).map(d => ({ url: d.url || '', action: d.policy.action || '', reason: d.policy.reason || '' })),",
+      "    unchanged: r.changed === false,",
+      "    rowsFile: r.rowsFile || '', rows: r.rows || 0, matches: r.matches || 0, format: (r.format || '') + (r.encoding === 'gzip' ? ', gzip' : '')",
       "  }));",
       "  const grid = document.getElementById('grid');",
       "  const q = document.getElementById('q');",
       "  const esc = s => String(s||'').replaceAll('&','&amp;').replaceAll('<','&lt;').replaceAll('>','&gt;');",
+      "  // Spilled html/el_NNN.* sidecars are only fetched when their card asks for them.",
+      "  async function loadSidecar(ref){",
+      "    const res = await fetch('./' + ref.path, {cache:'no-store'});",
+      "    if (!res.ok) throw new Error(res.status + ' ' + ref.path);",
+      "    if (ref.encoding !== 'gzip') return await res.text();",
+      "    return await new Response(res.body.pipeThrough(new DecompressionStream('gzip'))).text();",
+      "  }",
+      "  // Thumbnails first; the original replaces it on click.",
+      "  const preview = (full, thumb) => thumb",
+      "    ? `<img loading=\"lazy\" src=\"./${thumb}\" data-full=\"./${full}\" title=\"click to load original\" style=\"cursor:zoom-in\">`",
+      "    : `<img loading=\"lazy\" src=\"./${full}\">`;",
+      "  grid.addEventListener('click', e => {",
+      "    const img = e.target.closest('img[data-full]');",
+      "    if (!img) return;",
+      "    img.src = img.dataset.full;",
+      "    img.removeAttribute('data-full');",
+      "    img.style.cursor = '';",
+      "    img.title = '';",
+      "  });",
+      "  const lazyBlock = (label, ref, slot) => `<div style=\"margin-top:10px\"><div class=\"k\">${label}</div>` +",
+      "    `<a href=\"#\" data-slot=\"${slot}\">load ${ref.length} bytes</a><pre data-slot-out=\"${slot}\" hidden></pre></div>`;",
+      "  grid.addEventListener('click', async e => {",
+      "    const a = e.target.closest('a[data-slot]');",
+      "    if (!a) return;",
+      "    e.preventDefault();",
+      "    const [idx, which] = a.dataset.slot.split(':');",
+      "    const it = items.find(x => String(x.index) === idx);",
+      "    const ref = it && (which === 'html' ? it.outerHtmlRef : it.innerTextRef);",
+      "    const out = grid.querySelector(`pre[data-slot-out=\"${a.dataset.slot}\"]`);",
+      "    if (!ref || !out) return;",
+      "    a.textContent = 'loading...';",
+      "    try { out.textContent = await loadSidecar(ref); out.hidden = false; a.remove(); }",
+      "    catch (err) { a.textContent = 'failed: ' + err.message; }",
+      "  });",
       "  function render(){",
       "    const needle = (q.value||'').toLowerCase().trim();",
       "    grid.innerHTML = '';",
@@ -828,10 +4830,10 @@ public class AimSingleFileApp {
       "      const card = document.createElement('div');",
       "      card.className = 'card';",
       "      const dlLinks = it.downloads.map(p => `<div><a href=\"./${p}\" target=\"_blank\" rel=\"noopener\">${p}</a></div>`).join('');",
-      "      const mediaHtml = it.downloads.map(p => {",
-      "        const lower = p.toLowerCase();",
-      "        if(lower.endsWith('.mp4')||lower.endsWith('.webm')) return `<video controls src=\"./${p}\"></video>`;",
-      "        if(lower.endsWith('.png')||lower.endsWith('.jpg')||lower.endsWith('.jpeg')||lower.endsWith('.webp')||lower.endsWith('.gif')) return `<img src=\"./${p}\">`;",
+      "      const mediaHtml = it.media.map(m => {",
+      "        const p = m.path, lower = p.toLowerCase();",
+      "        if(lower.endsWith('.mp4')||lower.endsWith('.webm')) return `<video controls preload=\"none\" ${m.poster ? `poster=\"./${m.poster}\"` : ''} src=\"./${p}\"></video>`;",
+      "        if(lower.endsWith('.png')||lower.endsWith('.jpg')||lower.endsWith('.jpeg')||lower.endsWith('.webp')||lower.endsWith('.gif')) return preview(p, m.thumbnail);",
       "        return '';",
       "      }).join('');",
       "      card.innerHTML = `",
@@ -839,757 +4841,2199 @@ public class AimSingleFileApp {
       "          <div class=\"badge\">#${it.index}</div>",
       "          <div class=\"badge\">${esc(it.kind)}</div>",
       "          <div class=\"badge\">${esc(it.tag)}</div>",
+      "          ${it.unchanged ? '<div class=\"badge\" title=\"reused from a previous capture\">unchanged</div>' : ''}",
+      "        </div>",
+      "        <div style=\"margin-top:10px\"><div class=\"k\">selector</div><div class=\"v\">${esc(it.selector)}</div></div>",
+      "        <div style=\"margin-top:10px\"><div class=\"k\">text</div><div class=\"v\">${esc(it.pickedText||it.innerText||'')}</div></div>",
+      "        ${it.screenshot ? `<div style=\"margin-top:10px\"><div class=\"k\">screenshot</div>${preview(it.screenshot, it.thumbnail)}</div>` : ''}",
+      "        ${mediaHtml ? `<div style=\"margin-top:10px\"><div class=\"k\">media preview</div>${mediaHtml}</div>` : ''}",
+      "        ${it.rowsFile ? `<div style=\"margin-top:10px\"><div class=\"k\">list rows</div><a href=\"./${it.rowsFile}\" target=\"_blank\" rel=\"noopener\">${it.rows} of ${it.matches} rows (${esc(it.format)})</a></div>` : ''}",
+      "        ${dlLinks ? `<div style=\"margin-top:10px\"><div class=\"k\">downloaded files</div>${dlLinks}</div>` : ''}",
+      "        ${it.refused.length ? `<div style=\"margin-top:10px\"><div class=\"k\">not downloaded (policy)</div>${it.refused.map(d => `<div class=\"v\">${esc(d.action)} (${esc(d.reason)}): ${esc(d.url)}</div>`).join('')}</div>` : ''}",
+      "        ${it.innerTextRef ? lazyBlock('full text', it.innerTextRef, it.index + ':text') : ''}",
+      "        ${it.outerHtml ? `<div style=\"margin-top:10px\"><div class=\"k\">outerHTML</div><pre>${esc(it.outerHtml)}</pre></div>` : ''}",
+      "        ${it.outerHtmlRef ? lazyBlock('outerHTML', it.outerHtmlRef, it.index + ':html') : ''}",
+      "      `;",
+      "      grid.appendChild(card);",
+      "    });",
+      "  }",
+      "  q.addEventListener('input', render);",
+      "  render();",
+      "})();",
+      "</script>",
+      "</body>",
+      "</html>",
+      ""
+    );
+  }
+
+  // scroller.js: auto-scroll driver injected next to picker.js (window.__aimAutoScroll)
+  private static String scrollerJs() {
+    return String.join("\n",
+      "// Adaptive auto-scroll for lazy-loaded / infinite pages. Scrolls one viewport step at a time and waits only",
+      "// until MutationObserver / IntersectionObserver signals go quiet, stopping on item target, height plateau or budget.",
+      "(() => {",
+      "  if (window.__aimAutoScroll) return;",
+      "",
+      "  const sleep = (ms) => new Promise(r => setTimeout(r, ms));",
+      "",
+      "  window.__aimAutoScroll = async (opts) => {",
+      "    opts = opts || {};",
+      "    const budgetMs = opts.budgetMs || 15000;",
+      "    const quietMs = opts.quietMs || 400;",
+      "    const stepCapMs = opts.stepCapMs || 2500;",
+      "    const plateauSteps = opts.plateauSteps || 3;",
+      "    const itemSelector = String(opts.itemSelector || '');",
+      "    const targetCount = opts.targetCount || 0;",
+      "",
+      "    const t0 = performance.now();",
+      "    let lastSignal = t0;",
+      "    const signal = () => { lastSignal = performance.now(); };",
+      "",
+      "    const mo = new MutationObserver((muts) => {",
+      "      for (const m of muts) { if (m.addedNodes.length || m.type === 'attributes') { signal(); return; } }",
+      "    });",
+      "    mo.observe(document.documentElement, { childList: true, subtree: true, attributes: true, attributeFilter: ['src', 'srcset'] });",
+      "    const io = new IntersectionObserver((entries) => { if (entries.some(e => e.isIntersecting)) signal(); }, { rootMargin: '200px' });",
+      "    const watchLazy = () => {",
+      "      document.querySelectorAll('img, video, iframe, [data-src], [data-lazy]').forEach(el => {",
+      "        if (el.__aimIo) return;",
+      "        el.__aimIo = true;",
+      "        io.observe(el);",
+      "      });",
+      "    };",
+      "    const count = () => { try { return itemSelector ? document.querySelectorAll(itemSelector).length : 0; } catch (e) { return 0; } };",
+      "",
+      "    const scroller = document.scrollingElement || document.documentElement;",
+      "    let steps = 0, waitedMs = 0, plateau = 0, lastHeight = scroller.scrollHeight, reason = 'budget';",
+      "    try {",
+      "      while (performance.now() - t0 < budgetMs) {",
+      "        if (targetCount > 0 && count() >= targetCount) { reason = 'target'; break; }",
+      "        watchLazy();",
+      "        window.scrollBy(0, Math.max(200, Math.floor(window.innerHeight * 0.9)));",
+      "        steps++;",
+      "        signal();",
+      "        const ws = performance.now();",
+      "        while (performance.now() - lastSignal < quietMs && performance.now() - ws < stepCapMs && performance.now() - t0 < budgetMs) await sleep(50);",
+      "        waitedMs += performance.now() - ws;",
+      "        const h = scroller.scrollHeight;",
+      "        const atBottom = scroller.scrollTop + window.innerHeight >= h - 2;",
+      "        if (h > lastHeight) { lastHeight = h; plateau = 0; }",
+      "        else if (atBottom && ++plateau >= plateauSteps) { reason = 'plateau'; break; }",
+      "      }",
+      "    } finally {",
+      "      mo.disconnect();",
+      "      io.disconnect();",
+      "    }",
+      "    if (opts.returnToTop !== false) window.scrollTo(0, 0);",
+      "    return JSON.stringify({",
+      "      steps, waitedMs: Math.round(waitedMs), totalMs: Math.round(performance.now() - t0),",
+      "      reason, finalHeight: scroller.scrollHeight, items: count()",
+      "    });",
+      "  };",
+      "})();",
+      ""
+    );
+  }
+
+  // picker.js with fixed selection profile load + highlight-on-load + delete + autosave
+  private static String pickerJs() {
+    return String.join("\n",
+      "(() => {",
+      "  if (window.__aimPickerInstall) return;",
+      "",
+      "  const INLINE_OUTER_HTML_MAX = 65536;",
+      "  function safeParseJson(s, def){ try { return JSON.parse(String(s)); } catch(e){ return def; } }",
+      "  function esc(s){ return String(s||'').replace(/&/g,'&amp;').replace(/</g,'&lt;').replace(/>/g,'&gt;'); }",
+      "  function escAttr(s){ return String(s||'').replace(/\"/g,'&quot;'); }",
+      "",
+      "  (function(){",
+      "    const _open = window.open;",
+      "    window.open = function(){ if (window.__aimPickMode) return null; return _open.apply(this, arguments); };",
+      "    const _assign = location.assign.bind(location);",
+      "    const _replace = location.replace.bind(location);",
+      "    location.assign = function(u){ if (window.__aimPickMode) return; return _assign(u); };",
+      "    location.replace = function(u){ if (window.__aimPickMode) return; return _replace(u); };",
+      "    const _push = history.pushState.bind(history);",
+      "    const _rep  = history.replaceState.bind(history);",
+      "    history.pushState = function(){ if (window.__aimPickMode) return; return _push.apply(history, arguments); };",
+      "    history.replaceState = function(){ if (window.__aimPickMode) return; return _rep.apply(history, arguments); };",
+      "  })();",
+      "",
+      "  function cssEscape(s) {",
+      "    try { return CSS.escape(String(s)); }",
+      "    catch (e) { return String(s).replace(/[^a-zA-Z0-9_-]/g, \"\\\\$&\"); }",
+      "  }",
+      "",
+      "  function stableAttrSelector(el) {",
+      "    const attrs = [\"data-testid\",\"data-test-id\",\"data-qa\",\"data-id\",\"aria-label\",\"name\",\"role\"];",
+      "    for (const a of attrs) {",
+      "      const v = el.getAttribute && el.getAttribute(a);",
+      "      if (v && v.length <= 140) {",
+      "        const tag = el.tagName.toLowerCase();",
+      "        return `${tag}[${a}=\"${String(v).replace(/\"/g,'\\\\\"')}\"]`;",
+      "      }",
+      "    }",
+      "    return \"\";",
+      "  }",
+      "",
+      "  // The long-standing fallback: up to 8 tag.class:nth-of-type steps from the element upwards.",
+      "  function chainSelector(el) {",
+      "    const parts = [];",
+      "    let cur = el;",
+      "    while (cur && cur.nodeType === 1 && cur !== document.documentElement) {",
+      "      let part = cur.tagName.toLowerCase();",
+      "      const stable2 = stableAttrSelector(cur);",
+      "      if (stable2) { parts.unshift(stable2); break; }",
+      "      if (cur.classList && cur.classList.length) {",
+      "        const cls = Array.from(cur.classList).slice(0, 2).map(c => '.' + cssEscape(c)).join('');",
+      "        if (cls) part += cls;",
+      "      }",
+      "      const parent = cur.parentElement;",
+      "      if (parent) {",
+      "        const same = Array.from(parent.children).filter(x => x.tagName === cur.tagName);",
+      "        if (same.length > 1) {",
+      "          const idx = same.indexOf(cur) + 1;",
+      "          part += `:nth-of-type(${idx})`;",
+      "        }",
+      "      }",
+      "      parts.unshift(part);",
+      "      cur = cur.parentElement;",
+      "      if (parts.length >= 8) break;",
+      "    }",
+      "    return parts.join(' > ');",
+      "  }",
+      "",
+      "  // Generated ids and CSS-in-JS classes (css-1x2y3z, sc-AbCdE, long digit runs) change between builds.",
+      "  const volatileToken = t => /\\d{3,}|^(css|sc|jsx|emotion)-|(?=[0-9a-f]*\\d)[0-9a-f]{8,}|__[a-z0-9]{5,}$/i.test(String(t));",
+      "  const SLOW_SELECTOR_MICROS = 500;",
+      "",
+      "  // Average cost of one document.querySelectorAll(sel) in microseconds and its match count. Repeats until",
+      "  // about a millisecond has passed (at most 50 runs) so coarse performance.now() clamping still averages out.",
+      "  function selectorCost(sel) {",
+      "    let n, runs = 0;",
+      "    const t0 = performance.now();",
+      "    let t = t0;",
+      "    try {",
+      "      do { n = document.querySelectorAll(sel).length; runs++; t = performance.now(); } while (t - t0 < 1 && runs < 50);",
+      "    } catch (e) { return { matchCount: 0, queryMicros: -1 }; }",
+      "    return { matchCount: n, queryMicros: Math.round((t - t0) * 1000 / runs) };",
+      "  }",
+      "",
+      "  // Candidate selectors for el, most stable form first. Anchored chains start at the nearest ancestor with",
+      "  // a usable id or stable attribute and grow one step at a time until they pin el down.",
+      "  function selectorCandidates(el) {",
+      "    const out = [];",
+      "    const unique = sel => { try { const m = document.querySelectorAll(sel); return m.length === 1 && m[0] === el; } catch (e) { return false; } };",
+      "    const add = (form, sel) => { if (sel && !out.some(c => c.selector === sel)) out.push({ form, selector: sel }); };",
+      "    const anchorOf = node => {",
+      "      if (node.id && !volatileToken(node.id)) return `#${cssEscape(node.id)}`;",
+      "      return stableAttrSelector(node);",
+      "    };",
+      "    const tag = el.tagName.toLowerCase();",
+      "    const own = anchorOf(el);",
+      "    if (own && unique(own)) add(own.startsWith('#') ? 'id' : 'attr', own);",
+      "    const classes = Array.from(el.classList || []).filter(c => !volatileToken(c) && !c.startsWith('__aim_')).slice(0, 3);",
+      "    if (classes.length) {",
+      "      const cls = tag + classes.map(c => '.' + cssEscape(c)).join('');",
+      "      if (unique(cls)) add('class', cls);",
+      "    }",
+      "    const step = node => {",
+      "      let part = node.tagName.toLowerCase();",
+      "      const c = Array.from(node.classList || []).filter(x => !volatileToken(x) && !x.startsWith('__aim_')).slice(0, 2);",
+      "      if (c.length) part += c.map(x => '.' + cssEscape(x)).join('');",
+      "      const parent = node.parentElement;",
+      "      if (parent) {",
+      "        const same = Array.from(parent.children).filter(x => x.tagName === node.tagName);",
+      "        if (same.length > 1) part += `:nth-of-type(${same.indexOf(node) + 1})`;",
+      "      }",
+      "      return part;",
+      "    };",
+      "    const parts = [];",
+      "    for (let cur = el, depth = 0; cur && cur.nodeType === 1 && cur !== document.documentElement && depth < 8; cur = cur.parentElement, depth++) {",
+      "      parts.unshift(step(cur));",
+      "      const anchor = cur.parentElement && cur.parentElement !== document.documentElement ? anchorOf(cur.parentElement) : '';",
+      "      if (anchor) {",
+      "        const sel = `${anchor} > ${parts.join(' > ')}`;",
+      "        if (unique(sel)) { add('anchored', sel); break; }",
+      "      }",
+      "      if (parts.length <= 3 && unique(parts.join(' > '))) { add('short', parts.join(' > ')); break; }",
+      "    }",
+      "    add('chain', chainSelector(el));",
+      "    return out;",
+      "  }",
+      "",
+      "  // Relative weight per form: a stable form wins unless a less stable one is several times cheaper.",
+      "  const FORM_WEIGHT = { id: 1, attr: 1, class: 1.5, anchored: 2, short: 2.5, chain: 4 };",
+      "  const selectorCache = new WeakMap();",
+      "",
+      "  // Times every candidate in-page and keeps the one with the lowest weighted cost among those that match el",
+      "  // alone ({selector, form, matchCount, queryMicros}). Results are cached per element for a couple of seconds",
+      "  // so hovering stays cheap.",
+      "  function profileSelector(el) {",
+      "    if (!(el instanceof Element)) return { selector: '', form: '', matchCount: 0, queryMicros: -1 };",
+      "    const hit = selectorCache.get(el);",
+      "    if (hit && performance.now() - hit.at < 2000) return hit.best;",
+      "    let best = null;",
+      "    for (const c of selectorCandidates(el)) {",
+      "      const cost = selectorCost(c.selector);",
+      "      const r = { ...c, ...cost };",
+      "      const score = Math.max(cost.queryMicros, 1) * (FORM_WEIGHT[c.form] || 4);",
+      "      const ok = cost.matchCount === 1;",
+      "      if (!best || (ok && (!best.ok || score < best.score))) best = { ...r, ok, score };",
+      "    }",
+      "    const { ok, score, ...res } = best;",
+      "    selectorCache.set(el, { at: performance.now(), best: res });",
+      "    return res;",
+      "  }",
+      "",
+      "  function buildSelector(el) {",
+      "    if (!(el instanceof Element)) return \"\";",
+      "    return profileSelector(el).selector;",
+      "  }",
+      "",
+      "  // Badge for a stored or freshly measured selector: flags slow queries and anything not matching exactly once.",
+      "  function costBadge(it) {",
+      "    const us = Number(it && it.queryMicros);",
+      "    const n = it && it.matchCount;",
+      "    if (!(us >= 0)) return '';",
+      "    const slow = us >= SLOW_SELECTOR_MICROS, ambiguous = n !== undefined && n !== 1;",
+      "    const label = (us >= 1000 ? (us / 1000).toFixed(1) + 'ms' : us + 'µs') + (ambiguous ? ` • ${n} match${n === 1 ? '' : 'es'}` : '');",
+      "    const style = slow || ambiguous ? 'border-color:#f59e0b;color:#fbbf24' : '';",
+      "    const tip = slow ? 'Slow selector: costs this much on every highlight and every batch extraction' : (ambiguous ? 'Selector does not match exactly one element' : 'querySelectorAll cost');",
+      "    return `<span class=\"__aim_badge\" style=\"${style}\" title=\"${escAttr(tip)}\">${slow ? 'slow ' : ''}${esc(label)}</span>`;",
+      "  }",
+      "",
+      "  function textSnippet(el) {",
+      "    try {",
+      "      const t = (el.innerText || el.textContent || '').trim().replace(/\\s+/g, ' ');",
+      "      return t.slice(0, 240);",
+      "    } catch (e) { return ''; }",
+      "  }",
+      "",
+      "  function guessKind(el) {",
+      "    const tag = (el.tagName || '').toLowerCase();",
+      "    if (tag === 'img') return 'image';",
+      "    if (tag === 'video') return 'video';",
+      "    if (tag === 'source') return 'source';",
+      "    if (tag === 'a') return 'link';",
+      "    if (tag === 'input' || tag === 'textarea' || tag === 'select') return 'input';",
+      "    return 'element';",
+      "  }",
+      "",
+      "  function getSrc(el) {",
+      "    try {",
+      "      const tag = (el.tagName || '').toLowerCase();",
+      "      if (tag === 'img') return el.currentSrc || el.src || '';",
+      "      if (tag === 'video') return el.currentSrc || el.src || '';",
+      "      if (tag === 'source') return el.src || '';",
+      "      return '';",
+      "    } catch (e) { return ''; }",
+      "  }",
+      "",
+      "  function getHref(el) {",
+      "    try {",
+      "      const tag = (el.tagName || '').toLowerCase();",
+      "      if (tag === 'a') return el.href || '';",
+      "      return '';",
+      "    } catch (e) { return ''; }",
+      "  }",
+      "",
+      "  // One channel to Java: calls made in the same tick go out as one id-tagged batch through window.aimRpc,",
+      "  // and replies, progress messages and pushed events come back through window.__aimRpcDeliver.",
+      "  const rpcPending = new Map();",
+      "  const rpcListeners = {};",
+      "  let rpcSeq = 0, rpcOutbox = [], rpcFlushQueued = false, rpcLastLocalWrite = 0;",
+      "",
+      "  window.__aimRpcDeliver = (msgs) => {",
+      "    for (const m of (msgs || [])) {",
+      "      if (m.event) { (rpcListeners[m.event] || []).forEach(fn => { try { fn(m.data || {}); } catch (e) {} }); continue; }",
+      "      const p = rpcPending.get(m.id);",
+      "      if (!p) continue;",
+      "      if ('progress' in m) { if (p.onProgress) p.onProgress(m.progress); continue; }",
+      "      rpcPending.delete(m.id);",
+      "      if ('error' in m) p.reject(new Error(m.error)); else p.resolve(m.result);",
+      "    }",
+      "  };",
+      "",
+      "  function flushRpc(){",
+      "    rpcFlushQueued = false;",
+      "    const batch = rpcOutbox; rpcOutbox = [];",
+      "    if (!batch.length) return;",
+      "    Promise.resolve(window.aimRpc(JSON.stringify(batch))).catch(e => {",
+      "      batch.forEach(c => { const p = rpcPending.get(c.id); if (p) { rpcPending.delete(c.id); p.reject(e); } });",
+      "    });",
+      "  }",
+      "",
+      "  function rpc(method, params, onProgress){",
+      "    if (!window.aimRpc) return Promise.reject(new Error('missing binding'));",
+      "    if (/^save/.test(method)) rpcLastLocalWrite = Date.now();",
+      "    return new Promise((resolve, reject) => {",
+      "      const id = ++rpcSeq;",
+      "      rpcPending.set(id, { resolve, reject, onProgress });",
+      "      rpcOutbox.push({ id, method, params: params || {} });",
+      "      if (!rpcFlushQueued) { rpcFlushQueued = true; queueMicrotask(flushRpc); }",
+      "    });",
+      "  }",
+      "",
+      "  function onRpcEvent(name, fn){ (rpcListeners[name] = rpcListeners[name] || []).push(fn); }",
+      "",
+      "  // Profiles edited outside this panel: refresh the open tab unless the user is typing in it.",
+      "  onRpcEvent('profilesChanged', () => {",
+      "    if (Date.now() - rpcLastLocalWrite < 1500) return;",
+      "    const body = document.getElementById('__aim_body');",
+      "    if (!body || body.contains(document.activeElement)) return;",
+      "    if ((window.__aimTab || 'sites') !== 'picked') renderBody();",
+      "  });",
+      "",
+      "  // Background exports: Java pushes every state change as \"exportProgress\"; the strip under the tabs lists",
+      "  // the most recent ones with progress, ETA, errors and a cancel button.",
+      "  const exportJobs = new Map();",
+      "  function renderJobs(){",
+      "    const host = document.getElementById('__aim_jobs');",
+      "    if (!host) return;",
+      "    const list = Array.from(exportJobs.values()).sort((a, b) => b.id - a.id).slice(0, 6);",
+      "    host.hidden = !list.length;",
+      "    host.innerHTML = list.map(j => {",
+      "      const live = j.state === 'queued' || j.state === 'running';",
+      "      const pct = j.total ? Math.round(100 * j.done / j.total) : 0;",
+      "      const eta = j.state === 'running' && j.etaMs >= 0 ? ' • ETA ' + Math.ceil(j.etaMs / 1000) + 's' : '';",
+      "      const errs = j.errors ? ' • ' + j.errors + ' error(s)' : '';",
+      "      return `<div class=\"__aim_row\" title=\"${escAttr(j.outDir||'')}\">",
+      "          <span class=\"__aim_badge\">#${j.id} ${esc(j.state)}</span>",
+      "          <span style=\"flex:1\">${esc(j.label)} ${j.done}/${j.total}${eta}${errs}${j.message ? ' • ' + esc(j.message) : ''}</span>",
+      "          ${live ? `<div class=\"__aim_btn\" data-cancel-job=\"${j.id}\">Cancel</div>` : ''}",
+      "        </div>` + (live ? `<div style=\"height:3px;background:rgba(255,255,255,.1);margin:-4px 0 8px\"><div style=\"height:3px;width:${pct}%;background:#22d3ee\"></div></div>` : '');",
+      "    }).join('');",
+      "  }",
+      "  onRpcEvent('exportProgress', j => { exportJobs.set(j.id, j); renderJobs(); });",
+      "",
+      "  async function getConfig(){",
+      "    try { return await rpc('getConfig'); } catch (e) { return null; }",
+      "  }",
+      "",
+      "  function ensureUI() {",
+      "    if (document.getElementById('__aim_panel')) return;",
+      "",
+      "    const style = document.createElement('style');",
+      "    style.textContent = `",
+      "      #__aim_panel{position:fixed;top:0;right:0;width:460px;height:100vh;background:rgba(15,15,18,.94);color:#fff;z-index:2147483647;font:12px system-ui;border-left:1px solid rgba(255,255,255,.08);display:flex;flex-direction:column}",
+      "      #__aim_hdr{padding:10px;display:flex;gap:8px;align-items:center;border-bottom:1px solid rgba(255,255,255,.08)}",
+      "      #__aim_title{font-weight:700;flex:1}",
+      "      .__aim_btn{border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff;padding:6px 8px;border-radius:8px;cursor:pointer;user-select:none}",
+      "      .__aim_btn:hover{background:rgba(255,255,255,.10)}",
+      "      #__aim_help{padding:8px 10px;color:rgba(255,255,255,.75);border-bottom:1px solid rgba(255,255,255,.08);line-height:1.25}",
+      "      #__aim_tabs{display:flex;gap:8px;padding:10px;border-bottom:1px solid rgba(255,255,255,.08)}",
+      "      .__aim_tab{padding:6px 10px;border-radius:999px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);cursor:pointer}",
+      "      .__aim_tab.active{background:rgba(255,255,255,.12)}",
+      "      #__aim_body{padding:10px;overflow:auto;flex:1}",
+      "      #__aim_jobs{padding:8px 10px 0;border-bottom:1px solid rgba(255,255,255,.08)}",
+      "      .__aim_row{display:flex;gap:8px;align-items:center;margin-bottom:8px}",
+      "      label{opacity:.8}",
+      "      input,select,textarea{width:100%;box-sizing:border-box;padding:7px 8px;border-radius:10px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff}",
+      "      textarea{min-height:84px;resize:vertical}",
+      "      .__aim_card{border:1px solid rgba(255,255,255,.12);border-radius:12px;background:rgba(255,255,255,.04);padding:10px;margin-bottom:10px}",
+      "      .__aim_k{opacity:.7;font-size:11px}",
+      "      .__aim_item{border:1px solid rgba(255,255,255,.12);border-radius:10px;padding:8px;margin-top:8px;background:rgba(255,255,255,.04)}",
+      "      .__aim_selected_outline{outline:3px solid #22d3ee !important; outline-offset:2px !important}",
+      "      #__aim_overlay{position:fixed;z-index:2147483646;pointer-events:none;border:2px solid #00aaff;background:rgba(0,170,255,.08)}",
+      "      #__aim_label{position:fixed;z-index:2147483646;pointer-events:none;padding:4px 6px;border-radius:8px;background:rgba(0,0,0,.72);color:#fff;max-width:calc(100vw - 480px);overflow:hidden;text-overflow:ellipsis;white-space:nowrap}",
+      "      .__aim_badge{display:inline-block;padding:2px 8px;border-radius:999px;border:1px solid rgba(255,255,255,.16);background:rgba(255,255,255,.08);font-size:11px}",
+      "    `;",
+      "    document.documentElement.appendChild(style);",
+      "",
+      "    const panel = document.createElement('div');",
+      "    panel.id = '__aim_panel';",
+      "    panel.innerHTML = `",
+      "      <div id=\"__aim_hdr\">",
+      "        <div id=\"__aim_title\">Aim Picker Program</div>",
+      "        <span class=\"__aim_badge\" id=\"__aim_mode\">PICK: ON</span>",
+      "        <div class=\"__aim_btn\" id=\"__aim_toggle\">F8</div>",
+      "        <div class=\"__aim_btn\" id=\"__aim_finish\">Install</div>",
+      "        <div class=\"__aim_btn\" id=\"__aim_cancel\">Esc</div>",
+      "      </div>",
+      "      <div id=\"__aim_help\">",
+      "        <b>Pick mode:</b> click selects (no navigation).<br>",
+      "        <b>Ctrl+Click</b> bypass • <b>Backspace</b> undo • <b>Install</b> exports picked items",
+      "      </div>",
+      "      <div id=\"__aim_tabs\">",
+      "        <div class=\"__aim_tab active\" data-tab=\"sites\">Sites</div>",
+      "        <div class=\"__aim_tab\" data-tab=\"select\">Selection Profiles</div>",
+      "        <div class=\"__aim_tab\" data-tab=\"picked\">Picked</div>",
+      "      </div>",
+      "      <div id=\"__aim_jobs\" hidden></div>",
+      "      <div id=\"__aim_body\"></div>",
+      "    `;",
+      "    document.documentElement.appendChild(panel);",
+      "",
+      "    const overlay = document.createElement('div'); overlay.id='__aim_overlay'; document.documentElement.appendChild(overlay);",
+      "    const label = document.createElement('div'); label.id='__aim_label'; document.documentElement.appendChild(label);",
+      "",
+      "    panel.querySelector('#__aim_finish').addEventListener('click', () => window.__aimPickerDone = true);",
+      "    panel.querySelector('#__aim_cancel').addEventListener('click', () => window.__aimPickerCancel = true);",
+      "    panel.querySelector('#__aim_toggle').addEventListener('click', () => togglePickMode());",
+      "    panel.querySelector('#__aim_jobs').addEventListener('click', e => {",
+      "      const b = e.target.closest('[data-cancel-job]');",
+      "      if (b) rpc('cancelExport', { id: parseInt(b.getAttribute('data-cancel-job'), 10) }).catch(() => {});",
+      "    });",
+      "",
+      "    panel.querySelectorAll('.__aim_tab').forEach(t => {",
+      "      t.addEventListener('click', () => {",
+      "        panel.querySelectorAll('.__aim_tab').forEach(x => x.classList.remove('active'));",
+      "        t.classList.add('active');",
+      "        window.__aimTab = t.getAttribute('data-tab');",
+      "        renderBody();",
+      "      });",
+      "    });",
+      "  }",
+      "",
+      "  function updateModePill() {",
+      "    const pill = document.getElementById('__aim_mode');",
+      "    if (!pill) return;",
+      "    pill.textContent = window.__aimPickMode ? 'PICK: ON' : 'PICK: OFF';",
+      "  }",
+      "",
+      "  function togglePickMode() {",
+      "    window.__aimPickMode = !window.__aimPickMode;",
+      "    updateModePill();",
+      "  }",
+      "",
+      "  function renderBody(){",
+      "    const body = document.getElementById('__aim_body');",
+      "    if(!body) return;",
+      "    const tab = window.__aimTab || 'sites';",
+      "    if(tab === 'sites') return renderSites(body);",
+      "    if(tab === 'select') return renderSelectionProfiles(body);",
+      "    return renderPicked(body);",
+      "  }",
+      "",
+      "  const DEFAULT_PROFILE_TEXT = [",
+      "    'viewportWidth=1400',",
+      "    'viewportHeight=900',",
+      "    'userAgent=',",
+      "    'locale=',",
+      "    'timezoneId=',",
+      "    'storageStatePath=',",
+      "    'extraChromiumArgs=',",
+      "    'contextPoolSize=2',",
+      "    'warmOrigins=',",
+      "    'storageStateRefreshSeconds=300',",
+      "    ''",
+      "  ].join('\\n');",
+      "",
+      "  async function renderSites(body){",
+      "    const cfg = await getConfig();",
+      "    body.innerHTML = '';",
+      "",
+      "    const card = document.createElement('div'); card.className='__aim_card';",
+      "    card.innerHTML = `",
+      "      <div class=\"__aim_k\">Browser Profile (profiles/*.properties) — create/edit/save here</div>",
+      "      <div class=\"__aim_row\">",
+      "        <select id=\"__aim_browser_profile\"></select>",
+      "        <div class=\"__aim_btn\" id=\"__aim_bp_load\">Load</div>",
+      "      </div>",
+      "      <div class=\"__aim_row\">",
+      "        <input id=\"__aim_bp_new\" placeholder=\"new profile name (letters/numbers/._-)\" />",
+      "        <div class=\"__aim_btn\" id=\"__aim_bp_new_btn\">New</div>",
+      "      </div>",
+      "      <textarea id=\"__aim_bp_text\" spellcheck=\"false\"></textarea>",
+      "      <div class=\"__aim_row\" style=\"margin-top:8px\">",
+      "        <div class=\"__aim_btn\" id=\"__aim_bp_save\">Save Browser Profile</div>",
+      "        <div style=\"flex:1\"></div>",
+      "        <span class=\"__aim_k\" id=\"__aim_bp_status\"></span>",
+      "      </div>",
+      "      <div class=\"__aim_k\" style=\"margin-top:10px\">URL</div>",
+      "      <div class=\"__aim_row\">",
+      "        <input id=\"__aim_url\" placeholder=\"https://...\">",
+      "        <div class=\"__aim_btn\" id=\"__aim_go\">Go</div>",
+      "      </div>",
+      "      <div class=\"__aim_k\" style=\"margin-top:8px\">Saved URL Profiles (profiles/url_profiles.json)</div>",
+      "      <div class=\"__aim_row\">",
+      "        <select id=\"__aim_url_profile\"></select>",
+      "        <div class=\"__aim_btn\" id=\"__aim_use_profile\">Use</div>",
+      "      </div>",
+      "      <div class=\"__aim_row\">",
+      "        <input id=\"__aim_new_name\" placeholder=\"URL profile name\">",
+      "        <div class=\"__aim_btn\" id=\"__aim_add\">Add/Update</div>",
+      "      </div>",
+      "      <div class=\"__aim_row\">",
+      "        <div class=\"__aim_btn\" id=\"__aim_delete\">Delete</div>",
+      "        <div style=\"flex:1\"></div>",
+      "        <span class=\"__aim_k\" id=\"__aim_status\"></span>",
+      "      </div>",
+      "    `;",
+      "    body.appendChild(card);",
+      "",
+      "    const bpSel = card.querySelector('#__aim_browser_profile');",
+      "    (cfg?.browserProfiles||['default']).forEach(p => {",
+      "      const o=document.createElement('option'); o.value=p; o.textContent=p; bpSel.appendChild(o);",
+      "    });",
+      "    bpSel.value = cfg?.currentBrowserProfile || 'default';",
+      "",
+      "    const bpText = card.querySelector('#__aim_bp_text');",
+      "    const bpStatus = card.querySelector('#__aim_bp_status');",
+      "    const setBPStatus = (s) => bpStatus.textContent = s || '';",
+      "",
+      "    async function loadBP(name){",
+      "      let raw = '';",
+      "      try { raw = await rpc('loadBrowserProfile', {name: String(name||'')}); }",
+      "      catch (e) { bpText.value = DEFAULT_PROFILE_TEXT; setBPStatus('ERR: ' + e.message); return; }",
+      "      bpText.value = raw && String(raw).trim().length ? String(raw) : DEFAULT_PROFILE_TEXT;",
+      "      setBPStatus('Loaded: ' + name);",
+      "    }",
+      "",
+      "    card.querySelector('#__aim_bp_load').addEventListener('click', () => loadBP(bpSel.value));",
+      "    bpSel.addEventListener('change', () => loadBP(bpSel.value));",
+      "    await loadBP(bpSel.value);",
+      "",
+      "    card.querySelector('#__aim_bp_new_btn').addEventListener('click', () => {",
+      "      bpText.value = DEFAULT_PROFILE_TEXT;",
+      "      setBPStatus('New profile: fill name then Save');",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_bp_save').addEventListener('click', async () => {",
+      "      const nameFromNew = (card.querySelector('#__aim_bp_new').value||'').trim();",
+      "      const name = nameFromNew || (bpSel.value||'').trim();",
+      "      if (!name) return setBPStatus('Missing profile name');",
+      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(name)) return setBPStatus('Invalid name (use letters/numbers/._-)');",
+      "      setBPStatus('Saving...');",
+      "      const res = await rpc('saveBrowserProfile', {name, content: bpText.value||''}).catch(e => 'ERR: ' + e.message);",
+      "      setBPStatus(res);",
+      "",
+      "      const cfg2 = await getConfig();",
+      "      const okVisible = (cfg2?.browserProfiles||[]).includes(name);",
+      "      if (!okVisible) setBPStatus((res||'') + ' | ERR: not visible after save');",
+      "",
+      "      await renderSites(body);",
+      "      const bpSel2 = document.getElementById('__aim_browser_profile');",
+      "      if (bpSel2) bpSel2.value = name;",
+      "    });",
+      "",
+      "    const urlInput = card.querySelector('#__aim_url');",
+      "    urlInput.value = (cfg?.currentUrl || location.href);",
+      "",
+      "    const upSel = card.querySelector('#__aim_url_profile');",
+      "    const ups = (cfg?.urlProfiles || []);",
+      "    ups.forEach(p => {",
+      "      const o=document.createElement('option'); o.value=p.name||''; o.textContent=(p.name||'(unnamed)') + ' — ' + (p.url||'');",
+      "      upSel.appendChild(o);",
+      "    });",
+      "",
+      "    const status = card.querySelector('#__aim_status');",
+      "    const setStatus = (s) => status.textContent = s || '';",
+      "",
+      "    card.querySelector('#__aim_go').addEventListener('click', () => {",
+      "      const u = (urlInput.value||'').trim();",
+      "      if(!u.startsWith('http://') && !u.startsWith('https://')) return setStatus('URL must start with http:// or https://');",
+      "      location.href = u;",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_use_profile').addEventListener('click', () => {",
+      "      const name = upSel.value;",
+      "      const p = ups.find(x => (x.name||'') === name);",
+      "      if(!p) return;",
+      "      urlInput.value = p.url || '';",
+      "      setStatus('Loaded URL profile: ' + name);",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_add').addEventListener('click', async () => {",
+      "      const name = (card.querySelector('#__aim_new_name').value||'').trim();",
+      "      const u = (urlInput.value||'').trim();",
+      "      if(!name) return setStatus('Missing URL profile name');",
+      "      if(!u.startsWith('http://') && !u.startsWith('https://')) return setStatus('URL must start with http:// or https://');",
+      "      const next = { profiles: [] };",
+      "      const existing = ups.filter(x => (x.name||'') !== name);",
+      "      next.profiles = existing.concat([{name, url:u}]);",
+      "      const res = await rpc('saveUrlProfiles', next).catch(e => 'ERR: ' + e.message);",
+      "      setStatus(res);",
+      "      renderBody();",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_delete').addEventListener('click', async () => {",
+      "      const name = upSel.value;",
+      "      if(!name) return;",
+      "      const next = { profiles: ups.filter(x => (x.name||'') !== name) };",
+      "      const res = await rpc('saveUrlProfiles', next).catch(e => 'ERR: ' + e.message);",
+      "      setStatus(res);",
+      "      renderBody();",
+      "    });",
+      "  }",
+      "",
+      // --- selection profiles (FIXED) ---
+      "  async function renderSelectionProfiles(body){",
+      "    const cfg = await getConfig();",
+      "    body.innerHTML = '';",
+      "",
+      "    const HL_CLASS = '__aim_profile_outline';",
+      "",
+      "    (function ensureProfileStyle(){",
+      "      if (document.getElementById('__aim_profile_style')) return;",
+      "      const st = document.createElement('style');",
+      "      st.id='__aim_profile_style';",
+      "      st.textContent = `",
+      "        .${HL_CLASS}{ outline:2px dashed #a78bfa !important; outline-offset:2px !important }",
+      "      `;",
+      "      document.documentElement.appendChild(st);",
+      "    })();",
+      "",
+      "    // Highlights are reference counted (selector -> items using it, element -> selectors matching it), so an",
+      "    // edit or delete only re-queries the one selector that changed.",
+      "    let hlOn = false;",
+      "    let hlRefs = new Map();",
+      "    let elRefs = new WeakMap();",
+      "",
+      "    function clearProfileHighlights(){",
+      "      hlOn = false;",
+      "      hlRefs = new Map();",
+      "      elRefs = new WeakMap();",
+      "      try { document.querySelectorAll('.' + HL_CLASS).forEach(el => el.classList.remove(HL_CLASS)); } catch(e){}",
+      "    }",
+      "",
+      "    function hlAdd(selector){",
+      "      const sel = String(selector||'').trim();",
+      "      if(!hlOn || !sel) return;",
+      "      const ref = hlRefs.get(sel);",
+      "      if(ref){ ref.n++; return; }",
+      "      let els = [];",
+      "      try { els = Array.from(document.querySelectorAll(sel)); } catch(e){}",
+      "      hlRefs.set(sel, { n: 1, els });",
+      "      els.forEach(el => {",
+      "        const c = (elRefs.get(el) || 0) + 1;",
+      "        elRefs.set(el, c);",
+      "        if(c === 1) el.classList.add(HL_CLASS);",
+      "      });",
+      "    }",
+      "",
+      "    function hlRemove(selector){",
+      "      const sel = String(selector||'').trim();",
+      "      const ref = hlOn && sel ? hlRefs.get(sel) : null;",
+      "      if(!ref || --ref.n > 0) return;",
+      "      hlRefs.delete(sel);",
+      "      ref.els.forEach(el => {",
+      "        const c = (elRefs.get(el) || 1) - 1;",
+      "        if(c > 0) { elRefs.set(el, c); return; }",
+      "        elRefs.delete(el);",
+      "        el.classList.remove(HL_CLASS);",
+      "      });",
+      "    }",
+      "",
+      "    function applyProfileHighlights(items){",
+      "      clearProfileHighlights();",
+      "      hlOn = true;",
+      "      (items||[]).forEach(it => hlAdd(it && it.selector));",
+      "    }",
+      "",
+      "    async function loadProfileByName(name){",
+      "      const parsed = await rpc('loadSelectionProfile', {name: String(name||'').trim()}).catch(() => null);",
+      "      if (!parsed || typeof parsed !== 'object') return { name, items: [] };",
+      "      if (!parsed.name) parsed.name = name;",
+      "      if (!Array.isArray(parsed.items)) parsed.items = [];",
+      "      return parsed;",
+      "    }",
+      "",
+      "    async function saveProfileObject(profileObj){",
+      "      const out = {",
+      "        name: String(profileObj.name||'').trim(),",
+      "        createdAt: profileObj.createdAt || new Date().toISOString(),",
+      "        notes: String(profileObj.notes||''),",
+      "        items: Array.isArray(profileObj.items) ? profileObj.items : []",
+      "      };",
+      "      if(!out.name) return 'ERR: missing name';",
+      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(out.name)) return 'ERR: invalid name (use letters/numbers/._-)';",
+      "      return await rpc('saveSelectionProfile', out).catch(e => 'ERR: ' + e.message);",
+      "    }",
+      "",
+      "    const card = document.createElement('div'); card.className='__aim_card';",
+      "    card.innerHTML = `",
+      "      <div class=\"__aim_k\">Selection Profiles (profiles/selection_profiles/*.json)</div>",
+      "      <div class=\"__aim_row\">",
+      "        <select id=\"__aim_sp\"></select>",
+      "        <div class=\"__aim_btn\" id=\"__aim_load_sp\">Load</div>",
+      "        <div class=\"__aim_btn\" id=\"__aim_apply_hl\">Highlight</div>",
+      "        <div class=\"__aim_btn\" id=\"__aim_clear_hl\">Clear</div>",
+      "      </div>",
+      "      <div class=\"__aim_row\">",
+      "        <input id=\"__aim_sp_name\" placeholder=\"new profile name (letters/numbers/._-)\"/>",
+      "        <div class=\"__aim_btn\" id=\"__aim_save_picked\">Save PICKED as profile</div>",
+      "      </div>",
+      "      <div class=\"__aim_k\" style=\"margin-top:8px\">Profile Items (edit/delete here)</div>",
+      "      <div id=\"__aim_sp_items\"></div>",
+      "      <div class=\"__aim_k\" style=\"margin-top:10px\">Install From Profile</div>",
+      "      <div class=\"__aim_row\">",
+      "        <select id=\"__aim_sp_item\"></select>",
+      "        <div class=\"__aim_btn\" id=\"__aim_install_sp\">Install</div>",
+      "      </div>",
+      "      <div class=\"__aim_k\" style=\"margin-top:10px\">Profile JSON (advanced)</div>",
+      "      <textarea id=\"__aim_sp_json\" spellcheck=\"false\"></textarea>",
+      "      <div class=\"__aim_row\" style=\"margin-top:8px\">",
+      "        <div class=\"__aim_btn\" id=\"__aim_save_json\">Save JSON</div>",
+      "        <div style=\"flex:1\"></div>",
+      "        <span class=\"__aim_k\" id=\"__aim_sp_status\"></span>",
+      "      </div>",
+      "    `;",
+      "    body.appendChild(card);",
+      "",
+      "    const spSel     = card.querySelector('#__aim_sp');",
+      "    const statusEl  = card.querySelector('#__aim_sp_status');",
+      "    const itemsHost = card.querySelector('#__aim_sp_items');",
+      "    const jsonArea  = card.querySelector('#__aim_sp_json');",
+      "    const spItemSel = card.querySelector('#__aim_sp_item');",
+      "    const setStatus = (s) => statusEl.textContent = s || '';",
+      "",
+      "    (cfg?.selectionProfiles || ['sample']).forEach(name => {",
+      "      const o = document.createElement('option');",
+      "      o.value = name;",
+      "      o.textContent = name;",
+      "      spSel.appendChild(o);",
+      "    });",
+      "",
+      "    let currentProfile = { name: spSel.value || 'sample', items: [] };",
+      "",
+      "    // The JSON view and the auto-save after deletes trail edits instead of running on every keystroke.",
+      "    let jsonTimer = 0, saveTimer = 0;",
+      "    function syncJsonFromCurrent(){ clearTimeout(jsonTimer); jsonTimer = 0; jsonArea.value = JSON.stringify(currentProfile, null, 2); }",
+      "    function scheduleJsonSync(){ clearTimeout(jsonTimer); jsonTimer = setTimeout(syncJsonFromCurrent, 400); }",
+      "    function flushJsonSync(){ if(jsonTimer) syncJsonFromCurrent(); }",
+      "",
+      "    async function saveNow(){",
+      "      clearTimeout(saveTimer); saveTimer = 0;",
+      "      setStatus('Saving...');",
+      "      const res = await saveProfileObject(currentProfile);",
+      "      setStatus(res);",
+      "    }",
+      "    function scheduleSave(){ clearTimeout(saveTimer); saveTimer = setTimeout(saveNow, 1000); }",
+      "    async function flushSave(){ if(saveTimer) await saveNow(); }",
+      "",
+      "    function parseJsonArea(){",
+      "      flushJsonSync();",
+      "      const parsed = safeParseJson(jsonArea.value, null);",
+      "      if(!parsed || typeof parsed !== 'object') return null;",
+      "      if(!parsed.name || !Array.isArray(parsed.items)) return null;",
+      "      return parsed;",
+      "    }",
+      "",
+      "    function installLabel(it, idx){ return (idx+1) + ': ' + ((it.tag||'') ? (it.tag+' ') : '') + (it.selector||''); }",
+      "",
+      "    function rebuildInstallDropdown(){",
+      "      spItemSel.innerHTML = '';",
+      "      const o0 = document.createElement('option');",
+      "      o0.value = '0';",
+      "      o0.textContent = 'ALL';",
+      "      spItemSel.appendChild(o0);",
+      "      (currentProfile.items||[]).forEach((it, idx) => {",
+      "        const o = document.createElement('option');",
+      "        o.value = String(idx + 1);",
+      "        o.textContent = installLabel(it, idx);",
+      "        spItemSel.appendChild(o);",
+      "      });",
+      "    }",
+      "",
+      "    // Options after a deleted item are renumbered in place rather than rebuilt.",
+      "    function dropInstallOption(idx){",
+      "      const opts = spItemSel.options;",
+      "      if(opts[idx + 1]) opts[idx + 1].remove();",
+      "      for(let i = idx; i < currentProfile.items.length; i++){",
+      "        const o = opts[i + 1];",
+      "        if(!o) break;",
+      "        o.value = String(i + 1);",
+      "        o.textContent = installLabel(currentProfile.items[i], i);",
+      "      }",
+      "    }",
+      "",
+      "    // Only the rows in (and just around) the scroll viewport exist; every row has the same height, so the",
+      "    // visible range follows from scrollTop. Rows read their index from data-idx when an event fires.",
+      "    const ROW_H = 196, OVERSCAN = 3;",
+      "    itemsHost.style.cssText = 'position:relative;max-height:520px;overflow:auto';",
+      "    const spacer = document.createElement('div');",
+      "    const rows = new Map();",
+      "    let renderQueued = false;",
+      "",
+      "    function renderItemsList(){",
+      "      rows.forEach(div => div.remove());",
+      "      rows.clear();",
+      "      itemsHost.scrollTop = Math.min(itemsHost.scrollTop, Math.max(0, (currentProfile.items||[]).length * ROW_H - itemsHost.clientHeight));",
+      "      renderVisibleRows();",
+      "    }",
+      "",
+      "    function queueRender(){",
+      "      if(renderQueued) return;",
+      "      renderQueued = true;",
+      "      requestAnimationFrame(() => { renderQueued = false; renderVisibleRows(); });",
+      "    }",
+      "    itemsHost.addEventListener('scroll', queueRender, { passive: true });",
+      "",
+      "    function renderVisibleRows(){",
+      "      const items = currentProfile.items || [];",
+      "      if(!items.length){",
+      "        itemsHost.innerHTML = '<div class=\"__aim_k\">(no items)</div>';",
+      "        return;",
+      "      }",
+      "      if(spacer.parentNode !== itemsHost){ itemsHost.innerHTML = ''; itemsHost.appendChild(spacer); }",
+      "      spacer.style.height = (items.length * ROW_H + 8) + 'px';",
+      "      const viewH = itemsHost.clientHeight || 520;",
+      "      const first = Math.max(0, Math.floor(itemsHost.scrollTop / ROW_H) - OVERSCAN);",
+      "      const last = Math.min(items.length - 1, Math.ceil((itemsHost.scrollTop + viewH) / ROW_H) + OVERSCAN);",
+      "      rows.forEach((div, idx) => {",
+      "        if(idx < first || idx > last){ div.remove(); rows.delete(idx); }",
+      "      });",
+      "      for(let idx = first; idx <= last; idx++){",
+      "        if(rows.has(idx)) continue;",
+      "        const div = buildItemRow(items[idx], idx);",
+      "        rows.set(idx, div);",
+      "        itemsHost.appendChild(div);",
+      "      }",
+      "    }",
+      "",
+      "    function buildItemRow(it, idx){",
+      "      const div = document.createElement('div');",
+      "      div.className='__aim_item';",
+      "      div.dataset.idx = String(idx);",
+      "      div.style.cssText = `position:absolute;left:0;right:0;top:${idx * ROW_H}px;height:${ROW_H - 8}px;box-sizing:border-box;overflow:hidden`;",
+      "      const sel  = String(it.selector||'');",
+      "      const tag  = String(it.tag||'');",
+      "      const kind = String(it.kind||'');",
+      "      const text = String(it.text||'');",
+      "      div.innerHTML = `",
+      "        <div class=\"__aim_row\" style=\"justify-content:space-between\">",
+      "          <span class=\"__aim_badge\">#${idx+1}</span>",
+      "          <span class=\"__aim_badge\">${esc(kind)}</span>",
+      "          <span class=\"__aim_badge\">${esc(tag)}</span>",
+      "          <span data-cost>${costBadge(it)}</span>",
+      "        </div>",
+      "        <div class=\"__aim_k\" style=\"margin-top:6px\">selector</div>",
+      "        <input data-f=\"selector\" value=\"${escAttr(sel)}\"/>",
+      "        <div class=\"__aim_k\" style=\"margin-top:6px\">text</div>",
+      "        <input data-f=\"text\" value=\"${escAttr(text)}\"/>",
+      "        <div class=\"__aim_row\" style=\"margin-top:8px\">",
+      "          <div class=\"__aim_btn\" data-act=\"scroll\">Scroll</div>",
+      "          <div class=\"__aim_btn\" data-act=\"remove\">Delete</div>",
       "        </div>",
-      "        <div style=\"margin-top:10px\"><div class=\"k\">selector</div><div class=\"v\">${esc(it.selector)}</div></div>",
-      "        <div style=\"margin-top:10px\"><div class=\"k\">text</div><div class=\"v\">${esc(it.pickedText||it.innerText||'')}</div></div>",
-      "        ${it.screenshot ? `<div style=\"margin-top:10px\"><div class=\"k\">screenshot</div><img src=\"./${it.screenshot}\"></div>` : ''}",
-      "        ${mediaHtml ? `<div style=\"margin-top:10px\"><div class=\"k\">media preview</div>${mediaHtml}</div>` : ''}",
-      "        ${dlLinks ? `<div style=\"margin-top:10px\"><div class=\"k\">downloaded files</div>${dlLinks}</div>` : ''}",
-      "        ${it.outerHtml ? `<div style=\"margin-top:10px\"><div class=\"k\">outerHTML</div><pre>${esc(it.outerHtml)}</pre></div>` : ''}",
       "      `;",
-      "      grid.appendChild(card);",
+      "      const rowIdx = () => parseInt(div.dataset.idx, 10);",
+      "",
+      "      div.querySelectorAll('input[data-f]').forEach(inp => {",
+      "        inp.addEventListener('input', () => {",
+      "          const i = rowIdx();",
+      "          const item = currentProfile.items[i];",
+      "          const f = inp.getAttribute('data-f');",
+      "          if(f === 'selector'){",
+      "            hlRemove(item.selector);",
+      "            item.selector = inp.value || '';",
+      "            hlAdd(item.selector);",
+      "            const o = spItemSel.options[i + 1];",
+      "            if(o) o.textContent = installLabel(item, i);",
+      "          } else {",
+      "            item[f] = inp.value || '';",
+      "          }",
+      "          scheduleJsonSync();",
+      "        });",
+      "      });",
+      "",
+      "      // Measured once per edit (on commit, not per keystroke) and stored with the item.",
+      "      div.querySelector('input[data-f=\"selector\"]').addEventListener('change', () => {",
+      "        const item = currentProfile.items[rowIdx()];",
+      "        if (!item) return;",
+      "        Object.assign(item, selectorCost(item.selector));",
+      "        div.querySelector('[data-cost]').innerHTML = costBadge(item);",
+      "        scheduleJsonSync();",
+      "      });",
+      "",
+      "      div.querySelector('[data-act=\"scroll\"]').addEventListener('click', () => {",
+      "        try { const el = document.querySelector(currentProfile.items[rowIdx()].selector); if(el) el.scrollIntoView({behavior:'smooth', block:'center', inline:'center'}); } catch(e){}",
+      "      });",
+      "",
+      "      div.querySelector('[data-act=\"remove\"]').addEventListener('click', () => {",
+      "        const i = rowIdx();",
+      "        const removed = currentProfile.items.splice(i, 1)[0];",
+      "        hlRemove(removed && removed.selector);",
+      "        dropInstallOption(i);",
+      "        renderItemsList();",
+      "        scheduleJsonSync();",
+      "        setStatus('Deleted #' + (i+1) + '; saving shortly...');",
+      "        scheduleSave();",
+      "      });",
+      "      return div;",
+      "    }",
+      "",
+      "    async function loadSelectedProfile(){",
+      "      const name = (spSel.value || '').trim() || 'sample';",
+      "      await flushSave();",
+      "      clearProfileHighlights();",
+      "      currentProfile = await loadProfileByName(name);",
+      "      syncJsonFromCurrent();",
+      "      renderItemsList();",
+      "      rebuildInstallDropdown();",
+      "      applyProfileHighlights(currentProfile.items);",
+      "      setStatus('Loaded + highlighted: ' + name);",
+      "    }",
+      "",
+      "    card.querySelector('#__aim_load_sp').addEventListener('click', loadSelectedProfile);",
+      "    spSel.addEventListener('change', loadSelectedProfile);",
+      "",
+      "    card.querySelector('#__aim_apply_hl').addEventListener('click', () => {",
+      "      const parsed = parseJsonArea();",
+      "      if(parsed){ currentProfile = parsed; renderItemsList(); rebuildInstallDropdown(); }",
+      "      applyProfileHighlights(currentProfile.items);",
+      "      setStatus('Highlighted current items');",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_clear_hl').addEventListener('click', () => {",
+      "      clearProfileHighlights();",
+      "      setStatus('Cleared highlights');",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_save_picked').addEventListener('click', async () => {",
+      "      const name = (card.querySelector('#__aim_sp_name').value||'').trim();",
+      "      if(!name) return setStatus('Missing name');",
+      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(name)) return setStatus('Invalid name (use letters/numbers/._-)');",
+      "      const items = (window.__aimSelections||[])",
+      "        .map(it => ({ selector: it.selector||'', tag: it.tag||'', kind: it.kind||'', text: it.text||'',",
+      "                      ...(it.queryMicros >= 0 ? { matchCount: it.matchCount, queryMicros: it.queryMicros } : {}) }))",
+      "        .filter(x => x.selector);",
+      "      if(!items.length) return setStatus('No picked selections to save');",
+      "      const profile = { name, createdAt: new Date().toISOString(), notes:'', items };",
+      "      await flushSave();",
+      "      setStatus('Saving...');",
+      "      const res = await saveProfileObject(profile);",
+      "      setStatus(res);",
+      "      renderBody();",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_save_json').addEventListener('click', async () => {",
+      "      const parsed = parseJsonArea();",
+      "      if(!parsed) return setStatus('Invalid JSON or missing name/items[]');",
+      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(String(parsed.name))) return setStatus('Invalid name (use letters/numbers/._-)');",
+      "      currentProfile = parsed;",
+      "      renderItemsList();",
+      "      rebuildInstallDropdown();",
+      "      applyProfileHighlights(currentProfile.items);",
+      "      await saveNow();",
+      "      renderBody();",
+      "    });",
+      "",
+      "    card.querySelector('#__aim_install_sp').addEventListener('click', async () => {",
+      "      const selProfile = (spSel.value || '').trim();",
+      "      const selIndex = parseInt(spItemSel.value||'0', 10) || 0;",
+      "      await flushSave();",
+      "      const res = await rpc('installFromProfile', {selProfile, selIndex}).catch(e => 'ERR: ' + e.message);",
+      "      setStatus(res && res.jobId ? 'Queued export #' + res.jobId + ' (progress above)' : String(res));",
       "    });",
+      "",
+      "    await loadSelectedProfile();",
       "  }",
-      "  q.addEventListener('input', render);",
-      "  render();",
+      "",
+      "  function renderPicked(body){",
+      "    body.innerHTML = '';",
+      "    const listCard = document.createElement('div'); listCard.className='__aim_card';",
+      "    listCard.innerHTML = `",
+      "      <div class=\"__aim_row\"><div class=\"__aim_k\" style=\"flex:1\">Picked items</div><div class=\"__aim_btn\" id=\"__aim_export_bg\">Export in background</div></div>",
+      "      <div class=\"__aim_k\" id=\"__aim_export_status\"></div>",
+      "      <div id=\"__aim_list\"></div>`;",
+      "    body.appendChild(listCard);",
+      "    listCard.querySelector('#__aim_export_bg').addEventListener('click', async () => {",
+      "      const st = listCard.querySelector('#__aim_export_status');",
+      "      if (!(window.__aimSelections||[]).length) { st.textContent = 'Nothing picked yet'; return; }",
+      "      const res = await rpc('exportPicked', { selections: window.__aimSelections }).catch(e => 'ERR: ' + e.message);",
+      "      st.textContent = res && res.jobId ? 'Queued export #' + res.jobId + '; keep picking' : String(res);",
+      "    });",
+      "    const list = listCard.querySelector('#__aim_list');",
+      "    list.innerHTML = '';",
+      "    (window.__aimSelections||[]).forEach((it,i) => {",
+      "      const div=document.createElement('div'); div.className='__aim_item';",
+      "      div.innerHTML = `",
+      "        <div class=\"__aim_row\" style=\"justify-content:space-between\">",
+      "          <span class=\"__aim_badge\">#${i+1}</span>",
+      "          <span class=\"__aim_badge\">${esc(it.kind||'')}</span>",
+      "          <span class=\"__aim_badge\">${esc(it.tag||'')}</span>",
+      "          ${costBadge(it)}",
+      "        </div>",
+      "        <div class=\"__aim_k\" style=\"margin-top:6px\">selector</div>",
+      "        <div title=\"${escAttr(it.selector||'')}\">${esc(it.selector||'')}</div>",
+      "        <div class=\"__aim_k\" style=\"margin-top:6px\">text</div>",
+      "        <div title=\"${escAttr(it.text||'')}\">${esc(it.text||'')}</div>",
+      "        <div class=\"__aim_row\" style=\"margin-top:8px\">",
+      "          <div class=\"__aim_btn\" data-act=\"rm\">Remove</div>",
+      "          <div class=\"__aim_btn\" data-act=\"go\">Scroll</div>",
+      "        </div>",
+      "      `;",
+      "      div.querySelector('[data-act=\"rm\"]').addEventListener('click', () => {",
+      "        try { const el=document.querySelector(it.selector); if(el) el.classList.remove('__aim_selected_outline'); } catch(e){}",
+      "        window.__aimSelections.splice(i,1);",
+      "        renderBody();",
+      "      });",
+      "      div.querySelector('[data-act=\"go\"]').addEventListener('click', () => {",
+      "        try { const el=document.querySelector(it.selector); if(el) el.scrollIntoView({behavior:'smooth', block:'center', inline:'center'}); } catch(e){}",
+      "      });",
+      "      list.appendChild(div);",
+      "    });",
+      "  }",
+      "",
+      "  window.__aimPickerInstall = () => {",
+      "    if (window.__aimPickerActive) return;",
+      "    window.__aimPickerActive = true;",
+      "    window.__aimSelections = window.__aimSelections || [];",
+      "    window.__aimPickerDone = false;",
+      "    window.__aimPickerCancel = false;",
+      "    window.__aimPickMode = true;",
+      "    window.__aimTab = 'sites';",
+      "",
+      "    ensureUI();",
+      "    updateModePill();",
+      "    renderBody();",
+      "",
+      "    const overlay = document.getElementById('__aim_overlay');",
+      "    const label = document.getElementById('__aim_label');",
+      "    const panel = document.getElementById('__aim_panel');",
+      "    const isUI = (el) => panel && panel.contains(el);",
+      "",
+      "    // Profiling every candidate is too heavy for mousemove: the overlay follows the pointer at once and the",
+      "    // selector label is filled in when the browser is idle, for whichever element is under the pointer by then.",
+      "    let hoverEl = null, hoverPending = false;",
+      "    const whenIdle = window.requestIdleCallback ? (fn => requestIdleCallback(fn, { timeout: 250 })) : (fn => setTimeout(fn, 50));",
+      "    function labelHover(){",
+      "      hoverPending = false;",
+      "      const el = hoverEl;",
+      "      if (!el || !el.isConnected) return;",
+      "      const p = profileSelector(el);",
+      "      if (el !== hoverEl) return;",
+      "      label.textContent = p.selector + (p.queryMicros >= 0 ? `  (${p.queryMicros}µs${p.matchCount !== 1 ? ', ' + p.matchCount + ' matches' : ''})` : '');",
+      "    }",
+      "",
+      "    function onMove(e){",
+      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
+      "      if (!el || el === overlay || el === label || isUI(el)) return;",
+      "      const r = el.getBoundingClientRect();",
+      "      overlay.style.left=r.left+'px'; overlay.style.top=r.top+'px';",
+      "      overlay.style.width=r.width+'px'; overlay.style.height=r.height+'px';",
+      "      if (el !== hoverEl) {",
+      "        hoverEl = el;",
+      "        label.textContent = el.tagName.toLowerCase() + ' …';",
+      "        if (!hoverPending) { hoverPending = true; whenIdle(labelHover); }",
+      "      }",
+      "      label.style.left = Math.max(0, Math.min(r.left, window.innerWidth - 480)) + 'px';",
+      "      label.style.top = Math.max(0, r.top - 26) + 'px';",
+      "    }",
+      "",
+      "    function blockIfPicking(e){",
+      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
+      "      if (!el || isUI(el)) return;",
+      "      if (e.ctrlKey) return;",
+      "      if (!window.__aimPickMode) return;",
+      "      e.preventDefault();",
+      "      e.stopPropagation();",
+      "      if (e.stopImmediatePropagation) e.stopImmediatePropagation();",
+      "    }",
+      "",
+      "    function onClickCapture(e){",
+      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
+      "      if (!el || isUI(el)) return;",
+      "      if (e.ctrlKey) return;",
+      "      if (!window.__aimPickMode) return;",
+      "      e.preventDefault();",
+      "      e.stopPropagation();",
+      "      if (e.stopImmediatePropagation) e.stopImmediatePropagation();",
+      "",
+      "      const { selector, form, matchCount, queryMicros } = profileSelector(el);",
+      "      if (!selector) return;",
+      "",
+      "      try { el.classList.add('__aim_selected_outline'); } catch(e){}",
+      "      // Huge containers are re-read from the live element at export time instead of riding along in",
+      "      // every __aimSelections round trip.",
+      "      let outerHtml = '', outerHtmlLength = 0;",
+      "      try { outerHtml = el.outerHTML || ''; outerHtmlLength = outerHtml.length; } catch(e){}",
+      "      const outerHtmlOmitted = outerHtmlLength > INLINE_OUTER_HTML_MAX;",
+      "      if (outerHtmlOmitted) outerHtml = '';",
+      "",
+      "      window.__aimSelections.push({",
+      "        selector,",
+      "        tag: (el.tagName||'').toLowerCase(),",
+      "        kind: guessKind(el),",
+      "        text: textSnippet(el),",
+      "        src: getSrc(el),",
+      "        href: getHref(el),",
+      "        outerHtml,",
+      "        selectorForm: form,",
+      "        matchCount,",
+      "        queryMicros,",
+      "        ...(outerHtmlOmitted ? { outerHtmlOmitted, outerHtmlLength } : {})",
+      "      });",
+      "",
+      "      if ((window.__aimTab||'sites') === 'picked') renderBody();",
+      "    }",
+      "",
+      "    function onKey(e){",
+      "      if (e.key === 'Escape') { window.__aimPickerCancel = true; e.preventDefault(); e.stopPropagation(); }",
+      "      else if (e.key === 'F8') { togglePickMode(); e.preventDefault(); e.stopPropagation(); }",
+      "      else if (e.key === 'Backspace') {",
+      "        if (window.__aimSelections.length) {",
+      "          const last = window.__aimSelections.pop();",
+      "          try { const el=document.querySelector(last.selector); if(el) el.classList.remove('__aim_selected_outline'); } catch(e){}",
+      "          if ((window.__aimTab||'sites') === 'picked') renderBody();",
+      "        }",
+      "        e.preventDefault(); e.stopPropagation();",
+      "      }",
+      "    }",
+      "",
+      "    document.addEventListener('mousemove', onMove, true);",
+      "    document.addEventListener('pointerdown', blockIfPicking, true);",
+      "    document.addEventListener('mousedown', blockIfPicking, true);",
+      "    document.addEventListener('touchstart', blockIfPicking, true);",
+      "    document.addEventListener('click', onClickCapture, true);",
+      "    document.addEventListener('keydown', onKey, true);",
+      "  };",
       "})();",
-      "</script>",
-      "</body>",
-      "</html>",
       ""
     );
   }
 
-  // picker.js with fixed selection profile load + highlight-on-load + delete + autosave
-  private static String pickerJs() {
+  // ---------- generated tests (src/test/java, run with ./mvnw test) ----------
+
+  private static String fingerprintTestJava() {
     return String.join("\n",
-      "(() => {",
-      "  if (window.__aimPickerInstall) return;",
+      "import com.fasterxml.jackson.databind.JsonNode;",
+      "import com.fasterxml.jackson.databind.ObjectMapper;",
+      "import com.fasterxml.jackson.databind.node.ObjectNode;",
+      "import org.junit.jupiter.api.Test;",
       "",
-      "  function safeParseJson(s, def){ try { return JSON.parse(String(s)); } catch(e){ return def; } }",
-      "  function esc(s){ return String(s||'').replace(/&/g,'&amp;').replace(/</g,'&lt;').replace(/>/g,'&gt;'); }",
-      "  function escAttr(s){ return String(s||'').replace(/\"/g,'&quot;'); }",
+      "import java.util.List;",
       "",
-      "  (function(){",
-      "    const _open = window.open;",
-      "    window.open = function(){ if (window.__aimPickMode) return null; return _open.apply(this, arguments); };",
-      "    const _assign = location.assign.bind(location);",
-      "    const _replace = location.replace.bind(location);",
-      "    location.assign = function(u){ if (window.__aimPickMode) return; return _assign(u); };",
-      "    location.replace = function(u){ if (window.__aimPickMode) return; return _replace(u); };",
-      "    const _push = history.pushState.bind(history);",
-      "    const _rep  = history.replaceState.bind(history);",
-      "    history.pushState = function(){ if (window.__aimPickMode) return; return _push.apply(history, arguments); };",
-      "    history.replaceState = function(){ if (window.__aimPickMode) return; return _rep.apply(history, arguments); };",
-      "  })();",
+      "import static org.junit.jupiter.api.Assertions.*;",
       "",
-      "  function cssEscape(s) {",
-      "    try { return CSS.escape(String(s)); }",
-      "    catch (e) { return String(s).replace(/[^a-zA-Z0-9_-]/g, \"\\\\$&\"); }",
+      "class FingerprintTest {",
+      "  private static final ObjectMapper OM = new ObjectMapper();",
+      "",
+      "  private static JsonNode box(double x, double y, double w, double h) {",
+      "    ObjectNode b = OM.createObjectNode();",
+      "    b.put(\"x\", x); b.put(\"y\", y); b.put(\"width\", w); b.put(\"height\", h);",
+      "    return b;",
       "  }",
       "",
-      "  function stableAttrSelector(el) {",
-      "    const attrs = [\"data-testid\",\"data-test-id\",\"data-qa\",\"data-id\",\"aria-label\",\"name\",\"role\"];",
-      "    for (const a of attrs) {",
-      "      const v = el.getAttribute && el.getAttribute(a);",
-      "      if (v && v.length <= 140) {",
-      "        const tag = el.tagName.toLowerCase();",
-      "        return `${tag}[${a}=\"${String(v).replace(/\"/g,'\\\\\"')}\"]`;",
-      "      }",
-      "    }",
-      "    return \"\";",
+      "  private static String fp(String text, String html, JsonNode bbox, List<String> media) {",
+      "    return AimPickerProgram.fingerprint(text, html, bbox, media).path(\"fingerprint\").asText();",
       "  }",
       "",
-      "  function buildSelector(el) {",
-      "    if (!(el instanceof Element)) return \"\";",
-      "    if (el.id) return `#${cssEscape(el.id)}`;",
-      "    const stable = stableAttrSelector(el);",
-      "    if (stable) return stable;",
-      "    const parts = [];",
-      "    let cur = el;",
-      "    while (cur && cur.nodeType === 1 && cur !== document.documentElement) {",
-      "      let part = cur.tagName.toLowerCase();",
-      "      const stable2 = stableAttrSelector(cur);",
-      "      if (stable2) { parts.unshift(stable2); break; }",
-      "      if (cur.classList && cur.classList.length) {",
-      "        const cls = Array.from(cur.classList).slice(0, 2).map(c => '.' + cssEscape(c)).join('');",
-      "        if (cls) part += cls;",
-      "      }",
-      "      const parent = cur.parentElement;",
-      "      if (parent) {",
-      "        const same = Array.from(parent.children).filter(x => x.tagName === cur.tagName);",
-      "        if (same.length > 1) {",
-      "          const idx = same.indexOf(cur) + 1;",
-      "          part += `:nth-of-type(${idx})`;",
-      "        }",
-      "      }",
-      "      parts.unshift(part);",
-      "      cur = cur.parentElement;",
-      "      if (parts.length >= 8) break;",
+      "  @Test",
+      "  void identicalInputsGiveTheSameFingerprint() {",
+      "    assertEquals(fp(\"Hello\", \"<p>Hello</p>\", box(10, 20, 300, 40), List.of(\"https://a/x.png\")),",
+      "                 fp(\"Hello\", \"<p>Hello</p>\", box(10, 20, 300, 40), List.of(\"https://a/x.png\")));",
+      "  }",
+      "",
+      "  @Test",
+      "  void subPixelJitterIsNotAChange() {",
+      "    ObjectNode a = AimPickerProgram.fingerprint(\"t\", \"<b>t</b>\", box(10.2, 19.8, 300.4, 40.1), List.of());",
+      "    ObjectNode b = AimPickerProgram.fingerprint(\"t\", \"<b>t</b>\", box(9.9, 20.3, 299.6, 39.7), List.of());",
+      "    assertEquals(\"10,20,300,40\", a.path(\"boundingBox\").asText());",
+      "    assertEquals(a.path(\"fingerprint\").asText(), b.path(\"fingerprint\").asText());",
+      "  }",
+      "",
+      "  @Test",
+      "  void textHtmlBoxAndMediaEachChangeTheFingerprint() {",
+      "    String base = fp(\"t\", \"<b>t</b>\", box(0, 0, 100, 20), List.of(\"https://a/1.png\"));",
+      "    assertNotEquals(base, fp(\"u\", \"<b>t</b>\", box(0, 0, 100, 20), List.of(\"https://a/1.png\")));",
+      "    assertNotEquals(base, fp(\"t\", \"<i>t</i>\", box(0, 0, 100, 20), List.of(\"https://a/1.png\")));",
+      "    assertNotEquals(base, fp(\"t\", \"<b>t</b>\", box(0, 1, 100, 20), List.of(\"https://a/1.png\")));",
+      "    assertNotEquals(base, fp(\"t\", \"<b>t</b>\", box(0, 0, 100, 20), List.of(\"https://a/2.png\")));",
+      "    assertNotEquals(base, fp(\"t\", \"<b>t</b>\", box(0, 0, 100, 20), List.of()));",
+      "  }",
+      "",
+      "  @Test",
+      "  void missingBoxIsRecordedAsEmpty() {",
+      "    ObjectNode f = AimPickerProgram.fingerprint(\"t\", \"<b>t</b>\", OM.missingNode(), List.of(\"https://a/1.png\"));",
+      "    assertEquals(\"\", f.path(\"boundingBox\").asText());",
+      "    assertEquals(1, f.path(\"mediaUrls\").size());",
+      "    assertEquals(64, f.path(\"fingerprint\").asText().length());",
+      "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String bundleTestJava() {
+    return String.join("\n",
+      "import org.junit.jupiter.api.Test;",
+      "import org.junit.jupiter.api.io.TempDir;",
+      "",
+      "import java.io.IOException;",
+      "import java.io.OutputStream;",
+      "import java.nio.ByteBuffer;",
+      "import java.nio.charset.StandardCharsets;",
+      "import java.nio.file.Files;",
+      "import java.nio.file.Path;",
+      "import java.util.Arrays;",
+      "import java.util.List;",
+      "",
+      "import static org.junit.jupiter.api.Assertions.*;",
+      "",
+      "class BundleTest {",
+      "  @TempDir Path dir;",
+      "",
+      "  private static byte[] utf8(String s) { return s.getBytes(StandardCharsets.UTF_8); }",
+      "",
+      "  @Test",
+      "  void entriesRoundTripInWriteOrder() throws IOException {",
+      "    Path file = dir.resolve(\"cap\").resolve(AimPickerProgram.BUNDLE_FILE);",
+      "    byte[] big = new byte[300_000];",
+      "    for (int i = 0; i < big.length; i++) big[i] = (byte) (i * 31);",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(file)) {",
+      "      assertEquals(\"manifest.json\", w.put(\"manifest.json\", utf8(\"{\\\"results\\\":[]}\")));",
+      "      w.put(\"shots/1.png\", big);",
+      "      w.put(\"empty.txt\", new byte[0]);",
+      "      try (OutputStream out = w.open(\"html/1.html\")) { out.write(utf8(\"<p>streamed</p>\")); }",
+      "      assertEquals(file + \"!/shots/1.png\", w.ref(\"shots/1.png\"));",
+      "    }",
+      "    try (AimPickerProgram.BundleReader r = new AimPickerProgram.BundleReader(file)) {",
+      "      assertEquals(List.of(\"manifest.json\", \"shots/1.png\", \"empty.txt\", \"html/1.html\"), List.copyOf(r.names()));",
+      "      assertArrayEquals(utf8(\"{\\\"results\\\":[]}\"), r.bytes(\"manifest.json\"));",
+      "      assertArrayEquals(big, r.bytes(\"shots/1.png\"));",
+      "      assertEquals(0, r.bytes(\"empty.txt\").length);",
+      "      assertArrayEquals(utf8(\"<p>streamed</p>\"), r.bytes(\"html/1.html\"));",
+      "      ByteBuffer b = r.get(\"shots/1.png\");",
+      "      assertEquals(big.length, b.remaining());",
+      "      assertTrue(r.has(\"manifest.json\"));",
+      "      assertFalse(r.has(\"missing\"));",
+      "      assertNull(r.get(\"missing\"));",
+      "      assertNull(r.bytes(\"missing\"));",
       "    }",
-      "    return parts.join(' > ');",
       "  }",
       "",
-      "  function textSnippet(el) {",
-      "    try {",
-      "      const t = (el.innerText || el.textContent || '').trim().replace(/\\s+/g, ' ');",
-      "      return t.slice(0, 240);",
-      "    } catch (e) { return ''; }",
+      "  @Test",
+      "  void laterEntryWithTheSameNameWins() throws IOException {",
+      "    Path file = dir.resolve(AimPickerProgram.BUNDLE_FILE);",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(file)) {",
+      "      w.put(\"a.txt\", utf8(\"first\"));",
+      "      w.put(\"a.txt\", utf8(\"second\"));",
+      "    }",
+      "    try (AimPickerProgram.BundleReader r = new AimPickerProgram.BundleReader(file)) {",
+      "      assertEquals(1, r.names().size());",
+      "      assertArrayEquals(utf8(\"second\"), r.bytes(\"a.txt\"));",
+      "    }",
       "  }",
       "",
-      "  function guessKind(el) {",
-      "    const tag = (el.tagName || '').toLowerCase();",
-      "    if (tag === 'img') return 'image';",
-      "    if (tag === 'video') return 'video';",
-      "    if (tag === 'source') return 'source';",
-      "    if (tag === 'a') return 'link';",
-      "    if (tag === 'input' || tag === 'textarea' || tag === 'select') return 'input';",
-      "    return 'element';",
+      "  @Test",
+      "  void incompleteBundleIsRejected() throws IOException {",
+      "    Path file = dir.resolve(AimPickerProgram.BUNDLE_FILE);",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(file)) { w.put(\"a.txt\", utf8(\"payload\")); }",
+      "    byte[] whole = Files.readAllBytes(file);",
+      "    Files.write(file, Arrays.copyOf(whole, whole.length - 3));",
+      "    IOException e = assertThrows(IOException.class, () -> new AimPickerProgram.BundleReader(file).close());",
+      "    assertTrue(e.getMessage().contains(\"index missing\"), e.getMessage());",
+      "    Files.write(file, Arrays.copyOf(AimPickerProgram.BundleWriter.MAGIC, 8));",
+      "    assertThrows(IOException.class, () -> new AimPickerProgram.BundleReader(file).close());",
       "  }",
       "",
-      "  function getSrc(el) {",
-      "    try {",
-      "      const tag = (el.tagName || '').toLowerCase();",
-      "      if (tag === 'img') return el.currentSrc || el.src || '';",
-      "      if (tag === 'video') return el.currentSrc || el.src || '';",
-      "      if (tag === 'source') return el.src || '';",
-      "      return '';",
-      "    } catch (e) { return ''; }",
+      "  @Test",
+      "  void readArtifactPrefersTheBundleAndDecodesGzip() throws IOException {",
+      "    Path cap = dir.resolve(\"aim_capture_1\");",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(cap.resolve(AimPickerProgram.BUNDLE_FILE))) {",
+      "      w.put(\"manifest.json.gz\", AimPickerProgram.gzip(utf8(\"{\\\"packed\\\":true}\")));",
+      "    }",
+      "    Files.write(cap.resolve(\"manifest.json\"), utf8(\"{\\\"loose\\\":true}\"));",
+      "    assertArrayEquals(utf8(\"{\\\"packed\\\":true}\"), AimPickerProgram.readArtifact(cap, \"manifest.json\"));",
+      "    assertNull(AimPickerProgram.readArtifact(cap, \"other.json\"));",
+      "",
+      "    Path loose = dir.resolve(\"aim_capture_2\");",
+      "    Files.createDirectories(loose);",
+      "    Files.write(loose.resolve(\"manifest.json.gz\"), AimPickerProgram.gzip(utf8(\"{\\\"loose\\\":true}\")));",
+      "    assertArrayEquals(utf8(\"{\\\"loose\\\":true}\"), AimPickerProgram.readArtifact(loose, \"manifest.json\"));",
       "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String captureIndexTestJava() {
+    return String.join("\n",
+      "import com.fasterxml.jackson.databind.JsonNode;",
+      "import org.junit.jupiter.api.Test;",
+      "import org.junit.jupiter.api.io.TempDir;",
       "",
-      "  function getHref(el) {",
-      "    try {",
-      "      const tag = (el.tagName || '').toLowerCase();",
-      "      if (tag === 'a') return el.href || '';",
-      "      return '';",
-      "    } catch (e) { return ''; }",
+      "import java.io.IOException;",
+      "import java.nio.charset.StandardCharsets;",
+      "import java.nio.file.Files;",
+      "import java.nio.file.Path;",
+      "import java.nio.file.attribute.FileTime;",
+      "import java.time.Instant;",
+      "import java.util.ArrayList;",
+      "import java.util.List;",
+      "",
+      "import static org.junit.jupiter.api.Assertions.*;",
+      "",
+      "class CaptureIndexTest {",
+      "  @TempDir Path root;",
+      "",
+      "  private Path manifest(String dir, String capturedAt, String... texts) throws IOException {",
+      "    StringBuilder results = new StringBuilder();",
+      "    for (int i = 0; i < texts.length; i++) {",
+      "      if (i > 0) results.append(',');",
+      "      results.append(\"{\\\"index\\\":\").append(i + 1)",
+      "             .append(\",\\\"url\\\":\\\"https://shop.example/p/\").append(i + 1)",
+      "             .append(\"\\\",\\\"selector\\\":\\\"div.card\\\",\\\"tag\\\":\\\"div\\\",\\\"kind\\\":\\\"element\\\",\\\"innerText\\\":\\\"\").append(texts[i]).append(\"\\\"}\");",
+      "    }",
+      "    Path m = root.resolve(dir).resolve(\"manifest.json\");",
+      "    Files.createDirectories(m.getParent());",
+      "    Files.writeString(m, \"{\\\"capturedAt\\\":\\\"\" + capturedAt + \"\\\",\\\"pageUrl\\\":\\\"https://shop.example/\\\",\\\"results\\\":[\" + results + \"]}\", StandardCharsets.UTF_8);",
+      "    return m;",
       "  }",
       "",
-      "  async function getConfig(){",
-      "    if (!window.aimGetConfig) return null;",
-      "    const json = await window.aimGetConfig();",
-      "    return safeParseJson(json, null);",
+      "  private static List<String> texts(List<JsonNode> hits) {",
+      "    List<String> out = new ArrayList<>();",
+      "    for (JsonNode h : hits) out.add(h.path(\"innerText\").asText());",
+      "    return out;",
       "  }",
       "",
-      "  function ensureUI() {",
-      "    if (document.getElementById('__aim_panel')) return;",
+      "  @Test",
+      "  void ingestIsIncrementalAndSurvivesReopen() throws IOException {",
+      "    manifest(\"aim_capture_1\", \"2026-01-05T10:00:00Z\", \"Red kettle\", \"Blue kettle\");",
+      "    manifest(\"aim_capture_2\", \"2026-02-05T10:00:00Z\", \"Green teapot\");",
+      "    Files.createDirectories(root.resolve(\"not_a_capture\"));",
+      "    AimPickerProgram.CaptureIndex index = new AimPickerProgram.CaptureIndex(root);",
+      "    assertEquals(3, index.ingest());",
+      "    assertEquals(0, index.ingest());",
+      "    assertEquals(List.of(\"Blue kettle\", \"Red kettle\"), texts(index.search(\"kettle\", null, null, 10)));",
+      "    assertEquals(List.of(\"Red kettle\"), texts(index.search(\"RED Kettle\", null, null, 10)));",
+      "    assertEquals(1, index.search(\"kettle\", null, null, 1).size());",
+      "    assertTrue(index.search(\"\", null, null, 10).isEmpty());",
       "",
-      "    const style = document.createElement('style');",
-      "    style.textContent = `",
-      "      #__aim_panel{position:fixed;top:0;right:0;width:460px;height:100vh;background:rgba(15,15,18,.94);color:#fff;z-index:2147483647;font:12px system-ui;border-left:1px solid rgba(255,255,255,.08);display:flex;flex-direction:column}",
-      "      #__aim_hdr{padding:10px;display:flex;gap:8px;align-items:center;border-bottom:1px solid rgba(255,255,255,.08)}",
-      "      #__aim_title{font-weight:700;flex:1}",
-      "      .__aim_btn{border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff;padding:6px 8px;border-radius:8px;cursor:pointer;user-select:none}",
-      "      .__aim_btn:hover{background:rgba(255,255,255,.10)}",
-      "      #__aim_help{padding:8px 10px;color:rgba(255,255,255,.75);border-bottom:1px solid rgba(255,255,255,.08);line-height:1.25}",
-      "      #__aim_tabs{display:flex;gap:8px;padding:10px;border-bottom:1px solid rgba(255,255,255,.08)}",
-      "      .__aim_tab{padding:6px 10px;border-radius:999px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);cursor:pointer}",
-      "      .__aim_tab.active{background:rgba(255,255,255,.12)}",
-      "      #__aim_body{padding:10px;overflow:auto;flex:1}",
-      "      .__aim_row{display:flex;gap:8px;align-items:center;margin-bottom:8px}",
-      "      label{opacity:.8}",
-      "      input,select,textarea{width:100%;box-sizing:border-box;padding:7px 8px;border-radius:10px;border:1px solid rgba(255,255,255,.14);background:rgba(255,255,255,.06);color:#fff}",
-      "      textarea{min-height:84px;resize:vertical}",
-      "      .__aim_card{border:1px solid rgba(255,255,255,.12);border-radius:12px;background:rgba(255,255,255,.04);padding:10px;margin-bottom:10px}",
-      "      .__aim_k{opacity:.7;font-size:11px}",
-      "      .__aim_item{border:1px solid rgba(255,255,255,.12);border-radius:10px;padding:8px;margin-top:8px;background:rgba(255,255,255,.04)}",
-      "      .__aim_selected_outline{outline:3px solid #22d3ee !important; outline-offset:2px !important}",
-      "      #__aim_overlay{position:fixed;z-index:2147483646;pointer-events:none;border:2px solid #00aaff;background:rgba(0,170,255,.08)}",
-      "      #__aim_label{position:fixed;z-index:2147483646;pointer-events:none;padding:4px 6px;border-radius:8px;background:rgba(0,0,0,.72);color:#fff;max-width:calc(100vw - 480px);overflow:hidden;text-overflow:ellipsis;white-space:nowrap}",
-      "      .__aim_badge{display:inline-block;padding:2px 8px;border-radius:999px;border:1px solid rgba(255,255,255,.16);background:rgba(255,255,255,.08);font-size:11px}",
-      "    `;",
-      "    document.documentElement.appendChild(style);",
+      "    AimPickerProgram.CaptureIndex reopened = new AimPickerProgram.CaptureIndex(root);",
+      "    assertEquals(0, reopened.ingest());",
+      "    assertEquals(List.of(\"Green teapot\"), texts(reopened.search(\"teapot\", null, null, 10)));",
+      "  }",
       "",
-      "    const panel = document.createElement('div');",
-      "    panel.id = '__aim_panel';",
-      "    panel.innerHTML = `",
-      "      <div id=\"__aim_hdr\">",
-      "        <div id=\"__aim_title\">Aim Picker Program</div>",
-      "        <span class=\"__aim_badge\" id=\"__aim_mode\">PICK: ON</span>",
-      "        <div class=\"__aim_btn\" id=\"__aim_toggle\">F8</div>",
-      "        <div class=\"__aim_btn\" id=\"__aim_finish\">Install</div>",
-      "        <div class=\"__aim_btn\" id=\"__aim_cancel\">Esc</div>",
-      "      </div>",
-      "      <div id=\"__aim_help\">",
-      "        <b>Pick mode:</b> click selects (no navigation).<br>",
-      "        <b>Ctrl+Click</b> bypass • <b>Backspace</b> undo • <b>Install</b> exports picked items",
-      "      </div>",
-      "      <div id=\"__aim_tabs\">",
-      "        <div class=\"__aim_tab active\" data-tab=\"sites\">Sites</div>",
-      "        <div class=\"__aim_tab\" data-tab=\"select\">Selection Profiles</div>",
-      "        <div class=\"__aim_tab\" data-tab=\"picked\">Picked</div>",
-      "      </div>",
-      "      <div id=\"__aim_body\"></div>",
-      "    `;",
-      "    document.documentElement.appendChild(panel);",
+      "  @Test",
+      "  void rewrittenManifestHidesItsOlderDocs() throws IOException {",
+      "    Path m = manifest(\"aim_capture_1\", \"2026-01-05T10:00:00Z\", \"Old headline\");",
+      "    Files.setLastModifiedTime(m, FileTime.fromMillis(1_700_000_000_000L));",
+      "    AimPickerProgram.CaptureIndex index = new AimPickerProgram.CaptureIndex(root);",
+      "    assertEquals(1, index.ingest());",
       "",
-      "    const overlay = document.createElement('div'); overlay.id='__aim_overlay'; document.documentElement.appendChild(overlay);",
-      "    const label = document.createElement('div'); label.id='__aim_label'; document.documentElement.appendChild(label);",
+      "    manifest(\"aim_capture_1\", \"2026-01-05T10:00:00Z\", \"New headline\");",
+      "    Files.setLastModifiedTime(m, FileTime.fromMillis(1_700_000_060_000L));",
+      "    assertEquals(1, index.ingest());",
+      "    assertEquals(List.of(\"New headline\"), texts(index.search(\"headline\", null, null, 10)));",
+      "    assertTrue(index.search(\"old\", null, null, 10).isEmpty());",
+      "    assertEquals(List.of(\"New headline\"), texts(new AimPickerProgram.CaptureIndex(root).search(\"headline\", null, null, 10)));",
+      "  }",
       "",
-      "    panel.querySelector('#__aim_finish').addEventListener('click', () => window.__aimPickerDone = true);",
-      "    panel.querySelector('#__aim_cancel').addEventListener('click', () => window.__aimPickerCancel = true);",
-      "    panel.querySelector('#__aim_toggle').addEventListener('click', () => togglePickMode());",
+      "  @Test",
+      "  void filtersAndTimeWindow() throws IOException {",
+      "    manifest(\"aim_capture_1\", \"2026-01-05T10:00:00Z\", \"Red kettle\");",
+      "    manifest(\"aim_capture_2\", \"2026-03-05T10:00:00Z\", \"Red teapot\");",
+      "    AimPickerProgram.CaptureIndex index = new AimPickerProgram.CaptureIndex(root);",
+      "    index.ingest();",
+      "    assertEquals(2, index.search(\"red tag:div host:shop.example\", null, null, 10).size());",
+      "    assertTrue(index.search(\"red tag:span\", null, null, 10).isEmpty());",
+      "    Instant feb = Instant.parse(\"2026-02-01T00:00:00Z\");",
+      "    assertEquals(List.of(\"Red teapot\"), texts(index.search(\"red\", feb, null, 10)));",
+      "    assertEquals(List.of(\"Red kettle\"), texts(index.search(\"red\", null, feb, 10)));",
+      "  }",
       "",
-      "    panel.querySelectorAll('.__aim_tab').forEach(t => {",
-      "      t.addEventListener('click', () => {",
-      "        panel.querySelectorAll('.__aim_tab').forEach(x => x.classList.remove('active'));",
-      "        t.classList.add('active');",
-      "        window.__aimTab = t.getAttribute('data-tab');",
-      "        renderBody();",
-      "      });",
-      "    });",
+      "  @Test",
+      "  void bundledCapturesAreIndexed() throws IOException {",
+      "    Path cap = root.resolve(\"aim_capture_9\");",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(cap.resolve(AimPickerProgram.BUNDLE_FILE))) {",
+      "      w.put(\"manifest.json\", \"{\\\"capturedAt\\\":\\\"2026-01-05T10:00:00Z\\\",\\\"results\\\":[{\\\"index\\\":1,\\\"innerText\\\":\\\"Packed note\\\"}]}\".getBytes(StandardCharsets.UTF_8));",
+      "    }",
+      "    AimPickerProgram.CaptureIndex index = new AimPickerProgram.CaptureIndex(root);",
+      "    assertEquals(1, index.ingest());",
+      "    List<JsonNode> hits = index.search(\"packed\", null, null, 10);",
+      "    assertEquals(1, hits.size());",
+      "    assertEquals(\"aim_capture_9\", hits.get(0).path(\"captureDir\").asText());",
       "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String workQueueTestJava() {
+    return String.join("\n",
+      "import com.fasterxml.jackson.databind.JsonNode;",
+      "import com.fasterxml.jackson.databind.ObjectMapper;",
+      "import com.fasterxml.jackson.databind.node.ArrayNode;",
+      "import com.fasterxml.jackson.databind.node.ObjectNode;",
+      "import org.junit.jupiter.api.Test;",
+      "import org.junit.jupiter.api.io.TempDir;",
+      "",
+      "import java.io.IOException;",
+      "import java.nio.file.Files;",
+      "import java.nio.file.Path;",
+      "import java.util.List;",
+      "import java.util.stream.Collectors;",
+      "import java.util.stream.Stream;",
+      "",
+      "import static org.junit.jupiter.api.Assertions.*;",
       "",
-      "  function updateModePill() {",
-      "    const pill = document.getElementById('__aim_mode');",
-      "    if (!pill) return;",
-      "    pill.textContent = window.__aimPickMode ? 'PICK: ON' : 'PICK: OFF';",
-      "  }",
+      "class WorkQueueTest {",
+      "  private static final ObjectMapper OM = new ObjectMapper();",
+      "  private static final long LONG_LEASE = 60_000;",
       "",
-      "  function togglePickMode() {",
-      "    window.__aimPickMode = !window.__aimPickMode;",
-      "    updateModePill();",
-      "  }",
+      "  @TempDir Path root;",
       "",
-      "  function renderBody(){",
-      "    const body = document.getElementById('__aim_body');",
-      "    if(!body) return;",
-      "    const tab = window.__aimTab || 'sites';",
-      "    if(tab === 'sites') return renderSites(body);",
-      "    if(tab === 'select') return renderSelectionProfiles(body);",
-      "    return renderPicked(body);",
+      "  private static ArrayNode urls(String... urls) {",
+      "    ArrayNode a = OM.createArrayNode();",
+      "    for (String u : urls) a.addObject().put(\"url\", u);",
+      "    return a;",
       "  }",
       "",
-      "  const DEFAULT_PROFILE_TEXT = [",
-      "    'viewportWidth=1400',",
-      "    'viewportHeight=900',",
-      "    'userAgent=',",
-      "    'locale=',",
-      "    'timezoneId=',",
-      "    'storageStatePath=',",
-      "    'extraChromiumArgs=',",
-      "    ''",
-      "  ].join('\\n');",
-      "",
-      "  async function renderSites(body){",
-      "    const cfg = await getConfig();",
-      "    body.innerHTML = '';",
+      "  private static List<String> names(Path dir) throws IOException {",
+      "    try (Stream<Path> s = Files.list(dir)) {",
+      "      return s.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());",
+      "    }",
+      "  }",
       "",
-      "    const card = document.createElement('div'); card.className='__aim_card';",
-      "    card.innerHTML = `",
-      "      <div class=\"__aim_k\">Browser Profile (profiles/*.properties) — create/edit/save here</div>",
-      "      <div class=\"__aim_row\">",
-      "        <select id=\"__aim_browser_profile\"></select>",
-      "        <div class=\"__aim_btn\" id=\"__aim_bp_load\">Load</div>",
-      "      </div>",
-      "      <div class=\"__aim_row\">",
-      "        <input id=\"__aim_bp_new\" placeholder=\"new profile name (letters/numbers/._-)\" />",
-      "        <div class=\"__aim_btn\" id=\"__aim_bp_new_btn\">New</div>",
-      "      </div>",
-      "      <textarea id=\"__aim_bp_text\" spellcheck=\"false\"></textarea>",
-      "      <div class=\"__aim_row\" style=\"margin-top:8px\">",
-      "        <div class=\"__aim_btn\" id=\"__aim_bp_save\">Save Browser Profile</div>",
-      "        <div style=\"flex:1\"></div>",
-      "        <span class=\"__aim_k\" id=\"__aim_bp_status\"></span>",
-      "      </div>",
-      "      <div class=\"__aim_k\" style=\"margin-top:10px\">URL</div>",
-      "      <div class=\"__aim_row\">",
-      "        <input id=\"__aim_url\" placeholder=\"https://...\">",
-      "        <div class=\"__aim_btn\" id=\"__aim_go\">Go</div>",
-      "      </div>",
-      "      <div class=\"__aim_k\" style=\"margin-top:8px\">Saved URL Profiles (profiles/url_profiles.json)</div>",
-      "      <div class=\"__aim_row\">",
-      "        <select id=\"__aim_url_profile\"></select>",
-      "        <div class=\"__aim_btn\" id=\"__aim_use_profile\">Use</div>",
-      "      </div>",
-      "      <div class=\"__aim_row\">",
-      "        <input id=\"__aim_new_name\" placeholder=\"URL profile name\">",
-      "        <div class=\"__aim_btn\" id=\"__aim_add\">Add/Update</div>",
-      "      </div>",
-      "      <div class=\"__aim_row\">",
-      "        <div class=\"__aim_btn\" id=\"__aim_delete\">Delete</div>",
-      "        <div style=\"flex:1\"></div>",
-      "        <span class=\"__aim_k\" id=\"__aim_status\"></span>",
-      "      </div>",
-      "    `;",
-      "    body.appendChild(card);",
+      "  private static JsonNode only(Path dir) throws IOException {",
+      "    List<String> n = names(dir);",
+      "    assertEquals(1, n.size(), dir + \": \" + n);",
+      "    return OM.readTree(dir.resolve(n.get(0)).toFile());",
+      "  }",
       "",
-      "    const bpSel = card.querySelector('#__aim_browser_profile');",
-      "    (cfg?.browserProfiles||['default']).forEach(p => {",
-      "      const o=document.createElement('option'); o.value=p; o.textContent=p; bpSel.appendChild(o);",
-      "    });",
-      "    bpSel.value = cfg?.currentBrowserProfile || 'default';",
+      "  // What a worker that died mid-job leaves behind: the job in running/ and a lease that has run out.",
+      "  private void expireLease(String id) throws IOException {",
+      "    Path lease = root.resolve(\"running\").resolve(id + \".lease\");",
+      "    ObjectNode l = (ObjectNode) OM.readTree(lease.toFile());",
+      "    l.put(\"expiresAt\", System.currentTimeMillis() - 1);",
+      "    OM.writeValue(lease.toFile(), l);",
+      "  }",
       "",
-      "    const bpText = card.querySelector('#__aim_bp_text');",
-      "    const bpStatus = card.querySelector('#__aim_bp_status');",
-      "    const setBPStatus = (s) => bpStatus.textContent = s || '';",
+      "  @Test",
+      "  void eachJobIsClaimedOnceAndCompletes() throws IOException {",
+      "    AimPickerProgram.WorkQueue q = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    assertEquals(2, q.enqueue(urls(\"https://a.example/\", \" \", \"https://b.example/\"), \"sel.json\"));",
+      "    assertFalse(q.drained());",
+      "    try (AimPickerProgram.WorkQueue.Lease a = q.claim(); AimPickerProgram.WorkQueue.Lease b = q.claim()) {",
+      "      assertNotNull(a);",
+      "      assertNotNull(b);",
+      "      assertNull(q.claim());",
+      "      assertEquals(\"https://a.example/\", a.job.path(\"url\").asText());",
+      "      assertEquals(\"https://b.example/\", b.job.path(\"url\").asText());",
+      "      assertEquals(\"sel.json\", a.job.path(\"selProfile\").asText());",
+      "      assertTrue(names(root.resolve(\"running\")).contains(a.id + \".lease\"));",
+      "      a.renew();",
+      "      a.complete(root.resolve(\"out_a\"));",
+      "      b.complete(root.resolve(\"out_b\"));",
+      "    }",
+      "    assertTrue(q.drained());",
+      "    assertEquals(2, names(root.resolve(\"done\")).size());",
+      "    assertTrue(names(root.resolve(\"running\")).isEmpty());",
+      "  }",
       "",
-      "    async function loadBP(name){",
-      "      if (!window.aimLoadBrowserProfile) { bpText.value = DEFAULT_PROFILE_TEXT; setBPStatus('ERR: missing binding'); return; }",
-      "      const raw = await window.aimLoadBrowserProfile(String(name||''));",
-      "      bpText.value = raw && String(raw).trim().length ? String(raw) : DEFAULT_PROFILE_TEXT;",
-      "      setBPStatus('Loaded: ' + name);",
+      "  @Test",
+      "  void failureRequeuesUntilMaxAttempts() throws IOException {",
+      "    AimPickerProgram.WorkQueue q = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    q.enqueue(urls(\"https://a.example/\"), \"sel.json\");",
+      "    for (int attempt = 1; attempt <= AimPickerProgram.WorkQueue.MAX_ATTEMPTS; attempt++) {",
+      "      try (AimPickerProgram.WorkQueue.Lease l = q.claim()) {",
+      "        assertNotNull(l, \"attempt \" + attempt);",
+      "        l.fail(new IOException(\"boom \" + attempt));",
+      "      }",
       "    }",
+      "    assertNull(q.claim());",
+      "    assertTrue(q.drained());",
+      "    JsonNode failed = only(root.resolve(\"failed\"));",
+      "    assertEquals(AimPickerProgram.WorkQueue.MAX_ATTEMPTS, failed.path(\"attempts\").asInt());",
+      "    assertEquals(\"boom 3\", failed.path(\"lastError\").asText());",
+      "  }",
       "",
-      "    card.querySelector('#__aim_bp_load').addEventListener('click', () => loadBP(bpSel.value));",
-      "    bpSel.addEventListener('change', () => loadBP(bpSel.value));",
-      "    await loadBP(bpSel.value);",
+      "  @Test",
+      "  void expiredLeaseIsReclaimedByAnotherWorker() throws IOException {",
+      "    AimPickerProgram.WorkQueue dead = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    dead.enqueue(urls(\"https://a.example/\"), \"sel.json\");",
+      "    AimPickerProgram.WorkQueue.Lease stale = dead.claim();",
+      "    stale.close();",
+      "    AimPickerProgram.WorkQueue other = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    assertNull(other.claim());",
       "",
-      "    card.querySelector('#__aim_bp_new_btn').addEventListener('click', () => {",
-      "      bpText.value = DEFAULT_PROFILE_TEXT;",
-      "      setBPStatus('New profile: fill name then Save');",
-      "    });",
+      "    expireLease(stale.id);",
+      "    try (AimPickerProgram.WorkQueue.Lease l = other.claim()) {",
+      "      assertNotNull(l);",
+      "      assertEquals(stale.id, l.id);",
+      "      assertEquals(1, l.job.path(\"attempts\").asInt());",
+      "      assertEquals(\"lease expired\", l.job.path(\"lastError\").asText());",
+      "      l.complete(root.resolve(\"out\"));",
+      "    }",
+      "    assertEquals(1, only(root.resolve(\"done\")).path(\"attempts\").asInt());",
+      "  }",
       "",
-      "    card.querySelector('#__aim_bp_save').addEventListener('click', async () => {",
-      "      const nameFromNew = (card.querySelector('#__aim_bp_new').value||'').trim();",
-      "      const name = nameFromNew || (bpSel.value||'').trim();",
-      "      if (!name) return setBPStatus('Missing profile name');",
-      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(name)) return setBPStatus('Invalid name (use letters/numbers/._-)');",
-      "      if (!window.aimSaveBrowserProfile) return setBPStatus('ERR: missing binding');",
+      "  @Test",
+      "  void previousOwnerCannotRenewOrFinishAReclaimedJob() throws IOException {",
+      "    AimPickerProgram.WorkQueue slow = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    slow.enqueue(urls(\"https://a.example/\"), \"sel.json\");",
+      "    AimPickerProgram.WorkQueue.Lease first = slow.claim();",
+      "    expireLease(first.id);",
+      "    AimPickerProgram.WorkQueue other = new AimPickerProgram.WorkQueue(root, LONG_LEASE);",
+      "    AimPickerProgram.WorkQueue.Lease second = other.claim();",
+      "    assertNotNull(second);",
       "",
-      "      setBPStatus('Saving...');",
-      "      const res = await window.aimSaveBrowserProfile(JSON.stringify({name, content: bpText.value||''}));",
-      "      setBPStatus(res);",
+      "    first.renew();",
+      "    first.complete(root.resolve(\"out_first\"));",
+      "    first.fail(new IOException(\"late\"));",
+      "    assertTrue(names(root.resolve(\"done\")).isEmpty());",
+      "    assertTrue(names(root.resolve(\"pending\")).isEmpty());",
+      "    assertEquals(List.of(second.id + \".json\", second.id + \".lease\"), names(root.resolve(\"running\")));",
       "",
-      "      const cfg2 = await getConfig();",
-      "      const okVisible = (cfg2?.browserProfiles||[]).includes(name);",
-      "      if (!okVisible) setBPStatus((res||'') + ' | ERR: not visible after save');",
+      "    second.renew();",
+      "    second.complete(root.resolve(\"out_second\"));",
+      "    assertEquals(root.resolve(\"out_second\").toString(), only(root.resolve(\"done\")).path(\"outDir\").asText());",
+      "    assertTrue(other.drained());",
+      "  }",
       "",
-      "      await renderSites(body);",
-      "      const bpSel2 = document.getElementById('__aim_browser_profile');",
-      "      if (bpSel2) bpSel2.value = name;",
-      "    });",
+      "  @Test",
+      "  void runningJobWithoutALeaseIsReclaimedAfterOneLeasePeriod() throws Exception {",
+      "    Path running = Files.createDirectories(root.resolve(\"running\"));",
+      "    Files.writeString(running.resolve(\"job1.json\"), \"{\\\"id\\\":\\\"job1\\\",\\\"url\\\":\\\"https://a.example/\\\",\\\"attempts\\\":0}\");",
+      "    AimPickerProgram.WorkQueue q = new AimPickerProgram.WorkQueue(root, 200);",
+      "    assertNull(q.claim());",
+      "    Thread.sleep(300);",
+      "    try (AimPickerProgram.WorkQueue.Lease l = q.claim()) {",
+      "      assertNotNull(l);",
+      "      assertEquals(\"job1\", l.id);",
+      "      assertEquals(1, l.job.path(\"attempts\").asInt());",
+      "      l.complete(root.resolve(\"out\"));",
+      "    }",
+      "    assertTrue(q.drained());",
+      "  }",
       "",
-      "    const urlInput = card.querySelector('#__aim_url');",
-      "    urlInput.value = (cfg?.currentUrl || location.href);",
+      "  @Test",
+      "  void malformedJobFilesGoToFailedInsteadOfStoppingTheWorker() throws Exception {",
+      "    AimPickerProgram.WorkQueue q = new AimPickerProgram.WorkQueue(root, 200);",
+      "    Files.writeString(root.resolve(\"pending\").resolve(\"000_truncated.json\"), \"{\\\"id\\\":\\\"000_truncated\");",
+      "    Files.writeString(root.resolve(\"pending\").resolve(\"001_array.json\"), \"[1, 2]\");",
+      "    Files.writeString(root.resolve(\"running\").resolve(\"c_orphan.json\"), \"\");",
+      "    q.enqueue(urls(\"https://ok.example/\"), \"sel.json\");",
+      "    try (AimPickerProgram.WorkQueue.Lease l = q.claim()) {",
+      "      assertNotNull(l);",
+      "      assertEquals(\"https://ok.example/\", l.job.path(\"url\").asText());",
+      "      l.complete(root.resolve(\"out\"));",
+      "    }",
+      "    assertEquals(List.of(\"000_truncated.json\", \"001_array.json\"), names(root.resolve(\"failed\")));",
+      "    JsonNode bad = OM.readTree(root.resolve(\"failed\").resolve(\"000_truncated.json\").toFile());",
+      "    assertEquals(\"000_truncated\", bad.path(\"id\").asText());",
+      "    assertTrue(bad.path(\"lastError\").asText().startsWith(\"unreadable job file\"), bad.path(\"lastError\").asText());",
+      "    assertEquals(\"{\\\"id\\\":\\\"000_truncated\", bad.path(\"raw\").asText());",
       "",
-      "    const upSel = card.querySelector('#__aim_url_profile');",
-      "    const ups = (cfg?.urlProfiles || []);",
-      "    ups.forEach(p => {",
-      "      const o=document.createElement('option'); o.value=p.name||''; o.textContent=(p.name||'(unnamed)') + ' — ' + (p.url||'');",
-      "      upSel.appendChild(o);",
-      "    });",
+      "    Thread.sleep(300);",
+      "    assertNull(q.claim());",
+      "    assertTrue(q.drained());",
+      "    assertEquals(3, names(root.resolve(\"failed\")).size());",
+      "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String cronExprTestJava() {
+    return String.join("\n",
+      "import org.junit.jupiter.api.Test;",
       "",
-      "    const status = card.querySelector('#__aim_status');",
-      "    const setStatus = (s) => status.textContent = s || '';",
+      "import java.time.ZoneId;",
+      "import java.time.ZoneOffset;",
+      "import java.time.ZonedDateTime;",
       "",
-      "    card.querySelector('#__aim_go').addEventListener('click', () => {",
-      "      const u = (urlInput.value||'').trim();",
-      "      if(!u.startsWith('http://') && !u.startsWith('https://')) return setStatus('URL must start with http:// or https://');",
-      "      location.href = u;",
-      "    });",
+      "import static org.junit.jupiter.api.Assertions.*;",
       "",
-      "    card.querySelector('#__aim_use_profile').addEventListener('click', () => {",
-      "      const name = upSel.value;",
-      "      const p = ups.find(x => (x.name||'') === name);",
-      "      if(!p) return;",
-      "      urlInput.value = p.url || '';",
-      "      setStatus('Loaded URL profile: ' + name);",
-      "    });",
+      "class CronExprTest {",
+      "  private static ZonedDateTime at(String local) {",
+      "    return ZonedDateTime.of(java.time.LocalDateTime.parse(local), ZoneOffset.UTC);",
+      "  }",
       "",
-      "    card.querySelector('#__aim_add').addEventListener('click', async () => {",
-      "      const name = (card.querySelector('#__aim_new_name').value||'').trim();",
-      "      const u = (urlInput.value||'').trim();",
-      "      if(!name) return setStatus('Missing URL profile name');",
-      "      if(!u.startsWith('http://') && !u.startsWith('https://')) return setStatus('URL must start with http:// or https://');",
-      "      const next = { profiles: [] };",
-      "      const existing = ups.filter(x => (x.name||'') !== name);",
-      "      next.profiles = existing.concat([{name, url:u}]);",
-      "      const res = await (window.aimSaveUrlProfiles ? window.aimSaveUrlProfiles(JSON.stringify(next)) : 'ERR: missing binding');",
-      "      setStatus(res);",
-      "      renderBody();",
-      "    });",
+      "  private static String next(String cron, String after) {",
+      "    return new AimPickerProgram.CronExpr(cron).next(at(after)).toLocalDateTime().toString();",
+      "  }",
       "",
-      "    card.querySelector('#__aim_delete').addEventListener('click', async () => {",
-      "      const name = upSel.value;",
-      "      if(!name) return;",
-      "      const next = { profiles: ups.filter(x => (x.name||'') !== name) };",
-      "      const res = await (window.aimSaveUrlProfiles ? window.aimSaveUrlProfiles(JSON.stringify(next)) : 'ERR: missing binding');",
-      "      setStatus(res);",
-      "      renderBody();",
-      "    });",
+      "  @Test",
+      "  void stepsListsAndRanges() {",
+      "    assertEquals(\"2026-10-16T10:15\", next(\"*/15 * * * *\", \"2026-10-16T10:07\"));",
+      "    assertEquals(\"2026-10-16T11:00\", next(\"*/15 * * * *\", \"2026-10-16T10:45\"));",
+      "    assertEquals(\"2026-10-16T10:15\", next(\"5/10 * * * *\", \"2026-10-16T10:06\"));",
+      "    assertEquals(\"2026-10-16T14:00\", next(\"0 8,14,20 * * *\", \"2026-10-16T08:00\"));",
+      "    assertEquals(\"2026-10-17T09:00\", next(\"0 9-17/4 * * *\", \"2026-10-16T17:00\"));",
+      "    assertEquals(\"2027-01-01T00:00\", next(\"0 0 1 1,7 *\", \"2026-07-01T00:00\"));",
       "  }",
       "",
-      // --- selection profiles (FIXED) ---
-      "  async function renderSelectionProfiles(body){",
-      "    const cfg = await getConfig();",
-      "    body.innerHTML = '';",
+      "  @Test",
+      "  void nextIsStrictlyAfterAndDropsSeconds() {",
+      "    assertEquals(\"2026-10-16T10:31\", next(\"* * * * *\", \"2026-10-16T10:30\"));",
+      "    assertEquals(\"2026-10-16T10:31\", next(\"* * * * *\", \"2026-10-16T10:30:59.999\"));",
+      "  }",
       "",
-      "    const HL_CLASS = '__aim_profile_outline';",
+      "  @Test",
+      "  void dayOfWeekWithSundayAsZeroOrSeven() {",
+      "    assertEquals(\"2026-10-19T09:00\", next(\"0 9 * * 1-5\", \"2026-10-16T10:00\"));",
+      "    assertEquals(\"2026-10-18T00:00\", next(\"0 0 * * 0\", \"2026-10-16T10:00\"));",
+      "    assertEquals(\"2026-10-18T00:00\", next(\"0 0 * * 7\", \"2026-10-16T10:00\"));",
+      "  }",
       "",
-      "    (function ensureProfileStyle(){",
-      "      if (document.getElementById('__aim_profile_style')) return;",
-      "      const st = document.createElement('style');",
-      "      st.id='__aim_profile_style';",
-      "      st.textContent = `",
-      "        .${HL_CLASS}{ outline:2px dashed #a78bfa !important; outline-offset:2px !important }",
-      "      `;",
-      "      document.documentElement.appendChild(st);",
-      "    })();",
+      "  @Test",
+      "  void bothDayFieldsRestrictedMatchEither() {",
+      "    String cron = \"0 0 13 * 5\";",
+      "    assertEquals(\"2026-10-02T00:00\", next(cron, \"2026-10-01T00:00\"));",
+      "    assertEquals(\"2026-10-09T00:00\", next(cron, \"2026-10-02T00:00\"));",
+      "    assertEquals(\"2026-10-13T00:00\", next(cron, \"2026-10-09T00:00\"));",
+      "    assertEquals(\"2026-10-16T00:00\", next(cron, \"2026-10-13T00:00\"));",
+      "  }",
       "",
-      "    function clearProfileHighlights(){",
-      "      try { document.querySelectorAll('.' + HL_CLASS).forEach(el => el.classList.remove(HL_CLASS)); } catch(e){}",
-      "    }",
+      "  @Test",
+      "  void starredDayFieldCountsAsUnrestricted() {",
+      "    String cron = \"0 0 */2 * 1\";",
+      "    assertEquals(\"2026-10-05T00:00\", next(cron, \"2026-10-01T00:00\"));",
+      "    assertEquals(\"2026-10-19T00:00\", next(cron, \"2026-10-05T00:00\"));",
+      "    assertEquals(\"2026-10-03T00:00\", next(\"0 0 3 * */2\", \"2026-10-01T00:00\"));",
+      "    assertEquals(\"2026-11-03T00:00\", next(\"0 0 3 * */2\", \"2026-10-03T00:00\"));",
+      "  }",
       "",
-      "    function applyProfileHighlights(items){",
-      "      clearProfileHighlights();",
-      "      try {",
-      "        (items||[]).forEach(it => {",
-      "          const sel = (it && it.selector) ? String(it.selector).trim() : '';",
-      "          if(!sel) return;",
-      "          try { document.querySelectorAll(sel).forEach(el => el.classList.add(HL_CLASS)); } catch(e){}",
-      "        });",
-      "      } catch(e){}",
-      "    }",
+      "  @Test",
+      "  void dayOfMonthAloneMustMatch() {",
+      "    assertEquals(\"2026-05-31T00:00\", next(\"0 0 31 * *\", \"2026-04-01T00:00\"));",
+      "    assertEquals(\"2028-02-29T12:00\", next(\"0 12 29 2 *\", \"2026-03-01T00:00\"));",
+      "  }",
       "",
-      "    async function loadProfileByName(name){",
-      "      if (!window.aimLoadSelectionProfile) return { name, items: [] };",
-      "      const raw = await window.aimLoadSelectionProfile(String(name||'').trim());",
-      "      const parsed = safeParseJson(raw, null);",
-      "      if (!parsed || typeof parsed !== 'object') return { name, items: [] };",
-      "      if (!parsed.name) parsed.name = name;",
-      "      if (!Array.isArray(parsed.items)) parsed.items = [];",
-      "      return parsed;",
-      "    }",
+      "  @Test",
+      "  void keepsTheCallersZone() {",
+      "    ZoneId berlin = ZoneId.of(\"Europe/Berlin\");",
+      "    ZonedDateTime n = new AimPickerProgram.CronExpr(\"0 3 * * *\").next(ZonedDateTime.of(2026, 10, 16, 12, 0, 0, 0, berlin));",
+      "    assertEquals(berlin, n.getZone());",
+      "    assertEquals(ZonedDateTime.of(2026, 10, 17, 3, 0, 0, 0, berlin), n);",
+      "  }",
       "",
-      "    async function saveProfileObject(profileObj){",
-      "      if (!window.aimSaveSelectionProfile) return 'ERR: missing binding';",
-      "      const out = {",
-      "        name: String(profileObj.name||'').trim(),",
-      "        createdAt: profileObj.createdAt || new Date().toISOString(),",
-      "        notes: String(profileObj.notes||''),",
-      "        items: Array.isArray(profileObj.items) ? profileObj.items : []",
-      "      };",
-      "      if(!out.name) return 'ERR: missing name';",
-      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(out.name)) return 'ERR: invalid name (use letters/numbers/._-)';",
-      "      return await window.aimSaveSelectionProfile(JSON.stringify(out));",
+      "  @Test",
+      "  void rejectsMalformedExpressions() {",
+      "    for (String bad : new String[]{ \"* * * *\", \"* * * * * *\", \"60 * * * *\", \"* 24 * * *\", \"* * 0 * *\", \"* * * 13 *\",",
+      "                                    \"* * * * 8\", \"5-1 * * * *\", \"*/0 * * * *\", \"x * * * *\", \"\" }) {",
+      "      assertThrows(IllegalArgumentException.class, () -> new AimPickerProgram.CronExpr(bad), bad);",
       "    }",
+      "  }",
       "",
-      "    const card = document.createElement('div'); card.className='__aim_card';",
-      "    card.innerHTML = `",
-      "      <div class=\"__aim_k\">Selection Profiles (profiles/selection_profiles/*.json)</div>",
-      "      <div class=\"__aim_row\">",
-      "        <select id=\"__aim_sp\"></select>",
-      "        <div class=\"__aim_btn\" id=\"__aim_load_sp\">Load</div>",
-      "        <div class=\"__aim_btn\" id=\"__aim_apply_hl\">Highlight</div>",
-      "        <div class=\"__aim_btn\" id=\"__aim_clear_hl\">Clear</div>",
-      "      </div>",
-      "      <div class=\"__aim_row\">",
-      "        <input id=\"__aim_sp_name\" placeholder=\"new profile name (letters/numbers/._-)\"/>",
-      "        <div class=\"__aim_btn\" id=\"__aim_save_picked\">Save PICKED as profile</div>",
-      "      </div>",
-      "      <div class=\"__aim_k\" style=\"margin-top:8px\">Profile Items (edit/delete here)</div>",
-      "      <div id=\"__aim_sp_items\"></div>",
-      "      <div class=\"__aim_k\" style=\"margin-top:10px\">Install From Profile</div>",
-      "      <div class=\"__aim_row\">",
-      "        <select id=\"__aim_sp_item\"></select>",
-      "        <div class=\"__aim_btn\" id=\"__aim_install_sp\">Install</div>",
-      "      </div>",
-      "      <div class=\"__aim_k\" style=\"margin-top:10px\">Profile JSON (advanced)</div>",
-      "      <textarea id=\"__aim_sp_json\" spellcheck=\"false\"></textarea>",
-      "      <div class=\"__aim_row\" style=\"margin-top:8px\">",
-      "        <div class=\"__aim_btn\" id=\"__aim_save_json\">Save JSON</div>",
-      "        <div style=\"flex:1\"></div>",
-      "        <span class=\"__aim_k\" id=\"__aim_sp_status\"></span>",
-      "      </div>",
-      "    `;",
-      "    body.appendChild(card);",
+      "  @Test",
+      "  void impossibleDateNeverFires() {",
+      "    AimPickerProgram.CronExpr feb30 = new AimPickerProgram.CronExpr(\"0 0 30 2 *\");",
+      "    assertThrows(IllegalArgumentException.class, () -> feb30.next(at(\"2026-01-01T00:00\")));",
+      "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String seenFilterTestJava() {
+    return String.join("\n",
+      "import org.junit.jupiter.api.Test;",
+      "import org.junit.jupiter.api.io.TempDir;",
       "",
-      "    const spSel     = card.querySelector('#__aim_sp');",
-      "    const statusEl  = card.querySelector('#__aim_sp_status');",
-      "    const itemsHost = card.querySelector('#__aim_sp_items');",
-      "    const jsonArea  = card.querySelector('#__aim_sp_json');",
-      "    const spItemSel = card.querySelector('#__aim_sp_item');",
-      "    const setStatus = (s) => statusEl.textContent = s || '';",
+      "import java.io.IOException;",
+      "import java.io.OutputStream;",
+      "import java.nio.charset.StandardCharsets;",
+      "import java.nio.file.Files;",
+      "import java.nio.file.Path;",
+      "import java.util.zip.GZIPOutputStream;",
       "",
-      "    (cfg?.selectionProfiles || ['sample']).forEach(name => {",
-      "      const o = document.createElement('option');",
-      "      o.value = name;",
-      "      o.textContent = name;",
-      "      spSel.appendChild(o);",
-      "    });",
+      "import static org.junit.jupiter.api.Assertions.*;",
       "",
-      "    let currentProfile = { name: spSel.value || 'sample', items: [] };",
+      "class SeenFilterTest {",
+      "  @TempDir Path dir;",
       "",
-      "    function syncJsonFromCurrent(){ jsonArea.value = JSON.stringify(currentProfile, null, 2); }",
+      "  @Test",
+      "  void sizedForCapacityAndRate() throws IOException {",
+      "    Path file = dir.resolve(\"seen.bloom\");",
+      "    try (AimPickerProgram.SeenFilter f = AimPickerProgram.SeenFilter.open(file, 1000, 0.01)) {",
+      "      assertEquals(0, f.bits % 64);",
+      "      assertTrue(f.bits >= 9586 && f.bits < 9586 + 64, \"bits \" + f.bits);",
+      "      assertEquals(7, f.k);",
+      "      assertEquals(1000, f.capacity);",
+      "    }",
+      "    try (AimPickerProgram.SeenFilter f = AimPickerProgram.SeenFilter.open(dir.resolve(\"tiny.bloom\"), 1, 0.01)) {",
+      "      assertEquals(64, f.bits);",
+      "      assertTrue(f.k >= 1 && f.k <= 16);",
+      "    }",
+      "  }",
       "",
-      "    function parseJsonArea(){",
-      "      const parsed = safeParseJson(jsonArea.value, null);",
-      "      if(!parsed || typeof parsed !== 'object') return null;",
-      "      if(!parsed.name || !Array.isArray(parsed.items)) return null;",
-      "      return parsed;",
+      "  @Test",
+      "  void noFalseNegativesAndFewFalsePositives() throws IOException {",
+      "    try (AimPickerProgram.SeenFilter f = AimPickerProgram.SeenFilter.open(dir.resolve(\"seen.bloom\"), 5000, 0.01)) {",
+      "      for (int i = 0; i < 5000; i++) f.put(\"https://example.com/item/\" + i);",
+      "      for (int i = 0; i < 5000; i++) assertTrue(f.mightContain(\"https://example.com/item/\" + i));",
+      "      int fp = 0;",
+      "      for (int i = 0; i < 20_000; i++) if (f.mightContain(\"https://example.org/other/\" + i)) fp++;",
+      "      assertTrue(fp < 20_000 * 3 / 100, fp + \" false positives\");",
+      "      assertTrue(f.fpp() > 0.005 && f.fpp() < 0.02, \"fpp \" + f.fpp());",
       "    }",
+      "  }",
       "",
-      "    function rebuildInstallDropdown(){",
-      "      spItemSel.innerHTML = '';",
-      "      const o0 = document.createElement('option');",
-      "      o0.value = '0';",
-      "      o0.textContent = 'ALL';",
-      "      spItemSel.appendChild(o0);",
-      "      (currentProfile.items||[]).forEach((it, idx) => {",
-      "        const o = document.createElement('option');",
-      "        o.value = String(idx + 1);",
-      "        o.textContent = (idx+1) + ': ' + ((it.tag||'') ? (it.tag+' ') : '') + (it.selector||'');",
-      "        spItemSel.appendChild(o);",
-      "      });",
+      "  @Test",
+      "  void persistsAndKeepsItsOriginalSize() throws IOException {",
+      "    Path file = dir.resolve(\"seen.bloom\");",
+      "    long bits;",
+      "    try (AimPickerProgram.SeenFilter f = AimPickerProgram.SeenFilter.open(file, 1000, 0.01)) {",
+      "      f.put(\"https://a.example/1\");",
+      "      f.put(\"https://a.example/2\");",
+      "      f.put(\"https://a.example/2\");",
+      "      bits = f.bits;",
+      "    }",
+      "    assertEquals(64 + bits / 8, Files.size(file));",
+      "    try (AimPickerProgram.SeenFilter f = AimPickerProgram.SeenFilter.open(file, 1_000_000, 0.001)) {",
+      "      assertEquals(bits, f.bits);",
+      "      assertEquals(1000, f.capacity);",
+      "      assertEquals(2, f.describe().path(\"count\").asLong());",
+      "      assertTrue(f.mightContain(\"https://a.example/1\"));",
+      "      assertTrue(f.mightContain(\"https://a.example/2\"));",
+      "      assertFalse(f.mightContain(\"https://a.example/3\"));",
       "    }",
+      "  }",
       "",
-      "    function renderItemsList(){",
-      "      itemsHost.innerHTML = '';",
-      "      const items = currentProfile.items || [];",
-      "      if(!items.length){",
-      "        const empty = document.createElement('div');",
-      "        empty.className='__aim_k';",
-      "        empty.textContent='(no items)';",
-      "        itemsHost.appendChild(empty);",
-      "        return;",
-      "      }",
-      "      items.forEach((it, idx) => {",
-      "        const div = document.createElement('div');",
-      "        div.className='__aim_item';",
-      "        const sel  = String(it.selector||'');",
-      "        const tag  = String(it.tag||'');",
-      "        const kind = String(it.kind||'');",
-      "        const text = String(it.text||'');",
-      "        div.innerHTML = `",
-      "          <div class=\"__aim_row\" style=\"justify-content:space-between\">",
-      "            <span class=\"__aim_badge\">#${idx+1}</span>",
-      "            <span class=\"__aim_badge\">${esc(kind)}</span>",
-      "            <span class=\"__aim_badge\">${esc(tag)}</span>",
-      "          </div>",
-      "          <div class=\"__aim_k\" style=\"margin-top:6px\">selector</div>",
-      "          <input data-f=\"selector\" value=\"${escAttr(sel)}\"/>",
-      "          <div class=\"__aim_k\" style=\"margin-top:6px\">text</div>",
-      "          <input data-f=\"text\" value=\"${escAttr(text)}\"/>",
-      "          <div class=\"__aim_row\" style=\"margin-top:8px\">",
-      "            <div class=\"__aim_btn\" data-act=\"scroll\">Scroll</div>",
-      "            <div class=\"__aim_btn\" data-act=\"remove\">Delete</div>",
-      "          </div>",
-      "        `;",
-      "",
-      "        div.querySelectorAll('input[data-f]').forEach(inp => {",
-      "          inp.addEventListener('input', () => {",
-      "            const f = inp.getAttribute('data-f');",
-      "            currentProfile.items[idx][f] = inp.value || '';",
-      "            syncJsonFromCurrent();",
-      "            applyProfileHighlights(currentProfile.items);",
-      "            rebuildInstallDropdown();",
-      "          });",
-      "        });",
+      "  @Test",
+      "  void rejectsForeignTruncatedAndBusyFiles() throws IOException {",
+      "    Path junk = dir.resolve(\"junk.bloom\");",
+      "    Files.write(junk, new byte[128]);",
+      "    IOException e = assertThrows(IOException.class, () -> AimPickerProgram.SeenFilter.open(junk, 1000, 0.01).close());",
+      "    assertTrue(e.getMessage().startsWith(\"Not a seen filter\"), e.getMessage());",
       "",
-      "        div.querySelector('[data-act=\"scroll\"]').addEventListener('click', () => {",
-      "          try { const el = document.querySelector(sel); if(el) el.scrollIntoView({behavior:'smooth', block:'center', inline:'center'}); } catch(e){}",
-      "        });",
+      "    Path file = dir.resolve(\"seen.bloom\");",
+      "    AimPickerProgram.SeenFilter.open(file, 1000, 0.01).close();",
+      "    AimPickerProgram.SeenFilter held = AimPickerProgram.SeenFilter.open(file, 1000, 0.01);",
+      "    try {",
+      "      e = assertThrows(IOException.class, () -> AimPickerProgram.SeenFilter.open(file, 1000, 0.01).close());",
+      "      assertTrue(e.getMessage().contains(\"in use\"), e.getMessage());",
+      "    } finally {",
+      "      held.close();",
+      "    }",
       "",
-      "        div.querySelector('[data-act=\"remove\"]').addEventListener('click', async () => {",
-      "          try { document.querySelectorAll(sel).forEach(el => el.classList.remove(HL_CLASS)); } catch(e){}",
-      "          currentProfile.items.splice(idx, 1);",
-      "          syncJsonFromCurrent();",
-      "          renderItemsList();",
-      "          applyProfileHighlights(currentProfile.items);",
-      "          rebuildInstallDropdown();",
-      "          setStatus('Saving after delete...');",
-      "          const res = await saveProfileObject(currentProfile);",
-      "          setStatus(res);",
-      "        });",
+      "    byte[] whole = Files.readAllBytes(file);",
+      "    Files.write(file, java.util.Arrays.copyOf(whole, 100));",
+      "    e = assertThrows(IOException.class, () -> AimPickerProgram.SeenFilter.open(file, 1000, 0.01).close());",
+      "    assertTrue(e.getMessage().startsWith(\"Truncated\"), e.getMessage());",
+      "  }",
       "",
-      "        itemsHost.appendChild(div);",
-      "      });",
-      "    }",
+      "  @Test",
+      "  void enqueueSeedsSkipsJunkAndRepeatsAcrossRuns() throws IOException {",
+      "    Path queue = dir.resolve(\"queue\");",
+      "    Path seeds = dir.resolve(\"seeds.txt\");",
+      "    Files.writeString(seeds, String.join(\"\\n\",",
+      "      \"# comment\",",
+      "      \"https://a.example/1\",",
+      "      \"  https://a.example/2\\tfrom-sitemap\",",
+      "      \"{\\\"url\\\":\\\"https://a.example/3\\\",\\\"depth\\\":1}\",",
+      "      \"\",",
+      "      \"https://a.example/1\",",
+      "      \"ftp://a.example/file\",",
+      "      \"not a url\",",
+      "      \"{broken json\",",
+      "      \"/relative/path\"), StandardCharsets.UTF_8);",
+      "    AimPickerProgram.WorkQueue q = new AimPickerProgram.WorkQueue(queue, 60_000);",
+      "    q.enqueueSeeds(seeds.toString(), \"sel.json\", 1000);",
+      "    assertEquals(3, count(queue.resolve(\"pending\")));",
       "",
-      "    async function loadSelectedProfile(){",
-      "      const name = (spSel.value || '').trim() || 'sample';",
-      "      clearProfileHighlights();",
-      "      currentProfile = await loadProfileByName(name);",
-      "      syncJsonFromCurrent();",
-      "      renderItemsList();",
-      "      rebuildInstallDropdown();",
-      "      applyProfileHighlights(currentProfile.items);",
-      "      setStatus('Loaded + highlighted: ' + name);",
+      "    Path gz = dir.resolve(\"more.txt.gz\");",
+      "    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {",
+      "      out.write(\"https://a.example/2\\nhttps://a.example/4\\n\".getBytes(StandardCharsets.UTF_8));",
       "    }",
+      "    new AimPickerProgram.WorkQueue(queue, 60_000).enqueueSeeds(gz.toString(), \"sel.json\", 1000);",
+      "    assertEquals(4, count(queue.resolve(\"pending\")));",
+      "    assertTrue(Files.exists(queue.resolve(\"seen.bloom\")));",
+      "  }",
       "",
-      "    card.querySelector('#__aim_load_sp').addEventListener('click', loadSelectedProfile);",
-      "    spSel.addEventListener('change', loadSelectedProfile);",
+      "  private static long count(Path dir) throws IOException {",
+      "    try (var s = Files.list(dir)) { return s.filter(p -> p.toString().endsWith(\".json\")).count(); }",
+      "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String captureServerTestJava() {
+    return String.join("\n",
+      "import com.fasterxml.jackson.databind.JsonNode;",
+      "import com.fasterxml.jackson.databind.ObjectMapper;",
+      "import com.sun.net.httpserver.HttpServer;",
+      "import org.junit.jupiter.api.Test;",
+      "import org.junit.jupiter.api.io.TempDir;",
       "",
-      "    card.querySelector('#__aim_apply_hl').addEventListener('click', () => {",
-      "      const parsed = parseJsonArea();",
-      "      if(parsed){ currentProfile = parsed; renderItemsList(); rebuildInstallDropdown(); }",
-      "      applyProfileHighlights(currentProfile.items);",
-      "      setStatus('Highlighted current items');",
-      "    });",
+      "import java.io.IOException;",
+      "import java.net.URI;",
+      "import java.net.http.HttpClient;",
+      "import java.net.http.HttpRequest;",
+      "import java.net.http.HttpResponse;",
+      "import java.nio.charset.StandardCharsets;",
+      "import java.nio.file.Files;",
+      "import java.nio.file.Path;",
+      "import java.util.Arrays;",
       "",
-      "    card.querySelector('#__aim_clear_hl').addEventListener('click', () => {",
-      "      clearProfileHighlights();",
-      "      setStatus('Cleared highlights');",
-      "    });",
+      "import static org.junit.jupiter.api.Assertions.*;",
       "",
-      "    card.querySelector('#__aim_save_picked').addEventListener('click', async () => {",
-      "      const name = (card.querySelector('#__aim_sp_name').value||'').trim();",
-      "      if(!name) return setStatus('Missing name');",
-      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(name)) return setStatus('Invalid name (use letters/numbers/._-)');",
-      "      const items = (window.__aimSelections||[])",
-      "        .map(it => ({ selector: it.selector||'', tag: it.tag||'', kind: it.kind||'', text: it.text||'' }))",
-      "        .filter(x => x.selector);",
-      "      if(!items.length) return setStatus('No picked selections to save');",
-      "      const profile = { name, createdAt: new Date().toISOString(), notes:'', items };",
-      "      setStatus('Saving...');",
-      "      const res = await saveProfileObject(profile);",
-      "      setStatus(res);",
-      "      renderBody();",
-      "    });",
+      "class CaptureServerTest {",
+      "  private static final ObjectMapper OM = new ObjectMapper();",
+      "  private static final HttpClient HTTP = HttpClient.newHttpClient();",
       "",
-      "    card.querySelector('#__aim_save_json').addEventListener('click', async () => {",
-      "      const parsed = parseJsonArea();",
-      "      if(!parsed) return setStatus('Invalid JSON or missing name/items[]');",
-      "      if (!/^[A-Za-z0-9._-]{1,80}$/.test(String(parsed.name))) return setStatus('Invalid name (use letters/numbers/._-)');",
-      "      currentProfile = parsed;",
-      "      renderItemsList();",
-      "      rebuildInstallDropdown();",
-      "      applyProfileHighlights(currentProfile.items);",
-      "      setStatus('Saving...');",
-      "      const res = await saveProfileObject(currentProfile);",
-      "      setStatus(res);",
-      "      renderBody();",
-      "    });",
+      "  @TempDir Path root;",
       "",
-      "    card.querySelector('#__aim_install_sp').addEventListener('click', async () => {",
-      "      const selProfile = (spSel.value || '').trim();",
-      "      const selIndex = parseInt(spItemSel.value||'0', 10) || 0;",
-      "      if(!window.aimInstallFromProfile) return setStatus('ERR: missing binding');",
-      "      setStatus('Installing...');",
-      "      const res = await window.aimInstallFromProfile(JSON.stringify({selProfile, selIndex}));",
-      "      setStatus(res === 'OK' ? 'Install exported + folder opened' : res);",
-      "    });",
+      "  @Test",
+      "  void parseRangeForms() {",
+      "    assertArrayEquals(new long[]{ 0, 99 }, AimPickerProgram.CaptureServer.parseRange(\"bytes=0-99\", 1000));",
+      "    assertArrayEquals(new long[]{ 900, 999 }, AimPickerProgram.CaptureServer.parseRange(\"bytes=900-\", 1000));",
+      "    assertArrayEquals(new long[]{ 900, 999 }, AimPickerProgram.CaptureServer.parseRange(\"bytes=-100\", 1000));",
+      "    assertArrayEquals(new long[]{ 0, 999 }, AimPickerProgram.CaptureServer.parseRange(\"bytes=-5000\", 1000));",
+      "    assertArrayEquals(new long[]{ 10, 999 }, AimPickerProgram.CaptureServer.parseRange(\" bytes= 10-5000 \", 1000));",
+      "    assertArrayEquals(new long[]{ 999, 999 }, AimPickerProgram.CaptureServer.parseRange(\"bytes=999-999\", 1000));",
+      "  }",
       "",
-      "    await loadSelectedProfile();",
+      "  @Test",
+      "  void parseRangeMultiAndForeignUnitsMeanWholeBody() {",
+      "    assertEquals(0, AimPickerProgram.CaptureServer.parseRange(\"bytes=0-1,5-6\", 1000).length);",
+      "    assertEquals(0, AimPickerProgram.CaptureServer.parseRange(\"items=0-1\", 1000).length);",
       "  }",
       "",
-      "  function renderPicked(body){",
-      "    body.innerHTML = '';",
-      "    const listCard = document.createElement('div'); listCard.className='__aim_card';",
-      "    listCard.innerHTML = `<div class=\"__aim_k\">Picked items</div><div id=\"__aim_list\"></div>`;",
-      "    body.appendChild(listCard);",
-      "    const list = listCard.querySelector('#__aim_list');",
-      "    list.innerHTML = '';",
-      "    (window.__aimSelections||[]).forEach((it,i) => {",
-      "      const div=document.createElement('div'); div.className='__aim_item';",
-      "      div.innerHTML = `",
-      "        <div class=\"__aim_row\" style=\"justify-content:space-between\">",
-      "          <span class=\"__aim_badge\">#${i+1}</span>",
-      "          <span class=\"__aim_badge\">${esc(it.kind||'')}</span>",
-      "          <span class=\"__aim_badge\">${esc(it.tag||'')}</span>",
-      "        </div>",
-      "        <div class=\"__aim_k\" style=\"margin-top:6px\">selector</div>",
-      "        <div title=\"${escAttr(it.selector||'')}\">${esc(it.selector||'')}</div>",
-      "        <div class=\"__aim_k\" style=\"margin-top:6px\">text</div>",
-      "        <div title=\"${escAttr(it.text||'')}\">${esc(it.text||'')}</div>",
-      "        <div class=\"__aim_row\" style=\"margin-top:8px\">",
-      "          <div class=\"__aim_btn\" data-act=\"rm\">Remove</div>",
-      "          <div class=\"__aim_btn\" data-act=\"go\">Scroll</div>",
-      "        </div>",
-      "      `;",
-      "      div.querySelector('[data-act=\"rm\"]').addEventListener('click', () => {",
-      "        try { const el=document.querySelector(it.selector); if(el) el.classList.remove('__aim_selected_outline'); } catch(e){}",
-      "        window.__aimSelections.splice(i,1);",
-      "        renderBody();",
-      "      });",
-      "      div.querySelector('[data-act=\"go\"]').addEventListener('click', () => {",
-      "        try { const el=document.querySelector(it.selector); if(el) el.scrollIntoView({behavior:'smooth', block:'center', inline:'center'}); } catch(e){}",
-      "      });",
-      "      list.appendChild(div);",
-      "    });",
+      "  @Test",
+      "  void parseRangeUnsatisfiable() {",
+      "    for (String h : new String[]{ \"bytes=1000-\", \"bytes=5-2\", \"bytes=-0\", \"bytes=abc\", \"bytes=x-5\", \"bytes=-\", \"bytes=-1-2\" }) {",
+      "      assertNull(AimPickerProgram.CaptureServer.parseRange(h, 1000), h);",
+      "    }",
+      "    assertNull(AimPickerProgram.CaptureServer.parseRange(\"bytes=0-\", 0));",
       "  }",
       "",
-      "  window.__aimPickerInstall = () => {",
-      "    if (window.__aimPickerActive) return;",
-      "    window.__aimPickerActive = true;",
-      "    window.__aimSelections = window.__aimSelections || [];",
-      "    window.__aimPickerDone = false;",
-      "    window.__aimPickerCancel = false;",
-      "    window.__aimPickMode = true;",
-      "    window.__aimTab = 'sites';",
+      "  private static HttpResponse<byte[]> get(HttpServer s, String path, String... headers) throws Exception {",
+      "    HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(\"http://127.0.0.1:\" + s.getAddress().getPort() + path));",
+      "    if (headers.length > 0) b.headers(headers);",
+      "    return HTTP.send(b.build(), HttpResponse.BodyHandlers.ofByteArray());",
+      "  }",
       "",
-      "    ensureUI();",
-      "    updateModePill();",
-      "    renderBody();",
+      "  private static String header(HttpResponse<?> r, String name) { return r.headers().firstValue(name).orElse(null); }",
       "",
-      "    const overlay = document.getElementById('__aim_overlay');",
-      "    const label = document.getElementById('__aim_label');",
-      "    const panel = document.getElementById('__aim_panel');",
-      "    const isUI = (el) => panel && panel.contains(el);",
+      "  private Path capture(String name) throws IOException {",
+      "    Path dir = Files.createDirectories(root.resolve(name));",
+      "    StringBuilder results = new StringBuilder();",
+      "    for (int i = 0; i < 40; i++) results.append(i == 0 ? \"\" : \",\").append(\"{\\\"index\\\":\").append(i).append(\",\\\"innerText\\\":\\\"row \").append(i).append(\"\\\"}\");",
+      "    Files.writeString(dir.resolve(\"manifest.json\"), \"{\\\"capturedAt\\\":\\\"2026-10-16T10:00:00Z\\\",\\\"results\\\":[\" + results + \"]}\", StandardCharsets.UTF_8);",
+      "    byte[] video = new byte[3000];",
+      "    for (int i = 0; i < video.length; i++) video[i] = (byte) i;",
+      "    Files.createDirectories(dir.resolve(\"media\"));",
+      "    Files.write(dir.resolve(\"media/clip.mp4\"), video);",
+      "    return dir;",
+      "  }",
       "",
-      "    function onMove(e){",
-      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
-      "      if (!el || el === overlay || el === label || isUI(el)) return;",
-      "      const r = el.getBoundingClientRect();",
-      "      overlay.style.left=r.left+'px'; overlay.style.top=r.top+'px';",
-      "      overlay.style.width=r.width+'px'; overlay.style.height=r.height+'px';",
-      "      const sel = buildSelector(el);",
-      "      label.textContent = sel;",
-      "      label.style.left = Math.max(0, Math.min(r.left, window.innerWidth - 480)) + 'px';",
-      "      label.style.top = Math.max(0, r.top - 26) + 'px';",
+      "  @Test",
+      "  void etagsAndConditionalRequests() throws Exception {",
+      "    Path dir = capture(\"aim_capture_1\");",
+      "    Path manifest = dir.resolve(\"manifest.json\");",
+      "    HttpServer s = new AimPickerProgram.CaptureServer(dir, null).listen(0);",
+      "    try {",
+      "      HttpResponse<byte[]> r = get(s, \"/manifest.json\");",
+      "      assertEquals(200, r.statusCode());",
+      "      String etag = \"\\\"\" + Long.toHexString(Files.size(manifest)) + \"-\" + Long.toHexString(Files.getLastModifiedTime(manifest).toMillis()) + \"\\\"\";",
+      "      assertEquals(etag, header(r, \"ETag\"));",
+      "      assertEquals(\"no-cache\", header(r, \"Cache-Control\"));",
+      "      assertArrayEquals(Files.readAllBytes(manifest), r.body());",
+      "",
+      "      assertEquals(304, get(s, \"/manifest.json\", \"If-None-Match\", etag).statusCode());",
+      "      assertEquals(304, get(s, \"/manifest.json\", \"If-None-Match\", \"\\\"other\\\", W/\" + etag).statusCode());",
+      "      assertEquals(304, get(s, \"/manifest.json\", \"If-None-Match\", \"*\").statusCode());",
+      "      assertEquals(200, get(s, \"/manifest.json\", \"If-None-Match\", \"\\\"other\\\"\").statusCode());",
+      "",
+      "      HttpResponse<byte[]> gz = get(s, \"/manifest.json\", \"Accept-Encoding\", \"gzip\");",
+      "      assertEquals(\"gzip\", header(gz, \"Content-Encoding\"));",
+      "      String gzTag = header(gz, \"ETag\");",
+      "      assertEquals(etag.substring(0, etag.length() - 1) + \"-gz\\\"\", gzTag);",
+      "      assertArrayEquals(Files.readAllBytes(manifest), AimPickerProgram.gunzip(gz.body()));",
+      "      assertEquals(304, get(s, \"/manifest.json\", \"Accept-Encoding\", \"gzip\", \"If-None-Match\", gzTag).statusCode());",
+      "      assertEquals(200, get(s, \"/manifest.json\", \"If-None-Match\", gzTag).statusCode());",
+      "    } finally {",
+      "      s.stop(0);",
       "    }",
+      "  }",
       "",
-      "    function blockIfPicking(e){",
-      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
-      "      if (!el || isUI(el)) return;",
-      "      if (e.ctrlKey) return;",
-      "      if (!window.__aimPickMode) return;",
-      "      e.preventDefault();",
-      "      e.stopPropagation();",
-      "      if (e.stopImmediatePropagation) e.stopImmediatePropagation();",
+      "  @Test",
+      "  void byteRangesOnMedia() throws Exception {",
+      "    Path dir = capture(\"aim_capture_1\");",
+      "    byte[] video = Files.readAllBytes(dir.resolve(\"media/clip.mp4\"));",
+      "    HttpServer s = new AimPickerProgram.CaptureServer(dir, null).listen(0);",
+      "    try {",
+      "      HttpResponse<byte[]> r = get(s, \"/media/clip.mp4\", \"Range\", \"bytes=100-199\");",
+      "      assertEquals(206, r.statusCode());",
+      "      assertEquals(\"bytes 100-199/3000\", header(r, \"Content-Range\"));",
+      "      assertEquals(\"public, max-age=31536000, immutable\", header(r, \"Cache-Control\"));",
+      "      assertArrayEquals(Arrays.copyOfRange(video, 100, 200), r.body());",
+      "",
+      "      HttpResponse<byte[]> tail = get(s, \"/media/clip.mp4\", \"Range\", \"bytes=-10\");",
+      "      assertArrayEquals(Arrays.copyOfRange(video, 2990, 3000), tail.body());",
+      "",
+      "      HttpResponse<byte[]> bad = get(s, \"/media/clip.mp4\", \"Range\", \"bytes=5000-\");",
+      "      assertEquals(416, bad.statusCode());",
+      "      assertEquals(\"bytes */3000\", header(bad, \"Content-Range\"));",
+      "",
+      "      HttpResponse<byte[]> stale = get(s, \"/media/clip.mp4\", \"Range\", \"bytes=0-9\", \"If-Range\", \"\\\"old\\\"\");",
+      "      assertEquals(200, stale.statusCode());",
+      "      assertEquals(3000, stale.body().length);",
+      "      assertEquals(200, get(s, \"/media/clip.mp4\", \"Range\", \"bytes=0-1,4-5\").statusCode());",
+      "    } finally {",
+      "      s.stop(0);",
       "    }",
+      "  }",
       "",
-      "    function onClickCapture(e){",
-      "      const el = document.elementFromPoint(e.clientX, e.clientY);",
-      "      if (!el || isUI(el)) return;",
-      "      if (e.ctrlKey) return;",
-      "      if (!window.__aimPickMode) return;",
-      "      e.preventDefault();",
-      "      e.stopPropagation();",
-      "      if (e.stopImmediatePropagation) e.stopImmediatePropagation();",
+      "  @Test",
+      "  void bundledCaptureWithStoredGzip() throws Exception {",
+      "    Path dir = Files.createDirectories(root.resolve(\"aim_capture_2\"));",
+      "    byte[] manifest = \"{\\\"results\\\":[]}\".getBytes(StandardCharsets.UTF_8);",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(dir.resolve(AimPickerProgram.BUNDLE_FILE))) {",
+      "      w.put(\"manifest.json.gz\", AimPickerProgram.gzip(manifest));",
+      "      w.put(\"media/a.bin\", new byte[]{ 1, 2, 3, 4, 5 });",
+      "    }",
+      "    HttpServer s = new AimPickerProgram.CaptureServer(dir, null).listen(0);",
+      "    try {",
+      "      HttpResponse<byte[]> passthrough = get(s, \"/manifest.json\", \"Accept-Encoding\", \"gzip\");",
+      "      assertEquals(\"gzip\", header(passthrough, \"Content-Encoding\"));",
+      "      assertArrayEquals(manifest, AimPickerProgram.gunzip(passthrough.body()));",
+      "      assertTrue(header(passthrough, \"ETag\").endsWith(\"-gz\\\"\"));",
+      "      HttpResponse<byte[]> inflated = get(s, \"/manifest.json\");",
+      "      assertNull(header(inflated, \"Content-Encoding\"));",
+      "      assertArrayEquals(manifest, inflated.body());",
       "",
-      "      const selector = buildSelector(el);",
-      "      if (!selector) return;",
+      "      HttpResponse<byte[]> part = get(s, \"/media/a.bin\", \"Range\", \"bytes=1-2\");",
+      "      assertEquals(206, part.statusCode());",
+      "      assertArrayEquals(new byte[]{ 2, 3 }, part.body());",
+      "      assertEquals(304, get(s, \"/media/a.bin\", \"If-None-Match\", header(part, \"ETag\")).statusCode());",
+      "    } finally {",
+      "      s.stop(0);",
+      "    }",
+      "  }",
       "",
-      "      try { el.classList.add('__aim_selected_outline'); } catch(e){}",
-      "      let outerHtml = '';",
-      "      try { outerHtml = el.outerHTML || ''; } catch(e){}",
+      "  @Test",
+      "  void reExportedBundleIsReopened() throws Exception {",
+      "    Path dir = Files.createDirectories(root.resolve(\"aim_capture_3\"));",
+      "    Path bundle = dir.resolve(AimPickerProgram.BUNDLE_FILE);",
+      "    try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(bundle)) { w.put(\"note.txt\", \"first\".getBytes(StandardCharsets.UTF_8)); }",
+      "    HttpServer s = new AimPickerProgram.CaptureServer(dir, null).listen(0);",
+      "    try {",
+      "      HttpResponse<byte[]> before = get(s, \"/note.txt\");",
+      "      assertEquals(\"first\", new String(before.body(), StandardCharsets.UTF_8));",
+      "      try (AimPickerProgram.BundleWriter w = new AimPickerProgram.BundleWriter(bundle)) { w.put(\"note.txt\", \"second, longer\".getBytes(StandardCharsets.UTF_8)); }",
+      "      HttpResponse<byte[]> after = get(s, \"/note.txt\", \"If-None-Match\", header(before, \"ETag\"));",
+      "      assertEquals(200, after.statusCode());",
+      "      assertEquals(\"second, longer\", new String(after.body(), StandardCharsets.UTF_8));",
+      "      assertNotEquals(header(before, \"ETag\"), header(after, \"ETag\"));",
+      "    } finally {",
+      "      s.stop(0);",
+      "    }",
+      "  }",
       "",
-      "      window.__aimSelections.push({",
-      "        selector,",
-      "        tag: (el.tagName||'').toLowerCase(),",
-      "        kind: guessKind(el),",
-      "        text: textSnippet(el),",
-      "        src: getSrc(el),",
-      "        href: getHref(el),",
-      "        outerHtml",
-      "      });",
+      "  @Test",
+      "  void rootListsCapturesAndRejectsEscapes() throws Exception {",
+      "    capture(\"aim_capture_1\");",
+      "    capture(\"aim_capture_2\");",
+      "    Files.createDirectories(root.resolve(\"aim_capture_empty\"));",
+      "    HttpServer s = new AimPickerProgram.CaptureServer(root, null).listen(0);",
+      "    try {",
+      "      JsonNode list = OM.readTree(get(s, \"/captures.json\").body());",
+      "      assertEquals(2, list.path(\"total\").asInt());",
+      "      assertEquals(\"aim_capture_2\", list.path(\"captures\").path(0).path(\"name\").asText());",
+      "      assertEquals(40, list.path(\"captures\").path(0).path(\"results\").asInt());",
       "",
-      "      if ((window.__aimTab||'sites') === 'picked') renderBody();",
+      "      HttpResponse<byte[]> redirect = get(s, \"/aim_capture_1\");",
+      "      assertEquals(301, redirect.statusCode());",
+      "      assertEquals(\"/aim_capture_1/\", header(redirect, \"Location\"));",
+      "      assertEquals(200, get(s, \"/aim_capture_1/manifest.json\").statusCode());",
+      "      assertEquals(404, get(s, \"/aim_capture_1/missing.json\").statusCode());",
+      "      assertEquals(404, get(s, \"/aim_capture_empty/manifest.json\").statusCode());",
+      "      assertEquals(400, get(s, \"/aim_capture_1/%2e%2e/aim_capture_2/manifest.json\").statusCode());",
+      "      // A fresh client: the pooled connection may just have been closed, and the client only retries idempotent requests.",
+      "      assertEquals(405, HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(\"http://127.0.0.1:\" + s.getAddress().getPort() + \"/captures.json\"))",
+      "        .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding()).statusCode());",
+      "    } finally {",
+      "      s.stop(0);",
       "    }",
+      "  }",
+      "}",
+      ""
+    );
+  }
+
+  private static String downloadPolicyTestJava() {
+    return String.join("\n",
+      "import com.fasterxml.jackson.databind.ObjectMapper;",
+      "import com.fasterxml.jackson.databind.node.ObjectNode;",
+      "import com.microsoft.playwright.APIRequestContext;",
+      "import com.microsoft.playwright.APIResponse;",
+      "import com.microsoft.playwright.BrowserContext;",
+      "import com.sun.net.httpserver.HttpExchange;",
+      "import com.sun.net.httpserver.HttpServer;",
+      "import org.junit.jupiter.api.AfterEach;",
+      "import org.junit.jupiter.api.BeforeEach;",
+      "import org.junit.jupiter.api.Test;",
       "",
-      "    function onKey(e){",
-      "      if (e.key === 'Escape') { window.__aimPickerCancel = true; e.preventDefault(); e.stopPropagation(); }",
-      "      else if (e.key === 'F8') { togglePickMode(); e.preventDefault(); e.stopPropagation(); }",
-      "      else if (e.key === 'Backspace') {",
-      "        if (window.__aimSelections.length) {",
-      "          const last = window.__aimSelections.pop();",
-      "          try { const el=document.querySelector(last.selector); if(el) el.classList.remove('__aim_selected_outline'); } catch(e){}",
-      "          if ((window.__aimTab||'sites') === 'picked') renderBody();",
+      "import java.io.IOException;",
+      "import java.io.OutputStream;",
+      "import java.lang.reflect.Proxy;",
+      "import java.net.InetSocketAddress;",
+      "import java.net.URI;",
+      "import java.net.http.HttpClient;",
+      "import java.net.http.HttpRequest;",
+      "import java.net.http.HttpResponse;",
+      "import java.util.HashMap;",
+      "import java.util.List;",
+      "import java.util.Locale;",
+      "import java.util.Map;",
+      "import java.util.concurrent.Executors;",
+      "import java.util.concurrent.atomic.AtomicInteger;",
+      "import java.util.concurrent.atomic.AtomicLong;",
+      "",
+      "import static org.junit.jupiter.api.Assertions.*;",
+      "",
+      "class DownloadPolicyTest {",
+      "  private static final ObjectMapper OM = new ObjectMapper();",
+      "  private static final long MB = 1024 * 1024;",
+      "",
+      "  private HttpServer server;",
+      "  private final AtomicInteger fullGets = new AtomicInteger();",
+      "  private final AtomicLong endlessSent = new AtomicLong();",
+      "",
+      "  @BeforeEach",
+      "  void start() throws IOException {",
+      "    server = HttpServer.create(new InetSocketAddress(\"127.0.0.1\", 0), 0);",
+      "    server.setExecutor(Executors.newCachedThreadPool(r -> { Thread t = new Thread(r); t.setDaemon(true); return t; }));",
+      "    server.createContext(\"/\", ex -> { try { serve(ex); } catch (IOException ignored) {} finally { ex.close(); } });",
+      "    server.start();",
+      "  }",
+      "",
+      "  @AfterEach",
+      "  void stop() { server.stop(0); }",
+      "",
+      "  private void serve(HttpExchange ex) throws IOException {",
+      "    String path = ex.getRequestURI().getPath();",
+      "    boolean head = \"HEAD\".equals(ex.getRequestMethod());",
+      "    String range = ex.getRequestHeaders().getFirst(\"Range\");",
+      "    switch (path) {",
+      "      case \"/small.png\" -> body(ex, \"image/png\", new byte[1000], head);",
+      "      case \"/page.html\" -> body(ex, \"text/html\", new byte[10], head);",
+      "      case \"/declared.mp4\" -> {",
+      "        ex.getResponseHeaders().set(\"Content-Type\", \"video/mp4\");",
+      "        if (head) { ex.getResponseHeaders().set(\"Content-Length\", String.valueOf(5 * MB)); ex.sendResponseHeaders(200, -1); return; }",
+      "        fullGets.incrementAndGet();",
+      "        stream(ex, 5 * MB);",
+      "      }",
+      "      case \"/nohead.mp4\" -> {",
+      "        if (head) { ex.sendResponseHeaders(405, -1); return; }",
+      "        ex.getResponseHeaders().set(\"Content-Type\", \"video/mp4\");",
+      "        if (\"bytes=0-0\".equals(range)) {",
+      "          ex.getResponseHeaders().set(\"Content-Range\", \"bytes 0-0/\" + 5 * MB);",
+      "          ex.sendResponseHeaders(206, 1);",
+      "          ex.getResponseBody().write(0);",
+      "          return;",
       "        }",
-      "        e.preventDefault(); e.stopPropagation();",
+      "        fullGets.incrementAndGet();",
+      "        stream(ex, 5 * MB);",
+      "      }",
+      "      case \"/endless.mp4\" -> {",
+      "        ex.getResponseHeaders().set(\"Content-Type\", \"video/mp4\");",
+      "        if (head) { ex.sendResponseHeaders(200, -1); return; }",
+      "        ex.sendResponseHeaders(200, 0);",
+      "        byte[] chunk = new byte[64 * 1024];",
+      "        OutputStream os = ex.getResponseBody();",
+      "        while (endlessSent.get() < 512 * MB) { os.write(chunk); endlessSent.addAndGet(chunk.length); }",
       "      }",
+      "      case \"/busy.png\" -> { ex.getResponseHeaders().set(\"Retry-After\", \"7\"); ex.sendResponseHeaders(503, -1); }",
+      "      default -> ex.sendResponseHeaders(404, -1);",
       "    }",
+      "  }",
       "",
-      "    document.addEventListener('mousemove', onMove, true);",
-      "    document.addEventListener('pointerdown', blockIfPicking, true);",
-      "    document.addEventListener('mousedown', blockIfPicking, true);",
-      "    document.addEventListener('touchstart', blockIfPicking, true);",
-      "    document.addEventListener('click', onClickCapture, true);",
-      "    document.addEventListener('keydown', onKey, true);",
-      "  };",
-      "})();",
+      "  private static void body(HttpExchange ex, String type, byte[] b, boolean head) throws IOException {",
+      "    ex.getResponseHeaders().set(\"Content-Type\", type);",
+      "    ex.sendResponseHeaders(200, head ? -1 : b.length);",
+      "    if (!head) ex.getResponseBody().write(b);",
+      "  }",
+      "",
+      "  private static void stream(HttpExchange ex, long n) throws IOException {",
+      "    ex.sendResponseHeaders(200, n);",
+      "    byte[] chunk = new byte[64 * 1024];",
+      "    OutputStream os = ex.getResponseBody();",
+      "    for (long sent = 0; sent < n; sent += chunk.length) os.write(chunk, 0, (int) Math.min(chunk.length, n - sent));",
+      "  }",
+      "",
+      "  // Only what DownloadPolicy touches: request().head() answered by a real HEAD, and an empty cookie jar.",
+      "  private static BrowserContext context() {",
+      "    HttpClient http = HttpClient.newHttpClient();",
+      "    APIRequestContext request = (APIRequestContext) Proxy.newProxyInstance(DownloadPolicyTest.class.getClassLoader(), new Class<?>[]{ APIRequestContext.class }, (p, m, a) -> {",
+      "      if (!m.getName().equals(\"head\")) throw new UnsupportedOperationException(m.getName());",
+      "      HttpResponse<Void> r = http.send(HttpRequest.newBuilder(URI.create((String) a[0])).method(\"HEAD\", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());",
+      "      Map<String, String> headers = new HashMap<>();",
+      "      r.headers().map().forEach((k, v) -> headers.put(k.toLowerCase(Locale.ROOT), v.get(0)));",
+      "      return Proxy.newProxyInstance(DownloadPolicyTest.class.getClassLoader(), new Class<?>[]{ APIResponse.class }, (p2, m2, a2) -> switch (m2.getName()) {",
+      "        case \"status\" -> r.statusCode();",
+      "        case \"headers\" -> headers;",
+      "        case \"dispose\" -> null;",
+      "        default -> throw new UnsupportedOperationException(m2.getName());",
+      "      });",
+      "    });",
+      "    return (BrowserContext) Proxy.newProxyInstance(DownloadPolicyTest.class.getClassLoader(), new Class<?>[]{ BrowserContext.class }, (p, m, a) -> switch (m.getName()) {",
+      "      case \"request\" -> request;",
+      "      case \"cookies\" -> List.of();",
+      "      default -> throw new UnsupportedOperationException(m.getName());",
+      "    });",
+      "  }",
+      "",
+      "  private static AimPickerProgram.DownloadPolicy policy() {",
+      "    return new AimPickerProgram.DownloadPolicy(new AimPickerProgram.CaptureOptions(new String[]{",
+      "      \"--max-download-mb\", \"1\", \"--download-types\", \"image/*,video/*\" }), \"\", \"test-agent\");",
+      "  }",
+      "",
+      "  private String url(String path) { return \"http://127.0.0.1:\" + server.getAddress().getPort() + path; }",
+      "",
+      "  private AimPickerProgram.DownloadPolicy.Body fetch(AimPickerProgram.DownloadPolicy p, String path) throws Exception {",
+      "    return p.fetchOnce(context(), url(path), new AimPickerProgram.DownloadPolicy.Deadline(System.currentTimeMillis() + 20_000, 20_000, false));",
+      "  }",
+      "",
+      "  private ObjectNode refused(AimPickerProgram.DownloadPolicy p, String path) {",
+      "    AimPickerProgram.DownloadPolicy.Refused r = assertThrows(AimPickerProgram.DownloadPolicy.Refused.class, () -> fetch(p, path));",
+      "    ObjectNode d = OM.createObjectNode();",
+      "    p.record(d, r);",
+      "    return (ObjectNode) d.path(\"policy\");",
+      "  }",
+      "",
+      "  @Test",
+      "  void smallFileWithinLimits() throws Exception {",
+      "    AimPickerProgram.DownloadPolicy.Body b = fetch(policy(), \"/small.png\");",
+      "    assertEquals(200, b.status);",
+      "    assertEquals(\"image/png\", b.contentType);",
+      "    assertEquals(1000, b.bytes.length);",
+      "  }",
+      "",
+      "  @Test",
+      "  void declaredOversizeIsRefusedBeforeTheGet() {",
+      "    ObjectNode p = refused(policy(), \"/declared.mp4\");",
+      "    assertEquals(\"skipped\", p.path(\"action\").asText());",
+      "    assertEquals(\"file-bytes\", p.path(\"reason\").asText());",
+      "    assertEquals(5 * MB, p.path(\"declaredBytes\").asLong());",
+      "    assertEquals(0, fullGets.get());",
+      "  }",
+      "",
+      "  @Test",
+      "  void serverWithoutHeadIsProbedWithAOneByteRange() {",
+      "    ObjectNode p = refused(policy(), \"/nohead.mp4\");",
+      "    assertEquals(\"skipped\", p.path(\"action\").asText());",
+      "    assertEquals(5 * MB, p.path(\"declaredBytes\").asLong());",
+      "    assertEquals(0, fullGets.get());",
+      "  }",
+      "",
+      "  @Test",
+      "  void disallowedTypeIsRefusedOnTheProbe() {",
+      "    ObjectNode p = refused(policy(), \"/page.html\");",
+      "    assertEquals(\"skipped\", p.path(\"action\").asText());",
+      "    assertEquals(\"content-type\", p.path(\"reason\").asText());",
+      "  }",
+      "",
+      "  @Test",
+      "  void undeclaredStreamIsCutOffMidStream() throws Exception {",
+      "    ObjectNode p = refused(policy(), \"/endless.mp4\");",
+      "    assertEquals(\"cancelled\", p.path(\"action\").asText());",
+      "    assertEquals(\"file-bytes\", p.path(\"reason\").asText());",
+      "    long read = p.path(\"bytesRead\").asLong();",
+      "    assertTrue(read > MB && read < 2 * MB, \"bytesRead \" + read);",
+      "    Thread.sleep(500);",
+      "    long sent = endlessSent.get();",
+      "    Thread.sleep(500);",
+      "    assertEquals(sent, endlessSent.get(), \"server kept streaming after the cut\");",
+      "    assertTrue(sent < 64 * MB, \"sent \" + sent);",
+      "  }",
+      "",
+      "  @Test",
+      "  void retryableStatusOnTheProbeCarriesRetryAfter() {",
+      "    AimPickerProgram.Resilience.Failure f = assertThrows(AimPickerProgram.Resilience.Failure.class, () -> fetch(policy(), \"/busy.png\"));",
+      "    assertEquals(7000, f.retryAfterMs);",
+      "  }",
+      "}",
       ""
     );
   }